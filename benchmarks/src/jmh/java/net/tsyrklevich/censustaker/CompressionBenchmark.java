@@ -0,0 +1,58 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Deflating a census, one JSON census of the fixture tree, at each level with and without the
+ *  preset dictionary. The compressed size is the benchmark's result, so it's reported alongside
+ *  the time.
+ */
+@State(Scope.Thread)
+public class CompressionBenchmark {
+  @Param({"1", "6", "9"})
+  public int level;
+
+  @Param({"false", "true"})
+  public boolean dictionary;
+
+  private byte[] census;
+  private CensusCompression compression;
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) throws IOException {
+    SmallFilesBenchmark smallFiles = new SmallFilesBenchmark();
+    smallFiles.format = CensusWriter.Format.JSON;
+    smallFiles.setup(fixture);
+    census = smallFiles.toByteArray();
+
+    byte[] preset = null;
+    if (dictionary) {
+      try (InputStream in = getClass().getResourceAsStream(
+          "/census_dictionary_v" + CensusCompression.DICTIONARY_VERSION)) {
+        preset = IOUtils.toByteArray(in);
+      }
+    }
+    compression = new CensusCompression(level, Deflater.DEFAULT_STRATEGY, preset);
+  }
+
+  @Benchmark
+  public long deflate() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    try (OutputStream deflated = compression.deflate(out)) {
+      deflated.write(census);
+    }
+    return out.getByteCount();
+  }
+}
@@ -0,0 +1,161 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * file_permissions: streaming a batch of packed records as the native scanner hands them over,
+ *  as objects or as a FileRecordColumns table, against the old way of building FileInformation
+ *  objects and serializing them with Gson.
+ */
+@State(Scope.Thread)
+public class FileRecordsBenchmark {
+  @Param({"10000"})
+  public int records;
+
+  /** The fields of the FileInformation objects FileSystemCensus used to build. */
+  static class FileInformation {
+    String path;
+    String linkPath;
+    int uid;
+    int gid;
+    int size;
+    int mode;
+    String selinuxContext;
+  }
+
+  private final Gson gson = new Gson();
+  private List<FileInformation> files;
+  private FileRecordSink sink;
+  private FileRecordSink columnSink;
+  private JsonWriter writer;
+  private FileRecordColumns columns;
+  private int count;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(42);
+    files = new ArrayList<>();
+    for (int i = 0; i < records; i++) {
+      FileInformation file = new FileInformation();
+      file.path = "/system/lib64/lib" + Integer.toHexString(random.nextInt()) + ".so";
+      file.linkPath = random.nextInt(10) == 0 ? "/vendor/lib64/" + i : null;
+      file.uid = random.nextInt(3000);
+      file.gid = random.nextInt(3000);
+      file.size = random.nextInt(1 << 20);
+      file.mode = 0100644;
+      file.selinuxContext = "u:object_r:system_lib_file:s0";
+      files.add(file);
+    }
+
+    sink = new FileRecordSink(FileSystemCensus.BATCH_SIZE) {
+      @Override
+      protected void consume(FileRecordCursor records) throws IOException {
+        while (records.next()) {
+          FileSystemCensus.writeFileRecord(writer, records);
+        }
+      }
+    };
+    count = pack(sink.buffer(), files);
+
+    columnSink = new FileRecordSink(FileSystemCensus.BATCH_SIZE) {
+      @Override
+      protected void consume(FileRecordCursor records) throws IOException {
+        while (records.next()) {
+          columns.add(records);
+        }
+      }
+    };
+    pack(columnSink.buffer(), files);
+  }
+
+  /**
+   * Lay records out the way jni/native.c does, strings are added to a heap growing down from the
+   *  end of the buffer.
+   */
+  private static int pack(ByteBuffer buffer, List<FileInformation> files) {
+    int heap = buffer.capacity();
+    int count = 0;
+    for (FileInformation file : files) {
+      byte[][] strings = {bytes(file.path), bytes(file.linkPath), bytes(file.selinuxContext)};
+      int needed = FileRecordCursor.RECORD_SIZE;
+      for (byte[] string : strings) {
+        needed += string == null ? 0 : string.length;
+      }
+      int record = count * FileRecordCursor.RECORD_SIZE;
+      if (record + needed > heap) {
+        break;
+      }
+
+      buffer.putInt(record, file.uid);
+      buffer.putInt(record + 4, file.gid);
+      buffer.putInt(record + 8, file.size);
+      buffer.putInt(record + 12, file.mode);
+      for (int i = 0; i < strings.length; i++) {
+        int field = record + 16 + i * 8;
+        if (strings[i] == null) {
+          buffer.putInt(field, -1);
+          buffer.putInt(field + 4, 0);
+          continue;
+        }
+        heap -= strings[i].length;
+        buffer.position(heap);
+        buffer.put(strings[i]);
+        buffer.putInt(field, heap);
+        buffer.putInt(field + 4, strings[i].length);
+      }
+      count++;
+    }
+    return count;
+  }
+
+  private static byte[] bytes(String string) {
+    return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public long streamRecords() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.beginArray();
+    sink.onBatch(count);
+    writer.endArray();
+    writer.flush();
+    return out.getByteCount();
+  }
+
+  @Benchmark
+  public long streamColumns() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    columns = new FileRecordColumns(writer);
+    columnSink.onBatch(count);
+    columns.finish();
+    writer.flush();
+    return out.getByteCount();
+  }
+
+  @Benchmark
+  public long gsonTree() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    gson.toJson(gson.toJsonTree(files.subList(0, count)), writer);
+    writer.flush();
+    return out.getByteCount();
+  }
+}
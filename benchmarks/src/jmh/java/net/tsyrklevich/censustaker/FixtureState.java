@@ -0,0 +1,38 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import net.tsyrklevich.censustaker.benchmarks.FixtureTree;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A fixture tree generated once per trial and shared by every thread of a benchmark.
+ */
+@State(Scope.Benchmark)
+public class FixtureState {
+  @Param({"1"})
+  public int scale;
+
+  @Param({"65536"})
+  public int maxFileSize;
+
+  public FixtureTree tree;
+
+  @Setup(Level.Trial)
+  public void generate() throws IOException {
+    File root = Files.createTempDirectory("censustaker-fixture").toFile();
+    tree = FixtureTree.generate(root, scale, maxFileSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    FileUtils.deleteDirectory(tree.root);
+  }
+}
@@ -0,0 +1,35 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Expanding the bundled scan plan's globs, with every directory moved under the fixture.
+ */
+@State(Scope.Thread)
+public class GlobBenchmark {
+  private ScanPlan plan;
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) throws IOException {
+    try (InputStream in = getClass().getResourceAsStream("/scan_plan.json")) {
+      plan = ScanPlan.parse(in);
+    }
+    String root = fixture.tree.root.getPath();
+    for (ScanPlan.Glob glob : plan.globs) {
+      glob.dir = root + glob.dir;
+    }
+    plan.files.clear();
+  }
+
+  @Benchmark
+  public List<String> interestingFiles() {
+    return FileSystemCensus.interestingFiles(plan);
+  }
+}
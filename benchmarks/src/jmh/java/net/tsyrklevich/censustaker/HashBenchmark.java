@@ -0,0 +1,51 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What S3Uploader does for every file it hasn't seen before: SHA-256 it and hex encode the
+ *  digest.
+ */
+@State(Scope.Thread)
+public class HashBenchmark {
+  private final List<String> paths = new ArrayList<>();
+  private final byte[][] digests = new byte[1024][32];
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) {
+    for (File file : fixture.tree.systemFiles()) {
+      paths.add(file.getPath());
+    }
+    Random random = new Random(42);
+    for (byte[] digest : digests) {
+      random.nextBytes(digest);
+    }
+  }
+
+  @Benchmark
+  public void hashSystemFiles(Blackhole blackhole)
+      throws IOException, NoSuchAlgorithmException {
+    UploadStats stats = new UploadStats();
+    for (String path : paths) {
+      blackhole.consume(S3Uploader.hash(path, stats));
+    }
+  }
+
+  @Benchmark
+  public void encodeHex(Blackhole blackhole) {
+    for (byte[] digest : digests) {
+      blackhole.consume(S3Uploader.encodeHex(digest));
+    }
+  }
+}
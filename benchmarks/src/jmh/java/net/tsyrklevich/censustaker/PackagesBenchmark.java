@@ -0,0 +1,148 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.pm.FeatureInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PathPermission;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import android.os.PatternMatcher;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The package manager sections against a fake PackageSource the size of a full device image,
+ *  so what's measured is the census' own work and not the binder calls.
+ */
+@State(Scope.Thread)
+public class PackagesBenchmark {
+  @Param({"400"})
+  public int packages;
+
+  private PackageSource source;
+  private CensusConfig config;
+
+  private static class FakePackages implements PackageSource {
+    final List<PackageInfo> packages = new ArrayList<>();
+    final List<PermissionGroupInfo> groups = new ArrayList<>();
+    final Map<String, List<PermissionInfo>> byGroup = new HashMap<>();
+    final List<ProviderInfo> providers = new ArrayList<>();
+    final FeatureInfo[] features = new FeatureInfo[150];
+
+    FakePackages(int count) {
+      for (int i = 0; i < features.length; i++) {
+        features[i] = new FeatureInfo();
+        features[i].name = "android.hardware.feature" + i;
+      }
+
+      for (int i = 0; i < count; i++) {
+        PackageInfo pkg = new PackageInfo();
+        pkg.packageName = "com.example.package" + i;
+        // Most packages declare nothing, a few declare a lot
+        int declared = i % 10 == 0 ? 20 : i % 3 == 0 ? 2 : 0;
+        pkg.permissions = declared > 0 ? new PermissionInfo[declared] : null;
+        for (int j = 0; j < declared; j++) {
+          PermissionInfo permission = new PermissionInfo();
+          permission.packageName = pkg.packageName;
+          permission.name = pkg.packageName + ".permission.P" + j;
+          permission.protectionLevel = j % 4;
+          pkg.permissions[j] = permission;
+        }
+        packages.add(pkg);
+
+        if (i % 10 == 0) {
+          PermissionGroupInfo group = new PermissionGroupInfo();
+          // Every other group is declared by a package that isn't installed for this user
+          group.packageName = i % 20 == 0 ? pkg.packageName : "com.example.hidden" + i;
+          group.name = pkg.packageName + ".group";
+          groups.add(group);
+          List<PermissionInfo> members = new ArrayList<>();
+          for (int j = 0; j < declared; j += 2) {
+            members.add(pkg.permissions[j]);
+          }
+          byGroup.put(group.name, members);
+        }
+
+        if (i % 2 == 0) {
+          ProviderInfo provider = new ProviderInfo();
+          provider.packageName = pkg.packageName;
+          provider.authority = pkg.packageName + ".provider";
+          provider.readPermission = pkg.packageName + ".permission.READ";
+          if (i % 8 == 0) {
+            provider.pathPermissions = new PathPermission[] {
+                new PathPermission("/files", PatternMatcher.PATTERN_PREFIX, "android.permission.X",
+                    null)};
+            provider.uriPermissionPatterns = new PatternMatcher[] {
+                new PatternMatcher("/shared/.*", PatternMatcher.PATTERN_SIMPLE_GLOB)};
+          }
+          providers.add(provider);
+        }
+      }
+    }
+
+    @Override
+    public String[] getSystemSharedLibraryNames() {
+      return new String[] {"android.test.base", "android.test.mock", "android.test.runner",
+          "javax.obex", "org.apache.http.legacy"};
+    }
+
+    @Override
+    public FeatureInfo[] getSystemAvailableFeatures() {
+      return features;
+    }
+
+    @Override
+    public List<PackageInfo> getInstalledPackages(int flags) {
+      return packages;
+    }
+
+    @Override
+    public PackageInfo getPackageInfo(String packageName, int flags)
+        throws PackageManager.NameNotFoundException {
+      throw new PackageManager.NameNotFoundException(packageName);
+    }
+
+    @Override
+    public List<PermissionGroupInfo> getAllPermissionGroups(int flags) {
+      return groups;
+    }
+
+    @Override
+    public List<PermissionInfo> queryPermissionsByGroup(String group, int flags) {
+      return byGroup.get(group);
+    }
+
+    @Override
+    public List<ProviderInfo> queryContentProviders(String processName, int uid, int flags) {
+      return providers;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    source = new FakePackages(packages);
+    config = new CensusConfig(new Properties());
+  }
+
+  @Benchmark
+  public long pollPackages() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, out);
+    PackageManagerCensus.poll(source, census, config);
+    census.close();
+    return out.getByteCount();
+  }
+}
@@ -0,0 +1,49 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The two ways system properties are read: parsing getprop's output, and decoding a property
+ *  area directly (the build_prop area the PropertyArea tests use).
+ */
+@State(Scope.Thread)
+public class PropertiesBenchmark {
+  private String getprop;
+  private ByteBuffer area;
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) throws IOException {
+    getprop = FileUtils.readFileToString(fixture.tree.getprop(), StandardCharsets.UTF_8);
+    try (InputStream in = getClass().getResourceAsStream("/property_areas/build_prop")) {
+      area = ByteBuffer.wrap(IOUtils.toByteArray(in));
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> parseGetprop() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    PropertiesCensus.parseGetprop(new BufferedReader(new StringReader(getprop)), properties);
+    return properties;
+  }
+
+  @Benchmark
+  public Map<String, String> readPropertyArea() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    PropertyArea.read(area, properties);
+    return properties;
+  }
+}
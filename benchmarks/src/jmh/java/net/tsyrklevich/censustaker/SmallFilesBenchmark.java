@@ -0,0 +1,71 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * small_files: reading the /proc and /sys files into a reused buffer and writing them out as a
+ *  blob section, Base64 strings in the JSON format and raw bytes in the binary one.
+ */
+@State(Scope.Thread)
+public class SmallFilesBenchmark {
+  @Param({"JSON", "BINARY"})
+  public CensusWriter.Format format;
+
+  private List<File> files;
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) {
+    files = new ArrayList<>(FileUtils.listFiles(fixture.tree.proc(), null, true));
+    files.addAll(FileUtils.listFiles(fixture.tree.sys(), null, true));
+  }
+
+  @Benchmark
+  public long readAndWrite() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    write(out);
+    return out.getByteCount();
+  }
+
+  byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out);
+    return out.toByteArray();
+  }
+
+  private void write(OutputStream out) throws IOException {
+    CensusWriter census = new CensusWriter(format, out);
+    census.beginBlobSection("small_files");
+
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    for (File file : files) {
+      contents.reset();
+      try (InputStream in = new FileInputStream(file)) {
+        int len;
+        while ((len = in.read(chunk)) != -1) {
+          contents.write(chunk, 0, len);
+        }
+      }
+      census.writeBlob(file.getPath(), contents);
+    }
+
+    census.endSection();
+    census.close();
+  }
+}
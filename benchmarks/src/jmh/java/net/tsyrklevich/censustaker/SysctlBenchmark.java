@@ -0,0 +1,55 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Java fallback for the sysctl section, the walk and reads together and the key derivation
+ *  on its own.
+ */
+@State(Scope.Thread)
+public class SysctlBenchmark {
+  private String root;
+  private List<String> paths;
+
+  @Setup(Level.Trial)
+  public void setup(FixtureState fixture) {
+    root = fixture.tree.sysctl().getPath();
+    paths = new ArrayList<>();
+    for (File file : FileUtils.listFiles(fixture.tree.sysctl(), null, true)) {
+      paths.add(file.getPath());
+    }
+  }
+
+  @Benchmark
+  public long pollSysctl() throws IOException {
+    CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.beginObject();
+    PropertiesCensus.pollSysctlJava(writer, root);
+    writer.endObject();
+    writer.flush();
+    return out.getByteCount();
+  }
+
+  @Benchmark
+  public void sysctlNames(Blackhole blackhole) {
+    for (String path : paths) {
+      blackhole.consume(PropertiesCensus.sysctlName(root, path));
+    }
+  }
+}
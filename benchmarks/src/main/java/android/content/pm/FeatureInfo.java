@@ -0,0 +1,8 @@
+package android.content.pm;
+
+/**
+ * Stands in for android.jar's FeatureInfo, with the fields the census reads.
+ */
+public class FeatureInfo {
+  public String name;
+}
@@ -0,0 +1,9 @@
+package android.content.pm;
+
+/**
+ * Stands in for android.jar's PackageInfo, with the fields the census reads.
+ */
+public class PackageInfo {
+  public String packageName;
+  public PermissionInfo[] permissions;
+}
@@ -0,0 +1,40 @@
+package android.content.pm;
+
+import java.util.List;
+
+/**
+ * Stands in for android.jar's PackageManager, so PackageManagerCensus and PackageSource load
+ *  off-device. Only what they use is declared, the benchmarks give the census a fake
+ *  PackageSource rather than one of these.
+ */
+public abstract class PackageManager {
+  public static final int GET_META_DATA = 0x80;
+  public static final int GET_PERMISSIONS = 0x1000;
+  public static final int MATCH_UNINSTALLED_PACKAGES = 0x2000;
+
+  public static class NameNotFoundException extends Exception {
+    public NameNotFoundException() {
+    }
+
+    public NameNotFoundException(String name) {
+      super(name);
+    }
+  }
+
+  public abstract String[] getSystemSharedLibraryNames();
+
+  public abstract FeatureInfo[] getSystemAvailableFeatures();
+
+  public abstract List<PackageInfo> getInstalledPackages(int flags);
+
+  public abstract PackageInfo getPackageInfo(String packageName, int flags)
+      throws NameNotFoundException;
+
+  public abstract List<PermissionGroupInfo> getAllPermissionGroups(int flags);
+
+  public abstract List<PermissionInfo> queryPermissionsByGroup(String group, int flags)
+      throws NameNotFoundException;
+
+  public abstract List<ProviderInfo> queryContentProviders(String processName, int uid,
+      int flags);
+}
@@ -0,0 +1,26 @@
+package android.content.pm;
+
+import android.os.PatternMatcher;
+
+/**
+ * Stands in for android.jar's PathPermission, printed the way the real one is.
+ */
+public class PathPermission extends PatternMatcher {
+  private final String readPermission;
+  private final String writePermission;
+
+  public PathPermission(String pattern, int type, String readPermission,
+      String writePermission) {
+    super(pattern, type);
+    this.readPermission = readPermission;
+    this.writePermission = writePermission;
+  }
+
+  public String getReadPermission() {
+    return readPermission;
+  }
+
+  public String getWritePermission() {
+    return writePermission;
+  }
+}
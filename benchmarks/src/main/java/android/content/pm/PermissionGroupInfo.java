@@ -0,0 +1,9 @@
+package android.content.pm;
+
+/**
+ * Stands in for android.jar's PermissionGroupInfo, with the fields the census reads.
+ */
+public class PermissionGroupInfo {
+  public String packageName;
+  public String name;
+}
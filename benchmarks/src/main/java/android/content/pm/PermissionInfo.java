@@ -0,0 +1,12 @@
+package android.content.pm;
+
+/**
+ * Stands in for android.jar's PermissionInfo, with the fields the census reads.
+ */
+public class PermissionInfo {
+  public String packageName;
+  public String name;
+  public String group;
+  public int protectionLevel;
+  public int flags;
+}
@@ -0,0 +1,20 @@
+package android.content.pm;
+
+import android.os.PatternMatcher;
+
+/**
+ * Stands in for android.jar's ProviderInfo, with the fields the census reads.
+ */
+public class ProviderInfo {
+  public String packageName;
+  public String name;
+  public String authority;
+  public String readPermission;
+  public String writePermission;
+  public boolean grantUriPermissions;
+  public boolean multiprocess;
+  public int initOrder;
+  public int flags;
+  public PathPermission[] pathPermissions;
+  public PatternMatcher[] uriPermissionPatterns;
+}
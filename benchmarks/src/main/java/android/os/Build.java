@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Stands in for android.jar's Build, which reads system properties that don't exist off-device.
+ */
+public class Build {
+  public static final String MANUFACTURER = "benchmark";
+  public static final String MODEL = "benchmark";
+  public static final String CPU_ABI = System.getProperty("os.arch");
+  public static final String FINGERPRINT = "benchmark/benchmark/benchmark:0/0/0:user/test-keys";
+
+  public static class VERSION {
+    public static final int SDK_INT = 29;
+    public static final String RELEASE = "10";
+  }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stands in for android.jar's Debug, for the CPU time CensusMetrics records.
+ */
+public final class Debug {
+  private Debug() {
+  }
+
+  public static long threadCpuTimeNanos() {
+    return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+  }
+}
@@ -0,0 +1,43 @@
+package android.os;
+
+/**
+ * Stands in for android.jar's PatternMatcher, printed the way the real one is.
+ */
+public class PatternMatcher {
+  public static final int PATTERN_LITERAL = 0;
+  public static final int PATTERN_PREFIX = 1;
+  public static final int PATTERN_SIMPLE_GLOB = 2;
+
+  private final String path;
+  private final int type;
+
+  public PatternMatcher(String pattern, int type) {
+    this.path = pattern;
+    this.type = type;
+  }
+
+  public final String getPath() {
+    return path;
+  }
+
+  public final int getType() {
+    return type;
+  }
+
+  @Override
+  public String toString() {
+    String type = "? ";
+    switch (this.type) {
+      case PATTERN_LITERAL:
+        type = "LITERAL: ";
+        break;
+      case PATTERN_PREFIX:
+        type = "PREFIX: ";
+        break;
+      case PATTERN_SIMPLE_GLOB:
+        type = "GLOB: ";
+        break;
+    }
+    return "PatternMatcher{" + type + path + "}";
+  }
+}
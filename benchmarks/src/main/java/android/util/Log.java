@@ -0,0 +1,32 @@
+package android.util;
+
+/**
+ * Stands in for android.jar's Log, whose methods all throw off-device. Only errors are printed
+ *  so logging doesn't dominate what's being measured.
+ */
+public final class Log {
+  private Log() {
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int w(String tag, String msg) {
+    return 0;
+  }
+
+  public static int e(String tag, String msg) {
+    System.err.println(tag + ": " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    System.err.println(tag + ": " + msg + ": " + tr);
+    return 0;
+  }
+}
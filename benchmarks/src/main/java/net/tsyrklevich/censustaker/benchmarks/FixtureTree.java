@@ -0,0 +1,252 @@
+package net.tsyrklevich.censustaker.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes a directory tree shaped like the parts of a device the census reads, so the collectors
+ *  can be benchmarked on a Linux box. At scale 1 the counts are roughly those of a phone:
+ *
+ *  init*.rc, ueventd*.rc        init scripts at the root
+ *  proc/                        cpuinfo, meminfo, mounts, ... and <pid>/{cmdline,status}
+ *  proc/sys/                    ~1000 sysctls, including net.ipv{4,6}.conf.<iface>.*
+ *  sys/fs/selinux/              enforce, booleans/* and class/<class>/perms/<perm>
+ *  sys/module/<module>/version
+ *  system/{bin,lib64,framework}, system/etc/permissions/*.xml, vendor/lib64
+ *                               files with random contents of up to maxFileSize bytes
+ *  getprop.txt                  what getprop prints
+ *
+ * The tree only depends on the arguments, two trees generated with the same ones are identical.
+ *
+ *  FixtureTree <dir> [scale] [maxFileSize]
+ */
+public class FixtureTree {
+  public final File root;
+  public final int scale;
+  public final int maxFileSize;
+  private final Random random = new Random(42);
+  private final List<File> systemFiles = new ArrayList<>();
+  private int sysctls;
+
+  private FixtureTree(File root, int scale, int maxFileSize) {
+    this.root = root;
+    this.scale = scale;
+    this.maxFileSize = maxFileSize;
+  }
+
+  public static FixtureTree generate(File root, int scale, int maxFileSize) throws IOException {
+    FixtureTree tree = new FixtureTree(root, scale, maxFileSize);
+    tree.writeRoot();
+    tree.writeProc();
+    tree.writeSysctls();
+    tree.writeSys();
+    tree.writeSystem();
+    tree.writeGetprop();
+    return tree;
+  }
+
+  public File proc() {
+    return new File(root, "proc");
+  }
+
+  public File sysctl() {
+    return new File(root, "proc/sys");
+  }
+
+  public File sys() {
+    return new File(root, "sys");
+  }
+
+  public File getprop() {
+    return new File(root, "getprop.txt");
+  }
+
+  /**
+   * @return every file under system/ and vendor/, the kind of file S3Uploader hashes
+   */
+  public List<File> systemFiles() {
+    return systemFiles;
+  }
+
+  public int sysctlCount() {
+    return sysctls;
+  }
+
+  private void write(File file, byte[] contents) throws IOException {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create " + parent);
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(contents);
+    }
+  }
+
+  private void write(File file, String contents) throws IOException {
+    write(file, contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String word() {
+    StringBuilder word = new StringBuilder();
+    int length = 3 + random.nextInt(10);
+    for (int i = 0; i < length; i++) {
+      word.append((char) ('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+
+  /**
+   * Text of about size bytes, random words so it compresses about as well as real config does.
+   */
+  private String text(int size) {
+    StringBuilder text = new StringBuilder(size + 16);
+    while (text.length() < size) {
+      text.append(word()).append(random.nextInt(8) == 0 ? '\n' : ' ');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Sizes spread evenly over orders of magnitude, like the files on a system partition.
+   */
+  private int fileSize() {
+    double log = Math.log(64) + random.nextDouble() * (Math.log(maxFileSize) - Math.log(64));
+    return (int) Math.exp(log);
+  }
+
+  private void writeRoot() throws IOException {
+    write(new File(root, "init.rc"), text(30000));
+    for (int i = 0; i < 8 * scale; i++) {
+      write(new File(root, "init." + word() + ".rc"), text(2000 + random.nextInt(8000)));
+    }
+    write(new File(root, "ueventd.rc"), text(8000));
+  }
+
+  private void writeProc() throws IOException {
+    File proc = proc();
+    for (String name : new String[] {"cpuinfo", "meminfo", "mounts", "version", "cmdline",
+        "devices", "filesystems", "interrupts", "iomem", "misc", "modules", "vmstat", "zoneinfo",
+        "slabinfo", "pagetypeinfo", "vmallocinfo", "consoles"}) {
+      write(new File(proc, name), text(200 + random.nextInt(20000)));
+    }
+
+    for (int i = 0; i < 300 * scale; i++) {
+      int pid = 1 + i * 7;
+      File dir = new File(proc, Integer.toString(pid));
+      String name = word();
+      write(new File(dir, "cmdline"), "/system/bin/" + name + "\0--" + word() + "\0");
+      write(new File(dir, "status"), String.format(Locale.US,
+          "Name:\t%s\nState:\tS (sleeping)\nTgid:\t%d\nPid:\t%d\nPPid:\t1\n"
+              + "Uid:\t1000\t1000\t1000\t1000\nGid:\t1000\t1000\t1000\t1000\n"
+              + "Groups:\t1004 1007 1011 3003\nCapInh:\t0000000000000000\n"
+              + "CapPrm:\t0000000000000000\nCapEff:\t0000000000000000\n"
+              + "CapBnd:\t0000003fffffffff\nCapAmb:\t0000000000000000\n"
+              + "NoNewPrivs:\t0\nSeccomp:\t2\n", name, pid, pid));
+    }
+  }
+
+  private void sysctl(File dir, String name) throws IOException {
+    write(new File(dir, name),
+        random.nextInt(4) == 0 ? word() + "\n" : random.nextInt(65536) + "\n");
+    sysctls++;
+  }
+
+  private void writeSysctls() throws IOException {
+    File sys = sysctl();
+    String[][] groups = {{"kernel", "150"}, {"vm", "40"}, {"fs", "30"}, {"net/core", "30"},
+        {"net/ipv4", "150"}, {"net/ipv6", "20"}, {"net/netfilter", "60"}, {"debug", "5"},
+        {"user", "10"}};
+    for (String[] group : groups) {
+      File dir = new File(sys, group[0]);
+      for (int i = 0; i < Integer.parseInt(group[1]) * scale; i++) {
+        sysctl(dir, word() + "_" + i);
+      }
+    }
+
+    for (int i = 0; i < 8 * scale; i++) {
+      String iface = i == 0 ? "all" : i == 1 ? "default" : "rmnet" + i;
+      for (int j = 0; j < 30; j++) {
+        sysctl(new File(sys, "net/ipv4/conf/" + iface), "key" + j);
+      }
+      for (int j = 0; j < 40; j++) {
+        sysctl(new File(sys, "net/ipv6/conf/" + iface), "key" + j);
+      }
+    }
+  }
+
+  private void writeSys() throws IOException {
+    File selinux = new File(sys(), "fs/selinux");
+    write(new File(selinux, "enforce"), "1");
+    write(new File(selinux, "deny_unknown"), "0");
+    write(new File(selinux, "policy"), text(64 * 1024));
+    for (int i = 0; i < 40 * scale; i++) {
+      write(new File(selinux, "booleans/" + word()), "0 0");
+    }
+    for (int i = 0; i < 100 * scale; i++) {
+      File perms = new File(selinux, "class/" + word() + "/perms");
+      for (int j = 0; j < 10 + random.nextInt(20); j++) {
+        write(new File(perms, word()), Integer.toString(j + 1));
+      }
+    }
+
+    for (int i = 0; i < 50 * scale; i++) {
+      write(new File(sys(), "module/" + word() + "/version"), "1." + random.nextInt(10) + "\n");
+    }
+  }
+
+  private void systemFile(File file, int size) throws IOException {
+    byte[] contents = new byte[size];
+    random.nextBytes(contents);
+    write(file, contents);
+    systemFiles.add(file);
+  }
+
+  private void writeSystem() throws IOException {
+    String[][] dirs = {{"system/bin", "400", ""}, {"system/lib64", "700", ".so"},
+        {"system/framework", "100", ".jar"}, {"vendor/lib64", "300", ".so"}};
+    for (String[] dir : dirs) {
+      for (int i = 0; i < Integer.parseInt(dir[1]) * scale; i++) {
+        systemFile(new File(root, dir[0] + "/" + word() + i + dir[2]), fileSize());
+      }
+    }
+
+    for (int i = 0; i < 60 * scale; i++) {
+      File xml = new File(root, "system/etc/permissions/" + word() + ".xml");
+      write(xml, "<permissions>\n  <feature name=\"android.hardware." + word() + "\" />\n"
+          + text(500) + "\n</permissions>\n");
+      systemFiles.add(xml);
+    }
+  }
+
+  private void writeGetprop() throws IOException {
+    StringBuilder getprop = new StringBuilder();
+    for (int i = 0; i < 700 * scale; i++) {
+      getprop.append("[ro.").append(word()).append('.').append(word()).append("]: [")
+          .append(random.nextBoolean() ? word() : Integer.toString(random.nextInt(100000)))
+          .append("]\n");
+    }
+    write(getprop(), getprop.toString());
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: FixtureTree <dir> [scale] [maxFileSize]");
+      System.exit(1);
+    }
+    int scale = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    int maxFileSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+
+    long start = System.nanoTime();
+    FixtureTree tree = generate(new File(args[0]), scale, maxFileSize);
+    System.out.printf(Locale.US, "Wrote %d sysctls and %d system files to %s in %.1fs%n",
+        tree.sysctlCount(), tree.systemFiles().size(), tree.root,
+        (System.nanoTime() - start) / 1e9);
+  }
+}
@@ -0,0 +1,371 @@
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <limits.h>
+#include <unistd.h>
+#include <stdlib.h>
+
+#include "dirindex.h"
+#include "log.h"
+
+/*
+ * The index is only ever read back on the device that wrote it, so it's in host byte order:
+ *
+ *  u32 magic, string key, u32 node count, u32 child count, then for every node sorted by path:
+ *  string path, u64 dev, u64 ino, i64 mtime_ns, i64 ctime_ns, u32 nlink, u32 nchildren,
+ *  u64 hash and nchildren children of string path, string linkpath, string selinuxcontext and
+ *  i32 uid, gid, size, mode.
+ *
+ * Strings are a u32 length, or NULL_STRING, followed by that many bytes and a NUL so they can
+ *  be used straight out of the file once it's read in.
+ */
+#define INDEX_MAGIC 0x31584944 // "DIX1"
+#define NULL_STRING UINT32_MAX
+
+#define FNV_OFFSET 0xcbf29ce484222325ULL
+#define FNV_PRIME 0x100000001b3ULL
+
+struct dir_index {
+    char *data; // the whole file, the nodes' strings point into it
+    struct dir_node *nodes;
+    size_t count;
+    struct scan_entry *children;
+};
+
+struct index_reader {
+    const char *pos;
+    const char *end;
+};
+
+static bool readBytes(struct index_reader *reader, void *value, size_t size)
+{
+    if ((size_t)(reader->end - reader->pos) < size) {
+        return false;
+    }
+    memcpy(value, reader->pos, size);
+    reader->pos += size;
+    return true;
+}
+
+/*
+ * @return false if the file ends early or the string isn't terminated, *str is NULL for a
+ *  NULL string
+ */
+static bool readString(struct index_reader *reader, const char **str)
+{
+    uint32_t len;
+    if (!readBytes(reader, &len, sizeof(len))) {
+        return false;
+    }
+    if (len == NULL_STRING) {
+        *str = NULL;
+        return true;
+    }
+    if ((size_t)(reader->end - reader->pos) <= len || reader->pos[len] != '\0') {
+        return false;
+    }
+    *str = reader->pos;
+    reader->pos += len + 1;
+    return true;
+}
+
+static uint64_t hashBytes(uint64_t hash, const void *data, size_t len)
+{
+    const unsigned char *bytes = data;
+    for (size_t i = 0; i < len; i++) {
+        hash = (hash ^ bytes[i]) * FNV_PRIME;
+    }
+    return hash;
+}
+
+static uint64_t hashString(uint64_t hash, const char *str)
+{
+    // NUL ends every string so a NULL one, a single 0xff, can't collide with any of them
+    if (str == NULL) {
+        static const unsigned char null = 0xff;
+        return hashBytes(hash, &null, 1);
+    }
+    return hashBytes(hash, str, strlen(str) + 1);
+}
+
+uint64_t hashChildren(const struct scan_entry *children, size_t count)
+{
+    uint64_t hash = FNV_OFFSET;
+    for (size_t i = 0; i < count; i++) {
+        const struct scan_entry *child = &children[i];
+        hash = hashString(hash, child->path);
+        hash = hashString(hash, child->linkpath);
+        hash = hashString(hash, child->selinuxcontext);
+        int32_t fields[] = {child->uid, child->gid, child->size, child->mode};
+        hash = hashBytes(hash, fields, sizeof(fields));
+    }
+    return hash;
+}
+
+static bool readNode(struct index_reader *reader, struct dir_node *node,
+        struct scan_entry *children, size_t available)
+{
+    if (!readString(reader, &node->path) || node->path == NULL ||
+            !readBytes(reader, &node->dev, sizeof(node->dev)) ||
+            !readBytes(reader, &node->ino, sizeof(node->ino)) ||
+            !readBytes(reader, &node->mtime_ns, sizeof(node->mtime_ns)) ||
+            !readBytes(reader, &node->ctime_ns, sizeof(node->ctime_ns)) ||
+            !readBytes(reader, &node->nlink, sizeof(node->nlink)) ||
+            !readBytes(reader, &node->nchildren, sizeof(node->nchildren)) ||
+            !readBytes(reader, &node->hash, sizeof(node->hash)) ||
+            node->nchildren > available) {
+        return false;
+    }
+
+    node->children = children;
+    for (uint32_t i = 0; i < node->nchildren; i++) {
+        struct scan_entry *child = &children[i];
+        child->root = 0;
+        if (!readString(reader, &child->path) || child->path == NULL ||
+                !readString(reader, &child->linkpath) ||
+                !readString(reader, &child->selinuxcontext) ||
+                !readBytes(reader, &child->uid, sizeof(child->uid)) ||
+                !readBytes(reader, &child->gid, sizeof(child->gid)) ||
+                !readBytes(reader, &child->size, sizeof(child->size)) ||
+                !readBytes(reader, &child->mode, sizeof(child->mode))) {
+            return false;
+        }
+    }
+
+    // Catches a file that was damaged in a way that still parses
+    return hashChildren(node->children, node->nchildren) == node->hash;
+}
+
+static bool parseIndex(struct dir_index *index, size_t size, const char *key)
+{
+    struct index_reader reader = {index->data, index->data + size};
+
+    uint32_t magic, nnodes, nchildren;
+    const char *savedkey;
+    if (!readBytes(&reader, &magic, sizeof(magic)) || magic != INDEX_MAGIC ||
+            !readString(&reader, &savedkey) || savedkey == NULL || strcmp(savedkey, key) ||
+            !readBytes(&reader, &nnodes, sizeof(nnodes)) ||
+            !readBytes(&reader, &nchildren, sizeof(nchildren))) {
+        return false;
+    }
+
+    // Every node and child takes more than a byte, so a count bigger than the file is a lie
+    if (nnodes > size || nchildren > size) {
+        return false;
+    }
+    index->nodes = calloc(nnodes ? nnodes : 1, sizeof(struct dir_node));
+    index->children = calloc(nchildren ? nchildren : 1, sizeof(struct scan_entry));
+    if (index->nodes == NULL || index->children == NULL) {
+        LOGE("Out of memory loading the directory index");
+        return false;
+    }
+
+    size_t used = 0;
+    for (uint32_t i = 0; i < nnodes; i++) {
+        struct dir_node *node = &index->nodes[i];
+        if (!readNode(&reader, node, index->children + used, nchildren - used)) {
+            return false;
+        }
+        // findDirNode() relies on the order
+        if (i > 0 && strcmp(index->nodes[i - 1].path, node->path) >= 0) {
+            return false;
+        }
+        used += node->nchildren;
+    }
+    index->count = nnodes;
+
+    return reader.pos == reader.end && used == nchildren;
+}
+
+struct dir_index *loadDirIndex(const char *path, const char *key)
+{
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        if (errno != ENOENT) {
+            LOGE("Failed to open the directory index %s", path);
+        }
+        return NULL;
+    }
+
+    struct dir_index *index = calloc(1, sizeof(*index));
+    struct stat st;
+    if (index == NULL || fstat(fd, &st) < 0 || st.st_size <= 0) {
+        free(index);
+        close(fd);
+        return NULL;
+    }
+
+    size_t size = st.st_size;
+    index->data = malloc(size);
+    size_t done = 0;
+    while (index->data != NULL && done < size) {
+        ssize_t nread = read(fd, index->data + done, size - done);
+        if (nread <= 0) {
+            if (nread < 0 && errno == EINTR) {
+                continue;
+            }
+            break;
+        }
+        done += nread;
+    }
+    close(fd);
+
+    if (index->data == NULL || done != size || !parseIndex(index, size, key)) {
+        LOGW("Directory index %s is unusable or out of date, scanning everything", path);
+        freeDirIndex(index);
+        return NULL;
+    }
+    return index;
+}
+
+void freeDirIndex(struct dir_index *index)
+{
+    if (index == NULL) {
+        return;
+    }
+    free(index->children);
+    free(index->nodes);
+    free(index->data);
+    free(index);
+}
+
+const struct dir_node *findDirNode(const struct dir_index *index, const char *path)
+{
+    size_t low = 0, high = index->count;
+    while (low < high) {
+        size_t mid = low + (high - low) / 2;
+        int compare = strcmp(index->nodes[mid].path, path);
+        if (compare == 0) {
+            return &index->nodes[mid];
+        }
+        if (compare < 0) {
+            low = mid + 1;
+        } else {
+            high = mid;
+        }
+    }
+    return NULL;
+}
+
+static int64_t timespecNanos(const struct timespec *ts)
+{
+    return (int64_t)ts->tv_sec * 1000000000 + ts->tv_nsec;
+}
+
+bool dirNodeMatches(const struct dir_node *node, const struct stat *st)
+{
+    return node->dev == (uint64_t)st->st_dev && node->ino == (uint64_t)st->st_ino &&
+            node->mtime_ns == timespecNanos(&st->st_mtim) &&
+            node->ctime_ns == timespecNanos(&st->st_ctim) && node->nlink == st->st_nlink;
+}
+
+void setDirNodeStat(struct dir_node *node, const struct stat *st)
+{
+    node->dev = st->st_dev;
+    node->ino = st->st_ino;
+    node->mtime_ns = timespecNanos(&st->st_mtim);
+    node->ctime_ns = timespecNanos(&st->st_ctim);
+    node->nlink = st->st_nlink;
+}
+
+static void writeBytes(FILE *file, const void *value, size_t size)
+{
+    fwrite(value, size, 1, file);
+}
+
+static void writeString(FILE *file, const char *str)
+{
+    uint32_t len = str ? strlen(str) : NULL_STRING;
+    writeBytes(file, &len, sizeof(len));
+    if (str != NULL) {
+        writeBytes(file, str, len + 1);
+    }
+}
+
+static void writeNode(FILE *file, const struct dir_node *node)
+{
+    writeString(file, node->path);
+    writeBytes(file, &node->dev, sizeof(node->dev));
+    writeBytes(file, &node->ino, sizeof(node->ino));
+    writeBytes(file, &node->mtime_ns, sizeof(node->mtime_ns));
+    writeBytes(file, &node->ctime_ns, sizeof(node->ctime_ns));
+    writeBytes(file, &node->nlink, sizeof(node->nlink));
+    writeBytes(file, &node->nchildren, sizeof(node->nchildren));
+    writeBytes(file, &node->hash, sizeof(node->hash));
+    for (uint32_t i = 0; i < node->nchildren; i++) {
+        const struct scan_entry *child = &node->children[i];
+        writeString(file, child->path);
+        writeString(file, child->linkpath);
+        writeString(file, child->selinuxcontext);
+        writeBytes(file, &child->uid, sizeof(child->uid));
+        writeBytes(file, &child->gid, sizeof(child->gid));
+        writeBytes(file, &child->size, sizeof(child->size));
+        writeBytes(file, &child->mode, sizeof(child->mode));
+    }
+}
+
+bool saveDirIndex(const char *path, const char *key, const struct dir_index *previous,
+        bool complete, const struct dir_node *nodes, size_t count)
+{
+    // Merge the two sorted lists, a directory scanned this time replaces its earlier node. After
+    //  a complete scan the ones it didn't reach are gone, or no longer walked, so they're dropped
+    size_t nprevious = previous && !complete ? previous->count : 0;
+    const struct dir_node **merged = malloc((count + nprevious + 1) * sizeof(*merged));
+    if (merged == NULL) {
+        LOGE("Out of memory saving the directory index");
+        return false;
+    }
+
+    size_t nmerged = 0, i = 0, j = 0;
+    uint32_t nchildren = 0;
+    while (i < count || j < nprevious) {
+        int compare = i == count ? 1 : j == nprevious ? -1 :
+                strcmp(nodes[i].path, previous->nodes[j].path);
+        const struct dir_node *node;
+        if (compare <= 0) {
+            node = &nodes[i++];
+            j += compare == 0;
+        } else {
+            node = &previous->nodes[j++];
+        }
+        merged[nmerged++] = node;
+        nchildren += node->nchildren;
+    }
+
+    char tmppath[PATH_MAX];
+    if (snprintf(tmppath, sizeof(tmppath), "%s.tmp", path) >= (int)sizeof(tmppath)) {
+        LOGE("Directory index path too long %s", path);
+        free(merged);
+        return false;
+    }
+
+    FILE *file = fopen(tmppath, "we");
+    if (file == NULL) {
+        LOGE("Failed to create the directory index %s", tmppath);
+        free(merged);
+        return false;
+    }
+
+    uint32_t magic = INDEX_MAGIC;
+    uint32_t nnodes = nmerged;
+    writeBytes(file, &magic, sizeof(magic));
+    writeString(file, key);
+    writeBytes(file, &nnodes, sizeof(nnodes));
+    writeBytes(file, &nchildren, sizeof(nchildren));
+    for (size_t k = 0; k < nmerged; k++) {
+        writeNode(file, merged[k]);
+    }
+    free(merged);
+
+    // Synced before the rename so a crash can't leave an empty or torn index behind it
+    bool ok = fflush(file) == 0 && fsync(fileno(file)) == 0 && !ferror(file);
+    ok = fclose(file) == 0 && ok;
+    if (!ok || rename(tmppath, path) < 0) {
+        LOGE("Failed to write the directory index %s", path);
+        unlink(tmppath);
+        return false;
+    }
+    return true;
+}
@@ -0,0 +1,59 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/stat.h>
+
+#include "scanner.h"
+
+/*
+ * What a scan found in one directory it read in full, kept so the next scan can emit the same
+ *  children without reading the directory again. Only directories on filesystems mounted
+ *  read-only are kept, nothing under them changes while they stay mounted and an update that
+ *  replaces them changes the build fingerprint the index is keyed on. A directory is still
+ *  stat()ed before it's reused, so one that had entries added, removed or renamed while its
+ *  filesystem was remounted read-write is read again.
+ */
+struct dir_node {
+    const char *path;
+    uint64_t dev;
+    uint64_t ino;
+    int64_t mtime_ns;
+    int64_t ctime_ns;
+    uint32_t nlink;
+    uint32_t nchildren;
+    uint64_t hash;               // of the children, see hashChildren()
+    struct scan_entry *children; // in the order they were read, root isn't meaningful
+};
+
+struct dir_index;
+
+/*
+ * @return the index saved at path, or NULL if there isn't one, it's unusable or it was saved
+ *  with a different key
+ */
+struct dir_index *loadDirIndex(const char *path, const char *key);
+void freeDirIndex(struct dir_index *index);
+
+const struct dir_node *findDirNode(const struct dir_index *index, const char *path);
+
+/*
+ * @return whether the directory that was stat()ed into st is the one node was recorded from,
+ *  unchanged
+ */
+bool dirNodeMatches(const struct dir_node *node, const struct stat *st);
+void setDirNodeStat(struct dir_node *node, const struct stat *st);
+
+uint64_t hashChildren(const struct scan_entry *children, size_t count);
+
+/*
+ * Write nodes, sorted by path, to path along with whatever was in previous that they don't
+ *  replace. The file is written next to path, synced and renamed over it so it's never seen
+ *  half written.
+ *
+ * @param complete whether the scan nodes came from walked every root to the end without
+ *  resuming an earlier one, so directories in previous that it didn't record are dropped
+ */
+bool saveDirIndex(const char *path, const char *key, const struct dir_index *previous,
+        bool complete, const struct dir_node *nodes, size_t count);
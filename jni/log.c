@@ -5,9 +5,10 @@
 
 #include "log.h"
 
-static char buf[1024];
 void _log(int priority, const char *tag, const char *fmt, ...)
 {
+    // On the stack since the scanner logs from several threads at once
+    char buf[1024];
     va_list va;
 
     va_start(va, fmt);
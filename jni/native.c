@@ -1,227 +1,569 @@
-#include <stdio.h>
 #include <string.h>
 #include <jni.h>
-#include <dirent.h>
-#include <sys/stat.h>
-#include <limits.h>
-#include <unistd.h>
 #include <stdbool.h>
 #include <stdlib.h>
+#include <stdint.h>
 
+#include "dirindex.h"
+#include "procfs.h"
+#include "reader.h"
+#include "scanner.h"
 #include "selinux.h"
 #include "log.h"
 
 // We cache these because JNI calls are slow and we perform a lot of them.
-static jclass arrayListClass;
-static jmethodID arrayListInit;
-static jmethodID arrayListAdd;
-static jclass fileInformationClass;
-static jmethodID fileInformationInit;
+static jmethodID fileRecordSinkOnBatch;
+static jmethodID fileRecordSinkOnUnfinished;
+static jmethodID fileContentsSinkOnBatch;
+static jmethodID processRecordSinkOnBatch;
 
 static bool resolveJNIFunctions(JNIEnv *env)
 {
-    arrayListClass = (*env)->FindClass(env, "java/util/ArrayList");
-    arrayListClass = (*env)->NewGlobalRef(env, arrayListClass);
-    if (arrayListClass == NULL) {
-        err("Failed to find ArrayList");
+    jclass fileRecordSinkClass = (*env)->FindClass(env, "net/tsyrklevich/censustaker/FileRecordSink");
+    if (fileRecordSinkClass == NULL) {
+        err("Failed to resolve FileRecordSink");
         return false;
     }
 
-    arrayListInit = (*env)->GetMethodID(env, arrayListClass, "<init>", "()V");
-    if (arrayListInit == NULL) {
-        err("Failed to find ArrayList#init");
+    fileRecordSinkOnBatch = (*env)->GetMethodID(env, fileRecordSinkClass, "onBatch", "(I)V");
+    fileRecordSinkOnUnfinished = (*env)->GetMethodID(env, fileRecordSinkClass, "onUnfinished", "(II[BIJ)V");
+    (*env)->DeleteLocalRef(env, fileRecordSinkClass);
+    if (fileRecordSinkOnBatch == NULL || fileRecordSinkOnUnfinished == NULL) {
+        err("Failed to find FileRecordSink#onBatch/onUnfinished");
         return false;
     }
 
-    arrayListAdd = (*env)->GetMethodID(env, arrayListClass, "add", "(Ljava/lang/Object;)Z");
-    if (arrayListAdd == NULL) {
-        err("Failed to find ArrayList#add");
+    jclass fileContentsSinkClass = (*env)->FindClass(env, "net/tsyrklevich/censustaker/FileContentsSink");
+    if (fileContentsSinkClass == NULL) {
+        err("Failed to resolve FileContentsSink");
         return false;
     }
 
-    fileInformationClass = (*env)->FindClass(env, "net/tsyrklevich/censustaker/FileSystemCensus$FileInformation");
-    fileInformationClass = (*env)->NewGlobalRef(env, fileInformationClass);
-    if (fileInformationClass == NULL) {
-        err("Failed to resolve FileInformation");
+    fileContentsSinkOnBatch = (*env)->GetMethodID(env, fileContentsSinkClass, "onBatch", "(I)V");
+    (*env)->DeleteLocalRef(env, fileContentsSinkClass);
+    if (fileContentsSinkOnBatch == NULL) {
+        err("Failed to find FileContentsSink#onBatch");
         return false;
     }
 
-    fileInformationInit = (*env)->GetMethodID(env, fileInformationClass, "<init>", "(Lnet/tsyrklevich/censustaker/FileSystemCensus;[B[BIIII[B)V");
-    if (fileInformationInit == NULL) {
-        err("Failed to find FileInformation#init");
+    jclass processRecordSinkClass = (*env)->FindClass(env, "net/tsyrklevich/censustaker/ProcessRecordSink");
+    if (processRecordSinkClass == NULL) {
+        err("Failed to resolve ProcessRecordSink");
+        return false;
+    }
+
+    processRecordSinkOnBatch = (*env)->GetMethodID(env, processRecordSinkClass, "onBatch", "(I)V");
+    (*env)->DeleteLocalRef(env, processRecordSinkClass);
+    if (processRecordSinkOnBatch == NULL) {
+        err("Failed to find ProcessRecordSink#onBatch");
         return false;
     }
 
     return true;
 }
 
-static jobject initializeArrayList(JNIEnv *env)
+// Set once by JNI_OnLoad(), which returns before any native method can be called
+static bool jniInitialized;
+
+/*
+ * Resolve everything up front, the collectors call in from several threads at once so doing it
+ *  lazily on the first call would race.
+ */
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved)
 {
-    jobject array = (*env)->NewObject(env, arrayListClass, arrayListInit);
-    if (array == NULL) {
-        err("Failed to create new ArrayList");
-        return NULL;
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
     }
 
-    return array;
+    if (resolveJNIFunctions(env)) {
+        resolveSELinuxFunctions();
+        jniInitialized = true;
+    } else {
+        // Leave the library loaded, each native call reports the failure instead
+        (*env)->ExceptionClear(env);
+        err("resolveJNIFunctions() failed");
+    }
+
+    return JNI_VERSION_1_6;
 }
 
-static void addToArrayList(JNIEnv *env, jobject *array, jobject *object)
+static bool ensureInitialized(JNIEnv *env)
 {
-    jboolean ret = (*env)->CallBooleanMethod(env, array, arrayListAdd, object);
-    if (!ret) {
-        err("ArrayList#add failed");
-        return;
+    return jniInitialized;
+}
+
+/*
+ * Batched output: fixed-width records are packed at the front of a direct ByteBuffer and the
+ *  strings they refer to are packed at the back. When the two meet the batch is handed to
+ *  FileRecordSink#onBatch and the buffer is reused. Keep in sync with FileRecordCursor.java.
+ */
+enum {
+    RECORD_UID,
+    RECORD_GID,
+    RECORD_SIZE,
+    RECORD_MODE,
+    RECORD_PATH_OFFSET,
+    RECORD_PATH_LENGTH,
+    RECORD_LINKPATH_OFFSET,
+    RECORD_LINKPATH_LENGTH,
+    RECORD_SELINUXCONTEXT_OFFSET,
+    RECORD_SELINUXCONTEXT_LENGTH,
+    RECORD_FIELDS
+};
+#define RECORD_BYTES (RECORD_FIELDS * sizeof(int32_t))
+
+struct batch_output {
+    JNIEnv *env;
+    jobject sink;
+    jmethodID onBatch;
+    uint8_t *base;
+    size_t capacity;
+    size_t records_end;
+    size_t heap_start;
+    jint count;
+};
+
+static void resetBatch(struct batch_output *out)
+{
+    out->records_end = 0;
+    out->heap_start = out->capacity;
+    out->count = 0;
+}
+
+static bool flushBatch(struct batch_output *out)
+{
+    if (out->count > 0) {
+        (*out->env)->CallVoidMethod(out->env, out->sink, out->onBatch, out->count);
+        if ((*out->env)->ExceptionCheck(out->env)) {
+            return false;
+        }
     }
+
+    resetBatch(out);
+    return true;
 }
 
-static jobject createFileInformation(JNIEnv *env, const char *path, const char *linkpath,
-        int uid, int gid, int size, int mode, char *selinuxcontext)
+static void putString(struct batch_output *out, int32_t *record, int field, const char *str,
+        size_t len)
 {
-    jbyteArray jpath = (*env)->NewByteArray(env, strlen(path));
-    if (jpath == NULL) {
-        err("NewByteArray failed for path");
-        return NULL;
+    if (str == NULL) {
+        record[field] = -1;
+        record[field + 1] = 0;
+        return;
     }
-    (*env)->SetByteArrayRegion(env, jpath, 0, strlen(path), (jbyte*)path);
 
-    jbyteArray jlinkpath = NULL;
-    if (linkpath) {
-        jlinkpath = (*env)->NewByteArray(env, strlen(linkpath));
-        if (jlinkpath == NULL) {
-            err("NewByteArray failed for linkpath");
-            return NULL;
+    out->heap_start -= len;
+    memcpy(out->base + out->heap_start, str, len);
+    record[field] = out->heap_start;
+    record[field + 1] = len;
+}
+
+static bool addToBatch(struct batch_output *out, const struct scan_entry *entry)
+{
+    size_t pathlen = strlen(entry->path);
+    size_t linkpathlen = entry->linkpath ? strlen(entry->linkpath) : 0;
+    size_t selinuxcontextlen = entry->selinuxcontext ? strlen(entry->selinuxcontext) : 0;
+    size_t needed = RECORD_BYTES + pathlen + linkpathlen + selinuxcontextlen;
+
+    if (out->records_end + needed > out->heap_start) {
+        if (!flushBatch(out)) {
+            return false;
+        }
+        if (needed > out->capacity) {
+            LOGE("Record for %s doesn't fit in the batch buffer", entry->path);
+            return true;
         }
-        (*env)->SetByteArrayRegion(env, jlinkpath, 0, strlen(linkpath), (jbyte*)linkpath);
     }
 
-    jbyteArray jselinuxcontext = NULL;
-    if (selinuxcontext) {
-        jselinuxcontext = (*env)->NewByteArray(env, strlen(selinuxcontext));
-        if (jselinuxcontext == NULL) {
-            err("NewByteArray failed for selinuxcontext");
+    int32_t *record = (int32_t *)(out->base + out->records_end);
+    record[RECORD_UID] = entry->uid;
+    record[RECORD_GID] = entry->gid;
+    record[RECORD_SIZE] = entry->size;
+    record[RECORD_MODE] = entry->mode;
+    putString(out, record, RECORD_PATH_OFFSET, entry->path, pathlen);
+    putString(out, record, RECORD_LINKPATH_OFFSET, entry->linkpath, linkpathlen);
+    putString(out, record, RECORD_SELINUXCONTEXT_OFFSET, entry->selinuxcontext,
+            selinuxcontextlen);
+
+    out->records_end += RECORD_BYTES;
+    out->count++;
+    return true;
+}
+
+// Copy a String[] into a NULL-free array of malloc()ed C strings
+static char **copyStringArray(JNIEnv *env, jobjectArray jarray, size_t *count)
+{
+    jsize length = (*env)->GetArrayLength(env, jarray);
+    char **array = calloc(length ? length : 1, sizeof(char *));
+    if (array == NULL) {
+        return NULL;
+    }
+
+    for (jsize i = 0; i < length; i++) {
+        jstring jstr = (*env)->GetObjectArrayElement(env, jarray, i);
+        const char *str = (*env)->GetStringUTFChars(env, jstr, 0);
+        array[i] = strdup(str);
+        (*env)->ReleaseStringUTFChars(env, jstr, str);
+        (*env)->DeleteLocalRef(env, jstr);
+        if (array[i] == NULL) {
+            while (i-- > 0) {
+                free(array[i]);
+            }
+            free(array);
             return NULL;
         }
-        (*env)->SetByteArrayRegion(env, jselinuxcontext, 0, strlen(selinuxcontext), (jbyte*)selinuxcontext);
     }
 
-    jobject fi = (*env)->NewObject(env, fileInformationClass, fileInformationInit, NULL, jpath,
-            jlinkpath, (jint)uid, (jint)gid, (jint)size, (jint)mode, jselinuxcontext);
+    *count = length;
+    return array;
+}
 
-    (*env)->DeleteLocalRef(env, jpath);
-    if (jlinkpath) {
-        (*env)->DeleteLocalRef(env, jlinkpath);
+static void freeStringArray(char **array, size_t count)
+{
+    if (array == NULL) {
+        return;
     }
-    if (jselinuxcontext) {
-        (*env)->DeleteLocalRef(env, jselinuxcontext);
+    for (size_t i = 0; i < count; i++) {
+        free(array[i]);
     }
+    free(array);
+}
 
-    if (fi == NULL) {
-        err("Failed to create FileInformation");
-        return NULL;
+/*
+ * Paths go back as bytes rather than Strings, NewStringUTF() aborts on names that aren't valid
+ *  modified UTF-8.
+ */
+static bool reportUnfinished(JNIEnv *env, jobject sink, const struct scan_results *results)
+{
+    for (size_t i = 0; i < results->nunfinished; i++) {
+        const struct scan_position *position = &results->unfinished[i];
+        jsize length = strlen(position->path);
+        jbyteArray jpath = (*env)->NewByteArray(env, length);
+        if (jpath == NULL) {
+            return false;
+        }
+        (*env)->SetByteArrayRegion(env, jpath, 0, length, (const jbyte *)position->path);
+
+        (*env)->CallVoidMethod(env, sink, fileRecordSinkOnUnfinished, (jint)position->root,
+                (jint)results->stopped[position->root], jpath, (jint)position->depth,
+                (jlong)position->offset);
+        (*env)->DeleteLocalRef(env, jpath);
+        if ((*env)->ExceptionCheck(env)) {
+            return false;
+        }
     }
-
-    return fi;
+    return true;
 }
 
-static void scanDirRecursive(JNIEnv * env, jobject array, const char *dir, int depth)
+JNIEXPORT void JNICALL Java_net_tsyrklevich_censustaker_FileSystemCensus_scanDirsBatched(JNIEnv * env, jclass clazz, jobjectArray jdirs, jintArray jdepths, jlongArray jbudgets, jobjectArray joverrideDirs, jintArray joverrideDepths, jobjectArray jexcludes, jobjectArray jresumeDirs, jintArray jresumeDepths, jintArray jresumeRoots, jlongArray jresumeOffsets, jstring jindexPath, jstring jindexKey, jint threads, jobject jbuffer, jobject jsink)
 {
-    DIR *dirp = opendir(dir);
-    if (!dirp) {
-        LOGE("opendir failed %s", dir);
+    if (!ensureInitialized(env)) {
         return;
     }
 
-    char path[PATH_MAX + 1];
-    char _linkpath[PATH_MAX + 1], *linkpath;
-    ssize_t linkpath_size;
-    struct stat st;
-    struct dirent *de;
-    while ((de = readdir(dirp)) != NULL) {
-        if (!strcmp(de->d_name, ".") || !strcmp(de->d_name, "..")) {
+    struct batch_output out;
+    out.env = env;
+    out.sink = jsink;
+    out.onBatch = fileRecordSinkOnBatch;
+    out.base = (*env)->GetDirectBufferAddress(env, jbuffer);
+    out.capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (out.base == NULL) {
+        err("GetDirectBufferAddress failed");
+        return;
+    }
+    resetBatch(&out);
+
+    size_t ndirs = 0, noverrideDirs = 0, nexcludes = 0, nresumeDirs = 0;
+    char **dirs = copyStringArray(env, jdirs, &ndirs);
+    char **overrideDirs = copyStringArray(env, joverrideDirs, &noverrideDirs);
+    char **excludes = copyStringArray(env, jexcludes, &nexcludes);
+    char **resumeDirs = copyStringArray(env, jresumeDirs, &nresumeDirs);
+    struct scan_root *roots = calloc(ndirs ? ndirs : 1, sizeof(struct scan_root));
+    struct scan_override *overrides = calloc(noverrideDirs ? noverrideDirs : 1,
+            sizeof(struct scan_override));
+    struct scan_position *resume = calloc(nresumeDirs ? nresumeDirs : 1,
+            sizeof(struct scan_position));
+    if (!dirs || !overrideDirs || !excludes || !resumeDirs || !roots || !overrides || !resume) {
+        err("Out of memory copying the scan plan");
+        goto out;
+    }
+
+    jint *depths = (*env)->GetIntArrayElements(env, jdepths, NULL);
+    // Three per dir: timeout in milliseconds, maximum entries and maximum bytes
+    jlong *budgets = (*env)->GetLongArrayElements(env, jbudgets, NULL);
+    for (size_t i = 0; i < ndirs; i++) {
+        roots[i].path = dirs[i];
+        roots[i].depth = depths[i];
+        roots[i].timeout_ms = budgets[3 * i];
+        roots[i].max_entries = budgets[3 * i + 1];
+        roots[i].max_bytes = budgets[3 * i + 2];
+    }
+    (*env)->ReleaseLongArrayElements(env, jbudgets, budgets, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, jdepths, depths, JNI_ABORT);
+
+    jint *resumeDepths = (*env)->GetIntArrayElements(env, jresumeDepths, NULL);
+    jint *resumeRoots = (*env)->GetIntArrayElements(env, jresumeRoots, NULL);
+    jlong *resumeOffsets = (*env)->GetLongArrayElements(env, jresumeOffsets, NULL);
+    size_t nresume = 0;
+    for (size_t i = 0; i < nresumeDirs; i++) {
+        if (resumeRoots[i] < 0 || (size_t)resumeRoots[i] >= ndirs) {
             continue;
         }
+        resume[nresume].path = resumeDirs[i];
+        resume[nresume].depth = resumeDepths[i];
+        resume[nresume].root = resumeRoots[i];
+        resume[nresume].offset = resumeOffsets[i];
+        nresume++;
+    }
+    (*env)->ReleaseLongArrayElements(env, jresumeOffsets, resumeOffsets, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, jresumeRoots, resumeRoots, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, jresumeDepths, resumeDepths, JNI_ABORT);
+
+    jint *overrideDepths = (*env)->GetIntArrayElements(env, joverrideDepths, NULL);
+    for (size_t i = 0; i < noverrideDirs; i++) {
+        overrides[i].path = overrideDirs[i];
+        overrides[i].depth = overrideDepths[i];
+    }
+    (*env)->ReleaseIntArrayElements(env, joverrideDepths, overrideDepths, JNI_ABORT);
+
+    struct scan_options options;
+    options.roots = roots;
+    options.nroots = ndirs;
+    options.overrides = overrides;
+    options.noverrides = noverrideDirs;
+    options.excludes = (const char *const *)excludes;
+    options.nexcludes = nexcludes;
+    options.resume = resume;
+    options.nresume = nresume;
+    options.index = NULL;
+    options.index_dirs = false;
+    options.nthreads = threads;
+
+    const char *indexPath = NULL, *indexKey = NULL;
+    if (jindexPath != NULL && jindexKey != NULL) {
+        indexPath = (*env)->GetStringUTFChars(env, jindexPath, NULL);
+        indexKey = (*env)->GetStringUTFChars(env, jindexKey, NULL);
+    }
+    struct dir_index *index = NULL;
+    if (indexPath != NULL && indexKey != NULL) {
+        index = loadDirIndex(indexPath, indexKey);
+        options.index = index;
+        options.index_dirs = true;
+    }
 
-        if (!strcmp(dir, "/")) {
-            snprintf(path, sizeof(path), "/%s", de->d_name);
-        } else {
-            snprintf(path, sizeof(path), "%s/%s", dir, de->d_name);
+    struct scan_results results;
+    if (scanParallel(&options, &results)) {
+        bool ok = true;
+        for (size_t i = 0; ok && i < results.count; i++) {
+            ok = addToBatch(&out, results.entries[i]);
         }
-
-        if (lstat(path, &st) < 0) {
-            LOGE("Failed to lstat %s", path);
-            continue;
+        if (ok && flushBatch(&out)) {
+            reportUnfinished(env, jsink, &results);
         }
 
-        if ((st.st_mode & S_IFMT) == S_IFLNK) {
-            if ((linkpath_size = readlink(path, _linkpath, sizeof(_linkpath))) <= 0) {
-                LOGE("readlink failed %s", path);
-                strcpy(_linkpath, "error");
-            } else {
-                _linkpath[linkpath_size] = 0;
+        if (options.index_dirs) {
+            LOGI("Reused %zu of %zu indexed directories", results.reused, results.ndirs);
+            bool complete = results.nunfinished == 0 && nresume == 0;
+            for (size_t i = 0; i < ndirs; i++) {
+                complete = complete && results.stopped[i] == SCAN_COMPLETE;
             }
-            linkpath = _linkpath;
-        } else {
-            linkpath = NULL;
+            saveDirIndex(indexPath, indexKey, index, complete, results.dirs, results.ndirs);
         }
+        freeScanResults(&results);
+    }
+    freeDirIndex(index);
+    if (indexKey != NULL) {
+        (*env)->ReleaseStringUTFChars(env, jindexKey, indexKey);
+    }
+    if (indexPath != NULL) {
+        (*env)->ReleaseStringUTFChars(env, jindexPath, indexPath);
+    }
 
-        char *selinuxcontext = NULL;
-        lgetfilecon(path, &selinuxcontext);
-
-#if 0
-        LOGI("path=%s linkpath=%s uid=%lu gid=%lu size=%llu mode=%o selinuxcontext=%s",
-                path,
-                linkpath,
-                st.st_uid,
-                st.st_gid,
-                st.st_size,
-                st.st_mode,
-                selinuxcontext);
-#endif
-
-        jobject object = createFileInformation(env, path, linkpath, st.st_uid, st.st_gid,
-                st.st_size, st.st_mode, selinuxcontext);
-
-        if (selinuxcontext) {
-            free(selinuxcontext);
-        }
+out:
+    free(resume);
+    free(overrides);
+    free(roots);
+    freeStringArray(resumeDirs, nresumeDirs);
+    freeStringArray(excludes, nexcludes);
+    freeStringArray(overrideDirs, noverrideDirs);
+    freeStringArray(dirs, ndirs);
+}
 
-        if (object != NULL) {
-            addToArrayList(env, array, object);
-            (*env)->DeleteLocalRef(env, object);
+/*
+ * File contents use the same batches as the scanner with a different record, the contents are
+ *  packed at the back. A file that doesn't fit in what's left of the buffer is split across
+ *  batches, every piece but the last is flagged CONTENTS_MORE. Keep in sync with
+ *  FileContentsCursor.java.
+ */
+enum {
+    CONTENTS_INDEX,
+    CONTENTS_OFFSET,
+    CONTENTS_LENGTH,
+    CONTENTS_ERROR,
+    CONTENTS_FLAGS,
+    CONTENTS_FIELDS
+};
+#define CONTENTS_BYTES (CONTENTS_FIELDS * sizeof(int32_t))
+#define CONTENTS_MORE 1
+
+static int32_t *addContentsRecord(struct batch_output *out, const struct file_contents *contents,
+        size_t length)
+{
+    int32_t *record = (int32_t *)(out->base + out->records_end);
+    out->heap_start -= length;
+    record[CONTENTS_INDEX] = contents->index;
+    record[CONTENTS_OFFSET] = out->heap_start;
+    record[CONTENTS_LENGTH] = length;
+    record[CONTENTS_ERROR] = contents->error;
+    record[CONTENTS_FLAGS] = 0;
+    out->records_end += CONTENTS_BYTES;
+    out->count++;
+    return record;
+}
+
+static bool addContentsToBatch(struct batch_output *out, const struct file_contents *contents)
+{
+    // Whatever was read before an error isn't sent
+    size_t total = contents->error ? 0 : contents->length;
+    size_t offset = 0;
+    while (true) {
+        size_t remaining = total - offset;
+        if (out->records_end + CONTENTS_BYTES + remaining <= out->heap_start) {
+            addContentsRecord(out, contents, remaining);
+            memcpy(out->base + out->heap_start, contents->data + offset, remaining);
+            return true;
         }
 
-        if ((st.st_mode & S_IFMT) == S_IFDIR && depth > 1) {
-            scanDirRecursive(env, array, path, depth - 1);
+        // Don't bother splitting off slivers, start a new batch instead
+        size_t space = out->heap_start - out->records_end;
+        if (space >= CONTENTS_BYTES + 4096) {
+            size_t length = space - CONTENTS_BYTES;
+            int32_t *record = addContentsRecord(out, contents, length);
+            record[CONTENTS_FLAGS] = CONTENTS_MORE;
+            memcpy(out->base + out->heap_start, contents->data + offset, length);
+            offset += length;
+        }
+        if (!flushBatch(out)) {
+            return false;
         }
     }
-    
-    closedir(dirp);
 }
 
-JNIEXPORT jobject JNICALL Java_net_tsyrklevich_censustaker_FileSystemCensus_scanDirRecursive(JNIEnv * env, jclass clazz, jstring jdir, jint depth)
+JNIEXPORT void JNICALL Java_net_tsyrklevich_censustaker_FileSystemCensus_readFilesBatched(JNIEnv * env, jclass clazz, jobjectArray jpaths, jint threads, jobject jbuffer, jobject jsink)
 {
-    // Lame, pthread_once can't pass a JNIEnv parameter
-    static bool jniInitialized = false;
-    if (!jniInitialized) {
-        if (!resolveJNIFunctions(env)) {
-            err("resolveJNIFunctions() failed");
-            return NULL;
+    if (!ensureInitialized(env)) {
+        return;
+    }
+
+    struct batch_output out;
+    out.env = env;
+    out.sink = jsink;
+    out.onBatch = fileContentsSinkOnBatch;
+    out.base = (*env)->GetDirectBufferAddress(env, jbuffer);
+    out.capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (out.base == NULL || out.capacity < CONTENTS_BYTES + 4096) {
+        err("Bad direct buffer for file contents");
+        return;
+    }
+    resetBatch(&out);
+
+    size_t npaths = 0;
+    char **paths = copyStringArray(env, jpaths, &npaths);
+    if (paths == NULL) {
+        err("Out of memory copying the file list");
+        return;
+    }
+
+    // Let the readers get a couple of files ahead of the copying each
+    int nthreads = threads > 0 ? threads : 1;
+    struct batch_reader *reader = startBatchRead((const char *const *)paths, npaths, nthreads,
+            nthreads * 2);
+    if (reader == NULL) {
+        err("Failed to start reading files");
+        freeStringArray(paths, npaths);
+        return;
+    }
+
+    bool ok = true;
+    const struct file_contents *contents;
+    while (ok && (contents = nextFileContents(reader)) != NULL) {
+        ok = addContentsToBatch(&out, contents);
+    }
+    if (ok) {
+        flushBatch(&out);
+    }
+
+    finishBatchRead(reader);
+    freeStringArray(paths, npaths);
+}
+
+/*
+ * One record per process: the PID and an (offset, length) pair for each of its files, -1 if
+ *  it couldn't be read. Keep in sync with ProcessRecordCursor.java.
+ */
+#define PROCESS_RECORD_FIELDS (1 + 2 * PROCESS_FILES)
+#define PROCESS_RECORD_BYTES (PROCESS_RECORD_FIELDS * sizeof(int32_t))
+
+static bool addProcessToBatch(struct batch_output *out, const struct process_info *info)
+{
+    size_t needed = PROCESS_RECORD_BYTES;
+    for (int i = 0; i < PROCESS_FILES; i++) {
+        needed += info->lengths[i];
+    }
+
+    if (out->records_end + needed > out->heap_start) {
+        if (!flushBatch(out)) {
+            return false;
+        }
+        if (needed > out->capacity) {
+            LOGE("Record for process %d doesn't fit in the batch buffer", info->pid);
+            return true;
         }
+    }
 
-        resolveSELinuxFunctions();
-        jniInitialized = true;
+    int32_t *record = (int32_t *)(out->base + out->records_end);
+    record[0] = info->pid;
+    for (int i = 0; i < PROCESS_FILES; i++) {
+        putString(out, record, 1 + 2 * i, info->files[i], info->lengths[i]);
     }
 
-    jobject array = initializeArrayList(env);
-    if (array == NULL) {
-        err("Failed to initialize ArrayList");
-        return NULL;
+    out->records_end += PROCESS_RECORD_BYTES;
+    out->count++;
+    return true;
+}
+
+JNIEXPORT void JNICALL Java_net_tsyrklevich_censustaker_ProcessCensus_readProcesses(JNIEnv * env, jclass clazz, jobject jbuffer, jobject jsink)
+{
+    if (!ensureInitialized(env)) {
+        return;
+    }
+
+    struct batch_output out;
+    out.env = env;
+    out.sink = jsink;
+    out.onBatch = processRecordSinkOnBatch;
+    out.base = (*env)->GetDirectBufferAddress(env, jbuffer);
+    out.capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (out.base == NULL) {
+        err("GetDirectBufferAddress failed");
+        return;
     }
+    resetBatch(&out);
 
-    const char *dir = (*env)->GetStringUTFChars(env, jdir, 0);
-    scanDirRecursive(env, array, dir, depth);
-    (*env)->ReleaseStringUTFChars(env, jdir, dir);
+    struct process_reader *reader = openProcesses();
+    if (reader == NULL) {
+        return;
+    }
 
-    return array;
+    bool ok = true;
+    const struct process_info *info;
+    while (ok && (info = nextProcess(reader)) != NULL) {
+        ok = addProcessToBatch(&out, info);
+    }
+    if (ok) {
+        flushBatch(&out);
+    }
+
+    closeProcesses(reader);
 }
@@ -0,0 +1,151 @@
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <dirent.h>
+#include <unistd.h>
+#include <stdlib.h>
+#include <stdbool.h>
+
+#include "procfs.h"
+#include "log.h"
+
+static const char *const PROCESS_FILE_NAMES[PROCESS_FILES] = {
+    [PROCESS_CMDLINE] = "cmdline",
+    [PROCESS_STATUS] = "status",
+    [PROCESS_ATTR_CURRENT] = "attr/current",
+    [PROCESS_ATTR_FSCREATE] = "attr/fscreate",
+};
+
+struct file_buffer {
+    char *data;
+    size_t capacity;
+};
+
+struct process_reader {
+    DIR *proc;
+    struct file_buffer buffers[PROCESS_FILES];
+    struct process_info info;
+};
+
+struct process_reader *openProcesses(void)
+{
+    struct process_reader *reader = calloc(1, sizeof(*reader));
+    if (reader == NULL) {
+        return NULL;
+    }
+
+    reader->proc = opendir("/proc");
+    if (reader->proc == NULL) {
+        LOGE("opendir failed /proc");
+        free(reader);
+        return NULL;
+    }
+    return reader;
+}
+
+static bool parsePid(const char *name, int *pid)
+{
+    int value = 0;
+    if (*name == '\0') {
+        return false;
+    }
+    for (; *name; name++) {
+        if (*name < '0' || *name > '9' || value > (0x7fffffff - 9) / 10) {
+            return false;
+        }
+        value = value * 10 + (*name - '0');
+    }
+    *pid = value;
+    return true;
+}
+
+// Read a /proc file to EOF, st_size is always 0 so the buffer just grows until it fits
+static bool readAt(int dirfd, const char *name, struct file_buffer *buffer, size_t *length)
+{
+    int fd = openat(dirfd, name, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        return false;
+    }
+
+    *length = 0;
+    bool ok = true;
+    while (true) {
+        if (*length == buffer->capacity) {
+            size_t capacity = buffer->capacity ? buffer->capacity * 2 : 4096;
+            char *data = realloc(buffer->data, capacity);
+            if (data == NULL) {
+                ok = false;
+                break;
+            }
+            buffer->data = data;
+            buffer->capacity = capacity;
+        }
+
+        ssize_t n = read(fd, buffer->data + *length, buffer->capacity - *length);
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            ok = false;
+            break;
+        }
+        if (n == 0) {
+            break;
+        }
+        *length += n;
+    }
+
+    close(fd);
+    return ok;
+}
+
+const struct process_info *nextProcess(struct process_reader *reader)
+{
+    struct dirent *de;
+    while ((de = readdir(reader->proc)) != NULL) {
+        int pid;
+        if (!parsePid(de->d_name, &pid)) {
+            continue;
+        }
+
+        // Gone since /proc was listed
+        int pidfd = openat(dirfd(reader->proc), de->d_name, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+        if (pidfd < 0) {
+            continue;
+        }
+
+        reader->info.pid = pid;
+        for (int i = 0; i < PROCESS_FILES; i++) {
+            size_t length;
+            if (readAt(pidfd, PROCESS_FILE_NAMES[i], &reader->buffers[i], &length)) {
+                reader->info.files[i] = reader->buffers[i].data ? reader->buffers[i].data : "";
+                reader->info.lengths[i] = length;
+            } else {
+                reader->info.files[i] = NULL;
+                reader->info.lengths[i] = 0;
+            }
+        }
+        close(pidfd);
+
+        // Exited between opening the directory and reading status, nothing worth reporting
+        if (reader->info.files[PROCESS_STATUS] == NULL) {
+            continue;
+        }
+        return &reader->info;
+    }
+
+    return NULL;
+}
+
+void closeProcesses(struct process_reader *reader)
+{
+    if (reader == NULL) {
+        return;
+    }
+
+    closedir(reader->proc);
+    for (int i = 0; i < PROCESS_FILES; i++) {
+        free(reader->buffers[i].data);
+    }
+    free(reader);
+}
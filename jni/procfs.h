@@ -0,0 +1,32 @@
+#pragma once
+
+#include <stddef.h>
+
+enum {
+    PROCESS_CMDLINE,
+    PROCESS_STATUS,
+    PROCESS_ATTR_CURRENT,
+    PROCESS_ATTR_FSCREATE,
+    PROCESS_FILES
+};
+
+struct process_info {
+    int pid;
+    const char *files[PROCESS_FILES]; // NULL if the file couldn't be read
+    size_t lengths[PROCESS_FILES];
+};
+
+struct process_reader;
+
+/*
+ * Walk the processes in /proc. Every process directory is opened once and its files are read
+ *  relative to it, so they all describe the same process even if the PID is reused meanwhile.
+ */
+struct process_reader *openProcesses(void);
+
+/*
+ * @return the next process, valid until the next call, or NULL after the last one
+ */
+const struct process_info *nextProcess(struct process_reader *reader);
+
+void closeProcesses(struct process_reader *reader);
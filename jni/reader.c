@@ -0,0 +1,285 @@
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <stdlib.h>
+#include <pthread.h>
+
+#include "reader.h"
+#include "log.h"
+
+#define READ_BUFFER_MIN (16 * 1024)
+
+struct read_buffer {
+    struct read_buffer *next; // in the pool
+    struct read_buffer *all;
+    char *data;
+    size_t capacity;
+};
+
+struct read_slot {
+    struct read_buffer *buffer;
+    size_t length;
+    int error;
+    bool done;
+};
+
+struct batch_reader {
+    const char *const *paths;
+    size_t count;
+    size_t window;
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    size_t next;        // next file a worker picks up
+    size_t returned;    // files handed out by nextFileContents()
+    size_t released;    // files whose buffers are back in the pool
+    bool stopping;
+    struct read_slot *slots;
+    struct read_buffer *pool;
+    struct read_buffer *buffers; // every buffer, so they can be freed
+    pthread_t *threads;
+    int nthreads;
+    struct file_contents current;
+};
+
+static bool growBuffer(struct read_buffer *buffer, size_t needed)
+{
+    if (buffer->capacity >= needed) {
+        return true;
+    }
+
+    size_t capacity = buffer->capacity ? buffer->capacity : READ_BUFFER_MIN;
+    while (capacity < needed) {
+        capacity *= 2;
+    }
+    char *data = realloc(buffer->data, capacity);
+    if (data == NULL) {
+        return false;
+    }
+    buffer->data = data;
+    buffer->capacity = capacity;
+    return true;
+}
+
+/*
+ * Read the whole file, not trusting st_size since it's 0 for most of /proc and a page for most
+ *  of /sys. Opened non-blocking so a FIFO in the list can't hang the census.
+ *
+ * @return 0 or the errno of the failure
+ */
+static int readWholeFile(const char *path, struct read_buffer *buffer, size_t *length)
+{
+    *length = 0;
+    int fd = open(path, O_RDONLY | O_CLOEXEC | O_NONBLOCK | O_NOCTTY);
+    if (fd < 0) {
+        return errno;
+    }
+
+    struct stat st;
+    if (fstat(fd, &st) == 0 && st.st_size > 0 && !growBuffer(buffer, st.st_size + 1)) {
+        close(fd);
+        return ENOMEM;
+    }
+
+    int error = 0;
+    while (true) {
+        if (*length == buffer->capacity && !growBuffer(buffer, buffer->capacity + 1)) {
+            error = ENOMEM;
+            break;
+        }
+
+        ssize_t n = read(fd, buffer->data + *length, buffer->capacity - *length);
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            error = errno;
+            break;
+        }
+        if (n == 0) {
+            break;
+        }
+        *length += n;
+    }
+
+    close(fd);
+    return error;
+}
+
+static void readSlot(struct batch_reader *reader, size_t index, struct read_buffer *buffer)
+{
+    size_t length;
+    int error = readWholeFile(reader->paths[index], buffer, &length);
+
+    pthread_mutex_lock(&reader->lock);
+    struct read_slot *slot = &reader->slots[index];
+    slot->buffer = buffer;
+    slot->length = length;
+    slot->error = error;
+    slot->done = true;
+    pthread_cond_broadcast(&reader->cond);
+    pthread_mutex_unlock(&reader->lock);
+}
+
+static void *readWorker(void *arg)
+{
+    struct batch_reader *reader = arg;
+
+    pthread_mutex_lock(&reader->lock);
+    while (true) {
+        // Stay at most window files ahead of the consumer so memory use is bounded
+        while (!reader->stopping && reader->next < reader->count
+                && reader->next >= reader->released + reader->window) {
+            pthread_cond_wait(&reader->cond, &reader->lock);
+        }
+        if (reader->stopping || reader->next >= reader->count) {
+            break;
+        }
+
+        size_t index = reader->next++;
+        struct read_buffer *buffer = reader->pool;
+        reader->pool = buffer->next;
+        pthread_mutex_unlock(&reader->lock);
+
+        readSlot(reader, index, buffer);
+
+        pthread_mutex_lock(&reader->lock);
+    }
+    pthread_mutex_unlock(&reader->lock);
+
+    return NULL;
+}
+
+struct batch_reader *startBatchRead(const char *const *paths, size_t count, int nthreads,
+        size_t window)
+{
+    if (nthreads < 1) {
+        nthreads = 1;
+    }
+    if (window < 1) {
+        window = 1;
+    }
+
+    struct batch_reader *reader = calloc(1, sizeof(*reader));
+    if (reader == NULL) {
+        return NULL;
+    }
+    reader->paths = paths;
+    reader->count = count;
+    reader->slots = calloc(count ? count : 1, sizeof(*reader->slots));
+    reader->threads = calloc(nthreads, sizeof(*reader->threads));
+    if (reader->slots == NULL || reader->threads == NULL) {
+        free(reader->slots);
+        free(reader->threads);
+        free(reader);
+        return NULL;
+    }
+
+    // Files from released to next, including the one the consumer holds, each have a buffer
+    reader->window = 0;
+    for (size_t i = 0; i < window; i++) {
+        struct read_buffer *buffer = calloc(1, sizeof(*buffer));
+        if (buffer == NULL) {
+            break;
+        }
+        buffer->next = reader->pool;
+        reader->pool = buffer;
+        buffer->all = reader->buffers;
+        reader->buffers = buffer;
+        reader->window++;
+    }
+    if (reader->pool == NULL) {
+        free(reader->slots);
+        free(reader->threads);
+        free(reader);
+        return NULL;
+    }
+
+    pthread_mutex_init(&reader->lock, NULL);
+    pthread_cond_init(&reader->cond, NULL);
+
+    for (int i = 0; i < nthreads; i++) {
+        if (pthread_create(&reader->threads[i], NULL, readWorker, reader)) {
+            LOGE("pthread_create failed, reading with %d threads", reader->nthreads);
+            break;
+        }
+        reader->nthreads++;
+    }
+
+    return reader;
+}
+
+const struct file_contents *nextFileContents(struct batch_reader *reader)
+{
+    pthread_mutex_lock(&reader->lock);
+
+    // Hand the previous file's buffer back to the pool
+    if (reader->released < reader->returned) {
+        struct read_slot *slot = &reader->slots[reader->released];
+        slot->buffer->next = reader->pool;
+        reader->pool = slot->buffer;
+        slot->buffer = NULL;
+        reader->released++;
+        pthread_cond_broadcast(&reader->cond);
+    }
+
+    if (reader->returned >= reader->count) {
+        pthread_mutex_unlock(&reader->lock);
+        return NULL;
+    }
+
+    size_t index = reader->returned;
+    struct read_slot *slot = &reader->slots[index];
+    if (reader->nthreads == 0 && !slot->done) {
+        // No workers could be started, do it ourselves
+        struct read_buffer *buffer = reader->pool;
+        reader->pool = buffer->next;
+        reader->next = index + 1;
+        pthread_mutex_unlock(&reader->lock);
+        readSlot(reader, index, buffer);
+        pthread_mutex_lock(&reader->lock);
+    }
+    while (!slot->done) {
+        pthread_cond_wait(&reader->cond, &reader->lock);
+    }
+    reader->returned++;
+    pthread_mutex_unlock(&reader->lock);
+
+    reader->current.index = index;
+    reader->current.data = slot->buffer->data;
+    reader->current.length = slot->length;
+    reader->current.error = slot->error;
+    return &reader->current;
+}
+
+void finishBatchRead(struct batch_reader *reader)
+{
+    if (reader == NULL) {
+        return;
+    }
+
+    pthread_mutex_lock(&reader->lock);
+    reader->stopping = true;
+    pthread_cond_broadcast(&reader->cond);
+    pthread_mutex_unlock(&reader->lock);
+
+    for (int i = 0; i < reader->nthreads; i++) {
+        pthread_join(reader->threads[i], NULL);
+    }
+
+    // Buffers are in the pool or in a slot, either way they're on the buffers list
+    struct read_buffer *buffer = reader->buffers;
+    while (buffer != NULL) {
+        struct read_buffer *next = buffer->all;
+        free(buffer->data);
+        free(buffer);
+        buffer = next;
+    }
+
+    pthread_cond_destroy(&reader->cond);
+    pthread_mutex_destroy(&reader->lock);
+    free(reader->slots);
+    free(reader->threads);
+    free(reader);
+}
@@ -0,0 +1,32 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stddef.h>
+
+struct file_contents {
+    size_t index;       // index into the paths the read was started with
+    const char *data;
+    size_t length;
+    int error;          // errno of the failed open() or read(), 0 on success
+};
+
+struct batch_reader;
+
+/*
+ * Start reading every path to EOF using nthreads threads. At most window files are held in
+ *  memory at once, their buffers are pooled and reused for later files.
+ */
+struct batch_reader *startBatchRead(const char *const *paths, size_t count, int nthreads,
+        size_t window);
+
+/*
+ * Wait for the next file in path order. The returned contents stay valid until the next call.
+ *
+ * @return NULL once every file has been returned
+ */
+const struct file_contents *nextFileContents(struct batch_reader *reader);
+
+/*
+ * Stop the workers, whether or not every file was returned, and free the reader.
+ */
+void finishBatchRead(struct batch_reader *reader);
@@ -0,0 +1,869 @@
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <sys/statvfs.h>
+#include <sys/syscall.h>
+#include <limits.h>
+#include <unistd.h>
+#include <stdlib.h>
+#include <pthread.h>
+#include <time.h>
+
+#include "scanner.h"
+#include "dirindex.h"
+#include "selinux.h"
+#include "log.h"
+
+/*
+ * Entries and the strings they point to are bump-allocated out of per-thread blocks so the
+ *  workers never contend on malloc for the common case and everything can be freed at once.
+ */
+#define ARENA_BLOCK_SIZE (256 * 1024)
+
+struct arena_block {
+    struct arena_block *next;
+    size_t used;
+    size_t size;
+    char data[];
+};
+
+struct work_item {
+    char *path;
+    int depth;
+    uint32_t root;
+    int64_t offset; // getdents64 offset to carry on from, 0 for the start
+};
+
+/*
+ * How much of its budget a root has used, shared by every worker. Updated with atomics rather
+ *  than under the queue lock since it's touched for every entry.
+ */
+struct root_state {
+    int64_t deadline; // CLOCK_MONOTONIC nanoseconds, 0 for none
+    size_t max_entries;
+    size_t max_bytes;
+    size_t entries;
+    size_t bytes;
+    int stopped;      // enum scan_stop
+};
+
+/*
+ * A directory for the next index, either read this scan with its children at first in the
+ *  thread's entries or carried over from the last index as it was.
+ */
+struct indexed_dir {
+    struct dir_node node;
+    size_t first;
+    bool reused;
+};
+
+struct work_queue {
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    struct work_item *items;
+    size_t count;
+    size_t capacity;
+    int busy; // workers currently scanning a directory, they may still add more work
+};
+
+// Large enough to pull most directories in with a single getdents64 call
+#define DENTS_BUFFER_SIZE (64 * 1024)
+#define SELINUX_CONTEXT_MAX 4096
+
+// What getdents64 fills in, declared here since not every libc exposes it
+struct linux_dirent64 {
+    uint64_t d_ino;
+    int64_t d_off;
+    unsigned short d_reclen;
+    unsigned char d_type;
+    char d_name[];
+};
+
+struct scan_thread {
+    pthread_t thread;
+    const struct scan_options *options;
+    struct work_queue *queue;
+    struct root_state *states;
+    struct arena_block *arena;
+    struct scan_entry *entries;
+    size_t count;
+    size_t capacity;
+    // Subdirectories found in the current directory, queued in one go once it's done
+    struct work_item *pending;
+    size_t npending;
+    size_t pendingcapacity;
+    // Directories left unscanned once their root's budget ran out
+    struct work_item *unfinished;
+    size_t nunfinished;
+    size_t unfinishedcapacity;
+    struct indexed_dir *dirs;
+    size_t ndirs;
+    size_t dirscapacity;
+    // Whether the last filesystem looked at was mounted read-only, see readOnlyDevice()
+    dev_t lastdev;
+    bool lastdevknown;
+    bool lastdevreadonly;
+    // Per-thread scratch space reused for every entry
+    char path[PATH_MAX + 1];
+    char linkpath[PATH_MAX + 1];
+    char fdpath[PATH_MAX + 32];
+    char selinuxcontext[SELINUX_CONTEXT_MAX];
+    char dents[DENTS_BUFFER_SIZE] __attribute__((aligned(8)));
+};
+
+static void *arenaAlloc(struct arena_block **arena, size_t size)
+{
+    size = (size + 7) & ~(size_t)7;
+
+    struct arena_block *block = *arena;
+    if (block == NULL || block->used + size > block->size) {
+        size_t blocksize = size > ARENA_BLOCK_SIZE ? size : ARENA_BLOCK_SIZE;
+        block = malloc(sizeof(*block) + blocksize);
+        if (block == NULL) {
+            return NULL;
+        }
+        block->next = *arena;
+        block->used = 0;
+        block->size = blocksize;
+        *arena = block;
+    }
+
+    void *ptr = block->data + block->used;
+    block->used += size;
+    return ptr;
+}
+
+static const char *arenaStrdup(struct arena_block **arena, const char *str)
+{
+    size_t len = strlen(str) + 1;
+    char *copy = arenaAlloc(arena, len);
+    if (copy != NULL) {
+        memcpy(copy, str, len);
+    }
+    return copy;
+}
+
+static void freeArena(struct arena_block *arena)
+{
+    while (arena != NULL) {
+        struct arena_block *next = arena->next;
+        free(arena);
+        arena = next;
+    }
+}
+
+static bool growArray(void **array, size_t *capacity, size_t elemsize)
+{
+    size_t newcapacity = *capacity ? *capacity * 2 : 64;
+    void *newarray = realloc(*array, newcapacity * elemsize);
+    if (newarray == NULL) {
+        return false;
+    }
+
+    *array = newarray;
+    *capacity = newcapacity;
+    return true;
+}
+
+static int64_t monotonicNanos(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+static void stopRoot(struct root_state *state, int reason)
+{
+    int expected = SCAN_COMPLETE;
+    // The first limit hit is the one reported
+    __atomic_compare_exchange_n(&state->stopped, &expected, reason, false, __ATOMIC_RELAXED,
+            __ATOMIC_RELAXED);
+}
+
+/*
+ * Checked before every entry, clock_gettime is a vDSO call so the deadline check is cheap.
+ */
+static bool rootStopped(struct scan_thread *self, uint32_t root)
+{
+    struct root_state *state = &self->states[root];
+    if (__atomic_load_n(&state->stopped, __ATOMIC_RELAXED) != SCAN_COMPLETE) {
+        return true;
+    }
+
+    if (state->deadline && monotonicNanos() >= state->deadline) {
+        stopRoot(state, SCAN_DEADLINE);
+        return true;
+    }
+    return false;
+}
+
+static void chargeRoot(struct scan_thread *self, uint32_t root, size_t bytes)
+{
+    struct root_state *state = &self->states[root];
+    size_t entries = __atomic_add_fetch(&state->entries, 1, __ATOMIC_RELAXED);
+    if (state->max_entries && entries >= state->max_entries) {
+        stopRoot(state, SCAN_MAX_ENTRIES);
+    }
+
+    bytes = __atomic_add_fetch(&state->bytes, bytes, __ATOMIC_RELAXED);
+    if (state->max_bytes && bytes >= state->max_bytes) {
+        stopRoot(state, SCAN_MAX_BYTES);
+    }
+}
+
+static size_t entryBytes(const struct scan_entry *entry)
+{
+    size_t bytes = sizeof(*entry) + strlen(entry->path) + 1;
+    bytes += entry->linkpath ? strlen(entry->linkpath) + 1 : 0;
+    bytes += entry->selinuxcontext ? strlen(entry->selinuxcontext) + 1 : 0;
+    return bytes;
+}
+
+static bool addEntry(struct scan_thread *self, uint32_t root, const struct stat *st,
+        const char *linkpath, const char *selinuxcontext)
+{
+    if (self->count == self->capacity &&
+            !growArray((void **)&self->entries, &self->capacity, sizeof(struct scan_entry))) {
+        LOGE("Out of memory recording %s", self->path);
+        return false;
+    }
+
+    struct scan_entry *entry = &self->entries[self->count];
+    entry->path = arenaStrdup(&self->arena, self->path);
+    entry->linkpath = linkpath ? arenaStrdup(&self->arena, linkpath) : NULL;
+    entry->selinuxcontext = selinuxcontext ? arenaStrdup(&self->arena, selinuxcontext) : NULL;
+    if (entry->path == NULL || (linkpath && !entry->linkpath) ||
+            (selinuxcontext && !entry->selinuxcontext)) {
+        LOGE("Out of memory recording %s", self->path);
+        return false;
+    }
+
+    entry->root = root;
+    entry->uid = st->st_uid;
+    entry->gid = st->st_gid;
+    entry->size = st->st_size;
+    entry->mode = st->st_mode;
+    self->count++;
+
+    chargeRoot(self, root, entryBytes(entry));
+    return true;
+}
+
+// The entry's strings belong to the index, which outlives the results
+static void addIndexedEntry(struct scan_thread *self, uint32_t root,
+        const struct scan_entry *indexed)
+{
+    if (self->count == self->capacity &&
+            !growArray((void **)&self->entries, &self->capacity, sizeof(struct scan_entry))) {
+        LOGE("Out of memory recording %s", indexed->path);
+        return;
+    }
+
+    struct scan_entry *entry = &self->entries[self->count++];
+    *entry = *indexed;
+    entry->root = root;
+    chargeRoot(self, root, entryBytes(entry));
+}
+
+static void addPending(struct scan_thread *self, int depth, uint32_t root)
+{
+    if (self->npending == self->pendingcapacity &&
+            !growArray((void **)&self->pending, &self->pendingcapacity, sizeof(struct work_item))) {
+        LOGE("Out of memory queueing %s", self->path);
+        return;
+    }
+
+    char *path = strdup(self->path);
+    if (path == NULL) {
+        LOGE("Out of memory queueing %s", self->path);
+        return;
+    }
+
+    struct work_item *item = &self->pending[self->npending++];
+    item->path = path;
+    item->depth = depth;
+    item->root = root;
+    item->offset = 0;
+}
+
+// Takes ownership of item's path
+static void addUnfinished(struct scan_thread *self, struct work_item *item)
+{
+    if (self->nunfinished == self->unfinishedcapacity &&
+            !growArray((void **)&self->unfinished, &self->unfinishedcapacity,
+                    sizeof(struct work_item))) {
+        LOGE("Out of memory, %s won't be resumed", item->path);
+        free(item->path);
+        return;
+    }
+
+    self->unfinished[self->nunfinished++] = *item;
+}
+
+static struct indexed_dir *addIndexedDir(struct scan_thread *self, const char *path)
+{
+    if (self->ndirs == self->dirscapacity &&
+            !growArray((void **)&self->dirs, &self->dirscapacity, sizeof(struct indexed_dir))) {
+        LOGE("Out of memory indexing %s", path);
+        return NULL;
+    }
+
+    struct indexed_dir *dir = &self->dirs[self->ndirs++];
+    memset(dir, 0, sizeof(*dir));
+    return dir;
+}
+
+/*
+ * Only directories on read-only filesystems are indexed. A walk stays on one filesystem for
+ *  long stretches, so the last one looked up is remembered.
+ */
+static bool readOnlyDevice(struct scan_thread *self, int dirfd, const char *path, dev_t dev)
+{
+    if (!self->lastdevknown || self->lastdev != dev) {
+        struct statvfs st;
+        int ret = dirfd >= 0 ? fstatvfs(dirfd, &st) : statvfs(path, &st);
+        self->lastdev = dev;
+        self->lastdevknown = true;
+        self->lastdevreadonly = ret == 0 && (st.f_flag & ST_RDONLY);
+    }
+    return self->lastdevreadonly;
+}
+
+static bool isExcluded(const struct scan_options *options, const char *path)
+{
+    for (size_t i = 0; i < options->nexcludes; i++) {
+        if (!strcmp(options->excludes[i], path)) {
+            return true;
+        }
+    }
+    return false;
+}
+
+static int overrideDepth(const struct scan_options *options, const char *path, int depth)
+{
+    for (size_t i = 0; i < options->noverrides; i++) {
+        if (options->overrides[i].depth > depth && !strcmp(options->overrides[i].path, path)) {
+            depth = options->overrides[i].depth;
+        }
+    }
+    return depth;
+}
+
+/*
+ * Read the entry's SELinux context relative to the open directory: /proc/self/fd/N/name only
+ *  has the kernel walk from the directory rather than re-resolve every component of the full
+ *  path. Falls back to the full path if /proc isn't usable.
+ */
+static const char *readContext(struct scan_thread *self, size_t fdpathlen, const char *name,
+        size_t namelen)
+{
+    if (fdpathlen + namelen < sizeof(self->fdpath)) {
+        memcpy(self->fdpath + fdpathlen, name, namelen + 1);
+        if (lgetfilecon_buf(self->fdpath, self->selinuxcontext, sizeof(self->selinuxcontext)) > 0) {
+            return self->selinuxcontext;
+        }
+        if (errno != ENOENT && errno != ENOTDIR) {
+            return NULL;
+        }
+    }
+
+    if (lgetfilecon_buf(self->path, self->selinuxcontext, sizeof(self->selinuxcontext)) > 0) {
+        return self->selinuxcontext;
+    }
+    return NULL;
+}
+
+/*
+ * @return false if the entry couldn't be recorded as it is
+ */
+static bool scanEntry(struct scan_thread *self, const struct work_item *item, int dirfd,
+        size_t fdpathlen, const char *name, size_t namelen)
+{
+    ssize_t linkpath_size;
+    const char *linkpath;
+    struct stat st;
+    bool complete = true;
+
+    if (self->options->nexcludes && isExcluded(self->options, self->path)) {
+        return true;
+    }
+
+    if (fstatat(dirfd, name, &st, AT_SYMLINK_NOFOLLOW) < 0) {
+        LOGE("Failed to lstat %s", self->path);
+        return false;
+    }
+
+    if ((st.st_mode & S_IFMT) == S_IFLNK) {
+        if ((linkpath_size = readlinkat(dirfd, name, self->linkpath, PATH_MAX)) <= 0) {
+            LOGE("readlink failed %s", self->path);
+            complete = false;
+            strcpy(self->linkpath, "error");
+        } else {
+            self->linkpath[linkpath_size] = 0;
+        }
+        linkpath = self->linkpath;
+    } else {
+        linkpath = NULL;
+    }
+
+    const char *selinuxcontext = readContext(self, fdpathlen, name, namelen);
+
+    if (!addEntry(self, item->root, &st, linkpath, selinuxcontext)) {
+        complete = false;
+    }
+
+    if ((st.st_mode & S_IFMT) == S_IFDIR) {
+        int depth = overrideDepth(self->options, self->path, item->depth - 1);
+        if (depth > 0) {
+            addPending(self, depth, item->root);
+        }
+    }
+    return complete;
+}
+
+/*
+ * Emit the children of a directory the index has, if it hasn't changed since they were
+ *  recorded, without reading it. Its subdirectories are queued as if it had been read.
+ *
+ * @return false if the directory has to be read
+ */
+static bool reuseDir(struct scan_thread *self, const struct work_item *item)
+{
+    const struct dir_index *index = self->options->index;
+    if (index == NULL || item->offset) {
+        return false;
+    }
+
+    const struct dir_node *node = findDirNode(index, item->path);
+    struct stat st;
+    if (node == NULL || stat(item->path, &st) < 0 || !dirNodeMatches(node, &st) ||
+            !readOnlyDevice(self, -1, item->path, st.st_dev)) {
+        return false;
+    }
+
+    for (uint32_t i = 0; i < node->nchildren; i++) {
+        const struct scan_entry *child = &node->children[i];
+        addIndexedEntry(self, item->root, child);
+
+        size_t len = strlen(child->path);
+        if ((child->mode & S_IFMT) == S_IFDIR && len <= PATH_MAX) {
+            int depth = overrideDepth(self->options, child->path, item->depth - 1);
+            if (depth > 0) {
+                memcpy(self->path, child->path, len + 1);
+                addPending(self, depth, item->root);
+            }
+        }
+    }
+
+    if (self->options->index_dirs) {
+        struct indexed_dir *dir = addIndexedDir(self, item->path);
+        if (dir != NULL) {
+            dir->node = *node;
+            dir->reused = true;
+        }
+    }
+    return true;
+}
+
+/*
+ * @return false if the root's budget ran out before the directory was done, item's offset is
+ *  then where to carry on from
+ */
+static bool scanDir(struct scan_thread *self, struct work_item *item)
+{
+    int dirfd = open(item->path, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dirfd < 0) {
+        LOGE("opendir failed %s", item->path);
+        return true;
+    }
+
+    // Offsets are cookies only the filesystem understands, if it won't take one back start over
+    if (item->offset && lseek(dirfd, item->offset, SEEK_SET) < 0) {
+        LOGE("Failed to resume %s, scanning it again", item->path);
+        item->offset = 0;
+    }
+
+    // Only a directory read from the start can be indexed
+    struct stat st;
+    bool indexable = self->options->index_dirs && item->offset == 0 && fstat(dirfd, &st) == 0 &&
+            readOnlyDevice(self, dirfd, item->path, st.st_dev);
+    size_t first = self->count;
+
+    // Children of / are "/name" rather than "//name"
+    size_t dirlen = strcmp(item->path, "/") ? strlen(item->path) : 0;
+    size_t fdpathlen = snprintf(self->fdpath, sizeof(self->fdpath), "/proc/self/fd/%d/", dirfd);
+
+    bool finished = true;
+    long nread = 0;
+    while (finished &&
+            (nread = syscall(SYS_getdents64, dirfd, self->dents, sizeof(self->dents))) > 0) {
+        for (long offset = 0; offset < nread; ) {
+            struct linux_dirent64 *de = (struct linux_dirent64 *)(self->dents + offset);
+            offset += de->d_reclen;
+
+            if (!strcmp(de->d_name, ".") || !strcmp(de->d_name, "..")) {
+                item->offset = de->d_off;
+                continue;
+            }
+
+            if (rootStopped(self, item->root)) {
+                finished = false;
+                break;
+            }
+
+            size_t namelen = strlen(de->d_name);
+            if (dirlen + 1 + namelen > PATH_MAX) {
+                LOGE("Path too long %s/%s", item->path, de->d_name);
+                indexable = false;
+                continue;
+            }
+            memcpy(self->path, item->path, dirlen);
+            self->path[dirlen] = '/';
+            memcpy(self->path + dirlen + 1, de->d_name, namelen + 1);
+
+            if (!scanEntry(self, item, dirfd, fdpathlen, de->d_name, namelen)) {
+                indexable = false;
+            }
+            item->offset = de->d_off;
+        }
+    }
+    if (finished && nread < 0) {
+        LOGE("getdents64 failed %s", item->path);
+        indexable = false;
+    }
+
+    if (finished && indexable) {
+        const char *path = arenaStrdup(&self->arena, item->path);
+        struct indexed_dir *dir = path ? addIndexedDir(self, path) : NULL;
+        if (dir != NULL) {
+            dir->node.path = path;
+            setDirNodeStat(&dir->node, &st);
+            dir->node.nchildren = self->count - first;
+            dir->first = first;
+        }
+    }
+
+    close(dirfd);
+    return finished;
+}
+
+// Must be called with the queue locked
+static void queuePush(struct work_queue *queue, struct work_item *item)
+{
+    if (queue->count == queue->capacity &&
+            !growArray((void **)&queue->items, &queue->capacity, sizeof(struct work_item))) {
+        LOGE("Out of memory queueing %s", item->path);
+        free(item->path);
+        return;
+    }
+
+    queue->items[queue->count++] = *item;
+}
+
+static void *scanWorker(void *arg)
+{
+    struct scan_thread *self = arg;
+    struct work_queue *queue = self->queue;
+
+    pthread_mutex_lock(&queue->lock);
+    while (true) {
+        while (queue->count == 0 && queue->busy > 0) {
+            pthread_cond_wait(&queue->cond, &queue->lock);
+        }
+        // Nothing queued and nobody left who could queue more
+        if (queue->count == 0) {
+            break;
+        }
+
+        struct work_item item = queue->items[--queue->count];
+        queue->busy++;
+        pthread_mutex_unlock(&queue->lock);
+
+        // Once a root is out of budget what's left of it is drained without being scanned
+        if (rootStopped(self, item.root) || (!reuseDir(self, &item) && !scanDir(self, &item))) {
+            addUnfinished(self, &item);
+        } else {
+            free(item.path);
+        }
+
+        pthread_mutex_lock(&queue->lock);
+        for (size_t i = 0; i < self->npending; i++) {
+            queuePush(queue, &self->pending[i]);
+        }
+        self->npending = 0;
+        queue->busy--;
+        pthread_cond_broadcast(&queue->cond);
+    }
+    pthread_mutex_unlock(&queue->lock);
+
+    return NULL;
+}
+
+static int compareEntries(const void *a, const void *b)
+{
+    const struct scan_entry *x = *(const struct scan_entry * const *)a;
+    const struct scan_entry *y = *(const struct scan_entry * const *)b;
+
+    if (x->root != y->root) {
+        return x->root < y->root ? -1 : 1;
+    }
+    return strcmp(x->path, y->path);
+}
+
+static int comparePositions(const void *a, const void *b)
+{
+    const struct scan_position *x = a;
+    const struct scan_position *y = b;
+
+    if (x->root != y->root) {
+        return x->root < y->root ? -1 : 1;
+    }
+    return strcmp(x->path, y->path);
+}
+
+static bool mergeUnfinished(struct scan_results *results)
+{
+    size_t total = 0;
+    for (int i = 0; i < results->nthreads; i++) {
+        total += results->threads[i].nunfinished;
+    }
+
+    results->unfinished = malloc((total ? total : 1) * sizeof(struct scan_position));
+    if (results->unfinished == NULL) {
+        err("Out of memory merging unfinished directories");
+        return false;
+    }
+
+    // The paths move over to the results
+    for (int i = 0; i < results->nthreads; i++) {
+        struct scan_thread *thread = &results->threads[i];
+        for (size_t j = 0; j < thread->nunfinished; j++) {
+            struct scan_position *position = &results->unfinished[results->nunfinished++];
+            position->path = thread->unfinished[j].path;
+            position->depth = thread->unfinished[j].depth;
+            position->root = thread->unfinished[j].root;
+            position->offset = thread->unfinished[j].offset;
+        }
+        thread->nunfinished = 0;
+    }
+
+    qsort(results->unfinished, results->nunfinished, sizeof(struct scan_position),
+            comparePositions);
+    return true;
+}
+
+static int compareDirs(const void *a, const void *b)
+{
+    const struct dir_node *x = a;
+    const struct dir_node *y = b;
+    return strcmp(x->path, y->path);
+}
+
+/*
+ * Must be called once the workers are done, the children of the directories read this scan
+ *  are then where they'll stay in their thread's entries.
+ */
+static bool mergeDirs(struct scan_results *results)
+{
+    size_t total = 0;
+    for (int i = 0; i < results->nthreads; i++) {
+        total += results->threads[i].ndirs;
+    }
+
+    results->dirs = malloc((total ? total : 1) * sizeof(struct dir_node));
+    if (results->dirs == NULL) {
+        err("Out of memory merging indexed directories");
+        return false;
+    }
+
+    for (int i = 0; i < results->nthreads; i++) {
+        struct scan_thread *thread = &results->threads[i];
+        for (size_t j = 0; j < thread->ndirs; j++) {
+            struct indexed_dir *dir = &thread->dirs[j];
+            if (dir->reused) {
+                results->reused++;
+            } else {
+                dir->node.children = thread->entries + dir->first;
+                dir->node.hash = hashChildren(dir->node.children, dir->node.nchildren);
+            }
+            results->dirs[results->ndirs++] = dir->node;
+        }
+    }
+
+    qsort(results->dirs, results->ndirs, sizeof(struct dir_node), compareDirs);
+    return true;
+}
+
+static bool mergeResults(struct scan_results *results)
+{
+    if (!mergeUnfinished(results) || !mergeDirs(results)) {
+        return false;
+    }
+
+    size_t total = 0;
+    for (int i = 0; i < results->nthreads; i++) {
+        total += results->threads[i].count;
+    }
+
+    results->entries = malloc((total ? total : 1) * sizeof(struct scan_entry *));
+    if (results->entries == NULL) {
+        err("Out of memory merging scan results");
+        return false;
+    }
+
+    for (int i = 0; i < results->nthreads; i++) {
+        struct scan_thread *thread = &results->threads[i];
+        for (size_t j = 0; j < thread->count; j++) {
+            results->entries[results->count++] = &thread->entries[j];
+        }
+    }
+
+    qsort(results->entries, results->count, sizeof(struct scan_entry *), compareEntries);
+    return true;
+}
+
+bool scanParallel(const struct scan_options *options, struct scan_results *results)
+{
+    memset(results, 0, sizeof(*results));
+    const struct scan_root *roots = options->roots;
+    size_t nroots = options->nroots;
+    int nthreads = options->nthreads < 1 ? 1 : options->nthreads;
+
+    struct work_queue queue;
+    memset(&queue, 0, sizeof(queue));
+    pthread_mutex_init(&queue.lock, NULL);
+    pthread_cond_init(&queue.cond, NULL);
+
+    struct root_state *states = calloc(nroots ? nroots : 1, sizeof(struct root_state));
+    results->stopped = calloc(nroots ? nroots : 1, sizeof(enum scan_stop));
+    if (states == NULL || results->stopped == NULL) {
+        err("Out of memory allocating scan budgets");
+        free(states);
+        freeScanResults(results);
+        return false;
+    }
+
+    int64_t start = monotonicNanos();
+    for (size_t i = 0; i < nroots; i++) {
+        states[i].deadline = roots[i].timeout_ms ? start + roots[i].timeout_ms * 1000000 : 0;
+        states[i].max_entries = roots[i].max_entries;
+        states[i].max_bytes = roots[i].max_bytes;
+    }
+
+    // Queue the roots in reverse so the first root is the first one popped
+    for (size_t i = nroots; i > 0; i--) {
+        if (roots[i - 1].path == NULL) {
+            continue;
+        }
+
+        bool resumed = false;
+        for (size_t j = options->nresume; j > 0; j--) {
+            const struct scan_position *position = &options->resume[j - 1];
+            if (position->root != i - 1) {
+                continue;
+            }
+
+            struct work_item item;
+            item.path = strdup(position->path);
+            item.depth = position->depth;
+            item.root = i - 1;
+            item.offset = position->offset;
+            if (item.path != NULL) {
+                queuePush(&queue, &item);
+            }
+            resumed = true;
+        }
+        if (resumed) {
+            continue;
+        }
+
+        struct work_item item;
+        item.path = strdup(roots[i - 1].path);
+        item.depth = roots[i - 1].depth;
+        item.root = i - 1;
+        item.offset = 0;
+        if (item.path != NULL) {
+            queuePush(&queue, &item);
+        }
+    }
+
+    results->threads = calloc(nthreads, sizeof(struct scan_thread));
+    if (results->threads == NULL) {
+        err("Out of memory allocating scan threads");
+        for (size_t i = 0; i < queue.count; i++) {
+            free(queue.items[i].path);
+        }
+        free(queue.items);
+        free(states);
+        freeScanResults(results);
+        return false;
+    }
+
+    int started = 0;
+    for (int i = 0; i < nthreads; i++) {
+        results->threads[i].options = options;
+        results->threads[i].queue = &queue;
+        results->threads[i].states = states;
+        if (pthread_create(&results->threads[i].thread, NULL, scanWorker, &results->threads[i])) {
+            LOGE("pthread_create failed, scanning with %d threads", started);
+            break;
+        }
+        started++;
+    }
+
+    // No threads at all, do the work ourselves
+    if (started == 0) {
+        results->threads[0].options = options;
+        results->threads[0].queue = &queue;
+        results->threads[0].states = states;
+        scanWorker(&results->threads[0]);
+        started = 1;
+    } else {
+        for (int i = 0; i < started; i++) {
+            pthread_join(results->threads[i].thread, NULL);
+        }
+    }
+    results->nthreads = started;
+
+    free(queue.items);
+    pthread_cond_destroy(&queue.cond);
+    pthread_mutex_destroy(&queue.lock);
+
+    for (size_t i = 0; i < nroots; i++) {
+        results->stopped[i] = states[i].stopped;
+    }
+    free(states);
+
+    if (!mergeResults(results)) {
+        freeScanResults(results);
+        return false;
+    }
+    return true;
+}
+
+void freeScanResults(struct scan_results *results)
+{
+    if (results->threads != NULL) {
+        for (int i = 0; i < results->nthreads; i++) {
+            freeArena(results->threads[i].arena);
+            free(results->threads[i].entries);
+            free(results->threads[i].pending);
+            for (size_t j = 0; j < results->threads[i].nunfinished; j++) {
+                free(results->threads[i].unfinished[j].path);
+            }
+            free(results->threads[i].unfinished);
+            free(results->threads[i].dirs);
+        }
+        free(results->threads);
+    }
+    for (size_t i = 0; i < results->nunfinished; i++) {
+        free((char *)results->unfinished[i].path);
+    }
+    free(results->unfinished);
+    free(results->stopped);
+    free(results->dirs);
+    free(results->entries);
+    memset(results, 0, sizeof(*results));
+}
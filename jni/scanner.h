@@ -0,0 +1,104 @@
+#pragma once
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+
+/*
+ * A walk and its budget, a limit of 0 means none. Once a limit is hit the rest of the walk is
+ *  left unscanned and reported in scan_results.unfinished so a later scan can pick it up.
+ */
+struct scan_root {
+    const char *path;
+    int depth;
+    int64_t timeout_ms; // from the start of the scan
+    size_t max_entries;
+    size_t max_bytes;   // of entries and the strings they hold
+};
+
+/*
+ * Directories inside a walk that should be walked deeper than the walk would otherwise go,
+ *  used to fold overlapping roots into one walk so nothing is visited twice.
+ */
+struct scan_override {
+    const char *path;
+    int depth;
+};
+
+/*
+ * A directory a walk still has to scan, from the getdents64 offset it was read up to (0 for
+ *  the start). A directory can't be resumed exactly if its filesystem doesn't keep offsets
+ *  stable, it's then scanned again from the start.
+ */
+struct scan_position {
+    const char *path;
+    int depth;
+    uint32_t root;
+    int64_t offset;
+};
+
+struct dir_index;
+struct dir_node;
+
+enum scan_stop {
+    SCAN_COMPLETE,
+    SCAN_DEADLINE,
+    SCAN_MAX_ENTRIES,
+    SCAN_MAX_BYTES
+};
+
+struct scan_options {
+    const struct scan_root *roots;
+    size_t nroots;
+    const struct scan_override *overrides;
+    size_t noverrides;
+    const char *const *excludes; // paths that are neither emitted nor descended into
+    size_t nexcludes;
+    // Where earlier scans stopped, a root with any positions walks those instead of itself
+    const struct scan_position *resume;
+    size_t nresume;
+    // Directories an earlier scan read, those that haven't changed aren't read again. NULL for
+    //  none, it has to have been saved with the same excludes
+    const struct dir_index *index;
+    // Record the directories read in full on read-only filesystems in scan_results.dirs
+    bool index_dirs;
+    int nthreads;
+};
+
+struct scan_entry {
+    const char *path;
+    const char *linkpath;       // NULL unless the entry is a symlink
+    const char *selinuxcontext; // NULL if it couldn't be read
+    uint32_t root;              // index into the roots the scan was started with
+    int32_t uid;
+    int32_t gid;
+    int32_t size;
+    int32_t mode;
+};
+
+struct scan_thread;
+
+struct scan_results {
+    struct scan_entry **entries; // sorted by root, then by path
+    size_t count;
+    struct scan_thread *threads; // owns the storage entries point into
+    int nthreads;
+    struct scan_position *unfinished; // sorted by root, then by path
+    size_t nunfinished;
+    enum scan_stop *stopped; // why each root stopped, SCAN_COMPLETE if it didn't
+    struct dir_node *dirs;   // sorted by path, for saveDirIndex()
+    size_t ndirs;
+    size_t reused;           // directories answered from the index rather than read
+};
+
+/*
+ * Walk every root to its depth, or until its budget runs out, using nthreads threads pulling
+ *  directories off a shared queue. The merged results are sorted so they don't depend on how
+ *  the work was scheduled, though with several threads a budget can be overrun by a few entries
+ *  and which entries make it in before a limit is hit does depend on it. A directory answered
+ *  from the index is emitted whole, so it can overrun a budget by the size of the directory.
+ *
+ * The results point into options->index, it has to outlive them.
+ */
+bool scanParallel(const struct scan_options *options, struct scan_results *results);
+void freeScanResults(struct scan_results *results);
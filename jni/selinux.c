@@ -81,3 +81,29 @@ out:
         *context = buf;
     return ret;
 }
+
+ssize_t lgetfilecon_buf(const char *path, char *buf, size_t size)
+{
+    ssize_t ret;
+
+    if (!_lgetxattr) {
+        errno = ENOTSUP;
+        return -1;
+    }
+    if (size == 0) {
+        errno = ERANGE;
+        return -1;
+    }
+
+    ret = _lgetxattr(path, XATTR_NAME_SELINUX, buf, size - 1);
+    if (ret == 0) {
+        /* Re-map empty attribute values to errors. */
+        errno = EOPNOTSUPP;
+        ret = -1;
+    }
+    if (ret < 0)
+        return -1;
+
+    buf[ret] = 0;
+    return ret;
+}
@@ -1,4 +1,12 @@
 #pragma once
 
+#include <sys/types.h>
+
 void resolveSELinuxFunctions(void);
 int lgetfilecon(const char *path, char** con);
+
+/*
+ * Like lgetfilecon but reads into the caller's buffer instead of allocating one, returns the
+ *  length of the NUL-terminated context or -1.
+ */
+ssize_t lgetfilecon_buf(const char *path, char *buf, size_t size);
@@ -0,0 +1,52 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Files the app keeps between runs are written to a temporary file next to them, synced to disk
+ *  and then renamed over them. A crash or power loss leaves either the old file or the whole new
+ *  one behind, never a torn or empty one.
+ */
+final class AtomicWrites {
+  static final String TEMP_SUFFIX = ".tmp";
+
+  private AtomicWrites() {
+  }
+
+  interface Contents {
+    /**
+     * Write the whole file to out. Closing out, or streams wrapped around it, only flushes it.
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  static void atomicWrite(File file, Contents contents) throws IOException {
+    File temp = new File(file.getPath() + TEMP_SUFFIX);
+    try (final FileOutputStream out = new FileOutputStream(temp)) {
+      contents.writeTo(new FilterOutputStream(out) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          flush();
+        }
+      });
+      out.getFD().sync();
+    } catch (IOException | RuntimeException e) {
+      temp.delete();
+      throw e;
+    }
+
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+  }
+}
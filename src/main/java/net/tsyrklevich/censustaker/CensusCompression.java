@@ -0,0 +1,118 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.Context;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * How census payloads are deflated. Optionally with a preset dictionary of the strings every
+ *  census is full of (section keys, /system paths, SELinux contexts, sysctl names), so even the
+ *  first occurrence of one is a back reference.
+ *
+ * The dictionary is the census_dictionary_v<DICTIONARY_VERSION> asset, built by
+ *  tools/dictionary/build_dictionary.py. Payloads compressed with it are sent with its version in
+ *  DICTIONARY_HEADER, the zlib stream itself also carries the dictionary's Adler-32.
+ */
+public class CensusCompression {
+  public static final int DICTIONARY_VERSION = 1;
+  public static final String DICTIONARY_HEADER = "X-Census-Dictionary";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final int level;
+  private final int strategy;
+  private final byte[] dictionary;
+
+  /**
+   * @param dictionary preset dictionary, or null to compress without one
+   */
+  public CensusCompression(int level, int strategy, byte[] dictionary) {
+    this.level = level;
+    this.strategy = strategy;
+    this.dictionary = dictionary;
+  }
+
+  public static CensusCompression load(Context context, CensusConfig config) {
+    byte[] dictionary = null;
+    if (config.compressionDictionary()) {
+      try (InputStream in = context.getAssets().open("census_dictionary_v" + DICTIONARY_VERSION)) {
+        dictionary = IOUtils.toByteArray(in);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    return new CensusCompression(config.compressionLevel(), config.compressionStrategy(),
+        dictionary);
+  }
+
+  /**
+   * @return the value of DICTIONARY_HEADER to send with payloads, or null if there's no
+   *  dictionary
+   */
+  public String dictionaryVersion() {
+    return dictionary == null ? null : "v" + DICTIONARY_VERSION;
+  }
+
+  public OutputStream deflate(OutputStream out) {
+    final Deflater deflater = new Deflater(level);
+    deflater.setStrategy(strategy);
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+
+    // A Deflater passed in isn't ended by the stream
+    return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return a stream that inflates a payload from {@link #deflate}, or one compressed without a
+   *  dictionary
+   */
+  public InputStream inflate(InputStream in) {
+    final Inflater inflater = new Inflater();
+    return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+          int n = super.read(b, off, len);
+          // InflaterInputStream reports a stream that wants a dictionary as empty
+          if (n != -1 || !inflater.needsDictionary()) {
+            return n;
+          }
+          if (dictionary == null) {
+            throw new ZipException("Census was compressed with a dictionary");
+          }
+          try {
+            inflater.setDictionary(dictionary);
+          } catch (IllegalArgumentException e) {
+            throw new ZipException("Census was compressed with a different dictionary");
+          }
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+}
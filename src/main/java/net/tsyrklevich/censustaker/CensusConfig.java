@@ -0,0 +1,263 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.Context;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * Tunables read from the census.properties asset. Anything missing, or the whole file, falls
+ *  back to the defaults here.
+ */
+public class CensusConfig {
+  private final Properties properties;
+
+  public CensusConfig(Properties properties) {
+    this.properties = properties;
+  }
+
+  public static CensusConfig load(Context context) {
+    Properties properties = new Properties();
+    try (InputStream in = context.getAssets().open("census.properties")) {
+      properties.load(in);
+    } catch (IOException ignored) {
+    }
+    return new CensusConfig(properties);
+  }
+
+  private int getInt(String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private long getLong(String key, long defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private boolean getBoolean(String key, boolean defaultValue) {
+    String value = properties.getProperty(key);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * Number of native threads used to walk the filesystem.
+   */
+  public int scanThreads() {
+    return getInt("scan.threads", Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * How long each filesystem walk may take before it stops and is resumed by the next census,
+   *  0 for no limit. A root in the scan plan can set its own.
+   */
+  public long scanTimeoutMillis() {
+    return Math.max(getInt("scan.timeout", 120), 0) * 1000L;
+  }
+
+  /**
+   * Entries each filesystem walk may report before it stops, 0 for no limit.
+   */
+  public long scanMaxEntries() {
+    return Math.max(getLong("scan.max_entries", 0), 0);
+  }
+
+  /**
+   * Native memory each filesystem walk may fill with entries before it stops, 0 for no limit.
+   */
+  public long scanMaxBytes() {
+    return Math.max(getLong("scan.max_bytes", 64 * 1024 * 1024), 0);
+  }
+
+  /**
+   * Keep an index of the directories on read-only filesystems between censuses, so those that
+   *  haven't changed aren't read again.
+   */
+  public boolean scanIndex() {
+    return getBoolean("scan.index", true);
+  }
+
+  /**
+   * Number of native threads used to read the contents of small files.
+   */
+  public int readThreads() {
+    return getInt("read.threads", Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Number of collectors run at the same time.
+   */
+  public int collectorThreads() {
+    return Math.max(getInt("collector.threads", Runtime.getRuntime().availableProcessors()), 1);
+  }
+
+  /**
+   * How long a collector may run before it's cancelled and its sections left out, either its
+   *  own collector.<name>.timeout or collector.timeout, in seconds.
+   */
+  public long collectorTimeoutMillis(String name) {
+    int seconds = getInt("collector." + name + ".timeout", getInt("collector.timeout", 300));
+    return seconds * 1000L;
+  }
+
+  /**
+   * Write the census as a binary {@link CensusContainer} rather than JSON, only servers that
+   *  understand the container should be sent one.
+   */
+  public CensusWriter.Format censusFormat() {
+    String value = properties.getProperty("census.format", "json").trim();
+    return value.equalsIgnoreCase("binary") ? CensusWriter.Format.BINARY : CensusWriter.Format.JSON;
+  }
+
+  /**
+   * Write file_permissions as a {@link FileRecordColumns} table rather than one object per file,
+   *  only servers that can expand it should be sent one.
+   */
+  public boolean columnarFilePermissions() {
+    String value = properties.getProperty("census.file_permissions", "records").trim();
+    return value.equalsIgnoreCase(FileRecordColumns.ENCODING);
+  }
+
+  /**
+   * Write providers' pathPermissions and uriPermissionPatterns as arrays rather than the text of an
+   *  array inside a string, as they've always been sent.
+   */
+  public boolean providerPatternArrays() {
+    String value = properties.getProperty("census.provider_patterns", "string").trim();
+    return value.equalsIgnoreCase("array");
+  }
+
+  /**
+   * Upload only what changed since the last census the server accepted.
+   */
+  public boolean deltaUploads() {
+    return getBoolean("upload.delta", false);
+  }
+
+  /**
+   * Bytes of compressed censuses kept on disk to retry when an upload fails.
+   */
+  public long spoolMaxBytes() {
+    return Math.max(getLong("upload.spool.max_bytes", 32 * 1024 * 1024), 0);
+  }
+
+  /**
+   * Number of censuses kept on disk to retry, 0 to not keep any.
+   */
+  public int spoolMaxEntries() {
+    return Math.max(getInt("upload.spool.max_entries", 8), 0);
+  }
+
+  /**
+   * How long to wait before retrying spooled censuses the first time, it doubles after every
+   *  retry that fails up to spoolMaxBackoffMillis().
+   */
+  public long spoolBackoffMillis() {
+    return Math.max(getInt("upload.spool.backoff", 30), 1) * 1000L;
+  }
+
+  public long spoolMaxBackoffMillis() {
+    return Math.max(getInt("upload.spool.max_backoff", 3600), 1) * 1000L;
+  }
+
+  /**
+   * Also dump a census that couldn't be uploaded to logcat in Base64, for debugging.
+   */
+  public boolean logcatDump() {
+    return getBoolean("debug.logcat_dump", false);
+  }
+
+  /**
+   * Number of simultaneous S3 requests, listing and uploading share the same workers.
+   */
+  public int s3Concurrency() {
+    return getInt("s3.concurrency", 4);
+  }
+
+  /**
+   * URL of an S3-compatible server to upload to instead of AWS, e.g. a local stand-in for
+   *  testing. Null means AWS.
+   */
+  public String s3Endpoint() {
+    String value = properties.getProperty("s3.endpoint");
+    return value == null || value.trim().isEmpty() ? null : value.trim();
+  }
+
+  /**
+   * Files at least this big are uploaded to S3 in parts, read once to both hash and upload them.
+   */
+  public long s3MultipartThreshold() {
+    return getInt("s3.multipart.threshold", 16 * 1024 * 1024);
+  }
+
+  /**
+   * Size of each part of a multipart S3 upload, S3 doesn't accept parts under 5 MB.
+   */
+  public int s3PartSize() {
+    return Math.max(getInt("s3.multipart.part_size", S3Uploader.MIN_PART_SIZE),
+        S3Uploader.MIN_PART_SIZE);
+  }
+
+  /**
+   * Number of files whose hash is remembered between runs, least recently used ones are dropped.
+   */
+  public int s3HashCacheEntries() {
+    return getInt("s3.hash_cache.entries", 16384);
+  }
+
+  /**
+   * Deflate level for census payloads, 0-9 or -1 for zlib's default.
+   */
+  public int compressionLevel() {
+    int level = getInt("compress.level", Deflater.DEFAULT_COMPRESSION);
+    return level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION
+        ? level : Deflater.DEFAULT_COMPRESSION;
+  }
+
+  /**
+   * Deflate strategy for census payloads, one of Deflater's *_STRATEGY/HUFFMAN_ONLY constants.
+   */
+  public int compressionStrategy() {
+    String value = properties.getProperty("compress.strategy", "default").trim();
+    if (value.equalsIgnoreCase("filtered")) {
+      return Deflater.FILTERED;
+    }
+    if (value.equalsIgnoreCase("huffman")) {
+      return Deflater.HUFFMAN_ONLY;
+    }
+    return Deflater.DEFAULT_STRATEGY;
+  }
+
+  /**
+   * Compress census payloads with the preset dictionary, only servers that have a copy of it
+   *  can read them.
+   */
+  public boolean compressionDictionary() {
+    return getBoolean("compress.dictionary", false);
+  }
+
+  /**
+   * Also write the census_metrics spans as a Chrome trace next to the copy of the census on
+   *  disk.
+   */
+  public boolean metricsTrace() {
+    return getBoolean("metrics.trace", false);
+  }
+}
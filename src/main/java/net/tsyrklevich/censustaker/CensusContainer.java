@@ -0,0 +1,220 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary alternative to the JSON census that carries file contents as raw bytes instead of
+ *  Base64 strings. All integers are big-endian.
+ *
+ *  container := magic "CNSC", u8 version, section*, u8 0
+ *  section   := u8 type, u16 name length, name (UTF-8), chunk*, u32 0
+ *  chunk     := u32 length, length bytes
+ *
+ * The chunks of a section concatenate to its body. A SECTION_JSON body is the section's value as
+ *  UTF-8 JSON, a SECTION_BLOBS body is a sequence of (u16 key length, key, u32 length, bytes)
+ *  entries. Chunking lets sections be written as they're produced without knowing their size.
+ */
+public class CensusContainer {
+  public static final String CONTENT_TYPE = "application/x-census-container";
+
+  static final byte[] MAGIC = {'C', 'N', 'S', 'C'};
+  static final int VERSION = 1;
+
+  static final int SECTION_END = 0;
+  static final int SECTION_JSON = 1;
+  static final int SECTION_BLOBS = 2;
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  static void writeHeader(OutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.write(VERSION);
+  }
+
+  static void writeSectionHeader(DataOutputStream out, int type, String name) throws IOException {
+    out.writeByte(type);
+    writeString(out, name);
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xffff) {
+      throw new IOException("String too long for census container: " + value.length());
+    }
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(InputStream in) throws IOException {
+    byte[] bytes = new byte[readUnsignedShort(in)];
+    readFully(in, bytes, 0, bytes.length);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static int readUnsignedShort(InputStream in) throws IOException {
+    int high = in.read();
+    int low = in.read();
+    if ((high | low) < 0) {
+      throw new EOFException();
+    }
+    return (high << 8) | low;
+  }
+
+  static int readInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value = (value << 8) | b;
+    }
+    return value;
+  }
+
+  static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int read = in.read(buffer, offset, length);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+
+  /**
+   * Frames everything written to it as chunks of the underlying stream, {@link #finish()} writes
+   *  the terminating empty chunk. Closing it doesn't close the underlying stream.
+   */
+  static class ChunkedOutputStream extends FilterOutputStream {
+    private final DataOutputStream out;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int count;
+
+    ChunkedOutputStream(DataOutputStream out) {
+      super(out);
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        writeChunk();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          writeChunk();
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void writeChunk() throws IOException {
+      if (count > 0) {
+        out.writeInt(count);
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writeChunk();
+      out.flush();
+    }
+
+    void finish() throws IOException {
+      writeChunk();
+      out.writeInt(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Reads the body of one section, returning EOF at its terminating empty chunk. Closing it
+   *  skips whatever is left of the section rather than closing the underlying stream.
+   */
+  static class ChunkedInputStream extends InputStream {
+    private final InputStream in;
+    private int remaining;
+    private boolean done;
+
+    ChunkedInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    private boolean nextChunk() throws IOException {
+      while (remaining == 0 && !done) {
+        remaining = readInt(in);
+        if (remaining < 0) {
+          throw new IOException("Bad chunk length " + remaining);
+        }
+        done = remaining == 0;
+      }
+      return !done;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextChunk()) {
+        return -1;
+      }
+      int read = in.read(b, off, Math.min(len, remaining));
+      if (read < 0) {
+        throw new EOFException();
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      while (nextChunk()) {
+        long skipped = in.skip(remaining);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException();
+          }
+          skipped = 1;
+        }
+        remaining -= skipped;
+      }
+    }
+  }
+}
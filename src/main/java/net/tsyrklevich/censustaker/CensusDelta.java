@@ -0,0 +1,392 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Fingerprints a full census and, given the fingerprint of the last census the server accepted,
+ *  writes a delta against it:
+ *
+ *  {"census_delta": {"base": id},
+ *   "features": {"value": [...]},                          // unkeyed section that changed
+ *   "sysctl": {"added": {k: v}, "changed": {k: v}, "removed": [k]},
+ *   "file_permissions": {"added": [record], "changed": [record], "removed": [path]},
+ *   "removed_sections": [name],
+ *   "census_snapshot": id}
+ *
+ * Object and blob sections are keyed by member name, arrays of records (or a file_permissions
+ *  table, whose changes are sent as records) by the fields in RECORD_KEYS, and anything else is
+ *  sent whole if it changed at all. Unchanged sections are left out. The delta is always JSON,
+ *  blobs are sent as Base64 strings like in the JSON census.
+ *
+ * A census doesn't always look at everything. Sections the last census had that are missing
+ *  while some collector failed (see CensusScheduler.FAILED_SECTION), and file_permissions paths
+ *  under roots whose walk stopped short or only carried on from an earlier census (see
+ *  FileSystemCensus.PARTIAL_SECTION), are taken to be unchanged rather than removed. Their
+ *  hashes are carried over into the new fingerprint so it matches what the server ends up with.
+ */
+public class CensusDelta {
+  private static final TypeAdapter<JsonElement> elementAdapter =
+      CensusGson.gson.getAdapter(JsonElement.class);
+
+  /** Fields that identify a record in the array sections that are worth diffing key by key. */
+  private static final Map<String, String[]> RECORD_KEYS = new HashMap<>();
+  static {
+    RECORD_KEYS.put("file_permissions", new String[] {"path"});
+    RECORD_KEYS.put("permissions", new String[] {"packageName", "name"});
+    RECORD_KEYS.put("providers", new String[] {"authority"});
+    RECORD_KEYS.put("processes", new String[] {"pid"});
+  }
+
+  /** Added and changed entries of one keyed section, held until the section has been read. */
+  private static class SectionDiff {
+    final Map<String, JsonElement> added = new LinkedHashMap<>();
+    final Map<String, JsonElement> changed = new LinkedHashMap<>();
+  }
+
+  /**
+   * The file_permissions diff, held until PARTIAL_SECTION after it has said which paths this
+   *  census didn't look at.
+   */
+  private static class PendingDiff {
+    final CensusFingerprint.Section previous;
+    final CensusFingerprint.Section section;
+    final SectionDiff diff;
+    final boolean records;
+
+    PendingDiff(CensusFingerprint.Section previous, CensusFingerprint.Section section,
+        SectionDiff diff, boolean records) {
+      this.previous = previous;
+      this.section = section;
+      this.diff = diff;
+      this.records = records;
+    }
+  }
+
+  /**
+   * @return the fingerprint of census
+   */
+  public static CensusFingerprint fingerprint(CensusReader census) throws IOException {
+    return diff(census, null, null);
+  }
+
+  /**
+   * Read census section by section, writing the changes since base to delta if both are given.
+   *  Only the changed entries are held in memory, never the whole census.
+   *
+   * @return the fingerprint of census
+   */
+  public static CensusFingerprint diff(CensusReader census, CensusFingerprint base,
+      JsonWriter delta) throws IOException {
+    if (base == null) {
+      delta = null;
+    }
+
+    CensusFingerprint fingerprint = new CensusFingerprint();
+    if (delta != null) {
+      delta.beginObject();
+      delta.name("census_delta").beginObject().name("base").value(base.snapshotId).endObject();
+    }
+
+    PendingDiff permissions = null;
+    List<String> unscannedRoots = new ArrayList<>();
+    String name;
+    while ((name = census.nextSection()) != null) {
+      CensusFingerprint.Section previous = base != null ? base.sections.get(name) : null;
+      CensusFingerprint.Section section = new CensusFingerprint.Section();
+
+      String[] recordKey = RECORD_KEYS.get(name);
+      JsonReader json = census.sectionType() == CensusReader.SECTION_JSON ? census.json() : null;
+      SectionDiff diff = null;
+      boolean records = false;
+      if (json == null) {
+        section.keys = new HashMap<>();
+        diff = readBlobs(census, previous, section);
+      } else if (recordKey != null && json.peek() == JsonToken.BEGIN_OBJECT) {
+        // A section of records written as a FileRecordColumns table, diffed record by record
+        section.keys = new HashMap<>();
+        diff = readColumns(json, recordKey, previous, section);
+        records = true;
+      } else if (name.equals(FileSystemCensus.PARTIAL_SECTION)
+          && json.peek() == JsonToken.BEGIN_OBJECT) {
+        JsonObject partial = elementAdapter.read(json).getAsJsonObject();
+        unscannedRoots.addAll(unscannedRoots(partial));
+        section.keys = new HashMap<>();
+        diff = new SectionDiff();
+        for (Map.Entry<String, JsonElement> entry : partial.entrySet()) {
+          addKey(entry.getKey(), entry.getValue(), previous, section, diff);
+        }
+      } else if (json.peek() == JsonToken.BEGIN_OBJECT) {
+        section.keys = new HashMap<>();
+        diff = readKeyedObject(json, previous, section);
+      } else if (recordKey != null && json.peek() == JsonToken.BEGIN_ARRAY) {
+        section.keys = new HashMap<>();
+        diff = readKeyedArray(json, recordKey, previous, section);
+        records = true;
+      } else {
+        JsonElement value = elementAdapter.read(json);
+        section.hash = CensusFingerprint.hash(value.toString());
+        if (delta != null && (previous == null || previous.hash != section.hash)) {
+          delta.name(name).beginObject().name("value");
+          elementAdapter.write(delta, value);
+          delta.endObject();
+        }
+      }
+
+      if (diff != null && name.equals(FileSystemCensus.PERMISSIONS_SECTION)) {
+        permissions = new PendingDiff(previous, section, diff, records);
+      } else if (diff != null && delta != null) {
+        writeKeyedDiff(delta, name, previous, section, diff, records);
+      }
+      fingerprint.sections.put(name, section);
+    }
+
+    if (permissions != null) {
+      carryUnscanned(permissions.previous, permissions.section, unscannedRoots);
+      if (delta != null) {
+        writeKeyedDiff(delta, FileSystemCensus.PERMISSIONS_SECTION, permissions.previous,
+            permissions.section, permissions.diff, permissions.records);
+      }
+    }
+
+    List<String> removedSections = new ArrayList<>();
+    if (base != null) {
+      boolean collectorFailed = fingerprint.sections.containsKey(CensusScheduler.FAILED_SECTION);
+      for (Map.Entry<String, CensusFingerprint.Section> section : base.sections.entrySet()) {
+        String removed = section.getKey();
+        if (fingerprint.sections.containsKey(removed)) {
+          continue;
+        }
+        // Those two only ever describe the census they're in
+        if (collectorFailed && !removed.equals(CensusScheduler.FAILED_SECTION)
+            && !removed.equals(FileSystemCensus.PARTIAL_SECTION)) {
+          fingerprint.sections.put(removed, section.getValue());
+        } else {
+          removedSections.add(removed);
+        }
+      }
+    }
+
+    long snapshotHash = 0;
+    for (Map.Entry<String, CensusFingerprint.Section> section : fingerprint.sections.entrySet()) {
+      snapshotHash += CensusFingerprint.mix(CensusFingerprint.hash(section.getKey())
+          + section.getValue().hash);
+    }
+    fingerprint.snapshotId = String.format("%016x", CensusFingerprint.mix(snapshotHash));
+    if (delta != null) {
+      delta.name("removed_sections").beginArray();
+      for (String removed : removedSections) {
+        delta.value(removed);
+      }
+      delta.endArray();
+      delta.name("census_snapshot").value(fingerprint.snapshotId);
+      delta.endObject();
+    }
+    return fingerprint;
+  }
+
+  private static void putKey(CensusFingerprint.Section section, String key, long hash) {
+    if (section.keys.put(key, hash) == null) {
+      section.hash += CensusFingerprint.mix(CensusFingerprint.hash(key) * 31 + hash);
+    }
+  }
+
+  /**
+   * Record the hash of key's value in section.
+   *
+   * @return the map of diff the value belongs in, or null if it's unchanged since previous
+   */
+  private static Map<String, JsonElement> addKey(String key, long hash,
+      CensusFingerprint.Section previous, CensusFingerprint.Section section, SectionDiff diff) {
+    putKey(section, key, hash);
+
+    Long previousHash = previous != null && previous.keys != null ? previous.keys.get(key) : null;
+    if (previousHash == null) {
+      return diff.added;
+    } else if (previousHash != hash) {
+      return diff.changed;
+    }
+    return null;
+  }
+
+  private static void addKey(String key, JsonElement value, CensusFingerprint.Section previous,
+      CensusFingerprint.Section section, SectionDiff diff) {
+    Map<String, JsonElement> changes =
+        addKey(key, CensusFingerprint.hash(value.toString()), previous, section, diff);
+    if (changes != null) {
+      changes.put(key, value);
+    }
+  }
+
+  private static SectionDiff readBlobs(CensusReader census, CensusFingerprint.Section previous,
+      CensusFingerprint.Section section) throws IOException {
+    SectionDiff diff = new SectionDiff();
+    String key;
+    while ((key = census.nextBlob()) != null) {
+      byte[] blob = census.blob();
+      Map<String, JsonElement> changes =
+          addKey(key, CensusFingerprint.hash(blob), previous, section, diff);
+      if (changes != null) {
+        changes.put(key, new JsonPrimitive(new String(Base64.encodeBase64(blob))));
+      }
+    }
+    return diff;
+  }
+
+  private static SectionDiff readKeyedObject(JsonReader census, CensusFingerprint.Section previous,
+      CensusFingerprint.Section section) throws IOException {
+    SectionDiff diff = new SectionDiff();
+    census.beginObject();
+    while (census.hasNext()) {
+      String key = census.nextName();
+      addKey(key, elementAdapter.read(census), previous, section, diff);
+    }
+    census.endObject();
+    return diff;
+  }
+
+  private static SectionDiff readKeyedArray(JsonReader census, String[] recordKey,
+      CensusFingerprint.Section previous, CensusFingerprint.Section section) throws IOException {
+    SectionDiff diff = new SectionDiff();
+    census.beginArray();
+    while (census.hasNext()) {
+      JsonElement record = elementAdapter.read(census);
+      addKey(recordKey(record, recordKey), record, previous, section, diff);
+    }
+    census.endArray();
+    return diff;
+  }
+
+  private static SectionDiff readColumns(JsonReader census, final String[] recordKey,
+      final CensusFingerprint.Section previous, final CensusFingerprint.Section section)
+      throws IOException {
+    final SectionDiff diff = new SectionDiff();
+    FileRecordColumns.decode(census, new FileRecordColumns.Listener() {
+      @Override
+      public void onRecord(JsonObject record) {
+        addKey(recordKey(record, recordKey), record, previous, section, diff);
+      }
+    });
+    return diff;
+  }
+
+  /**
+   * @return the roots PARTIAL_SECTION says weren't walked in full, either because the walk
+   *  stopped short or because it only carried on from where an earlier census stopped
+   */
+  private static List<String> unscannedRoots(JsonObject partial) {
+    List<String> roots = new ArrayList<>();
+    JsonElement unfinished = partial.get("unfinished");
+    if (unfinished != null && unfinished.isJsonObject()) {
+      roots.addAll(unfinished.getAsJsonObject().keySet());
+    }
+    JsonElement resumed = partial.get("resumed");
+    if (resumed != null && resumed.isJsonArray()) {
+      for (JsonElement root : resumed.getAsJsonArray()) {
+        roots.add(root.getAsString());
+      }
+    }
+    return roots;
+  }
+
+  /**
+   * Keep the paths previous had under roots that weren't walked in full, and this census didn't
+   *  get to, as they were.
+   */
+  private static void carryUnscanned(CensusFingerprint.Section previous,
+      CensusFingerprint.Section section, List<String> roots) {
+    if (previous == null || previous.keys == null || roots.isEmpty()) {
+      return;
+    }
+
+    for (Map.Entry<String, Long> key : previous.keys.entrySet()) {
+      if (!section.keys.containsKey(key.getKey()) && isUnder(key.getKey(), roots)) {
+        putKey(section, key.getKey(), key.getValue());
+      }
+    }
+  }
+
+  private static boolean isUnder(String path, List<String> roots) {
+    for (String root : roots) {
+      if (path.equals(root) || path.startsWith(root.endsWith("/") ? root : root + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String recordKey(JsonElement record, String[] fields) {
+    if (!record.isJsonObject()) {
+      return record.toString();
+    }
+
+    JsonObject object = record.getAsJsonObject();
+    StringBuilder key = new StringBuilder();
+    for (String field : fields) {
+      if (key.length() > 0) {
+        key.append('/');
+      }
+      JsonElement value = object.get(field);
+      key.append(value != null && !value.isJsonNull() ? value.getAsString() : "");
+    }
+    return key.toString();
+  }
+
+  private static void writeKeyedDiff(JsonWriter delta, String name,
+      CensusFingerprint.Section previous, CensusFingerprint.Section section, SectionDiff diff,
+      boolean records) throws IOException {
+    List<String> removed = new ArrayList<>();
+    if (previous != null && previous.keys != null) {
+      for (String key : previous.keys.keySet()) {
+        if (!section.keys.containsKey(key)) {
+          removed.add(key);
+        }
+      }
+    }
+    if (previous != null && previous.keys != null && diff.added.isEmpty()
+        && diff.changed.isEmpty() && removed.isEmpty()) {
+      return;
+    }
+
+    delta.name(name).beginObject();
+    writeEntries(delta, "added", diff.added, records);
+    writeEntries(delta, "changed", diff.changed, records);
+    delta.name("removed").beginArray();
+    for (String key : removed) {
+      delta.value(key);
+    }
+    delta.endArray();
+    delta.endObject();
+  }
+
+  private static void writeEntries(JsonWriter delta, String name, Map<String, JsonElement> entries,
+      boolean records) throws IOException {
+    delta.name(name);
+    if (records) {
+      delta.beginArray();
+      for (JsonElement record : entries.values()) {
+        elementAdapter.write(delta, record);
+      }
+      delta.endArray();
+    } else {
+      delta.beginObject();
+      for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+        delta.name(entry.getKey());
+        elementAdapter.write(delta, entry.getValue());
+      }
+      delta.endObject();
+    }
+  }
+}
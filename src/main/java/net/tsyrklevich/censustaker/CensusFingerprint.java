@@ -0,0 +1,130 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact summary of a census: a hash per section and, for the big keyed sections, a hash per
+ *  key. Kept for the last census the server accepted so the next one can be sent as a delta.
+ */
+public class CensusFingerprint {
+  private static final int MAGIC = 0x43465031; // "CFP1"
+
+  public static class Section {
+    public long hash;
+    /** Hash of the value stored under each key, null if the section isn't keyed. */
+    public Map<String, Long> keys;
+  }
+
+  public String snapshotId;
+  public final Map<String, Section> sections = new LinkedHashMap<>();
+
+  /**
+   * @return the fingerprint stored in file, or null if there isn't a usable one
+   */
+  public static CensusFingerprint load(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new InflaterInputStream(new FileInputStream(file))))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+
+      CensusFingerprint fingerprint = new CensusFingerprint();
+      fingerprint.snapshotId = in.readUTF();
+      int sectionCount = in.readInt();
+      for (int i = 0; i < sectionCount; i++) {
+        String name = in.readUTF();
+        Section section = new Section();
+        section.hash = in.readLong();
+        int keyCount = in.readInt();
+        if (keyCount >= 0) {
+          section.keys = new HashMap<>(keyCount * 2);
+          for (int j = 0; j < keyCount; j++) {
+            section.keys.put(in.readUTF(), in.readLong());
+          }
+        }
+        fingerprint.sections.put(name, section);
+      }
+      return fingerprint;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Replace file with this fingerprint, see AtomicWrites.
+   */
+  public void save(File file) throws IOException {
+    AtomicWrites.atomicWrite(file, new AtomicWrites.Contents() {
+      @Override
+      public void writeTo(OutputStream stream) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new DeflaterOutputStream(stream)))) {
+          out.writeInt(MAGIC);
+          out.writeUTF(snapshotId);
+          out.writeInt(sections.size());
+          for (Map.Entry<String, Section> entry : sections.entrySet()) {
+            Section section = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(section.hash);
+            if (section.keys == null) {
+              out.writeInt(-1);
+              continue;
+            }
+            out.writeInt(section.keys.size());
+            for (Map.Entry<String, Long> key : section.keys.entrySet()) {
+              out.writeUTF(key.getKey());
+              out.writeLong(key.getValue());
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * 64-bit FNV-1a, String.hashCode() is too narrow to trust for hundreds of thousands of keys.
+   */
+  static long hash(CharSequence data) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < data.length(); i++) {
+      hash ^= data.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  static long hash(byte[] data) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : data) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Finalizer from SplitMix64, used so that combining key hashes by addition doesn't cancel out.
+   */
+  static long mix(long hash) {
+    hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+    return hash ^ (hash >>> 31);
+  }
+}
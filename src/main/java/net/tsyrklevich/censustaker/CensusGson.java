@@ -0,0 +1,217 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.pm.PathPermission;
+import android.content.pm.ProviderInfo;
+import android.os.PatternMatcher;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Gson every collector shares, and hand-written streaming writers for what the census writes
+ *  so nothing is serialized by reflection. Collectors write straight to the section's JsonWriter
+ *  with them, a record at a time.
+ *
+ * The string maps and lists and permission records read back what they write and are
+ *  registered on the shared Gson. A provider is written from Android's ProviderInfo, which can't
+ *  be rebuilt from what's sent (its path permissions go out as strings), so it has a plain
+ *  RecordWriter that Gson never sees. Sysctls and small files have no record type, they're
+ *  written name by name and as a blob section.
+ */
+public final class CensusGson {
+  private CensusGson() {
+  }
+
+  /** Environment variables, system properties and the like, written as one object. */
+  public static final TypeAdapter<Map<String, String>> STRINGS =
+      new TypeAdapter<Map<String, String>>() {
+        @Override
+        public void write(JsonWriter out, Map<String, String> value) throws IOException {
+          out.beginObject();
+          for (Map.Entry<String, String> entry : value.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+          }
+          out.endObject();
+        }
+
+        @Override
+        public Map<String, String> read(JsonReader in) throws IOException {
+          Map<String, String> value = new TreeMap<>();
+          in.beginObject();
+          while (in.hasNext()) {
+            value.put(in.nextName(), in.nextString());
+          }
+          in.endObject();
+          return value;
+        }
+      };
+
+  public static final TypeAdapter<List<String>> STRING_LIST = new TypeAdapter<List<String>>() {
+    @Override
+    public void write(JsonWriter out, List<String> value) throws IOException {
+      out.beginArray();
+      for (String string : value) {
+        out.value(string);
+      }
+      out.endArray();
+    }
+
+    @Override
+    public List<String> read(JsonReader in) throws IOException {
+      List<String> value = new ArrayList<>();
+      in.beginArray();
+      while (in.hasNext()) {
+        value.add(in.nextString());
+      }
+      in.endArray();
+      return value;
+    }
+  };
+
+  /**
+   * Writes a record the census only writes, see the class comment.
+   */
+  interface RecordWriter<T> {
+    void write(JsonWriter out, T value) throws IOException;
+  }
+
+  /**
+   * The numbers are written as strings, which is how they've always been sent. A null
+   *  packageName or name is left out, as it was when permissions were collected in a HashMap.
+   */
+  static final TypeAdapter<PackageManagerCensus.Permission> PERMISSION =
+      new TypeAdapter<PackageManagerCensus.Permission>() {
+        @Override
+        public void write(JsonWriter out, PackageManagerCensus.Permission value)
+            throws IOException {
+          out.beginObject();
+          if (value.packageName != null) {
+            out.name("packageName").value(value.packageName);
+          }
+          if (value.name != null) {
+            out.name("name").value(value.name);
+          }
+          out.name("protectionLevel").value(Integer.toString(value.protectionLevel));
+          out.name("flags").value(Integer.toString(value.flags));
+          out.endObject();
+        }
+
+        @Override
+        public PackageManagerCensus.Permission read(JsonReader in) throws IOException {
+          String packageName = null;
+          String name = null;
+          int protectionLevel = 0;
+          int flags = 0;
+          in.beginObject();
+          while (in.hasNext()) {
+            switch (in.nextName()) {
+              case "packageName":
+                packageName = in.nextString();
+                break;
+              case "name":
+                name = in.nextString();
+                break;
+              case "protectionLevel":
+                protectionLevel = parseInt(in.nextString());
+                break;
+              case "flags":
+                flags = parseInt(in.nextString());
+                break;
+              default:
+                in.skipValue();
+            }
+          }
+          in.endObject();
+          return new PackageManagerCensus.Permission(packageName, name, protectionLevel, flags);
+        }
+      };
+
+  private static int parseInt(String value) throws IOException {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IOException("Not a number: " + value, e);
+    }
+  }
+
+  /**
+   * A content provider. Its pathPermissions and uriPermissionPatterns have always been sent as the
+   *  text of a JSON array inside a string, unless patternArrays they still are.
+   *
+   * The fields are in the order the HashMap they used to be collected in put them, so the census
+   *  and the fingerprints of its records come out the same as before.
+   */
+  static class ProviderWriter implements RecordWriter<ProviderInfo> {
+    private final boolean patternArrays;
+
+    ProviderWriter(boolean patternArrays) {
+      this.patternArrays = patternArrays;
+    }
+
+    private void writePatterns(JsonWriter out, String name, List<String> patterns)
+        throws IOException {
+      if (patternArrays) {
+        STRING_LIST.write(out.name(name), patterns);
+        return;
+      }
+
+      // As Gson.toJson() wrote them
+      StringWriter json = new StringWriter();
+      JsonWriter writer = new JsonWriter(json);
+      writer.setHtmlSafe(true);
+      STRING_LIST.write(writer, patterns);
+      writer.flush();
+      out.name(name).value(json.toString());
+    }
+
+    @Override
+    public void write(JsonWriter out, ProviderInfo value) throws IOException {
+      out.beginObject();
+      if (value.pathPermissions != null) {
+        List<String> pathPermissions = new ArrayList<>(value.pathPermissions.length);
+        for (PathPermission pp : value.pathPermissions) {
+          pathPermissions.add(pp.toString() + "," + pp.getReadPermission() + ","
+              + pp.getWritePermission());
+        }
+        writePatterns(out, "pathPermissions", pathPermissions);
+      }
+      out.name("grantUriPermissions").value(value.grantUriPermissions);
+      out.name("authority").value(value.authority);
+      if (value.readPermission != null) {
+        out.name("readPermission").value(value.readPermission);
+      }
+      out.name("flags").value(value.flags);
+      out.name("multiprocess").value(value.multiprocess);
+      if (value.uriPermissionPatterns != null) {
+        List<String> uriPermissionPatterns = new ArrayList<>(value.uriPermissionPatterns.length);
+        for (PatternMatcher pattern : value.uriPermissionPatterns) {
+          uriPermissionPatterns.add(pattern.toString());
+        }
+        writePatterns(out, "uriPermissionPatterns", uriPermissionPatterns);
+      }
+      if (value.writePermission != null) {
+        out.name("writePermission").value(value.writePermission);
+      }
+      out.name("initOrder").value(value.initOrder);
+      out.endObject();
+    }
+  }
+
+  static final ProviderWriter PROVIDER = new ProviderWriter(false);
+  static final ProviderWriter PROVIDER_PATTERN_ARRAYS = new ProviderWriter(true);
+
+  public static final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(new TypeToken<Map<String, String>>() {}.getType(), STRINGS)
+      .registerTypeAdapter(new TypeToken<List<String>>() {}.getType(), STRING_LIST)
+      .registerTypeAdapter(PackageManagerCensus.Permission.class, PERMISSION)
+      .create();
+}
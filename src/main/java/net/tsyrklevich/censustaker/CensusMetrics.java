@@ -0,0 +1,326 @@
+package net.tsyrklevich.censustaker;
+
+import android.os.Debug;
+import com.google.gson.stream.JsonWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Where the time and bytes of a census go: one span per collector, native call, section,
+ *  compression and upload with its wall time, CPU time, entries, bytes produced, bytes allocated
+ *  and errors. Written into the census as the census_metrics section and, optionally,
+ *  as a Chrome trace (chrome://tracing or ui.perfetto.dev) next to the copy on disk.
+ *
+ * Spans opened inside another on the same thread nest in the trace. CPU time and allocation are
+ *  the opening thread's only, so they don't include work a span hands to other threads, nor what
+ *  collectors running at the same time do. Allocation comes from the JVM's per-thread counter
+ *  and is left out where there isn't one, which includes Android: growth of the shared heap
+ *  would charge each span with every other thread's allocation and collections.
+ */
+public class CensusMetrics {
+  public static final String SECTION = "census_metrics";
+  // 2: allocatedBytes is per thread, and left out where it can't be counted
+  static final int VERSION = 2;
+
+  /** com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long) and its bean, if there is one */
+  private static final Method threadAllocatedBytes;
+  private static final Object threadBean;
+  static {
+    Method method = null;
+    Object bean = null;
+    try {
+      bean = Class.forName("java.lang.management.ManagementFactory")
+          .getMethod("getThreadMXBean").invoke(null);
+      Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (beanClass.isInstance(bean)
+          && (Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(bean)
+          && (Boolean) beanClass.getMethod("isThreadAllocatedMemoryEnabled").invoke(bean)) {
+        method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+      }
+    } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+      // Not a JVM with per-thread allocation counting, e.g. Android
+    }
+    threadAllocatedBytes = method;
+    threadBean = method != null ? bean : null;
+  }
+
+  private final long origin = System.nanoTime();
+  private final List<Span> spans = new ArrayList<>();
+  // Collectors running at the same time each write their own census
+  private final ThreadLocal<CountingOutputStream> census = new ThreadLocal<>();
+
+  public class Span implements Closeable {
+    final String name;
+    final String category;
+    final String thread;
+    final long threadId;
+    final long start;
+    long wallNanos;
+    long cpuNanos;
+    /** -1 if it couldn't be counted */
+    long allocatedBytes = -1;
+    long entries;
+    long bytes;
+    int errors;
+
+    private final long cpuStart;
+    private final long allocatedStart;
+    private final long bytesStart;
+    private boolean ended;
+
+    private Span(String name, String category, String thread) {
+      this.name = name;
+      this.category = category;
+      this.thread = thread;
+      threadId = Thread.currentThread().getId();
+      start = System.nanoTime() - origin;
+      cpuStart = Debug.threadCpuTimeNanos();
+      allocatedStart = allocatedBytes(threadId);
+      bytesStart = censusBytes();
+    }
+
+    public synchronized Span addEntries(long count) {
+      entries += count;
+      return this;
+    }
+
+    public synchronized Span addBytes(long count) {
+      bytes += count;
+      return this;
+    }
+
+    public synchronized Span addError() {
+      return addErrors(1);
+    }
+
+    public synchronized Span addErrors(int count) {
+      errors += count;
+      return this;
+    }
+
+    /**
+     * Stop the clocks, the counters can still be added to afterwards (e.g. once a stream the
+     *  span was timing has been closed).
+     */
+    @Override
+    public synchronized void close() {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      wallNanos = System.nanoTime() - origin - start;
+      cpuNanos = Math.max(Debug.threadCpuTimeNanos() - cpuStart, 0);
+      long allocatedEnd = allocatedBytes(threadId);
+      if (allocatedStart >= 0 && allocatedEnd >= 0) {
+        allocatedBytes = Math.max(allocatedEnd - allocatedStart, 0);
+      }
+      bytes += censusBytes() - bytesStart;
+    }
+  }
+
+  /**
+   * Start a span on the current thread, closing it ends it.
+   *
+   * @param category what kind of work it is: collector, native, section, compression, upload
+   */
+  public Span begin(String name, String category) {
+    Span span = new Span(name, category, Thread.currentThread().getName());
+    synchronized (spans) {
+      spans.add(span);
+    }
+    return span;
+  }
+
+  /**
+   * @return out, with the time spent writing to and closing it added up in one span of its own.
+   *  The span is shown on its own track in the trace, since the writes are interleaved with
+   *  everything else.
+   */
+  public OutputStream time(String name, String category, OutputStream out) {
+    final Span span = new Span(name, category, name);
+    synchronized (spans) {
+      spans.add(span);
+    }
+    span.ended = true;
+
+    return new FilterOutputStream(out) {
+      private void add(long wallStart, long cpuStart) {
+        synchronized (span) {
+          span.wallNanos += System.nanoTime() - wallStart;
+          span.cpuNanos += Math.max(Debug.threadCpuTimeNanos() - cpuStart, 0);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        long wallStart = System.nanoTime();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        try {
+          out.write(b, off, len);
+        } finally {
+          add(wallStart, cpuStart);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        long wallStart = System.nanoTime();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        try {
+          out.flush();
+        } finally {
+          add(wallStart, cpuStart);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        long wallStart = System.nanoTime();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        try {
+          out.close();
+        } finally {
+          add(wallStart, cpuStart);
+        }
+      }
+    };
+  }
+
+  /**
+   * Count what's written to out as the bytes produced by whichever spans are open on this
+   *  thread, used by CensusWriter for the census it writes.
+   */
+  CountingOutputStream count(OutputStream out) {
+    CountingOutputStream counter = new CountingOutputStream(out);
+    census.set(counter);
+    return counter;
+  }
+
+  private long censusBytes() {
+    CountingOutputStream counter = census.get();
+    return counter == null ? 0 : counter.getByteCount();
+  }
+
+  /**
+   * @return the bytes thread has allocated so far, or -1 if they can't be counted
+   */
+  private static long allocatedBytes(long thread) {
+    if (threadAllocatedBytes == null) {
+      return -1;
+    }
+    try {
+      return (Long) threadAllocatedBytes.invoke(threadBean, thread);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private List<Span> snapshot() {
+    synchronized (spans) {
+      return new ArrayList<>(spans);
+    }
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000;
+  }
+
+  /**
+   * Write every span so far as the value of the census_metrics section.
+   */
+  public void write(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("version").value(VERSION);
+    writer.name("spans").beginArray();
+    for (Span span : snapshot()) {
+      synchronized (span) {
+        writer.beginObject();
+        writer.name("name").value(span.name);
+        writer.name("category").value(span.category);
+        writer.name("thread").value(span.thread);
+        writer.name("startMicros").value(micros(span.start));
+        writer.name("wallMicros").value(micros(span.wallNanos));
+        writer.name("cpuMicros").value(micros(span.cpuNanos));
+        if (span.allocatedBytes >= 0) {
+          writer.name("allocatedBytes").value(span.allocatedBytes);
+        }
+        writer.name("entries").value(span.entries);
+        writer.name("bytes").value(span.bytes);
+        writer.name("errors").value(span.errors);
+        writer.endObject();
+      }
+    }
+    writer.endArray();
+    writer.endObject();
+  }
+
+  /**
+   * Write every span so far to file in the Chrome trace event format. It's replaced through
+   *  AtomicWrites, so a reader never sees half a trace.
+   */
+  public void writeTrace(File file) throws IOException {
+    AtomicWrites.atomicWrite(file, new AtomicWrites.Contents() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        Map<String, Integer> threads = new LinkedHashMap<>();
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(out,
+            StandardCharsets.UTF_8))) {
+          writer.beginObject();
+          writer.name("displayTimeUnit").value("ms");
+          writer.name("traceEvents").beginArray();
+          for (Span span : snapshot()) {
+            Integer tid = threads.get(span.thread);
+            if (tid == null) {
+              tid = threads.size() + 1;
+              threads.put(span.thread, tid);
+            }
+
+            synchronized (span) {
+              writer.beginObject();
+              writer.name("name").value(span.name);
+              writer.name("cat").value(span.category);
+              writer.name("ph").value("X");
+              writer.name("pid").value(1);
+              writer.name("tid").value(tid);
+              writer.name("ts").value(micros(span.start));
+              writer.name("dur").value(micros(span.wallNanos));
+              writer.name("args").beginObject();
+              writer.name("cpuMicros").value(micros(span.cpuNanos));
+              if (span.allocatedBytes >= 0) {
+                writer.name("allocatedBytes").value(span.allocatedBytes);
+              }
+              writer.name("entries").value(span.entries);
+              writer.name("bytes").value(span.bytes);
+              writer.name("errors").value(span.errors);
+              writer.endObject();
+              writer.endObject();
+            }
+          }
+
+          for (Map.Entry<String, Integer> thread : threads.entrySet()) {
+            writer.beginObject();
+            writer.name("name").value("thread_name");
+            writer.name("ph").value("M");
+            writer.name("pid").value(1);
+            writer.name("tid").value(thread.getValue());
+            writer.name("args").beginObject().name("name").value(thread.getKey()).endObject();
+            writer.endObject();
+          }
+          writer.endArray();
+          writer.endObject();
+        }
+      }
+    });
+  }
+}
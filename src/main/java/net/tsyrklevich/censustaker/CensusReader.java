@@ -0,0 +1,230 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Reads back a census written by {@link CensusWriter} in either format, one section at a time.
+ *  For a JSON section the caller reads exactly one value from {@link #json()}, for a blob
+ *  section it iterates {@link #nextBlob()}. Whatever isn't read is skipped by the next call to
+ *  {@link #nextSection()}.
+ */
+public class CensusReader implements Closeable {
+  public static final int SECTION_JSON = CensusContainer.SECTION_JSON;
+  public static final int SECTION_BLOBS = CensusContainer.SECTION_BLOBS;
+
+  private final InputStream in;
+  private final boolean binary;
+
+  // JSON format
+  private JsonReader document;
+  private boolean started;
+  private boolean consumed = true;
+
+  // Binary format
+  private CensusContainer.ChunkedInputStream section;
+  private JsonReader sectionReader;
+  private int sectionType;
+  private byte[] blob;
+
+  public CensusReader(InputStream in) throws IOException {
+    this.in = new BufferedInputStream(in, 64 * 1024);
+
+    byte[] magic = new byte[CensusContainer.MAGIC.length];
+    this.in.mark(magic.length + 1);
+    int read = 0;
+    while (read < magic.length) {
+      int n = this.in.read(magic, read, magic.length - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+
+    binary = read == magic.length && Arrays.equals(magic, CensusContainer.MAGIC);
+    if (binary) {
+      int version = this.in.read();
+      if (version != CensusContainer.VERSION) {
+        throw new IOException("Unsupported census container version " + version);
+      }
+    } else {
+      this.in.reset();
+      document = new JsonReader(new InputStreamReader(this.in, StandardCharsets.UTF_8));
+    }
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /**
+   * @return the name of the next section, or null after the last one
+   */
+  public String nextSection() throws IOException {
+    if (!binary) {
+      if (!started) {
+        document.beginObject();
+        started = true;
+      }
+      if (!consumed) {
+        document.skipValue();
+      }
+      if (!document.hasNext()) {
+        document.endObject();
+        return null;
+      }
+      consumed = false;
+      sectionType = SECTION_JSON;
+      return document.nextName();
+    }
+
+    if (section != null) {
+      section.close();
+      section = null;
+      sectionReader = null;
+    }
+
+    int type = in.read();
+    if (type < 0) {
+      throw new IOException("Truncated census container");
+    }
+    if (type == CensusContainer.SECTION_END) {
+      return null;
+    }
+    if (type != SECTION_JSON && type != SECTION_BLOBS) {
+      throw new IOException("Unknown census section type " + type);
+    }
+
+    sectionType = type;
+    String name = CensusContainer.readString(in);
+    section = new CensusContainer.ChunkedInputStream(in);
+    return name;
+  }
+
+  public int sectionType() {
+    return sectionType;
+  }
+
+  /**
+   * @return a reader positioned at the value of the current JSON section
+   */
+  public JsonReader json() {
+    if (!binary) {
+      consumed = true;
+      return document;
+    }
+
+    if (sectionReader == null) {
+      sectionReader = new JsonReader(new InputStreamReader(section, StandardCharsets.UTF_8));
+      sectionReader.setLenient(true);
+    }
+    return sectionReader;
+  }
+
+  /**
+   * @return the name of the next blob in the current blob section, or null after the last one
+   */
+  public String nextBlob() throws IOException {
+    int high = section.read();
+    if (high < 0) {
+      return null;
+    }
+    int low = section.read();
+    if (low < 0) {
+      throw new IOException("Truncated blob name");
+    }
+    byte[] name = new byte[(high << 8) | low];
+    CensusContainer.readFully(section, name, 0, name.length);
+
+    int length = CensusContainer.readInt(section);
+    if (length < 0) {
+      throw new IOException("Bad blob length " + length);
+    }
+    blob = new byte[length];
+    CensusContainer.readFully(section, blob, 0, length);
+    return new String(name, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the contents of the blob last returned by {@link #nextBlob()}
+   */
+  public byte[] blob() {
+    return blob;
+  }
+
+  /**
+   * Write the rest of the census out as the JSON format, e.g. for a server that doesn't
+   *  understand the binary one. Values are copied token by token so no section is held in memory.
+   */
+  public void toJson(JsonWriter out) throws IOException {
+    out.beginObject();
+    String name;
+    while ((name = nextSection()) != null) {
+      out.name(name);
+      if (sectionType == SECTION_BLOBS) {
+        out.beginObject();
+        String blobName;
+        while ((blobName = nextBlob()) != null) {
+          out.name(blobName).value(new String(Base64.encodeBase64(blob)));
+        }
+        out.endObject();
+      } else {
+        copyValue(json(), out);
+      }
+    }
+    out.endObject();
+  }
+
+  static void copyValue(JsonReader in, JsonWriter out) throws IOException {
+    switch (in.peek()) {
+      case BEGIN_ARRAY:
+        in.beginArray();
+        out.beginArray();
+        while (in.hasNext()) {
+          copyValue(in, out);
+        }
+        in.endArray();
+        out.endArray();
+        break;
+      case BEGIN_OBJECT:
+        in.beginObject();
+        out.beginObject();
+        while (in.hasNext()) {
+          out.name(in.nextName());
+          copyValue(in, out);
+        }
+        in.endObject();
+        out.endObject();
+        break;
+      case STRING:
+        out.value(in.nextString());
+        break;
+      case NUMBER:
+        // Keep the number's text as it was so longs and doubles both survive
+        out.jsonValue(in.nextString());
+        break;
+      case BOOLEAN:
+        out.value(in.nextBoolean());
+        break;
+      case NULL:
+        in.nextNull();
+        out.nullValue();
+        break;
+      default:
+        throw new IOException("Unexpected " + in.peek() + " in census");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
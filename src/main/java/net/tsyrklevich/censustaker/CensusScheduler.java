@@ -0,0 +1,218 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Runs collectors at the same time on a bounded pool, each writing its sections to a census of
+ *  its own in a temporary file. The parts are appended to the real census in the order the
+ *  collectors were given as soon as each is done, so the census has the same sections in the
+ *  same order as if they'd been run one after another.
+ *
+ * A collector that runs past its timeout is cancelled and its sections are left out, as are
+ *  those of one that fails. Cancelling interrupts the collector's thread, a collector stuck in a
+ *  native call keeps its thread until the call returns but nothing waits for it. The names of
+ *  the collectors that didn't finish are written in a FAILED_SECTION at the end, so a reader can
+ *  tell sections that weren't collected this time from those that are gone.
+ */
+public class CensusScheduler {
+  public static final String FAILED_SECTION = "failed_collectors";
+
+  public interface Listener {
+    void onCollectorStarted(String name);
+
+    /**
+     * @param succeeded false if the collector failed, timed out or was cancelled
+     * @param finished how many collectors are finished, including this one
+     */
+    void onCollectorFinished(String name, boolean succeeded, int finished, int total);
+  }
+
+  private final CensusConfig config;
+  private final CensusMetrics metrics;
+  private final File tempDir;
+  private final Listener listener;
+  private final List<Task> tasks = new ArrayList<>();
+  private final AtomicInteger finished = new AtomicInteger();
+
+  private class Task implements Callable<File> {
+    final Collector collector;
+    final long timeoutMillis;
+    final AtomicBoolean reported = new AtomicBoolean();
+    FutureTask<File> future;
+    ScheduledExecutorService watchdog;
+
+    Task(Collector collector) {
+      this.collector = collector;
+      this.timeoutMillis = config.collectorTimeoutMillis(collector.name());
+    }
+
+    @Override
+    public File call() throws IOException {
+      String name = collector.name();
+      listener.onCollectorStarted(name);
+      // The clock starts once the collector is running, not while it's queued
+      ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (future.cancel(true)) {
+            Log.e("censustaker", "Collector " + collector.name() + " timed out after "
+                + timeoutMillis + " ms");
+          }
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+      File part = null;
+      OutputStream out = null;
+      boolean succeeded = false;
+      try (CensusMetrics.Span span = metrics.begin(name, "collector")) {
+        try {
+          part = File.createTempFile("collector-" + name, ".census", tempDir);
+          out = new FileOutputStream(part);
+          CensusWriter census = new CensusWriter(CensusWriter.Format.BINARY, metrics, out);
+          collector.collect(census);
+          census.close();
+          succeeded = !future.isCancelled();
+        } catch (IOException | RuntimeException e) {
+          span.addError();
+          throw e;
+        }
+      } finally {
+        timeout.cancel(false);
+        if (!succeeded) {
+          IOUtils.closeQuietly(out);
+          if (part != null) {
+            part.delete();
+          }
+        }
+        report(this, succeeded);
+      }
+      return part;
+    }
+  }
+
+  /**
+   * @param tempDir where collectors write their sections until they're merged
+   */
+  public CensusScheduler(CensusConfig config, CensusMetrics metrics, File tempDir,
+      Listener listener) {
+    this.config = config;
+    this.metrics = metrics;
+    this.tempDir = tempDir;
+    this.listener = listener;
+  }
+
+  private void report(Task task, boolean succeeded) {
+    if (task.reported.compareAndSet(false, true)) {
+      listener.onCollectorFinished(task.collector.name(), succeeded, finished.incrementAndGet(),
+          tasks.size());
+    }
+  }
+
+  /**
+   * Run every collector and append what they wrote to census, in the order given.
+   *
+   * @throws IOException if census can't be written to, a collector failing isn't an error
+   */
+  public void run(List<Collector> collectors, CensusWriter census) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(config.collectorThreads(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "collector-" + count.incrementAndGet());
+          }
+        });
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+
+    synchronized (tasks) {
+      for (Collector collector : collectors) {
+        Task task = new Task(collector);
+        task.future = new FutureTask<>(task);
+        task.watchdog = watchdog;
+        tasks.add(task);
+      }
+    }
+    for (Task task : tasks) {
+      pool.execute(task.future);
+    }
+
+    try {
+      List<String> failed = new ArrayList<>();
+      for (Task task : tasks) {
+        if (!merge(task, census)) {
+          failed.add(task.collector.name());
+        }
+      }
+      if (!failed.isEmpty()) {
+        CensusGson.STRING_LIST.write(census.beginSection(FAILED_SECTION), failed);
+        census.endSection();
+      }
+    } finally {
+      cancel();
+      pool.shutdownNow();
+      watchdog.shutdownNow();
+    }
+  }
+
+  /**
+   * @return false if the collector failed or was cancelled, and so wrote nothing
+   */
+  private boolean merge(Task task, CensusWriter census) throws IOException {
+    String name = task.collector.name();
+    File part;
+    try {
+      part = task.future.get();
+    } catch (CancellationException e) {
+      report(task, false);
+      return false;
+    } catch (ExecutionException e) {
+      Log.e("censustaker", "Collector " + name + " failed: " + e.getCause().toString());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + name);
+    }
+
+    try (CensusMetrics.Span span = metrics.begin(name, "merge");
+         CensusReader reader = new CensusReader(new FileInputStream(part))) {
+      span.addBytes(part.length());
+      census.append(reader);
+    } finally {
+      part.delete();
+    }
+    return true;
+  }
+
+  /**
+   * Cancel every collector that hasn't finished, their sections are left out of the census.
+   */
+  public void cancel() {
+    synchronized (tasks) {
+      for (Task task : tasks) {
+        task.future.cancel(true);
+      }
+    }
+  }
+}
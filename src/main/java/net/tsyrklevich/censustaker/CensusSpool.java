@@ -0,0 +1,253 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compressed censuses that couldn't be uploaded, kept in a directory until they can be. The
+ *  directory is capped in bytes and entries, the oldest censuses are dropped to make room for a
+ *  new one.
+ *
+ * Each census is a copy of its payload named <time>-<sequence>~<content type>~<dictionary
+ *  version>, so names sort oldest first and carry what's needed to send it. It's written through
+ *  AtomicWrites, so a census is never seen half written.
+ */
+public class CensusSpool {
+  private static final String TMP_SUFFIX = AtomicWrites.TEMP_SUFFIX;
+  private static final String SEPARATOR = "~";
+
+  public static class Entry {
+    public final File file;
+    public final String contentType;
+    /** Value of CensusCompression.DICTIONARY_HEADER it was compressed for, null if none */
+    public final String dictionaryVersion;
+
+    Entry(File file, String contentType, String dictionaryVersion) {
+      this.file = file;
+      this.contentType = contentType;
+      this.dictionaryVersion = dictionaryVersion;
+    }
+
+    /**
+     * @return the entry stored in file, or null if file isn't one
+     */
+    static Entry parse(File file) {
+      String[] parts = file.getName().split(SEPARATOR, -1);
+      if (parts.length != 3 || parts[1].isEmpty()) {
+        return null;
+      }
+      try {
+        return new Entry(file, URLDecoder.decode(parts[1], "UTF-8"),
+            parts[2].isEmpty() ? null : URLDecoder.decode(parts[2], "UTF-8"));
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Sends one spooled census.
+   */
+  public interface Sender {
+    /**
+     * @return the HTTP response code, or -1 if the server couldn't be reached
+     */
+    int send(Entry entry);
+  }
+
+  private final File dir;
+  private final long maxBytes;
+  private final int maxEntries;
+  private int sequence;
+
+  public CensusSpool(File dir, long maxBytes, int maxEntries) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the spooled censuses, oldest first
+   */
+  public synchronized List<Entry> entries() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return new ArrayList<>();
+    }
+    Arrays.sort(files);
+
+    List<Entry> entries = new ArrayList<>();
+    for (File file : files) {
+      Entry entry = file.getName().endsWith(TMP_SUFFIX) ? null : Entry.parse(file);
+      if (entry == null) {
+        // Left behind by a copy that never finished
+        file.delete();
+        continue;
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  /**
+   * @return bytes spooled
+   */
+  public synchronized long size() {
+    long size = 0;
+    for (Entry entry : entries()) {
+      size += entry.file.length();
+    }
+    return size;
+  }
+
+  /**
+   * Copy payload into the spool, dropping the oldest censuses if it doesn't fit.
+   *
+   * @param dictionaryVersion see Entry.dictionaryVersion
+   * @return the spooled census, or null if payload is bigger than the whole spool
+   */
+  public synchronized Entry add(final File payload, String contentType, String dictionaryVersion)
+      throws IOException {
+    long length = payload.length();
+    if (maxEntries <= 0 || length > maxBytes) {
+      Log.e("censustaker", "Census is " + length + " bytes, too big to spool");
+      return null;
+    }
+
+    List<Entry> entries = entries();
+    long size = 0;
+    for (Entry entry : entries) {
+      size += entry.file.length();
+    }
+    while (!entries.isEmpty() && (entries.size() >= maxEntries || size + length > maxBytes)) {
+      Entry oldest = entries.remove(0);
+      Log.w("censustaker", "Spool is full, dropping " + oldest.file.getName());
+      size -= oldest.file.length();
+      oldest.file.delete();
+    }
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    String name = String.format(Locale.US, "%013d-%04d", System.currentTimeMillis(),
+        sequence++ % 10000) + SEPARATOR + URLEncoder.encode(contentType, "UTF-8") + SEPARATOR
+        + (dictionaryVersion == null ? "" : URLEncoder.encode(dictionaryVersion, "UTF-8"));
+    File file = new File(dir, name);
+    AtomicWrites.atomicWrite(file, new AtomicWrites.Contents() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        try (InputStream in = new FileInputStream(payload)) {
+          IOUtils.copy(in, out);
+        }
+      }
+    });
+    return new Entry(file, contentType, dictionaryVersion);
+  }
+
+  public synchronized void remove(Entry entry) {
+    entry.file.delete();
+  }
+
+  /**
+   * @return whether a census that got response might go through if it's sent again later
+   */
+  static boolean retryable(int response) {
+    return response < 0 || response >= HttpURLConnection.HTTP_INTERNAL_ERROR
+        || response == HttpURLConnection.HTTP_CLIENT_TIMEOUT || response == 429;
+  }
+
+  /**
+   * Send the spooled censuses oldest first, one after another so they can share a connection.
+   *  Those the server accepts, or turns away for good, are removed.
+   *
+   * @return false if one couldn't be sent for now, it and those after it are left for later
+   */
+  public boolean drain(Sender sender) {
+    for (Entry entry : entries()) {
+      int response = sender.send(entry);
+      if (response == HttpURLConnection.HTTP_OK) {
+        Log.i("censustaker", "Uploaded spooled census " + entry.file.getName());
+      } else if (retryable(response)) {
+        Log.e("censustaker", "Spooled census failed with response " + response + ", will retry");
+        return false;
+      } else {
+        Log.e("censustaker", "Server refused spooled census " + entry.file.getName()
+            + " with response " + response + ", dropping it");
+      }
+      remove(entry);
+    }
+    return true;
+  }
+
+  /**
+   * Drains the spool in the background. After a drain that couldn't finish it waits before trying
+   *  again, twice as long each time up to a limit; wake() tries again straight away, e.g. when
+   *  the network comes back. Once the spool is empty it waits for wake().
+   */
+  public static class Flusher extends Thread {
+    private final CensusSpool spool;
+    private final Sender sender;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private boolean woken = true;
+
+    public Flusher(CensusSpool spool, Sender sender, long initialBackoffMillis,
+        long maxBackoffMillis) {
+      super("spool");
+      setDaemon(true);
+      this.spool = spool;
+      this.sender = sender;
+      this.initialBackoffMillis = Math.max(initialBackoffMillis, 1);
+      this.maxBackoffMillis = Math.max(maxBackoffMillis, this.initialBackoffMillis);
+    }
+
+    public synchronized void wake() {
+      woken = true;
+      notifyAll();
+    }
+
+    @Override
+    public void run() {
+      long backoff = initialBackoffMillis;
+      try {
+        while (!isInterrupted()) {
+          synchronized (this) {
+            while (!woken) {
+              wait();
+            }
+            woken = false;
+          }
+
+          if (spool.drain(sender)) {
+            backoff = initialBackoffMillis;
+            continue;
+          }
+
+          synchronized (this) {
+            long deadline = System.currentTimeMillis() + backoff;
+            long now;
+            while (!woken && (now = System.currentTimeMillis()) < deadline) {
+              wait(deadline - now);
+            }
+            backoff = woken ? initialBackoffMillis : Math.min(backoff * 2, maxBackoffMillis);
+            woken = true;
+          }
+        }
+      } catch (InterruptedException ignored) {
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends one census payload, streamed from disk with chunked transfer encoding so neither we nor
+ *  HttpURLConnection hold it in memory, and resumes it where it left off if the connection drops.
+ *
+ * Every request for the payload carries the same X-Upload-Session ID and the X-Upload-Offset its
+ *  body starts at. A server that understands this appends each body to what it already has for
+ *  the session and only answers once it has everything. After a failed attempt the next one
+ *  first asks with a HEAD request how much the server kept, a server that answers without
+ *  X-Upload-Offset (i.e. doesn't understand resuming) gets the payload from the start again. A
+ *  server that disagrees about the offset answers 416 with its own.
+ */
+public class CensusUpload {
+  public static final String SESSION_HEADER = "X-Upload-Session";
+  public static final String OFFSET_HEADER = "X-Upload-Offset";
+  static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final URL url;
+  private final File payload;
+  private final String sessionId = UUID.randomUUID().toString();
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private boolean chunked = true;
+  private boolean keepAlive;
+  private boolean interrupted;
+  private long resumeOffset = -1;
+  private long bytesSent;
+
+  public CensusUpload(URL url, File payload, String contentType) {
+    this.url = url;
+    this.payload = payload;
+    headers.put("Content-Type", contentType);
+    headers.put("Accept", "application/json");
+  }
+
+  public void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  /**
+   * Read each response to the end instead of disconnecting, so the connection goes back to the
+   *  pool for the next upload to the same server. CensusSpool sends its censuses this way one
+   *  after another.
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  public String sessionId() {
+    return sessionId;
+  }
+
+  /**
+   * @return bytes of payload sent over every attempt so far
+   */
+  public long bytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * Send whatever part of the payload the server doesn't have yet.
+   *
+   * @return the HTTP response code, or -1 if the request couldn't be made
+   */
+  public int attempt() {
+    long offset = 0;
+    if (resumeOffset >= 0) {
+      offset = resumeOffset;
+    } else if (interrupted) {
+      offset = queryOffset();
+    }
+    resumeOffset = -1;
+
+    int response = post(offset);
+    // Older servers won't take a body without a length
+    if (response == HttpURLConnection.HTTP_LENGTH_REQUIRED && chunked) {
+      chunked = false;
+      response = post(offset);
+    }
+    if (response == HTTP_RANGE_NOT_SATISFIABLE && resumeOffset >= 0) {
+      offset = resumeOffset;
+      resumeOffset = -1;
+      response = post(offset);
+    }
+
+    interrupted = response < 0 || response >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    return response;
+  }
+
+  private HttpURLConnection open(String method, long offset) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod(method);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      conn.setRequestProperty(header.getKey(), header.getValue());
+    }
+    conn.setRequestProperty(SESSION_HEADER, sessionId);
+    if (!keepAlive) {
+      // disconnect() can't take back a connection that went to the pool as soon as a bodyless
+      //  response (e.g. to HEAD) was read, and a streamed POST isn't retried on a stale one
+      conn.setRequestProperty("Connection", "close");
+    }
+    if (offset >= 0) {
+      conn.setRequestProperty(OFFSET_HEADER, Long.toString(offset));
+    }
+    return conn;
+  }
+
+  /**
+   * @return how much of the payload the server has, 0 if it can't or won't say
+   */
+  private long queryOffset() {
+    HttpURLConnection conn = null;
+    try {
+      conn = open("HEAD", -1);
+      if (conn.getResponseCode() / 100 != 2) {
+        return 0;
+      }
+      return parseOffset(conn.getHeaderField(OFFSET_HEADER), 0);
+    } catch (IOException e) {
+      Log.e("censustaker", "Failed to ask for the upload offset: " + e.toString());
+      return 0;
+    } finally {
+      release(conn);
+    }
+  }
+
+  private long parseOffset(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      long offset = Long.parseLong(value.trim());
+      return offset >= 0 && offset <= payload.length() ? offset : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private int post(long offset) {
+    HttpURLConnection conn = null;
+    try {
+      conn = open("POST", offset);
+      conn.setDoOutput(true);
+      if (chunked) {
+        conn.setChunkedStreamingMode(CHUNK_SIZE);
+      } else {
+        conn.setFixedLengthStreamingMode(payload.length() - offset);
+      }
+
+      Log.i("censustaker", "Sending up data from offset " + offset);
+      try (RandomAccessFile file = new RandomAccessFile(payload, "r");
+           OutputStream os = conn.getOutputStream()) {
+        file.seek(offset);
+        InputStream is = Channels.newInputStream(file.getChannel());
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          os.write(buffer, 0, n);
+          bytesSent += n;
+        }
+      } catch (IOException e) {
+        // The server may have answered (e.g. 411 or 416) without reading the body
+        Log.e("censustaker", "Error sending to " + url + ": " + e.toString());
+      }
+
+      int response = conn.getResponseCode();
+      if (response == HTTP_RANGE_NOT_SATISFIABLE) {
+        resumeOffset = parseOffset(conn.getHeaderField(OFFSET_HEADER), -1);
+      }
+      return response;
+    } catch (IOException e) {
+      Log.e("censustaker", "Error sending to " + url + ": " + e.toString());
+      return -1;
+    } finally {
+      release(conn);
+    }
+  }
+
+  private void release(HttpURLConnection conn) {
+    if (conn == null) {
+      return;
+    }
+    if (keepAlive) {
+      try {
+        InputStream body = conn.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+            ? conn.getInputStream() : conn.getErrorStream();
+        if (body != null) {
+          try {
+            byte[] buffer = new byte[4096];
+            while (body.read(buffer) != -1) {
+            }
+          } finally {
+            body.close();
+          }
+        }
+        return;
+      } catch (IOException ignored) {
+        // Not worth keeping
+      }
+    }
+    conn.disconnect();
+  }
+}
@@ -0,0 +1,222 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Streams the census out while the collectors are still producing it, either as a single JSON
+ *  object or as a {@link CensusContainer}. Every byte is fanned out to all of the sinks (e.g. the
+ *  copy on disk and the deflated upload payload) so the whole census never has to be held in
+ *  memory.
+ */
+public class CensusWriter implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public enum Format { JSON, BINARY }
+
+  private final Format format;
+  private final CensusMetrics metrics;
+  private final DataOutputStream out;
+  // The JSON format writes everything through one writer, the binary format one per section
+  private JsonWriter writer;
+  private CensusContainer.ChunkedOutputStream section;
+  private boolean blobSection;
+  private CensusMetrics.Span sectionSpan;
+
+  public CensusWriter(OutputStream... sinks) throws IOException {
+    this(Format.JSON, sinks);
+  }
+
+  public CensusWriter(Format format, OutputStream... sinks) throws IOException {
+    this(format, new CensusMetrics(), sinks);
+  }
+
+  /**
+   * @param metrics where the time and size of each section are recorded, the bytes it counts
+   *  are those of the census before it's compressed
+   */
+  public CensusWriter(Format format, CensusMetrics metrics, OutputStream... sinks)
+      throws IOException {
+    OutputStream tee = sinks[0];
+    for (int i = 1; i < sinks.length; i++) {
+      tee = new TeeOutputStream(tee, sinks[i]);
+    }
+
+    this.format = format;
+    this.metrics = metrics;
+    out = new DataOutputStream(new BufferedOutputStream(metrics.count(tee), BUFFER_SIZE));
+    if (format == Format.JSON) {
+      writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      writer.beginObject();
+    } else {
+      CensusContainer.writeHeader(out);
+    }
+  }
+
+  public Format format() {
+    return format;
+  }
+
+  public CensusMetrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Start a new top-level key, the caller must write exactly one value to the returned writer
+   *  and then call {@link #endSection()}.
+   */
+  public JsonWriter beginSection(String name) throws IOException {
+    checkInterrupted();
+    sectionSpan = metrics.begin(name, "section");
+    return startSection(name);
+  }
+
+  /**
+   * Collectors are cancelled by interrupting them, which is noticed the next time they write
+   *  anything that isn't part of a JSON value.
+   */
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.interrupted()) {
+      throw new InterruptedIOException("Census collector cancelled");
+    }
+  }
+
+  private JsonWriter startSection(String name) throws IOException {
+    Log.i("censustaker", "Writing " + name);
+    if (format == Format.JSON) {
+      return writer.name(name);
+    }
+
+    CensusContainer.writeSectionHeader(out, CensusContainer.SECTION_JSON, name);
+    section = new CensusContainer.ChunkedOutputStream(out);
+    writer = new JsonWriter(new OutputStreamWriter(section, StandardCharsets.UTF_8));
+    writer.setLenient(true);
+    return writer;
+  }
+
+  /**
+   * Start a new top-level key mapping names to raw file contents, filled in with
+   *  {@link #writeBlob} and finished with {@link #endSection()}. In the JSON format the contents
+   *  are Base64 strings, in the binary format they're written as they are.
+   */
+  public void beginBlobSection(String name) throws IOException {
+    checkInterrupted();
+    sectionSpan = metrics.begin(name, "section");
+    startBlobSection(name);
+  }
+
+  private void startBlobSection(String name) throws IOException {
+    Log.i("censustaker", "Writing " + name);
+    blobSection = true;
+    if (format == Format.JSON) {
+      writer.name(name).beginObject();
+      return;
+    }
+
+    CensusContainer.writeSectionHeader(out, CensusContainer.SECTION_BLOBS, name);
+    section = new CensusContainer.ChunkedOutputStream(out);
+  }
+
+  public void writeBlob(String name, ByteArrayOutputStream contents) throws IOException {
+    checkInterrupted();
+    sectionSpan.addEntries(1);
+    if (format == Format.JSON) {
+      writer.name(name).value(new String(Base64.encodeBase64(contents.toByteArray())));
+      return;
+    }
+
+    DataOutputStream blob = new DataOutputStream(section);
+    CensusContainer.writeString(blob, name);
+    blob.writeInt(contents.size());
+    contents.writeTo(blob);
+  }
+
+  /**
+   * Flush after every section so a crash in a later collector still leaves the completed
+   *  sections on disk.
+   */
+  public void endSection() throws IOException {
+    if (format == Format.JSON) {
+      if (blobSection) {
+        writer.endObject();
+      }
+      writer.flush();
+    } else {
+      if (writer != null) {
+        writer.flush();
+        writer = null;
+      }
+      section.finish();
+      section = null;
+      out.flush();
+    }
+    blobSection = false;
+    if (sectionSpan != null) {
+      sectionSpan.close();
+      sectionSpan = null;
+    }
+  }
+
+  /**
+   * Copy every section left in census into this one, token by token for JSON sections and a blob
+   *  at a time for blob sections. Used to merge the censuses collectors write on their own.
+   */
+  public void append(CensusReader census) throws IOException {
+    String name;
+    while ((name = census.nextSection()) != null) {
+      if (census.sectionType() == CensusReader.SECTION_JSON) {
+        CensusReader.copyValue(census.json(), startSection(name));
+        endSection();
+        continue;
+      }
+
+      startBlobSection(name);
+      String blobName;
+      while ((blobName = census.nextBlob()) != null) {
+        byte[] contents = census.blob();
+        if (format == Format.JSON) {
+          writer.name(blobName).value(new String(Base64.encodeBase64(contents)));
+        } else {
+          DataOutputStream blob = new DataOutputStream(section);
+          CensusContainer.writeString(blob, blobName);
+          blob.writeInt(contents.length);
+          blob.write(contents);
+        }
+      }
+      endSection();
+    }
+  }
+
+  /**
+   * Write the census_metrics section, last so it covers every other section.
+   */
+  public void writeMetrics() throws IOException {
+    metrics.write(startSection(CensusMetrics.SECTION));
+    endSection();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (format == Format.JSON) {
+        writer.endObject();
+        writer.flush();
+      } else {
+        out.writeByte(CensusContainer.SECTION_END);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
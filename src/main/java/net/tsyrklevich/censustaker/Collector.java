@@ -0,0 +1,20 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+
+/**
+ * One independent part of the census. Collectors may be run at the same time as each other,
+ *  each writing to its own CensusWriter, so they mustn't share any mutable state.
+ */
+public interface Collector {
+  /**
+   * @return a short name for logs, metrics and progress, e.g. "properties"
+   */
+  String name();
+
+  /**
+   * Write this collector's sections to census. A collector that's cancelled is interrupted,
+   *  long loops should give up once {@link Thread#isInterrupted()}.
+   */
+  void collect(CensusWriter census) throws IOException;
+}
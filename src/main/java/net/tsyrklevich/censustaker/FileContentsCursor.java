@@ -0,0 +1,88 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a batch of file contents packed by the native reader. Records are fixed-width
+ *  and sit at the front of the buffer, the contents are at the back. A file too big for one
+ *  batch comes in several pieces, all but the last of which report {@link #hasMore()}.
+ */
+public class FileContentsCursor {
+  // Keep in sync with the contents record layout in jni/native.c
+  static final int RECORD_SIZE = 20;
+  private static final int INDEX = 0;
+  private static final int OFFSET = 4;
+  private static final int LENGTH = 8;
+  private static final int ERROR = 12;
+  private static final int FLAGS = 16;
+  private static final int FLAG_MORE = 1;
+
+  private final ByteBuffer buffer;
+  private byte[] scratch = new byte[16 * 1024];
+  private int count;
+  private int index;
+  private int record;
+
+  FileContentsCursor(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  void reset(int count) {
+    this.count = count;
+    this.index = -1;
+  }
+
+  /**
+   * Advance to the next piece in the batch.
+   *
+   * @return false once the batch is exhausted
+   */
+  public boolean next() {
+    if (index + 1 >= count) {
+      return false;
+    }
+    index++;
+    record = index * RECORD_SIZE;
+    return true;
+  }
+
+  /**
+   * @return index of the file in the list that was passed to the reader
+   */
+  public int fileIndex() {
+    return buffer.getInt(record + INDEX);
+  }
+
+  /**
+   * @return errno of the failed open() or read(), or 0 if the file was read
+   */
+  public int error() {
+    return buffer.getInt(record + ERROR);
+  }
+
+  public int length() {
+    return buffer.getInt(record + LENGTH);
+  }
+
+  /**
+   * @return true if the rest of the file follows in the next batch
+   */
+  public boolean hasMore() {
+    return (buffer.getInt(record + FLAGS) & FLAG_MORE) != 0;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    int offset = buffer.getInt(record + OFFSET);
+    int length = length();
+    while (length > 0) {
+      int n = Math.min(length, scratch.length);
+      buffer.position(offset);
+      buffer.get(scratch, 0, n);
+      out.write(scratch, 0, n);
+      offset += n;
+      length -= n;
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Receives the output of the native batch file reader a buffer at a time. Like
+ *  {@link FileRecordSink} the same direct buffer is reused for every batch, so contents must be
+ *  consumed before {@link #consume(FileContentsCursor)} returns.
+ */
+public abstract class FileContentsSink {
+  private final ByteBuffer buffer;
+  private final FileContentsCursor cursor;
+
+  protected FileContentsSink(int capacity) {
+    buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    cursor = new FileContentsCursor(buffer);
+  }
+
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Called by the native reader every time the buffer fills up and once more at the end.
+   */
+  final void onBatch(int count) throws IOException {
+    cursor.reset(count);
+    consume(cursor);
+  }
+
+  protected abstract void consume(FileContentsCursor files) throws IOException;
+}
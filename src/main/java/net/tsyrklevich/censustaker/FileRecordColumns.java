@@ -0,0 +1,395 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar encoding of the file_permissions section, for censuses of big partitions where one
+ *  JSON object per file is mostly repeated keys, path prefixes and SELinux contexts:
+ *
+ *  {"encoding": "columnar", "version": 1, "chunks": [{
+ *    "count": rows in the chunk,
+ *    "contexts": contexts first seen in this chunk, appended to the dictionary,
+ *    "prefix": code points each path shares with the one before it (0 for a chunk's first),
+ *    "suffix": the rest of each path,
+ *    "uid", "gid", "size", "mode": one number per row,
+ *    "context": index into the dictionary, -1 if the context couldn't be read,
+ *    "linkRows", "linkPaths": the rows that are symlinks and their targets
+ *  }, ...]}
+ *
+ * Rows are in the order the scanner gives them, sorted by root and path, so neighbours share
+ *  most of their path. Chunks are a fixed number of rows so neither side has to hold more than
+ *  one in memory, the dictionary carries over from chunk to chunk.
+ *
+ * {@link #expand(JsonReader, JsonWriter)} is the reference decoder, it turns the section back
+ *  into the array of {path, linkPath, uid, gid, size, mode, selinuxContext} objects with the
+ *  fields in the same order.
+ */
+public class FileRecordColumns {
+  public static final String ENCODING = "columnar";
+  static final int VERSION = 1;
+  static final int CHUNK_ROWS = 8192;
+  private static final TypeAdapter<JsonElement> elementAdapter =
+      CensusGson.gson.getAdapter(JsonElement.class);
+
+  private final JsonWriter writer;
+  private final Map<String, Integer> dictionary = new HashMap<>();
+  private final List<String> newContexts = new ArrayList<>();
+  private final int[] prefix = new int[CHUNK_ROWS];
+  private final String[] suffix = new String[CHUNK_ROWS];
+  private final int[] uid = new int[CHUNK_ROWS];
+  private final int[] gid = new int[CHUNK_ROWS];
+  private final int[] size = new int[CHUNK_ROWS];
+  private final int[] mode = new int[CHUNK_ROWS];
+  private final int[] context = new int[CHUNK_ROWS];
+  private final List<Integer> linkRows = new ArrayList<>();
+  private final List<String> linkPaths = new ArrayList<>();
+  private String previous;
+  private int rows;
+
+  public interface Listener {
+    /**
+     * @param record in the shape FileSystemCensus writes records in when they aren't encoded
+     */
+    void onRecord(JsonObject record) throws IOException;
+  }
+
+  /**
+   * Start the section's value on writer, {@link #finish()} ends it.
+   */
+  public FileRecordColumns(JsonWriter writer) throws IOException {
+    this.writer = writer;
+    writer.beginObject();
+    writer.name("encoding").value(ENCODING);
+    writer.name("version").value(VERSION);
+    writer.name("chunks").beginArray();
+  }
+
+  public void add(FileRecordCursor record) throws IOException {
+    add(record.path(), record.linkPath(), record.uid(), record.gid(), record.size(),
+        record.mode(), record.selinuxContext());
+  }
+
+  public void add(String path, String linkPath, int uid, int gid, int size, int mode,
+      String selinuxContext) throws IOException {
+    int shared = previous == null ? 0 : sharedPrefix(previous, path);
+    prefix[rows] = path.codePointCount(0, shared);
+    suffix[rows] = path.substring(shared);
+    this.uid[rows] = uid;
+    this.gid[rows] = gid;
+    this.size[rows] = size;
+    this.mode[rows] = mode;
+    context[rows] = intern(selinuxContext);
+    if (linkPath != null) {
+      linkRows.add(rows);
+      linkPaths.add(linkPath);
+    }
+    previous = path;
+
+    if (++rows == CHUNK_ROWS) {
+      flush();
+    }
+  }
+
+  /**
+   * @return chars a and b share at the start, never splitting a surrogate pair
+   */
+  private static int sharedPrefix(String a, String b) {
+    int length = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < length && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+      i--;
+    }
+    return i;
+  }
+
+  private int intern(String selinuxContext) {
+    if (selinuxContext == null) {
+      return -1;
+    }
+
+    Integer index = dictionary.get(selinuxContext);
+    if (index == null) {
+      index = dictionary.size();
+      dictionary.put(selinuxContext, index);
+      newContexts.add(selinuxContext);
+    }
+    return index;
+  }
+
+  private void writeColumn(String name, int[] column) throws IOException {
+    writer.name(name).beginArray();
+    for (int i = 0; i < rows; i++) {
+      writer.value(column[i]);
+    }
+    writer.endArray();
+  }
+
+  private void flush() throws IOException {
+    if (rows == 0) {
+      return;
+    }
+
+    writer.beginObject();
+    writer.name("count").value(rows);
+    writer.name("contexts").beginArray();
+    for (String context : newContexts) {
+      writer.value(context);
+    }
+    writer.endArray();
+    writeColumn("prefix", prefix);
+    writer.name("suffix").beginArray();
+    for (int i = 0; i < rows; i++) {
+      writer.value(suffix[i]);
+    }
+    writer.endArray();
+    writeColumn("uid", uid);
+    writeColumn("gid", gid);
+    writeColumn("size", size);
+    writeColumn("mode", mode);
+    writeColumn("context", context);
+    writer.name("linkRows").beginArray();
+    for (int row : linkRows) {
+      writer.value(row);
+    }
+    writer.endArray();
+    writer.name("linkPaths").beginArray();
+    for (String linkPath : linkPaths) {
+      writer.value(linkPath);
+    }
+    writer.endArray();
+    writer.endObject();
+
+    Arrays.fill(suffix, 0, rows, null);
+    newContexts.clear();
+    linkRows.clear();
+    linkPaths.clear();
+    previous = null;
+    rows = 0;
+  }
+
+  /**
+   * Write out whatever rows are left and end the section's value.
+   */
+  public void finish() throws IOException {
+    flush();
+    writer.endArray();
+    writer.endObject();
+  }
+
+  private static int[] readInts(JsonReader in) throws IOException {
+    int[] values = new int[16];
+    int count = 0;
+    in.beginArray();
+    while (in.hasNext()) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = in.nextInt();
+    }
+    in.endArray();
+    return Arrays.copyOf(values, count);
+  }
+
+  private static List<String> readStrings(JsonReader in) throws IOException {
+    List<String> values = new ArrayList<>();
+    in.beginArray();
+    while (in.hasNext()) {
+      values.add(in.nextString());
+    }
+    in.endArray();
+    return values;
+  }
+
+  private static void checkColumn(String name, int length, int count) throws IOException {
+    if (length != count) {
+      throw new IOException("file_permissions chunk of " + count + " rows has " + length + " "
+          + name);
+    }
+  }
+
+  /**
+   * Decode one chunk from in and hand its rows to listener, adding its contexts to dictionary.
+   *
+   * @throws IOException if the chunk is incomplete or any of its lengths, prefixes or indexes
+   *  don't fit, before a row that depends on them is handed over
+   */
+  private static void decodeChunk(JsonReader in, Listener listener, List<String> dictionary)
+      throws IOException {
+    int count = 0;
+    int[] prefix = null, uid = null, gid = null, size = null, mode = null, context = null;
+    int[] linkRows = new int[0];
+    List<String> suffix = null;
+    List<String> linkPaths = new ArrayList<>();
+
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      switch (name) {
+        case "count":
+          count = in.nextInt();
+          break;
+        case "contexts":
+          dictionary.addAll(readStrings(in));
+          break;
+        case "prefix":
+          prefix = readInts(in);
+          break;
+        case "suffix":
+          suffix = readStrings(in);
+          break;
+        case "uid":
+          uid = readInts(in);
+          break;
+        case "gid":
+          gid = readInts(in);
+          break;
+        case "size":
+          size = readInts(in);
+          break;
+        case "mode":
+          mode = readInts(in);
+          break;
+        case "context":
+          context = readInts(in);
+          break;
+        case "linkRows":
+          linkRows = readInts(in);
+          break;
+        case "linkPaths":
+          linkPaths = readStrings(in);
+          break;
+        default:
+          // Columns added by later versions are ignored
+          in.skipValue();
+      }
+    }
+    in.endObject();
+
+    if (prefix == null || suffix == null || uid == null || gid == null || size == null
+        || mode == null || context == null) {
+      throw new IOException("Incomplete file_permissions chunk");
+    }
+    if (count < 0) {
+      throw new IOException("file_permissions chunk of " + count + " rows");
+    }
+    checkColumn("prefix", prefix.length, count);
+    checkColumn("suffix", suffix.size(), count);
+    checkColumn("uid", uid.length, count);
+    checkColumn("gid", gid.length, count);
+    checkColumn("size", size.length, count);
+    checkColumn("mode", mode.length, count);
+    checkColumn("context", context.length, count);
+    checkColumn("linkPaths", linkPaths.size(), linkRows.length);
+    for (int i = 0; i < linkRows.length; i++) {
+      if (linkRows[i] < 0 || linkRows[i] >= count || (i > 0 && linkRows[i] <= linkRows[i - 1])) {
+        throw new IOException("Bad file_permissions link row " + linkRows[i]);
+      }
+    }
+
+    String path = "";
+    int codePoints = 0;
+    int link = 0;
+    for (int i = 0; i < count; i++) {
+      if (prefix[i] < 0 || prefix[i] > codePoints) {
+        throw new IOException("Bad file_permissions prefix " + prefix[i] + " for a path of "
+            + codePoints + " code points");
+      }
+      if (context[i] < -1 || context[i] >= dictionary.size()) {
+        throw new IOException("Bad file_permissions context " + context[i]);
+      }
+      String rest = suffix.get(i);
+      path = path.substring(0, path.offsetByCodePoints(0, prefix[i])) + rest;
+      codePoints = prefix[i] + rest.codePointCount(0, rest.length());
+
+      JsonObject record = new JsonObject();
+      record.addProperty("path", path);
+      if (link < linkRows.length && linkRows[link] == i) {
+        record.addProperty("linkPath", linkPaths.get(link++));
+      }
+      record.addProperty("uid", uid[i]);
+      record.addProperty("gid", gid[i]);
+      record.addProperty("size", size[i]);
+      record.addProperty("mode", mode[i]);
+      if (context[i] >= 0) {
+        record.addProperty("selinuxContext", dictionary.get(context[i]));
+      }
+      listener.onRecord(record);
+    }
+  }
+
+  /**
+   * Read the value of an encoded file_permissions section from in and hand every record to
+   *  listener in order, only one chunk is held in memory at a time.
+   */
+  public static void decode(JsonReader in, Listener listener) throws IOException {
+    try {
+      decodeSection(in, listener);
+    } catch (IllegalStateException | NumberFormatException e) {
+      // JsonReader's complaints about a value of the wrong type
+      throw new IOException("Malformed file_permissions section", e);
+    }
+  }
+
+  private static void decodeSection(JsonReader in, Listener listener) throws IOException {
+    List<String> dictionary = new ArrayList<>();
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (name.equals("encoding")) {
+        String encoding = in.nextString();
+        if (!encoding.equals(ENCODING)) {
+          throw new IOException("Unknown file_permissions encoding " + encoding);
+        }
+      } else if (name.equals("version")) {
+        int version = in.nextInt();
+        if (version > VERSION) {
+          throw new IOException("Unsupported file_permissions version " + version);
+        }
+      } else if (name.equals("chunks")) {
+        in.beginArray();
+        while (in.hasNext()) {
+          decodeChunk(in, listener, dictionary);
+        }
+        in.endArray();
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+  }
+
+  /**
+   * Read the value of a file_permissions section from in and write it to out as an array of
+   *  one object per file, the way it's written when it isn't encoded. A section that isn't
+   *  encoded is copied as it is.
+   */
+  public static void expand(JsonReader in, final JsonWriter out) throws IOException {
+    if (in.peek() != JsonToken.BEGIN_OBJECT) {
+      CensusReader.copyValue(in, out);
+      return;
+    }
+
+    out.beginArray();
+    decode(in, new Listener() {
+      @Override
+      public void onRecord(JsonObject record) throws IOException {
+        elementAdapter.write(out, record);
+      }
+    });
+    out.endArray();
+  }
+}
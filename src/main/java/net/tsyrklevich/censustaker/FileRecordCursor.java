@@ -0,0 +1,93 @@
+package net.tsyrklevich.censustaker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight over a batch of file records packed by the native scanner. Records are fixed-width
+ *  and sit at the front of the buffer, the strings they point to are in a heap at the back.
+ *  Fields are only decoded when asked for.
+ */
+public class FileRecordCursor {
+  // Keep in sync with the record layout in jni/native.c
+  static final int RECORD_SIZE = 40;
+  private static final int UID = 0;
+  private static final int GID = 4;
+  private static final int SIZE = 8;
+  private static final int MODE = 12;
+  private static final int PATH = 16;
+  private static final int LINK_PATH = 24;
+  private static final int SELINUX_CONTEXT = 32;
+
+  private final ByteBuffer buffer;
+  private byte[] scratch = new byte[256];
+  private int count;
+  private int index;
+  private int record;
+
+  FileRecordCursor(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  void reset(int count) {
+    this.count = count;
+    this.index = -1;
+  }
+
+  /**
+   * Advance to the next record in the batch.
+   *
+   * @return false once the batch is exhausted
+   */
+  public boolean next() {
+    if (index + 1 >= count) {
+      return false;
+    }
+    index++;
+    record = index * RECORD_SIZE;
+    return true;
+  }
+
+  public String path() {
+    return string(PATH);
+  }
+
+  public String linkPath() {
+    return string(LINK_PATH);
+  }
+
+  public int uid() {
+    return buffer.getInt(record + UID);
+  }
+
+  public int gid() {
+    return buffer.getInt(record + GID);
+  }
+
+  public int size() {
+    return buffer.getInt(record + SIZE);
+  }
+
+  public int mode() {
+    return buffer.getInt(record + MODE);
+  }
+
+  public String selinuxContext() {
+    return string(SELINUX_CONTEXT);
+  }
+
+  private String string(int field) {
+    int offset = buffer.getInt(record + field);
+    if (offset < 0) {
+      return null;
+    }
+
+    int length = buffer.getInt(record + field + 4);
+    if (length > scratch.length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    buffer.position(offset);
+    buffer.get(scratch, 0, length);
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+}
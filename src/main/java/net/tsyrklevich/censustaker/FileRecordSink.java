@@ -0,0 +1,54 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Receives the output of the native scanner a buffer at a time instead of one object per file.
+ *  The same direct buffer is reused for every batch, so records must be consumed before
+ *  {@link #consume(FileRecordCursor)} returns.
+ */
+public abstract class FileRecordSink {
+  private final ByteBuffer buffer;
+  private final FileRecordCursor cursor;
+
+  protected FileRecordSink(int capacity) {
+    buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    cursor = new FileRecordCursor(buffer);
+  }
+
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Called by the native scanner every time the buffer fills up and once more at the end of
+   *  the scan.
+   */
+  final void onBatch(int count) throws IOException {
+    cursor.reset(count);
+    consume(cursor);
+  }
+
+  protected abstract void consume(FileRecordCursor records) throws IOException;
+
+  /**
+   * Called by the native scanner after the last batch for every directory a walk that ran out
+   *  of budget left unscanned.
+   */
+  final void onUnfinished(int root, int reason, byte[] dir, int depth, long offset)
+      throws IOException {
+    unfinished(root, reason, new String(dir, StandardCharsets.UTF_8), depth, offset);
+  }
+
+  /**
+   * @param root index of the walk the directory belongs to
+   * @param reason why the walk stopped, one of ScanCursor's constants
+   * @param offset where in dir to carry on from, 0 for the start
+   */
+  protected void unfinished(int root, int reason, String dir, int depth, long offset)
+      throws IOException {
+  }
+}
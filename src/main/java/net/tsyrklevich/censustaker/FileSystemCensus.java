@@ -1,196 +1,337 @@
 package net.tsyrklevich.censustaker;
 
+import android.os.Build;
+import android.util.Log;
 import com.esotericsoftware.wildcard.Paths;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.filefilter.RegexFileFilter;
+import java.util.TreeSet;
 
-public class FileSystemCensus {
-  private static final Gson gson = new Gson();
+public class FileSystemCensus implements Collector {
+  public static final String PERMISSIONS_SECTION = "file_permissions";
+  /** Which walks of PERMISSIONS_SECTION stopped short or carried on from an earlier census */
+  public static final String PARTIAL_SECTION = "file_permissions_partial";
+
+  private final CensusConfig config;
+  private final ScanPlan plan;
+  private final File cursorFile;
+  private final File indexFile;
 
   /**
-   * Implemented natively because Java doesn't allow us to get POSIX file permissions. Sigh.
+   * @param cursorFile where walks that run out of budget keep their place between runs, null to
+   *  always start over
+   * @param indexFile where the directories on read-only filesystems are indexed between runs,
+   *  null to read every directory
    */
-  private static native ArrayList<FileInformation> scanDirRecursive(String dir, int depth);
-
-  private class FileInformation {
-    public String path; // @NotNull
-    public String linkPath; // @Nullable
-    public int uid;
-    public int gid;
-    public int size;
-    public int mode;
-    public String selinuxContext; // @Nullable
-
-    public FileInformation(byte[] path, byte[] linkPath, int uid, int gid, int size, int mode, byte[] selinuxContext) {
-      this.path = new String(path);
-      if (linkPath != null) {
-        this.linkPath = new String(linkPath);
-      }
-      this.uid = uid;
-      this.gid = gid;
-      this.size = size;
-      this.mode = mode;
-      if (selinuxContext != null) {
-        this.selinuxContext = new String(selinuxContext);
-      }
-    }
+  public FileSystemCensus(CensusConfig config, ScanPlan plan, File cursorFile, File indexFile) {
+    this.config = config;
+    this.plan = plan;
+    this.cursorFile = cursorFile;
+    this.indexFile = indexFile;
   }
 
-  private static void pollPermissions(Map<String, JsonElement> results) {
-    System.loadLibrary("censustaker");
+  @Override
+  public String name() {
+    return "filesystem";
+  }
 
-    ArrayList<FileInformation> filePerms = new ArrayList<>();
-    filePerms.addAll(scanDirRecursive("/", 1));
-    filePerms.addAll(scanDirRecursive("/data/system", 1000));
-    filePerms.addAll(scanDirRecursive("/dev", 1000));
-    filePerms.addAll(scanDirRecursive("/etc", 1000));
-    filePerms.addAll(scanDirRecursive("/sbin", 1000));
-    filePerms.addAll(scanDirRecursive("/system", 1000));
-    filePerms.addAll(scanDirRecursive("/vendor", 1000));
-    filePerms.addAll(scanDirRecursive("/etc", 1000));
-
-    /*
-     * /proc and /sys are really big, so we cherry pick things that we think
-     *  might be interesting
-     */
-    filePerms.addAll(scanDirRecursive("/proc", 1));
-    filePerms.addAll(scanDirRecursive("/proc/bus", 1000));
-    filePerms.addAll(scanDirRecursive("/proc/cpu", 1000));
-    filePerms.addAll(scanDirRecursive("/proc/tty", 1000));
-    filePerms.addAll(scanDirRecursive("/sys", 2));
-    filePerms.addAll(scanDirRecursive("/sys/fs/selinux", 1000));
-
-    filePerms.addAll(scanDirRecursive("/proc/self", 4));
-
-    results.put("file_permissions", gson.toJsonTree(filePerms.toArray(),
-        filePerms.toArray().getClass()));
+  @Override
+  public void collect(CensusWriter census) throws IOException {
+    poll(census, config, plan, cursorFile, indexFile);
   }
 
   /**
-   * @return List of paths for file whose contents we wish to upload
+   * Scan every dir to its depth using a pool of native threads, directories in overrideDirs are
+   *  walked at least overrideDepths deep and excludes are skipped entirely. The results are
+   *  sorted by root and then path, packed into the sink's direct buffer and handed back a batch
+   *  at a time.
+   *
+   * budgets holds three limits per dir, 0 for none: milliseconds, entries and bytes. A walk that
+   *  hits one stops and the directories it didn't get to are handed to the sink's unfinished().
+   *  A dir with resume positions (resumeRoots indexes dirs) walks those instead of itself.
+   *
+   * If indexPath is given the directories read in full on read-only filesystems are saved there,
+   *  and those that haven't changed since are answered from it rather than read. An index saved
+   *  with a different indexKey is thrown away, the key has to change whenever excludes do.
    */
-  private static List<String> interestingFiles() {
-    ArrayList<String> files = new ArrayList<>(Arrays.asList(
-            "/default.prop",
-            "/file_contexts",
-            "/property_contexts",
-            "/seapp_contexts",
-            "/selinux_version",
-            "/sepolicy",
-            "/service_contexts",
-            "/data/local.prop",
-            "/factory/factory.prop",
-            "/proc/cmdline",
-            "/proc/config.gz",
-            "/proc/consoles",
-            "/proc/cpuinfo",
-            "/proc/devices",
-            "/proc/fb",
-            "/proc/filesystems",
-            "/proc/interrupts",
-            "/proc/iomem",
-            "/proc/meminfo",
-            "/proc/misc",
-            "/proc/modules",
-            "/proc/mounts",
-            "/proc/pagetypeinfo",
-            "/proc/slabinfo",
-            "/proc/version",
-            "/proc/vmallocinfo",
-            "/proc/vmstat",
-            "/proc/zoneinfo",
-            "/proc/bus/input/devices",
-            "/proc/cpu/alignment",
-            "/proc/net/unix",
-            "/proc/self/environ",
-            "/proc/self/maps",
-            "/proc/tty/drivers",
-            "/sys/fs/selinux/deny_unknown",
-            "/sys/fs/selinux/enforce",
-            "/sys/fs/selinux/policy",
-            "/sys/fs/selinux/reject_unknown",
-            "/system/build.prop",
-            "/system/default.prop",
-            "/system/build.prop"
-            /*
-             * /proc/driver ?
-             * /proc/tty/**
-             * /sys/module/* (one deep is sort of interesting) as could /sys/module/* /parameters
-             */
-    ));
+  static native void scanDirsBatched(String[] dirs, int[] depths, long[] budgets,
+      String[] overrideDirs, int[] overrideDepths, String[] excludes, String[] resumeDirs,
+      int[] resumeDepths, int[] resumeRoots, long[] resumeOffsets, String indexPath,
+      String indexKey, int threads, ByteBuffer buffer, FileRecordSink sink) throws IOException;
 
-    Paths paths = new Paths();
-    paths.glob("/", "init*.rc");
-    paths.glob("/", "ueventd*.rc");
-    paths.glob("/system/etc/permissions", "*.xml");
-    paths.glob("/sys/fs/selinux", "**" , "!class/**");
-    paths.glob("/sys/fs/module", "**/version");
-    files.addAll(paths.getPaths());
+  /**
+   * Read every path to EOF using a pool of native threads and hand the contents back in path
+   *  order, a batch at a time. Files that can't be read are reported with their errno.
+   */
+  static native void readFilesBatched(String[] paths, int threads, ByteBuffer buffer,
+      FileContentsSink sink) throws IOException;
 
-    // We have to do these manually because /proc is wacky.
-    String[] procDirs = new File("/proc").list(new RegexFileFilter("[0-9]+"));
-    if (procDirs != null) {
-      for (String procDir : procDirs) {
-        files.add(String.format("/proc/%s/cmdline", procDir));
-        files.add(String.format("/proc/%s/status", procDir));
-        files.add(String.format("/proc/%s/attr/current", procDir));
-        files.add(String.format("/proc/%s/attr/fscreate", procDir));
-      }
+  static final int BATCH_SIZE = 1024 * 1024;
+
+  /**
+   * Write out a file_permissions record, the fields in the order they've always been sent in and
+   *  the null ones left out.
+   */
+  static void writeFileRecord(JsonWriter writer, String path, String linkPath, int uid, int gid,
+      int size, int mode, String selinuxContext) throws IOException {
+    writer.beginObject();
+    writer.name("path").value(path);
+    if (linkPath != null) {
+      writer.name("linkPath").value(linkPath);
     }
+    writer.name("uid").value(uid);
+    writer.name("gid").value(gid);
+    writer.name("size").value(size);
+    writer.name("mode").value(mode);
+    if (selinuxContext != null) {
+      writer.name("selinuxContext").value(selinuxContext);
+    }
+    writer.endObject();
+  }
 
-    return files;
+  static void writeFileRecord(JsonWriter writer, FileRecordCursor record) throws IOException {
+    writeFileRecord(writer, record.path(), record.linkPath(), record.uid(), record.gid(),
+        record.size(), record.mode(), record.selinuxContext());
+  }
+
+  private static int[] toIntArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
   }
 
   /**
-   * Unfortunately Java/Apache-commons various APIs to read a whole file don't
-   *  work well with /proc because stat() returns st_size=0, so I wrote my own.
+   * @return limits of each walk in the form scanDirsBatched() takes them, from the plan's root
+   *  with the same path or else the defaults in config
    */
-  static private String readFileToBase64(String path) throws IOException {
-    ByteArrayOutputStream contents = new ByteArrayOutputStream();
-    byte[] chunk = new byte[1024];
-
-    RandomAccessFile f = new RandomAccessFile(path, "r");
-    int len;
-    while (true) {
-      len = f.read(chunk);
-      if (len == -1) {
-        break;
+  public static long[] budgets(List<String> dirs, ScanPlan plan, CensusConfig config) {
+    long[] budgets = new long[3 * dirs.size()];
+    for (int i = 0; i < dirs.size(); i++) {
+      budgets[3 * i] = config.scanTimeoutMillis();
+      budgets[3 * i + 1] = config.scanMaxEntries();
+      budgets[3 * i + 2] = config.scanMaxBytes();
+      for (ScanPlan.Root root : plan.roots) {
+        if (!ScanPlanner.normalize(root.path).equals(dirs.get(i))) {
+          continue;
+        }
+        if (root.timeout > 0) {
+          budgets[3 * i] = root.timeout * 1000L;
+        }
+        if (root.maxEntries > 0) {
+          budgets[3 * i + 1] = root.maxEntries;
+        }
+        if (root.maxBytes > 0) {
+          budgets[3 * i + 2] = root.maxBytes;
+        }
       }
-      contents.write(chunk, 0, len);
     }
+    return budgets;
+  }
 
-    return new String(Base64.encodeBase64(contents.toByteArray()));
+  /**
+   * Write which walks of the file_permissions section stopped short and which carried on from
+   *  an earlier census. Nothing is written if the section is a complete scan of every root.
+   */
+  private static void writePartial(CensusWriter census, ScanCursor next, List<String> resumed)
+      throws IOException {
+    if (next.isEmpty() && resumed.isEmpty()) {
+      return;
+    }
+
+    JsonWriter writer = census.beginSection(PARTIAL_SECTION);
+    writer.beginObject();
+    writer.name("unfinished").beginObject();
+    for (Map.Entry<String, Integer> root : next.stopped().entrySet()) {
+      writer.name(root.getKey()).value(ScanCursor.reason(root.getValue()));
+    }
+    writer.endObject();
+    writer.name("pendingDirs").value(next.positions().size());
+    writer.name("resumed").beginArray();
+    for (String root : resumed) {
+      writer.value(root);
+    }
+    writer.endArray();
+    writer.endObject();
+    census.endSection();
   }
 
-  private static void pollSmallFileContents(Map<String, JsonElement> results) {
-    Map<String, String> fileContents = new HashMap<>();
-    for (String path : interestingFiles()) {
+  /**
+   * @return what the directory index has to be saved with, so it's thrown away when an update
+   *  may have changed the read-only filesystems or the plan skips different paths
+   */
+  static String indexKey(List<String> excludes) {
+    StringBuilder key = new StringBuilder(Build.FINGERPRINT);
+    for (String exclude : excludes) {
+      key.append('\n').append(exclude);
+    }
+    return key.toString();
+  }
+
+  private static void pollPermissions(CensusWriter census, CensusConfig config, ScanPlan plan,
+      File cursorFile, File indexFile, final CensusMetrics.Span span) throws IOException {
+    System.loadLibrary("censustaker");
+
+    final ScanPlanner planner = new ScanPlanner(plan.roots, plan.excludes);
+
+    // Carry on from wherever the last census stopped, for the walks that are still planned
+    ScanCursor previous = cursorFile != null ? ScanCursor.load(cursorFile) : null;
+    List<String> resumeDirs = new ArrayList<>();
+    List<Integer> resumeDepths = new ArrayList<>();
+    List<Integer> resumeRoots = new ArrayList<>();
+    List<Long> resumeOffsets = new ArrayList<>();
+    TreeSet<String> resumed = new TreeSet<>();
+    if (previous != null) {
+      for (ScanCursor.Position position : previous.positions()) {
+        int root = planner.dirs.indexOf(position.root);
+        if (root < 0) {
+          continue;
+        }
+        resumeDirs.add(position.dir);
+        resumeDepths.add(position.depth);
+        resumeRoots.add(root);
+        resumeOffsets.add(position.offset);
+        resumed.add(position.root);
+      }
+    }
+    long[] offsets = new long[resumeOffsets.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = resumeOffsets.get(i);
+    }
+
+    String indexPath = indexFile != null && config.scanIndex() ? indexFile.getPath() : null;
+
+    final JsonWriter writer = census.beginSection(PERMISSIONS_SECTION);
+    final FileRecordColumns columns = config.columnarFilePermissions()
+        ? new FileRecordColumns(writer) : null;
+    if (columns == null) {
+      writer.beginArray();
+    }
+    final ScanCursor next = new ScanCursor();
+    FileRecordSink sink = new FileRecordSink(BATCH_SIZE) {
+      @Override
+      protected void consume(FileRecordCursor records) throws IOException {
+        while (records.next()) {
+          if (columns != null) {
+            columns.add(records);
+          } else {
+            writeFileRecord(writer, records);
+          }
+          span.addEntries(1);
+        }
+      }
+
+      @Override
+      protected void unfinished(int root, int reason, String dir, int depth, long offset) {
+        next.add(new ScanCursor.Position(planner.dirs.get(root), dir, depth, offset), reason);
+      }
+    };
+
+    try (CensusMetrics.Span scan = census.metrics().begin("scanDirsBatched", "native")) {
+      scanDirsBatched(planner.dirs.toArray(new String[0]), toIntArray(planner.depths),
+          budgets(planner.dirs, plan, config), planner.overrideDirs.toArray(new String[0]),
+          toIntArray(planner.overrideDepths), planner.excludes.toArray(new String[0]),
+          resumeDirs.toArray(new String[0]), toIntArray(resumeDepths), toIntArray(resumeRoots),
+          offsets, indexPath, indexPath != null ? indexKey(planner.excludes) : null,
+          config.scanThreads(), sink.buffer(), sink);
+      scan.addEntries(planner.dirs.size());
+    }
+
+    if (columns != null) {
+      columns.finish();
+    } else {
+      writer.endArray();
+    }
+    census.endSection();
+
+    for (Map.Entry<String, Integer> root : next.stopped().entrySet()) {
+      Log.i("censustaker", "Scan of " + root.getKey() + " stopped at its "
+          + ScanCursor.reason(root.getValue()) + " budget, the next census carries on from there");
+    }
+    writePartial(census, next, new ArrayList<>(resumed));
+    if (cursorFile != null) {
       try {
-        fileContents.put(path, readFileToBase64(path));
+        next.save(cursorFile);
       } catch (IOException e) {
+        e.printStackTrace();
       }
     }
 
-    results.put("small_files", gson.toJsonTree(fileContents,
-        fileContents.getClass()));
+    // Roots that were symlinks to directories scanned elsewhere, e.g. /etc -> /system/etc
+    CensusGson.STRINGS.write(census.beginSection("file_permissions_aliases"), planner.aliases);
+    census.endSection();
+  }
+
+  /**
+   * @return List of paths for file whose contents we wish to upload, the plan's files and
+   *  whatever its globs match
+   */
+  static List<String> interestingFiles(ScanPlan plan) {
+    ArrayList<String> files = new ArrayList<>(plan.files);
+
+    Paths paths = new Paths();
+    for (ScanPlan.Glob glob : plan.globs) {
+      paths.glob(glob.dir, glob.patterns.toArray(new String[0]));
+    }
+    files.addAll(paths.getPaths());
+
+    // Per-process files are collected by ProcessCensus
+    return files;
   }
 
-  public static Map<String, JsonElement> poll() {
-    Map<String, JsonElement> results = new HashMap<>();
-    pollPermissions(results);
-    pollSmallFileContents(results);
+  /**
+   * Unfortunately Java/Apache-commons various APIs to read a whole file don't work well with
+   *  /proc because stat() returns st_size=0, and there are thousands of these files, so they're
+   *  all read natively in one call.
+   */
+  private static void pollSmallFileContents(final CensusWriter census, CensusConfig config,
+      ScanPlan plan, final CensusMetrics.Span span) throws IOException {
+    final String[] paths = new LinkedHashSet<>(interestingFiles(plan)).toArray(new String[0]);
+    // Reused across files so only the largest one sizes the buffer
+    final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+
+    census.beginBlobSection("small_files");
+    FileContentsSink sink = new FileContentsSink(BATCH_SIZE) {
+      @Override
+      protected void consume(FileContentsCursor files) throws IOException {
+        while (files.next()) {
+          if (files.error() != 0) {
+            span.addError();
+            continue;
+          }
+
+          files.writeTo(contents);
+          if (!files.hasMore()) {
+            census.writeBlob(paths[files.fileIndex()], contents);
+            span.addEntries(1);
+            contents.reset();
+          }
+        }
+      }
+    };
+    try (CensusMetrics.Span read = census.metrics().begin("readFilesBatched", "native")) {
+      readFilesBatched(paths, config.readThreads(), sink.buffer(), sink);
+      read.addEntries(paths.length);
+    }
+    census.endSection();
+  }
 
-    return results;
+  public static void poll(CensusWriter census, CensusConfig config, ScanPlan plan,
+      File cursorFile, File indexFile) throws IOException {
+    CensusMetrics metrics = census.metrics();
+    try (CensusMetrics.Span span = metrics.begin("pollPermissions", "collector")) {
+      pollPermissions(census, config, plan, cursorFile, indexFile, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollSmallFileContents", "collector")) {
+      pollSmallFileContents(census, config, plan, span);
+    }
   }
 }
@@ -0,0 +1,204 @@
+package net.tsyrklevich.censustaker;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 of the files S3Uploader has seen before, so files that haven't changed since the last
+ *  run don't have to be read again. An entry is only used while the file's device, inode, size,
+ *  mtime and ctime all still match.
+ *
+ * Entries are kept in least recently used order and the oldest are dropped past maxEntries. The
+ *  cache is tied to one bucket, loading it for a different one starts out empty.
+ */
+public class HashCache {
+  private static final int MAGIC = 0x48434831; // "HCH1"
+  private static final int DIGEST_SIZE = 32;
+
+  public static class Key {
+    final long dev;
+    final long ino;
+    final long size;
+    final long mtime;
+    final long ctime;
+
+    public Key(long dev, long ino, long size, long mtime, long ctime) {
+      this.dev = dev;
+      this.ino = ino;
+      this.size = size;
+      this.mtime = mtime;
+      this.ctime = ctime;
+    }
+
+    boolean matches(Entry entry) {
+      return dev == entry.dev && ino == entry.ino && size == entry.size
+          && mtime == entry.mtime && ctime == entry.ctime;
+    }
+  }
+
+  public static class Entry {
+    long dev;
+    long ino;
+    long size;
+    long mtime;
+    long ctime;
+    byte[] digest;
+    /** The object and its .json were both seen in the bucket. */
+    public boolean uploaded;
+
+    public String hash() {
+      return S3Uploader.encodeHex(digest);
+    }
+  }
+
+  private final File file;
+  private final String bucket;
+  private final Map<String, Entry> entries;
+  private boolean dirty;
+
+  protected HashCache(File file, String bucket, final int maxEntries) {
+    this.file = file;
+    this.bucket = bucket;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    read();
+  }
+
+  /**
+   * @return the cache stored in file, or an empty one if there isn't a usable one for bucket
+   */
+  public static HashCache load(File file, String bucket, int maxEntries) {
+    return new HashCache(file, bucket, maxEntries);
+  }
+
+  private void read() {
+    if (!file.isFile()) {
+      return;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || !in.readUTF().equals(bucket)) {
+        return;
+      }
+
+      // Stored least recently used first, so reinserting restores the order
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        Entry entry = new Entry();
+        entry.dev = in.readLong();
+        entry.ino = in.readLong();
+        entry.size = in.readLong();
+        entry.mtime = in.readLong();
+        entry.ctime = in.readLong();
+        entry.digest = new byte[DIGEST_SIZE];
+        in.readFully(entry.digest);
+        entry.uploaded = in.readBoolean();
+        entries.put(path, entry);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the metadata entries for path are checked against
+   * @throws IOException if path can't be stat()ed
+   */
+  protected Key stat(String path) throws IOException {
+    try {
+      StructStat st = Os.stat(path);
+      return new Key(st.st_dev, st.st_ino, st.st_size, st.st_mtime, st.st_ctime);
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the entry for path if the file hasn't changed since it was stored, otherwise null
+   */
+  public synchronized Entry get(String path, Key key) {
+    Entry entry = entries.get(path);
+    if (entry == null || !key.matches(entry)) {
+      return null;
+    }
+    // The lookup moved it to the back of the LRU order
+    dirty = true;
+    return entry;
+  }
+
+  public synchronized void put(String path, Key key, String hash, boolean uploaded) {
+    Entry entry = new Entry();
+    entry.dev = key.dev;
+    entry.ino = key.ino;
+    entry.size = key.size;
+    entry.mtime = key.mtime;
+    entry.ctime = key.ctime;
+    entry.digest = decodeHex(hash);
+    entry.uploaded = uploaded;
+    entries.put(path, entry);
+    dirty = true;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Replace the cache on disk, see AtomicWrites. Does nothing if nothing changed since it was
+   *  loaded.
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+
+    AtomicWrites.atomicWrite(file, new AtomicWrites.Contents() {
+      @Override
+      public void writeTo(OutputStream stream) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+          out.writeInt(MAGIC);
+          out.writeUTF(bucket);
+          out.writeInt(entries.size());
+          for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeLong(entry.dev);
+            out.writeLong(entry.ino);
+            out.writeLong(entry.size);
+            out.writeLong(entry.mtime);
+            out.writeLong(entry.ctime);
+            out.write(entry.digest);
+            out.writeBoolean(entry.uploaded);
+          }
+        }
+      }
+    });
+    dirty = false;
+  }
+
+  private static byte[] decodeHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return bytes;
+  }
+}
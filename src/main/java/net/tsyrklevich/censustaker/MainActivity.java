@@ -3,6 +3,8 @@ package net.tsyrklevich.censustaker;
 import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -16,40 +18,64 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.google.gson.stream.JsonWriter;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.Reader;
+import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity {
-    private Map<String, JsonElement> results = new HashMap<>();
-    private final Gson gson = new Gson();
+    private CensusConfig config;
+    private CensusCompression compression;
+    private CensusMetrics metrics;
+    private File compressedResults;
+    private File deltaResults;
+    private File jsonResults;
+    // Fingerprint of the last census the server accepted, what deltas are taken against
+    private File lastFingerprint;
+    // Where filesystem walks that ran out of budget left off, the next census resumes them
+    private File scanCursor;
+    private File scanIndex;
+    private File traceFile;
+    // Censuses that couldn't be uploaded, flusher retries them in the background
+    private CensusSpool spool;
+    private CensusSpool.Flusher flusher;
+    private File spooledJson;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private CensusScheduler scheduler;
+    // Counted down once the census thread is done, postCensus() waits on it
+    private final CountDownLatch censusDone = new CountDownLatch(1);
+    // Whether compressedResults holds a whole census from this run
+    private volatile boolean censusWritten;
+    private TextView status;
     private Button storage;
     private static final int STORAGE_PERMISSION_CODE = 101;
+    private static final String JSON_CONTENT_TYPE = "application/octet-stream";
+    // Reminder to self: census.tsyrklevi.ch is configured without SSL so that old Android
+    //  devices without SNI can hit it. Switching to census.tsyrklevich.net will require some
+    //  additional code for cert validation and potentially loss of support for old clients.
+    private static final String CENSUS_HOSTNAME = "census.tsyrklevi.ch";
     public boolean uploadedRequest = false;
 
-    public void getDeviceInfo() {
-        Map<String, String> deviceInfo = new HashMap<>();
-
+    public void getDeviceInfo(CensusWriter census) throws IOException {
         String deviceName;
         String manufacturer = Build.MANUFACTURER;
         String model = Build.MODEL;
@@ -60,7 +86,34 @@ public class MainActivity extends Activity {
             deviceName = String.format("%s %s (%s)", manufacturer, model, version);
         }
 
-        results.put("device_name", gson.toJsonTree(deviceName, deviceName.getClass()));
+        census.beginSection("device_name").value(deviceName);
+        census.endSection();
+    }
+
+    private Collector deviceInfo() {
+        return new Collector() {
+            @Override
+            public String name() {
+                return "device";
+            }
+
+            @Override
+            public void collect(CensusWriter census) throws IOException {
+                getDeviceInfo(census);
+            }
+        };
+    }
+
+    /**
+     * Append a line to the status shown on screen, from any thread.
+     */
+    private void showStatus(final String line) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                status.append(line + "\n");
+            }
+        });
     }
 
     /**
@@ -75,87 +128,314 @@ public class MainActivity extends Activity {
         }
     }
 
-    private String writeResultsToDisk(String jsonResults) {
+    /**
+     * @return the file the uncompressed copy of the census is written to, or null if external
+     *  storage isn't writable.
+     */
+    private File createResultsFile() {
         File outputDir = Environment.getExternalStorageDirectory();
+        String suffix = config.censusFormat() == CensusWriter.Format.BINARY ? ".census" : ".json";
+        try {
+            return File.createTempFile("device_data", suffix, outputDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Run every collector, streaming the census into outputFile (if any) and, deflated, into
+     *  compressedResults for postCensus() to upload. The collectors run at the same time, their
+     *  sections end up in the census in the order they're listed here.
+     */
+    private void writeResults(File outputFile) throws IOException {
+        CountingOutputStream compressedBytes = new CountingOutputStream(new FileOutputStream(compressedResults));
+        OutputStream compressed = metrics.time("deflate", "compression", compression.deflate(compressedBytes));
+        CensusWriter census;
+        if (outputFile != null) {
+            census = new CensusWriter(config.censusFormat(), metrics, new FileOutputStream(outputFile), compressed);
+        } else {
+            census = new CensusWriter(config.censusFormat(), metrics, compressed);
+        }
+
         try {
-            File outputFile = File.createTempFile("device_data", ".json", outputDir);
-            FileOutputStream stream = new FileOutputStream(outputFile);
-            stream.write(jsonResults.getBytes(StandardCharsets.UTF_8));
-            stream.flush();
-            stream.close();
+            List<Collector> collectors = Arrays.asList(
+                    deviceInfo(),
+                    new PropertiesCensus(config),
+                    new PackageManagerCensus(config, getPackageManager()),
+                    new ProcessCensus(),
+                    new FileSystemCensus(config, ScanPlan.load(this), scanCursor,
+                            scanIndex));
+            scheduler.run(collectors, census);
+            census.writeMetrics();
+        } finally {
+            census.close();
+        }
+        Log.i("censustaker", "Census is " + compressedBytes.getByteCount() + " bytes compressed");
+
+        if (config.metricsTrace()) {
+            traceFile = outputFile != null
+                    ? new File(outputFile.getPath().replaceFirst("\\.[a-z]+$", "") + ".trace.json")
+                    : new File(getCacheDir(), "census.trace.json");
+            writeTrace();
+        }
 
+        if (outputFile != null) {
             // We can't use setReadable on old devices.
             Runtime.getRuntime().exec("chmod 777 " + outputFile.getAbsolutePath());
             //outputFile.setReadable(true, false);
 
             Log.i("censustaker", outputFile.getAbsolutePath());
-            return outputFile.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Fingerprint compressedResults and, if there's a base to compare against, write the delta
+     *  since base to deltaResults.
+     *
+     * @return the fingerprint of compressedResults
+     */
+    private CensusFingerprint writeDelta(CensusFingerprint base) throws IOException {
+        try (CensusReader census = new CensusReader(compression.inflate(
+                new FileInputStream(compressedResults)))) {
+            if (base == null) {
+                return CensusDelta.fingerprint(census);
+            }
+
+            try (JsonWriter delta = new JsonWriter(new OutputStreamWriter(
+                    compression.deflate(new FileOutputStream(deltaResults)), StandardCharsets.UTF_8))) {
+                return CensusDelta.diff(census, base, delta);
+            }
+        }
+    }
+
+    /**
+     * Convert the compressed binary census in results to the JSON format in jsonFile, for
+     *  servers that don't understand the binary one.
+     */
+    private void writeJsonResults(File results, File jsonFile) throws IOException {
+        try (CensusReader census = new CensusReader(compression.inflate(
+                new FileInputStream(results)));
+             JsonWriter json = new JsonWriter(new OutputStreamWriter(new BufferedOutputStream(
+                     compression.deflate(new FileOutputStream(jsonFile))), StandardCharsets.UTF_8))) {
+            census.toJson(json);
+        }
+    }
+
+    /**
+     * @param contentType JSON_CONTENT_TYPE or CensusContainer.CONTENT_TYPE
+     * @param deltaBase snapshot ID results is a delta against, or null if it's a full census
+     * @param dictionaryVersion see CensusCompression.dictionaryVersion()
+     * @return an upload of results that picks up where the last attempt left off on each retry
+     */
+    private CensusUpload newUpload(String hostname, File results, String contentType, String deltaBase,
+                                   String dictionaryVersion) throws MalformedURLException {
+        CensusUpload upload = new CensusUpload(new URL("http://" + hostname + "/results/new"), results, contentType);
+        /* Prevent random posts in production, we don't care in development. */
+        try {
+            String password = IOUtils.toString(getAssets().open("server_password"), StandardCharsets.UTF_8);
+            upload.setHeader("Authorization", password.replace("\n", ""));
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+        if (deltaBase != null) {
+            upload.setHeader("X-Census-Delta-Base", deltaBase);
+        }
+        if (dictionaryVersion != null) {
+            upload.setHeader(CensusCompression.DICTIONARY_HEADER, dictionaryVersion);
         }
-        return jsonResults;
+        return upload;
     }
 
-    private boolean postResults(String hostname, byte[] jsonResults) {
-        URL url = null;
-        HttpURLConnection conn = null;
+    /**
+     * Make one attempt at a spooled census. The flusher sends them one after another, so each
+     *  leaves its connection open for the next.
+     */
+    private int sendSpooled(CensusSpool.Entry entry) {
         try {
-            url = new URL("http://" + hostname + "/results/new");
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            /* Prevent random posts in production, we don't care in development. */
-            try {
-                String password = IOUtils.toString(getAssets().open("server_password"), StandardCharsets.UTF_8);
-                conn.setRequestProperty("Authorization", password.replace("\n", ""));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            CensusUpload upload = newUpload(CENSUS_HOSTNAME, entry.file, entry.contentType, null,
+                    entry.dictionaryVersion);
+            upload.setKeepAlive(true);
+            int response = upload.attempt();
+            if (response != HttpURLConnection.HTTP_UNSUPPORTED_TYPE
+                    || !entry.contentType.equals(CensusContainer.CONTENT_TYPE)) {
+                return response;
             }
-            conn.setRequestProperty("Content-Type", "application/octet-stream");
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            Log.i("censustaker", "Sending up data!");
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(jsonResults, 0, jsonResults.length);
+
+            // Older servers only take JSON
+            writeJsonResults(entry.file, spooledJson);
+            upload = newUpload(CENSUS_HOSTNAME, spooledJson, JSON_CONTENT_TYPE, null,
+                    compression.dictionaryVersion());
+            upload.setKeepAlive(true);
+            return upload.attempt();
+        } catch (IOException e) {
+            // Including a census compressed with a dictionary we no longer have
+            Log.e("censustaker", "Failed to send spooled census: " + e.toString());
+            return HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+        }
+    }
+
+    /**
+     * Start retrying spooled censuses in the background, and straight away whenever the network
+     *  comes back.
+     */
+    private void startFlusher() {
+        flusher = new CensusSpool.Flusher(spool, new CensusSpool.Sender() {
+            @Override
+            public int send(CensusSpool.Entry entry) {
+                return sendSpooled(entry);
             }
-            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                Log.e("censustaker", "/results/new failed with response " + conn.getResponseMessage());
-                return false;
+        }, config.spoolBackoffMillis(), config.spoolMaxBackoffMillis());
+        flusher.start();
+
+        ConnectivityManager connectivity = getSystemService(ConnectivityManager.class);
+        if (connectivity != null) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    flusher.wake();
+                }
+            };
+            connectivity.registerDefaultNetworkCallback(networkCallback);
+        }
+    }
+
+    /**
+     * Keep the full census for the flusher to retry, deltas are left out since the server may
+     *  have moved on from their base by the time they go through.
+     */
+    private void spoolCensus(File compressed, String contentType) {
+        try {
+            if (spool.add(compressed, contentType, compression.dictionaryVersion()) != null) {
+                Log.i("censustaker", "Census spooled for later");
+                flusher.wake();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeTrace() {
+        if (traceFile == null) {
+            return;
+        }
 
-        } catch (MalformedURLException e) {
-            Log.e("censustaker", " Error creating http://" + hostname + "/results/new");
-            return false;
+        try {
+            metrics.writeTrace(traceFile);
+            Log.i("censustaker", "Trace written to " + traceFile.getAbsolutePath());
         } catch (IOException e) {
-            Log.e("censustaker", " Error connecting http://" + hostname + "/results/new");
-            return false;
+            e.printStackTrace();
+        }
+    }
+
+    private void saveFingerprint(CensusFingerprint fingerprint) {
+        if (fingerprint == null) {
+            return;
         }
-        Log.i("censutaker", "Successfully uploaded to server!");
-        return true;
 
+        try {
+            fingerprint.save(lastFingerprint);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Upload the census once the census thread started by onCreate() has written it.
+     */
     public void postCensus() {
         try {
-            byte[] jsonResults = gson.toJson(results).getBytes(StandardCharsets.UTF_8);
-
-            ByteArrayOutputStream bout = new ByteArrayOutputStream(jsonResults.length);
-            DeflaterOutputStream out = new DeflaterOutputStream(bout);
-            out.write(jsonResults);
-            out.close();
+            censusDone.await();
+            if (!censusWritten) {
+                Log.e("censustaker", "No census was written, nothing to upload");
+                return;
+            }
 
-            final byte[] compressed = bout.toByteArray();
+            final File compressed = compressedResults;
+            final String compressedType = config.censusFormat() == CensusWriter.Format.BINARY
+                    ? CensusContainer.CONTENT_TYPE : JSON_CONTENT_TYPE;
+
+            CensusFingerprint fingerprint = null;
+            File payload = compressed;
+            String deltaBase = null;
+            if (config.deltaUploads()) {
+                CensusFingerprint base = CensusFingerprint.load(lastFingerprint);
+                try (CensusMetrics.Span span = metrics.begin("writeDelta", "compression")) {
+                    fingerprint = writeDelta(base);
+                    if (base != null) {
+                        payload = deltaResults;
+                        deltaBase = base.snapshotId;
+                        span.addBytes(deltaResults.length());
+                    }
+                } catch (IOException e) {
+                    Log.e("censustaker", "Failed to compute census delta, sending it in full: " + e.toString());
+                }
+            }
+            final CensusFingerprint uploadedFingerprint = fingerprint;
+            final File firstPayload = payload;
+            final String firstDeltaBase = deltaBase;
+            final AtomicBoolean uploaded = new AtomicBoolean();
 
             Thread t = new Thread() {
                 public void run() {
+                    File payload = firstPayload;
+                    String deltaBase = firstDeltaBase;
+                    // Deltas are always JSON
+                    String contentType = deltaBase != null ? JSON_CONTENT_TYPE : compressedType;
+                    CensusUpload upload = null;
                     for (int retries = 4; retries >= 0; retries--) {
-                        // Reminder to self: census.tsyrklevi.ch is configured without SSL so
-                        //  that old Android devices without SNI can hit it. Switching to
-                        //  census.tsyrklevich.net will require some additional code for
-                        //  cert validation and potentially loss of support for old clients.
-                        if (postResults("census.tsyrklevi.ch", compressed)) {
+                        int response;
+                        try {
+                            if (upload == null) {
+                                upload = newUpload(CENSUS_HOSTNAME, payload, contentType, deltaBase,
+                                        compression.dictionaryVersion());
+                            }
+                            try (CensusMetrics.Span span = metrics.begin("postCensus", "upload")) {
+                                long sent = upload.bytesSent();
+                                response = upload.attempt();
+                                span.addBytes(upload.bytesSent() - sent);
+                                if (response != HttpURLConnection.HTTP_OK) {
+                                    span.addError();
+                                }
+                            }
+                        } catch (MalformedURLException e) {
+                            Log.e("censustaker", " Error creating http://" + CENSUS_HOSTNAME + "/results/new");
+                            return;
+                        }
+                        if (response == HttpURLConnection.HTTP_OK) {
+                            Log.i("censutaker", "Successfully uploaded to server!");
                             uploadedRequest = true;
+                            uploaded.set(true);
+                            saveFingerprint(uploadedFingerprint);
                             break;
                         }
+                        Log.e("censustaker", "/results/new failed with response " + response);
+
+                        // The server doesn't have the snapshot the delta is against, send it all
+                        if (response == HttpURLConnection.HTTP_CONFLICT && deltaBase != null) {
+                            Log.i("censustaker", "Server wants the full census");
+                            payload = compressed;
+                            contentType = compressedType;
+                            deltaBase = null;
+                            upload = null;
+                            continue;
+                        }
+
+                        // Older servers only take JSON
+                        if (response == HttpURLConnection.HTTP_UNSUPPORTED_TYPE
+                                && contentType.equals(CensusContainer.CONTENT_TYPE)) {
+                            Log.i("censustaker", "Server doesn't take the binary census, converting it to JSON");
+                            try (CensusMetrics.Span span = metrics.begin("writeJsonResults", "compression")) {
+                                writeJsonResults(compressed, jsonResults);
+                                span.addBytes(jsonResults.length());
+                                payload = jsonResults;
+                                contentType = JSON_CONTENT_TYPE;
+                                upload = null;
+                                continue;
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
 
                         try {
                             Thread.sleep(5000);
@@ -167,10 +447,13 @@ public class MainActivity extends Activity {
 
             t.start();
             t.join();
+            writeTrace();
 
-            // Dump to logcat if we couldn't upload
-            if (!uploadedRequest) {
-                logLongData(new String(Base64.encodeBase64(compressed)));
+            if (!uploaded.get()) {
+                spoolCensus(compressed, compressedType);
+                if (config.logcatDump()) {
+                    logLongData(new String(Base64.encodeBase64(FileUtils.readFileToByteArray(compressed))));
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -197,42 +480,93 @@ public class MainActivity extends Activity {
                         STORAGE_PERMISSION_CODE);
             }
         });
-        final TextView tv = (TextView) findViewById(R.id.textView);
+        status = (TextView) findViewById(R.id.textView);
+
+        config = CensusConfig.load(this);
+        compression = CensusCompression.load(this, config);
+        metrics = new CensusMetrics();
+        compressedResults = new File(getCacheDir(), "census.deflate");
+        deltaResults = new File(getCacheDir(), "census_delta.deflate");
+        jsonResults = new File(getCacheDir(), "census_json.deflate");
+        lastFingerprint = new File(getFilesDir(), "census.fingerprint");
+        scanCursor = new File(getFilesDir(), "scan.cursor");
+        scanIndex = new File(getFilesDir(), "scan.index");
+        spool = new CensusSpool(new File(getFilesDir(), "spool"), config.spoolMaxBytes(),
+                config.spoolMaxEntries());
+        spooledJson = new File(getCacheDir(), "spool_json.deflate");
+        startFlusher();
+
+        File partsDir = new File(getCacheDir(), "collectors");
+        partsDir.mkdirs();
+        scheduler = new CensusScheduler(config, metrics, partsDir, new CensusScheduler.Listener() {
+            @Override
+            public void onCollectorStarted(String name) {
+                showStatus("Collecting " + name + "...");
+            }
+
+            @Override
+            public void onCollectorFinished(String name, boolean succeeded, int finished, int total) {
+                showStatus(String.format(Locale.US, "%s %s (%d/%d)", name,
+                        succeeded ? "done" : "failed", finished, total));
+            }
+        });
 
-        try {
+        // Uploading and collecting block for a long time, keep them off the UI thread
+        new Thread("census") {
+            @Override
+            public void run() {
+                try {
+                    uploadToS3();
+
+                    File outputFile = createResultsFile();
+                    try {
+                        writeResults(outputFile);
+                        censusWritten = true;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (outputFile != null) {
+                        showStatus("Output file: " + outputFile.getAbsolutePath());
+                    }
+                } finally {
+                    censusDone.countDown();
+                }
+            }
+        }.start();
+    }
+
+    private void uploadToS3() {
+        try (CensusMetrics.Span span = metrics.begin("S3Uploader", "upload")) {
             String aws_access_key = IOUtils.toString(getAssets().open("aws_access_key"), StandardCharsets.UTF_8).replace("\n", "");
             String aws_secret_key = IOUtils.toString(getAssets().open("aws_secret_key"), StandardCharsets.UTF_8).replace("\n", "");
             String s3_bucket_name = IOUtils.toString(getAssets().open("s3_bucket_name"), StandardCharsets.UTF_8).replace("\n", "");
             String s3_path_list = IOUtils.toString(getAssets().open("s3_path_list"), StandardCharsets.UTF_8);
             List<String> paths = Arrays.asList(s3_path_list.split("[\\n]+"));
 
-            S3Uploader.upload(aws_access_key, aws_secret_key, s3_bucket_name, paths);
+            showStatus("Uploading files to S3...");
+            UploadStats stats = S3Uploader.upload(aws_access_key, aws_secret_key, s3_bucket_name, paths, config,
+                    new File(getFilesDir(), "s3_hashes"));
+            span.addEntries(stats.filesUploaded.get() + stats.filesSkipped.get() + stats.filesCached.get());
+            span.addBytes(stats.bytesUploaded.get());
+            span.addErrors(stats.filesFailed.get());
             uploadedRequest = true;
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        getDeviceInfo();
-        results.putAll(PropertiesCensus.poll());
-        results.putAll(PackageManagerCensus.poll(getPackageManager()));
-        results.putAll(FileSystemCensus.poll());
-
-        byte[] jsonResults = gson.toJson(results).getBytes(StandardCharsets.UTF_8);
-        String outputfile = writeResultsToDisk(new String(jsonResults));
-        tv.append("Output file: " + outputfile);
-
-        Gson gson = new Gson();
-        try {
-            Reader reader = Files.newBufferedReader(Paths.get(outputfile));
-            Map<?, ?> map = gson.fromJson(reader, Map.class);
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                Log.i("censustaker", entry.getKey() + "=" + entry.getValue());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (scheduler != null) {
+            scheduler.cancel();
+        }
+        if (networkCallback != null) {
+            getSystemService(ConnectivityManager.class).unregisterNetworkCallback(networkCallback);
+        }
+        if (flusher != null) {
+            flusher.interrupt();
         }
-
-
     }
 
     // Function to check and request permission
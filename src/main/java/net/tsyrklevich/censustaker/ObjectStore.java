@@ -0,0 +1,45 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The few bucket operations the uploader needs, so it can be pointed at S3, an S3-compatible
+ *  server or an in-memory fake in tests.
+ */
+public interface ObjectStore {
+  /**
+   * @return every key in the bucket that starts with prefix
+   */
+  Set<String> listKeys(String prefix) throws IOException;
+
+  void put(String key, File file) throws IOException;
+
+  void put(String key, byte[] data) throws IOException;
+
+  void copy(String fromKey, String toKey) throws IOException;
+
+  void delete(String key) throws IOException;
+
+  /**
+   * @return the id later calls for this multipart upload refer to
+   */
+  String startMultipart(String key) throws IOException;
+
+  /**
+   * Upload the first length bytes of data as part partNumber, counting from 1.
+   *
+   * @return the ETag of the part
+   */
+  String putPart(String key, String uploadId, int partNumber, byte[] data, int length)
+      throws IOException;
+
+  /**
+   * @param etags the ETag of every part, in part number order
+   */
+  void completeMultipart(String key, String uploadId, List<String> etags) throws IOException;
+
+  void abortMultipart(String key, String uploadId) throws IOException;
+}
@@ -3,130 +3,220 @@ package net.tsyrklevich.censustaker;
 import android.content.pm.FeatureInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PathPermission;
 import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.content.pm.ProviderInfo;
-import android.os.PatternMatcher;
+import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 
-public class PackageManagerCensus {
-  private static final Gson gson = new Gson();
+public class PackageManagerCensus implements Collector {
+  private final CensusConfig config;
+  private final PackageSource pm;
 
-  private static void pollSharedLibraries(PackageManager pm, Map<String, JsonElement> results) {
+  public PackageManagerCensus(CensusConfig config, PackageManager pm) {
+    this(config, new PackageSource.Android(pm));
+  }
+
+  public PackageManagerCensus(CensusConfig config, PackageSource pm) {
+    this.config = config;
+    this.pm = pm;
+  }
+
+  /**
+   * A permission as it's reported, the same permission turns up once per way it was found so
+   *  records are told apart by (packageName, name) alone. Either can be null, as PermissionInfo's
+   *  can. Written by {@link CensusGson#PERMISSION}.
+   */
+  static class Permission implements Comparable<Permission> {
+    final String packageName;
+    final String name;
+    final int protectionLevel;
+    final int flags;
+
+    Permission(String packageName, String name, int protectionLevel, int flags) {
+      this.packageName = packageName;
+      this.name = name;
+      this.protectionLevel = protectionLevel;
+      this.flags = flags;
+    }
+
+    Permission(PermissionInfo info) {
+      this(info.packageName, info.name, info.protectionLevel, info.flags);
+    }
+
+    /** Nulls first */
+    private static int compare(String a, String b) {
+      if (a == null || b == null) {
+        return a == null ? (b == null ? 0 : -1) : 1;
+      }
+      return a.compareTo(b);
+    }
+
+    @Override
+    public int compareTo(Permission other) {
+      int compare = compare(packageName, other.packageName);
+      return compare != 0 ? compare : compare(name, other.name);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Permission && compareTo((Permission) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(packageName) * 31 + Objects.hashCode(name);
+    }
+  }
+
+  @Override
+  public String name() {
+    return "packages";
+  }
+
+  @Override
+  public void collect(CensusWriter census) throws IOException {
+    poll(pm, census, config);
+  }
+
+  private static void pollSharedLibraries(PackageSource pm, CensusWriter census,
+      CensusMetrics.Span span) throws IOException {
     String[] sharedLibraries = pm.getSystemSharedLibraryNames();
-    results.put("system_shared_libraries", gson.toJsonTree(sharedLibraries, sharedLibraries.getClass()));
+    span.addEntries(sharedLibraries.length);
+    CensusGson.STRING_LIST.write(census.beginSection("system_shared_libraries"),
+        Arrays.asList(sharedLibraries));
+    census.endSection();
   }
 
-  private static void pollFeatures(PackageManager pm, Map<String, JsonElement> results) {
+  private static void pollFeatures(PackageSource pm, CensusWriter census,
+      CensusMetrics.Span span) throws IOException {
     List<String> features = new ArrayList<>();
     for(FeatureInfo feature : pm.getSystemAvailableFeatures()) {
       if (feature.name != null) {
         features.add(feature.name);
       }
     }
-    results.put("features", gson.toJsonTree(features, features.getClass()));
+    span.addEntries(features.size());
+    CensusGson.STRING_LIST.write(census.beginSection("features"), features);
+    census.endSection();
   }
 
-  private static void pollPermissions(PackageManager pm, Map<String, JsonElement> results) {
-    List<PermissionInfo> allPermissions =  new ArrayList<>();
+  /**
+   * Every package on the device with the permissions it declares, including those only installed
+   *  for another user. All of them at once can be more than fits in a binder transaction on a
+   *  device with a lot of packages, in which case they're listed bare and fetched one at a time.
+   */
+  private static List<PackageInfo> packagesWithPermissions(PackageSource pm,
+      CensusMetrics.Span span) {
+    int flags = PackageManager.GET_PERMISSIONS | PackageManager.MATCH_UNINSTALLED_PACKAGES;
+    try {
+      return pm.getInstalledPackages(flags);
+    } catch (RuntimeException e) {
+      // TransactionTooLargeException is rethrown as a RuntimeException by PackageManager
+      Log.e("censustaker", "Listing packages with their permissions failed, fetching them one "
+          + "by one: " + e.toString());
+      span.addError();
+    }
 
-    // Get permissions from packages
-    // TODO: Do we want these??
-    for (PackageInfo pi : pm.getInstalledPackages(PackageManager.GET_PERMISSIONS)) {
+    List<PackageInfo> packages = new ArrayList<>();
+    for (PackageInfo bare : pm.getInstalledPackages(PackageManager.MATCH_UNINSTALLED_PACKAGES)) {
+      try {
+        packages.add(pm.getPackageInfo(bare.packageName, flags));
+      } catch (PackageManager.NameNotFoundException e) {
+        // Uninstalled since it was listed
+      }
+    }
+    return packages;
+  }
+
+  /**
+   * Permissions come from the packages that declare them, which the package list covers for every
+   *  user. Querying permission groups as well fetches the same permissions over binder again, so
+   *  a group is only queried when the package that declares it wasn't in the list after all (e.g.
+   *  it was installed while the list was being fetched), its members from anywhere are kept.
+   */
+  private static void pollPermissions(PackageSource pm, CensusWriter census,
+      CensusMetrics.Span span) throws IOException {
+    Set<String> scanned = new HashSet<>();
+    Set<Permission> permissions = new TreeSet<>();
+    for (PackageInfo pi : packagesWithPermissions(pm, span)) {
+      scanned.add(pi.packageName);
       if (pi.permissions != null) {
-        allPermissions.addAll(Arrays.asList(pi.permissions));
+        for (PermissionInfo permission : pi.permissions) {
+          permissions.add(new Permission(permission));
+        }
       }
     }
 
-    // Get permissions from permission groups
-    // TODO: ungrouped permissions? Check against pm list permissions -g
-    for (PermissionGroupInfo pgi : pm.getAllPermissionGroups(PackageManager.GET_META_DATA)) {
+    for (PermissionGroupInfo pgi : pm.getAllPermissionGroups(0)) {
+      if (scanned.contains(pgi.packageName)) {
+        continue;
+      }
       try {
-        allPermissions.addAll(pm.queryPermissionsByGroup(pgi.name, PackageManager.GET_META_DATA));
+        for (PermissionInfo permission : pm.queryPermissionsByGroup(pgi.name, 0)) {
+          permissions.add(new Permission(permission));
+        }
       } catch (PackageManager.NameNotFoundException e) {
         e.printStackTrace();
+        span.addError();
       }
     }
 
-    Set<JsonElement> permissions = new HashSet<>();
-    for (PermissionInfo perm : allPermissions) {
-      Map<String, String> permission = new HashMap<>();
-      permission.put("packageName", perm.packageName);
-      permission.put("name", perm.name);
-      permission.put("protectionLevel", String.format(Locale.getDefault(), "%d", perm.protectionLevel));
-      permission.put("flags", String.format(Locale.getDefault(), "%d", perm.flags));
-
-      permissions.add(gson.toJsonTree(permission, permission.getClass()));
+    span.addEntries(permissions.size());
+    JsonWriter writer = census.beginSection("permissions");
+    writer.beginArray();
+    for (Permission permission : permissions) {
+      CensusGson.PERMISSION.write(writer, permission);
     }
-    results.put("permissions", gson.toJsonTree(permissions));
+    writer.endArray();
+    census.endSection();
   }
 
-  private static void pollContentProviders(PackageManager pm, Map<String, JsonElement> results) {
+  private static void pollContentProviders(PackageSource pm, CensusWriter census,
+      CensusConfig config, CensusMetrics.Span span) throws IOException {
     List<ProviderInfo> providerInfos = pm.queryContentProviders(null, 0, 0);
+    span.addEntries(providerInfos.size());
 
-    List<JsonElement> providers = new ArrayList<>();
+    CensusGson.ProviderWriter providers = config.providerPatternArrays()
+        ? CensusGson.PROVIDER_PATTERN_ARRAYS : CensusGson.PROVIDER;
+    JsonWriter writer = census.beginSection("providers");
+    writer.beginArray();
     for (ProviderInfo provider : providerInfos) {
-      Map<String, JsonElement> providerData = new HashMap<>();
-      providerData.put("authority",
-          gson.toJsonTree(provider.authority, provider.authority.getClass()));
-      providerData.put("multiprocess", gson.toJsonTree(provider.multiprocess, boolean.class));
-      providerData.put("grantUriPermissions",
-          gson.toJsonTree(provider.grantUriPermissions, boolean.class));
-      providerData.put("initOrder", gson.toJsonTree(provider.initOrder, int.class));
-
-      if (provider.readPermission != null) {
-        providerData.put("readPermission",
-            gson.toJsonTree(provider.readPermission, provider.readPermission.getClass()));
-      }
-      if (provider.writePermission != null) {
-        providerData.put("writePermission",
-            gson.toJsonTree(provider.writePermission, provider.writePermission.getClass()));
-      }
-      providerData.put("flags", gson.toJsonTree(provider.flags, int.class));
-      if(provider.pathPermissions != null) {
-        List<String> pathPermissions = new ArrayList<>();
-        for (PathPermission pp : provider.pathPermissions) {
-          pathPermissions.add(String.format("%s,%s,%s", pp.toString(), pp.getReadPermission(),
-              pp.getWritePermission()));
-        }
-
-        providerData.put("pathPermissions", gson.toJsonTree(gson.toJson(pathPermissions)));
-      }
-      if (provider.uriPermissionPatterns	!= null) {
-        List<String> uriPermissionPatterns = new ArrayList<>();
-        for (PatternMatcher pattern : provider.uriPermissionPatterns) {
-          uriPermissionPatterns.add(pattern.toString());
-        }
-
-        providerData.put("uriPermissionPatterns", gson.toJsonTree(gson.toJson(uriPermissionPatterns)));
-      }
-
-      providers.add(gson.toJsonTree(providerData, providerData.getClass()));
+      providers.write(writer, provider);
     }
-
-    results.put("providers", gson.toJsonTree(providers, providers.getClass()));
+    writer.endArray();
+    census.endSection();
   }
 
-  public static Map<String, JsonElement> poll(PackageManager pm) {
-    Map<String, JsonElement> results = new HashMap<>();
-
-    pollSharedLibraries(pm, results);
-    pollFeatures(pm, results);
-    pollPermissions(pm, results);
-    pollContentProviders(pm, results);
+  public static void poll(PackageManager pm, CensusWriter census, CensusConfig config)
+      throws IOException {
+    poll(new PackageSource.Android(pm), census, config);
+  }
 
-    return results;
+  public static void poll(PackageSource pm, CensusWriter census, CensusConfig config)
+      throws IOException {
+    CensusMetrics metrics = census.metrics();
+    try (CensusMetrics.Span span = metrics.begin("pollSharedLibraries", "collector")) {
+      pollSharedLibraries(pm, census, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollFeatures", "collector")) {
+      pollFeatures(pm, census, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollPermissions", "collector")) {
+      pollPermissions(pm, census, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollContentProviders", "collector")) {
+      pollContentProviders(pm, census, config, span);
+    }
   }
 }
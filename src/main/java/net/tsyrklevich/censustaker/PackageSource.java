@@ -0,0 +1,76 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.pm.FeatureInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import java.util.List;
+
+/**
+ * The PackageManager calls PackageManagerCensus makes, so it can be run against a fake on a JVM.
+ *  {@link Android} hands them straight to the real one, each is a binder call there.
+ */
+public interface PackageSource {
+  String[] getSystemSharedLibraryNames();
+
+  FeatureInfo[] getSystemAvailableFeatures();
+
+  List<PackageInfo> getInstalledPackages(int flags);
+
+  PackageInfo getPackageInfo(String packageName, int flags)
+      throws PackageManager.NameNotFoundException;
+
+  List<PermissionGroupInfo> getAllPermissionGroups(int flags);
+
+  List<PermissionInfo> queryPermissionsByGroup(String group, int flags)
+      throws PackageManager.NameNotFoundException;
+
+  List<ProviderInfo> queryContentProviders(String processName, int uid, int flags);
+
+  class Android implements PackageSource {
+    private final PackageManager pm;
+
+    public Android(PackageManager pm) {
+      this.pm = pm;
+    }
+
+    @Override
+    public String[] getSystemSharedLibraryNames() {
+      return pm.getSystemSharedLibraryNames();
+    }
+
+    @Override
+    public FeatureInfo[] getSystemAvailableFeatures() {
+      return pm.getSystemAvailableFeatures();
+    }
+
+    @Override
+    public List<PackageInfo> getInstalledPackages(int flags) {
+      return pm.getInstalledPackages(flags);
+    }
+
+    @Override
+    public PackageInfo getPackageInfo(String packageName, int flags)
+        throws PackageManager.NameNotFoundException {
+      return pm.getPackageInfo(packageName, flags);
+    }
+
+    @Override
+    public List<PermissionGroupInfo> getAllPermissionGroups(int flags) {
+      return pm.getAllPermissionGroups(flags);
+    }
+
+    @Override
+    public List<PermissionInfo> queryPermissionsByGroup(String group, int flags)
+        throws PackageManager.NameNotFoundException {
+      return pm.queryPermissionsByGroup(group, flags);
+    }
+
+    @Override
+    public List<ProviderInfo> queryContentProviders(String processName, int uid, int flags) {
+      return pm.queryContentProviders(processName, uid, flags);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package net.tsyrklevich.censustaker;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One record per running process: its command line, the interesting parts of
+ *  /proc/&lt;pid&gt;/status parsed into typed fields and its SELinux contexts.
+ */
+public class ProcessCensus implements Collector {
+  /**
+   * Open every /proc/&lt;pid&gt; directory once and read cmdline, status, attr/current and
+   *  attr/fscreate relative to it, handing the processes back a batch at a time.
+   */
+  private static native void readProcesses(ByteBuffer buffer, ProcessRecordSink sink)
+      throws IOException;
+
+  private static final int BATCH_SIZE = 256 * 1024;
+
+  @Override
+  public String name() {
+    return "processes";
+  }
+
+  @Override
+  public void collect(CensusWriter census) throws IOException {
+    poll(census);
+  }
+
+  /**
+   * Strip the trailing NUL and/or newline the kernel leaves on attr files.
+   */
+  private static String trimContext(String context) {
+    if (context == null) {
+      return null;
+    }
+
+    int end = context.length();
+    while (end > 0 && (context.charAt(end - 1) == '\0' || context.charAt(end - 1) == '\n')) {
+      end--;
+    }
+    return end > 0 ? context.substring(0, end) : null;
+  }
+
+  private static void writeCmdline(JsonWriter writer, String cmdline) throws IOException {
+    writer.name("cmdline").beginArray();
+    int start = 0;
+    while (start < cmdline.length()) {
+      int end = cmdline.indexOf('\0', start);
+      if (end < 0) {
+        end = cmdline.length();
+      }
+      writer.value(cmdline.substring(start, end));
+      start = end + 1;
+    }
+    writer.endArray();
+  }
+
+  /**
+   * @throws NumberFormatException before anything is written if any of the numbers don't parse
+   */
+  private static void writeIntArray(JsonWriter writer, String name, String value)
+      throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    int start = 0;
+    while (start < value.length()) {
+      while (start < value.length() && Character.isWhitespace(value.charAt(start))) {
+        start++;
+      }
+      int end = start;
+      while (end < value.length() && !Character.isWhitespace(value.charAt(end))) {
+        end++;
+      }
+      if (end > start) {
+        numbers.add(Long.parseLong(value.substring(start, end)));
+      }
+      start = end;
+    }
+
+    writer.name(name).beginArray();
+    for (long number : numbers) {
+      writer.value(number);
+    }
+    writer.endArray();
+  }
+
+  /**
+   * Takes the number already parsed so one that doesn't parse leaves no dangling name behind.
+   */
+  private static void writeNumber(JsonWriter writer, String name, long value) throws IOException {
+    writer.name(name).value(value);
+  }
+
+  /**
+   * Write the fields of status, the contents of /proc/&lt;pid&gt;/status, that the server looks at
+   *  into the object being written. Everything else is dropped, as is a field that doesn't parse.
+   */
+  public static void writeStatus(JsonWriter writer, String status) throws IOException {
+    int start = 0;
+    while (start < status.length()) {
+      int end = status.indexOf('\n', start);
+      if (end < 0) {
+        end = status.length();
+      }
+      int colon = status.indexOf(':', start);
+      if (colon > start && colon < end) {
+        String key = status.substring(start, colon);
+        String value = status.substring(colon + 1, end).trim();
+        try {
+          writeStatusField(writer, key, value);
+        } catch (NumberFormatException e) {
+          // A kernel with a different idea of the field's format, leave it out
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private static void writeStatusField(JsonWriter writer, String key, String value)
+      throws IOException {
+    switch (key) {
+      case "Name":
+        writer.name("name").value(value);
+        break;
+      case "State":
+        writer.name("state").value(value.isEmpty() ? value : value.substring(0, 1));
+        break;
+      case "PPid":
+        writeNumber(writer, "ppid", Integer.parseInt(value));
+        break;
+      case "Uid":
+        writeIntArray(writer, "uid", value);
+        break;
+      case "Gid":
+        writeIntArray(writer, "gid", value);
+        break;
+      case "Groups":
+        writeIntArray(writer, "groups", value);
+        break;
+      case "CapInh":
+        writeNumber(writer, "capInh", Long.parseLong(value, 16));
+        break;
+      case "CapPrm":
+        writeNumber(writer, "capPrm", Long.parseLong(value, 16));
+        break;
+      case "CapEff":
+        writeNumber(writer, "capEff", Long.parseLong(value, 16));
+        break;
+      case "CapBnd":
+        writeNumber(writer, "capBnd", Long.parseLong(value, 16));
+        break;
+      case "CapAmb":
+        writeNumber(writer, "capAmb", Long.parseLong(value, 16));
+        break;
+      case "NoNewPrivs":
+        writeNumber(writer, "noNewPrivs", Integer.parseInt(value));
+        break;
+      case "Seccomp":
+        writeNumber(writer, "seccomp", Integer.parseInt(value));
+        break;
+      case "Seccomp_filters":
+        writeNumber(writer, "seccompFilters", Integer.parseInt(value));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void writeProcess(JsonWriter writer, ProcessRecordCursor process)
+      throws IOException {
+    writer.beginObject();
+    writer.name("pid").value(process.pid());
+
+    String cmdline = process.cmdline();
+    if (cmdline != null) {
+      writeCmdline(writer, cmdline);
+    }
+    writeStatus(writer, process.status());
+
+    String context = trimContext(process.attrCurrent());
+    if (context != null) {
+      writer.name("context").value(context);
+    }
+    String fscreate = trimContext(process.attrFscreate());
+    if (fscreate != null) {
+      writer.name("fscreate").value(fscreate);
+    }
+    writer.endObject();
+  }
+
+  public static void poll(CensusWriter census) throws IOException {
+    System.loadLibrary("censustaker");
+
+    try (final CensusMetrics.Span span = census.metrics().begin("pollProcesses", "collector")) {
+      final JsonWriter writer = census.beginSection("processes");
+      writer.beginArray();
+      try (final CensusMetrics.Span read = census.metrics().begin("readProcesses", "native")) {
+        ProcessRecordSink sink = new ProcessRecordSink(BATCH_SIZE) {
+          @Override
+          protected void consume(ProcessRecordCursor processes) throws IOException {
+            while (processes.next()) {
+              writeProcess(writer, processes);
+              span.addEntries(1);
+              read.addEntries(1);
+            }
+          }
+        };
+        readProcesses(sink.buffer(), sink);
+      }
+      writer.endArray();
+      census.endSection();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package net.tsyrklevich.censustaker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight over a batch of process records packed by the native reader: the PID and the raw
+ *  contents of a few files from its /proc directory, null where a file couldn't be read.
+ */
+public class ProcessRecordCursor {
+  // Keep in sync with the process record layout in jni/native.c
+  static final int RECORD_SIZE = 36;
+  private static final int PID = 0;
+  private static final int CMDLINE = 4;
+  private static final int STATUS = 12;
+  private static final int ATTR_CURRENT = 20;
+  private static final int ATTR_FSCREATE = 28;
+
+  private final ByteBuffer buffer;
+  private byte[] scratch = new byte[4096];
+  private int count;
+  private int index;
+  private int record;
+
+  ProcessRecordCursor(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  void reset(int count) {
+    this.count = count;
+    this.index = -1;
+  }
+
+  /**
+   * Advance to the next process in the batch.
+   *
+   * @return false once the batch is exhausted
+   */
+  public boolean next() {
+    if (index + 1 >= count) {
+      return false;
+    }
+    index++;
+    record = index * RECORD_SIZE;
+    return true;
+  }
+
+  public int pid() {
+    return buffer.getInt(record + PID);
+  }
+
+  /**
+   * @return the arguments separated (and usually terminated) by NULs
+   */
+  public String cmdline() {
+    return string(CMDLINE);
+  }
+
+  public String status() {
+    return string(STATUS);
+  }
+
+  public String attrCurrent() {
+    return string(ATTR_CURRENT);
+  }
+
+  public String attrFscreate() {
+    return string(ATTR_FSCREATE);
+  }
+
+  private String string(int field) {
+    int offset = buffer.getInt(record + field);
+    if (offset < 0) {
+      return null;
+    }
+
+    int length = buffer.getInt(record + field + 4);
+    if (length > scratch.length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    buffer.position(offset);
+    buffer.get(scratch, 0, length);
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+}
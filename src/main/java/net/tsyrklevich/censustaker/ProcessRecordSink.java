@@ -0,0 +1,32 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Receives the native process table a buffer at a time, see {@link FileRecordSink}.
+ */
+public abstract class ProcessRecordSink {
+  private final ByteBuffer buffer;
+  private final ProcessRecordCursor cursor;
+
+  protected ProcessRecordSink(int capacity) {
+    buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    cursor = new ProcessRecordCursor(buffer);
+  }
+
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Called by the native reader every time the buffer fills up and once more at the end.
+   */
+  final void onBatch(int count) throws IOException {
+    cursor.reset(count);
+    consume(cursor);
+  }
+
+  protected abstract void consume(ProcessRecordCursor processes) throws IOException;
+}
@@ -1,77 +1,263 @@
 package net.tsyrklevich.censustaker;
 
 import android.util.Log;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Collection;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.CanReadFileFilter;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
 
-public class PropertiesCensus {
-  private static final Gson gson = new Gson();
+public class PropertiesCensus implements Collector {
+  private static final String PROPERTY_AREAS = "/dev/__properties__";
+  private static final Pattern GETPROP_LINE = Pattern.compile("^\\[(.+)\\]: \\[(.+)\\]$");
+  private static final String SYSCTL_DIR = "/proc/sys";
+  // Deep enough for net.ipv4.conf.<iface>.* and friends
+  private static final int SYSCTL_DEPTH = 16;
 
-  private static void pollEnvironmentVariables(Map<String, JsonElement> results) {
-    Map<String, String> env_vars = System.getenv();
-    results.put("environment_variables", gson.toJsonTree(env_vars, env_vars.getClass()));
+  private final CensusConfig config;
+
+  public PropertiesCensus(CensusConfig config) {
+    this.config = config;
   }
 
-  private static void pollSystemProperties(Map<String, JsonElement> results) {
-    Pattern pattern = Pattern.compile("^\\[(.+)\\]: \\[(.+)\\]$");
-    Map<String, String> properties = new HashMap<>();
+  @Override
+  public String name() {
+    return "properties";
+  }
 
-    try {
-      Process proc = Runtime.getRuntime().exec("getprop");
-      BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-
-      String line;
-      while ((line = bufferedReader.readLine()) != null) {
-        Matcher matcher = pattern.matcher(line);
-        while (matcher.find()) {
-          properties.put(matcher.group(1), matcher.group(2));
-        }
+  @Override
+  public void collect(CensusWriter census) throws IOException {
+    poll(census, config);
+  }
+
+  private static void pollEnvironmentVariables(CensusWriter census, CensusMetrics.Span span)
+      throws IOException {
+    Map<String, String> env_vars = System.getenv();
+    span.addEntries(env_vars.size());
+    CensusGson.STRINGS.write(census.beginSection("environment_variables"), env_vars);
+    census.endSection();
+  }
+
+  /**
+   * The old way of collecting properties, only used if the property areas can't be read.
+   */
+  private static void readGetprop(Map<String, String> properties) throws IOException {
+    Process proc = Runtime.getRuntime().exec("getprop");
+    try (BufferedReader bufferedReader = new BufferedReader(
+        new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8))) {
+      parseGetprop(bufferedReader, properties);
+    } finally {
+      try {
+        proc.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-    } catch(IOException e) {
-      e.printStackTrace();
-      throw new RuntimeException(e);
     }
+  }
 
-    results.put("system_properties", gson.toJsonTree(properties, properties.getClass()));
+  /**
+   * Add every "[name]: [value]" line getprop printed to properties.
+   */
+  static void parseGetprop(BufferedReader output, Map<String, String> properties)
+      throws IOException {
+    String line;
+    while ((line = output.readLine()) != null) {
+      Matcher matcher = GETPROP_LINE.matcher(line);
+      while (matcher.find()) {
+        properties.put(matcher.group(1), matcher.group(2));
+      }
+    }
   }
 
-  private static void pollSysctl(Map<String, JsonElement> results) {
-    Map<String, String> sysctls = new HashMap<>();
+  private static void pollSystemProperties(CensusWriter census, CensusMetrics.Span span)
+      throws IOException {
+    Map<String, String> properties = new TreeMap<>();
+
+    int areas = 0;
+    try {
+      areas = PropertyArea.readAll(new File(PROPERTY_AREAS), properties);
+    } catch (IOException e) {
+      Log.e("censustaker", "Unrecognized property area, falling back to getprop: " + e.toString());
+      span.addError();
+      properties.clear();
+    }
 
-    Collection<File> files = FileUtils.listFiles(new File("/proc/sys"), CanReadFileFilter.CAN_READ, DirectoryFileFilter.DIRECTORY);
-    for (File file : files) {
-      String sysctl = file.getAbsolutePath().replaceAll("^/proc/sys/", "").replaceAll("/", ".");
+    if (areas == 0) {
       try {
-        String contents = FileUtils.readFileToString(file, "UTF8");
-        contents = contents.replaceAll("\n$", "");
-        sysctls.put(sysctl, contents);
-      } catch (IOException e) {
-        Log.e("censustaker", "Failed to read " + file + ": " + e.toString());
+        readGetprop(properties);
+      } catch(IOException e) {
         e.printStackTrace();
+        throw new RuntimeException(e);
+      }
+    }
+
+    span.addEntries(properties.size());
+    CensusGson.STRINGS.write(census.beginSection("system_properties"), properties);
+    census.endSection();
+  }
+
+  /**
+   * @return the sysctl name for a path under /proc/sys, e.g. kernel.randomize_va_space
+   */
+  static String sysctlName(String path) {
+    return sysctlName(SYSCTL_DIR, path);
+  }
+
+  static String sysctlName(String root, String path) {
+    return path.substring(root.length() + 1).replace('/', '.');
+  }
+
+  /**
+   * @return the contents of a sysctl without the trailing newline the kernel adds
+   */
+  static String sysctlValue(ByteArrayOutputStream contents) throws IOException {
+    String value = contents.toString("UTF-8");
+    return value.endsWith("\n") ? value.substring(0, value.length() - 1) : value;
+  }
+
+  /**
+   * Walk /proc/sys with the native scanner and read every sysctl in one batched native call.
+   *
+   * @return false if the native library isn't available
+   */
+  private static boolean pollSysctlNative(final JsonWriter writer, CensusConfig config,
+      final CensusMetrics metrics, final CensusMetrics.Span span) throws IOException {
+    try {
+      System.loadLibrary("censustaker");
+    } catch (UnsatisfiedLinkError e) {
+      Log.e("censustaker", "Native sysctl walker unavailable: " + e.toString());
+      return false;
+    }
+
+    final List<String> paths = new ArrayList<>();
+    FileRecordSink files = new FileRecordSink(FileSystemCensus.BATCH_SIZE) {
+      @Override
+      protected void consume(FileRecordCursor records) {
+        while (records.next()) {
+          if ((records.mode() & 0170000) == 0100000) {
+            paths.add(records.path());
+          }
+        }
       }
+    };
+    try (CensusMetrics.Span scan = metrics.begin("scanDirsBatched", "native")) {
+      FileSystemCensus.scanDirsBatched(new String[] {SYSCTL_DIR}, new int[] {SYSCTL_DEPTH},
+          new long[3], new String[0], new int[0], new String[0], new String[0], new int[0],
+          new int[0], new long[0], null, null, 1, files.buffer(), files);
+      scan.addEntries(paths.size());
     }
 
-    results.put("sysctl", gson.toJsonTree(sysctls, sysctls.getClass()));
+    final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    FileContentsSink sink = new FileContentsSink(FileSystemCensus.BATCH_SIZE) {
+      @Override
+      protected void consume(FileContentsCursor sysctls) throws IOException {
+        while (sysctls.next()) {
+          // Write-only sysctls like vm.drop_caches fail with EACCES
+          if (sysctls.error() != 0) {
+            span.addError();
+            continue;
+          }
+
+          sysctls.writeTo(contents);
+          if (!sysctls.hasMore()) {
+            String path = paths.get(sysctls.fileIndex());
+            writer.name(sysctlName(path)).value(sysctlValue(contents));
+            span.addEntries(1);
+            contents.reset();
+          }
+        }
+      }
+    };
+    try (CensusMetrics.Span read = metrics.begin("readFilesBatched", "native")) {
+      FileSystemCensus.readFilesBatched(paths.toArray(new String[0]), config.readThreads(),
+          sink.buffer(), sink);
+      read.addEntries(paths.size());
+    }
+    return true;
   }
 
-  public static Map<String, JsonElement> poll() {
-    Map<String, JsonElement> results = new HashMap<>();
-    pollSystemProperties(results);
-    pollSysctl(results);
-    pollEnvironmentVariables(results);
+  /**
+   * Walk root (normally /proc/sys) in one pass, reading each sysctl as it's found into a reused
+   *  buffer.
+   *
+   * @return the number of sysctls written
+   */
+  static int pollSysctlJava(JsonWriter writer, String root) throws IOException {
+    int count = 0;
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+
+    Deque<String> dirs = new ArrayDeque<>();
+    dirs.push(root);
+    while (!dirs.isEmpty()) {
+      String dir = dirs.pop();
+      String[] names = new File(dir).list();
+      if (names == null) {
+        continue;
+      }
 
-    return results;
+      // Sorted, and pushed in reverse so they're walked in order
+      Arrays.sort(names);
+      List<String> subdirs = new ArrayList<>();
+      for (String name : names) {
+        String path = dir + "/" + name;
+        contents.reset();
+        try (InputStream in = new FileInputStream(path)) {
+          int len;
+          while ((len = in.read(chunk)) != -1) {
+            contents.write(chunk, 0, len);
+          }
+        } catch (IOException e) {
+          // Either a directory or a write-only sysctl
+          if (new File(path).isDirectory()) {
+            subdirs.add(path);
+          }
+          continue;
+        }
+        writer.name(sysctlName(root, path)).value(sysctlValue(contents));
+        count++;
+      }
+      for (int i = subdirs.size() - 1; i >= 0; i--) {
+        dirs.push(subdirs.get(i));
+      }
+    }
+    return count;
+  }
+
+  private static void pollSysctl(CensusWriter census, CensusConfig config,
+      CensusMetrics.Span span) throws IOException {
+    JsonWriter writer = census.beginSection("sysctl");
+    writer.beginObject();
+    if (!pollSysctlNative(writer, config, census.metrics(), span)) {
+      span.addEntries(pollSysctlJava(writer, SYSCTL_DIR));
+    }
+    writer.endObject();
+    census.endSection();
+  }
+
+  public static void poll(CensusWriter census, CensusConfig config) throws IOException {
+    CensusMetrics metrics = census.metrics();
+    try (CensusMetrics.Span span = metrics.begin("pollSystemProperties", "collector")) {
+      pollSystemProperties(census, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollSysctl", "collector")) {
+      pollSysctl(census, config, span);
+    }
+    try (CensusMetrics.Span span = metrics.begin("pollEnvironmentVariables", "collector")) {
+      pollEnvironmentVariables(census, span);
+    }
   }
 }
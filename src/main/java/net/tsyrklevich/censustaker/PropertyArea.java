@@ -0,0 +1,252 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Reads system properties straight out of bionic's shared property areas in
+ *  /dev/__properties__ instead of forking getprop. Each area is mapped read-only and its trie
+ *  is walked in place.
+ *
+ * Layout (bionic's system_properties/prop_area.h, little-endian, offsets relative to data):
+ *
+ *  prop_area := u32 bytes_used, u32 serial, u32 magic, u32 version, u32 reserved[28], data[]
+ *  prop_bt   := u32 namelen, u32 prop, u32 left, u32 right, u32 children, name[namelen + 1]
+ *  prop_info := u32 serial, value[92], name[]
+ *
+ * The trie has one level per dot-separated name component, each level is a binary tree linked
+ *  through left and right. A prop_info's value length is the top byte of its serial, unless
+ *  LONG_FLAG is set in which case the value is a string at the u32 offset (from the prop_info)
+ *  stored 56 bytes into the value field.
+ */
+public class PropertyArea {
+  public static final int MAGIC = 0x504f5250; // "PROP"
+  public static final int VERSION = 0xfc6ed0ab;
+
+  static final int HEADER_SIZE = 128;
+  private static final int MAGIC_OFFSET = 8;
+  private static final int VERSION_OFFSET = 12;
+
+  private static final int BT_NAMELEN = 0;
+  private static final int BT_PROP = 4;
+  private static final int BT_LEFT = 8;
+  private static final int BT_RIGHT = 12;
+  private static final int BT_CHILDREN = 16;
+  private static final int BT_NAME = 20;
+
+  private static final int PROP_VALUE_MAX = 92;
+  private static final int INFO_VALUE = 4;
+  private static final int INFO_NAME = INFO_VALUE + PROP_VALUE_MAX;
+  private static final int INFO_LONG_OFFSET = INFO_VALUE + 56;
+  private static final int SERIAL_DIRTY = 1;
+  private static final int LONG_FLAG = 1 << 16;
+
+  private static final int READ_RETRIES = 8;
+
+  private final ByteBuffer area;
+  private final int dataEnd;
+  private final byte[] scratch = new byte[PROP_VALUE_MAX];
+
+  private PropertyArea(ByteBuffer area) {
+    this.area = area.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.dataEnd = area.limit();
+  }
+
+  /**
+   * @return whether buffer starts with a prop_area header of the version we understand
+   */
+  public static boolean isPropertyArea(ByteBuffer buffer) {
+    ByteBuffer area = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    return area.limit() >= HEADER_SIZE + BT_NAME
+        && area.getInt(MAGIC_OFFSET) == MAGIC && area.getInt(VERSION_OFFSET) == VERSION;
+  }
+
+  /**
+   * Add every property in area to properties.
+   *
+   * @throws IOException if area isn't a property area or its trie doesn't make sense, e.g. an
+   *  offset outside the area or a node linked to twice
+   */
+  public static void read(ByteBuffer area, Map<String, String> properties) throws IOException {
+    if (!isPropertyArea(area)) {
+      throw new IOException("Not a property area");
+    }
+    new PropertyArea(area).walk(properties);
+  }
+
+  /**
+   * Read every property area in dir, or dir itself on releases before O where it's one file.
+   *  Areas this process isn't allowed to read are skipped, just as getprop would skip them.
+   *
+   * @return the number of areas read, 0 if none were recognized
+   */
+  public static int readAll(File dir, Map<String, String> properties) throws IOException {
+    File[] files = dir.isDirectory() ? dir.listFiles() : new File[] {dir};
+    if (files == null) {
+      return 0;
+    }
+
+    Arrays.sort(files);
+    int areas = 0;
+    for (File file : files) {
+      ByteBuffer area;
+      try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+        area = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+      } catch (IOException e) {
+        Log.i("censustaker", "Skipping property area " + file + ": " + e.toString());
+        continue;
+      }
+
+      // e.g. property_info, the map from property names to areas
+      if (!isPropertyArea(area)) {
+        continue;
+      }
+      read(area, properties);
+      areas++;
+    }
+    return areas;
+  }
+
+  private int checkOffset(int offset, int size) throws IOException {
+    long position = (long) HEADER_SIZE + (offset & 0xffffffffL);
+    if (position + size > dataEnd) {
+      throw new IOException("Property area offset out of bounds: " + offset);
+    }
+    return (int) position;
+  }
+
+  private String string(int position, int length) {
+    byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+    ByteBuffer view = area.duplicate();
+    view.position(position);
+    view.get(bytes, 0, length);
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private int strlen(int position, int max) throws IOException {
+    int end = Math.min(dataEnd, position + max);
+    for (int i = position; i < end; i++) {
+      if (area.get(i) == 0) {
+        return i - position;
+      }
+    }
+    throw new IOException("Unterminated string in property area");
+  }
+
+  /**
+   * A binary tree still to be walked, and the name of the level it's on.
+   */
+  private static class Level {
+    final int offset;
+    /** Name of the parent level, with a trailing dot unless it's the root */
+    final String prefix;
+
+    Level(int offset, String prefix) {
+      this.offset = offset;
+      this.prefix = prefix;
+    }
+  }
+
+  /**
+   * Walk the trie from the root node. It's walked with an explicit stack and every node is only
+   *  visited once, so a corrupt area that links back to a node throws instead of overflowing the
+   *  stack or looping.
+   */
+  private void walk(Map<String, String> properties) throws IOException {
+    // Every node takes at least BT_NAME bytes, so there can't be more than this
+    int maxNodes = (dataEnd - HEADER_SIZE) / BT_NAME;
+    int nodes = 0;
+    BitSet visited = new BitSet();
+    Deque<Level> pending = new ArrayDeque<>();
+    pending.push(new Level(0, ""));
+
+    while (!pending.isEmpty()) {
+      Level level = pending.pop();
+      int offset = level.offset;
+      int node = checkOffset(offset, BT_NAME);
+      if (visited.get(offset)) {
+        throw new IOException("Cycle in property area at offset " + offset);
+      }
+      visited.set(offset);
+      if (++nodes > maxNodes) {
+        throw new IOException("Too many nodes in property area");
+      }
+
+      int nameLength = area.getInt(node + BT_NAMELEN);
+      if (nameLength < 0 || nameLength > dataEnd) {
+        throw new IOException("Bad property name length " + nameLength);
+      }
+      checkOffset(offset, BT_NAME + nameLength);
+      String name = level.prefix + string(node + BT_NAME, nameLength);
+
+      int prop = area.getInt(node + BT_PROP);
+      if (prop != 0) {
+        readProperty(prop, properties);
+      }
+
+      int left = area.getInt(node + BT_LEFT);
+      int children = area.getInt(node + BT_CHILDREN);
+      int right = area.getInt(node + BT_RIGHT);
+      if (right != 0) {
+        pending.push(new Level(right, level.prefix));
+      }
+      if (children != 0) {
+        pending.push(new Level(children, nameLength == 0 ? "" : name + "."));
+      }
+      if (left != 0) {
+        pending.push(new Level(left, level.prefix));
+      }
+    }
+  }
+
+  private void readProperty(int offset, Map<String, String> properties) throws IOException {
+    int info = checkOffset(offset, INFO_NAME);
+    String name = string(info + INFO_NAME, strlen(info + INFO_NAME, PROP_VALUE_MAX * 32));
+
+    // Writers bump the serial around every update, retry if it moves under us
+    String value = null;
+    for (int i = 0; i < READ_RETRIES && value == null; i++) {
+      int serial = area.getInt(info);
+      if ((serial & SERIAL_DIRTY) != 0) {
+        continue;
+      }
+
+      String candidate;
+      if ((serial & LONG_FLAG) != 0) {
+        int longOffset = area.getInt(info + INFO_LONG_OFFSET);
+        int position = checkOffset(offset + longOffset, 1);
+        candidate = string(position, strlen(position, dataEnd - position));
+      } else {
+        int length = serial >>> 24;
+        if (length >= PROP_VALUE_MAX) {
+          throw new IOException("Bad length for property " + name);
+        }
+        candidate = string(info + INFO_VALUE, length);
+      }
+
+      if (area.getInt(info) == serial) {
+        value = candidate;
+      }
+    }
+
+    if (value == null) {
+      Log.e("censustaker", "Property " + name + " kept changing while being read");
+      return;
+    }
+    // getprop's output was filtered the same way
+    if (!value.isEmpty()) {
+      properties.put(name, value);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package net.tsyrklevich.censustaker;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class S3ObjectStore implements ObjectStore {
+  private final AmazonS3Client client;
+  private final String bucket;
+
+  /**
+   * @param endpoint URL of an S3-compatible server to use instead of AWS, or null
+   */
+  public S3ObjectStore(String accessKey, String secretKey, String bucket, String endpoint) {
+    this.client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey));
+    this.bucket = bucket;
+
+    if (endpoint != null) {
+      client.setEndpoint(endpoint);
+      // Stand-ins rarely have DNS set up for bucket.host style URLs
+      client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+    }
+  }
+
+  @Override
+  public Set<String> listKeys(String prefix) throws IOException {
+    Set<String> keys = new HashSet<>();
+    try {
+      ObjectListing listing = client.listObjects(new ListObjectsRequest()
+          .withBucketName(bucket)
+          .withPrefix(prefix));
+      while (true) {
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+          keys.add(summary.getKey());
+        }
+        if (!listing.isTruncated()) {
+          break;
+        }
+        listing = client.listNextBatchOfObjects(listing);
+      }
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+    return keys;
+  }
+
+  @Override
+  public void put(String key, File file) throws IOException {
+    try {
+      client.putObject(new PutObjectRequest(bucket, key, file));
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void put(String key, byte[] data) throws IOException {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(data.length);
+    try {
+      client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(data), metadata));
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void copy(String fromKey, String toKey) throws IOException {
+    try {
+      client.copyObject(bucket, fromKey, bucket, toKey);
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    try {
+      client.deleteObject(bucket, key);
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public String startMultipart(String key) throws IOException {
+    try {
+      return client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key))
+          .getUploadId();
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public String putPart(String key, String uploadId, int partNumber, byte[] data, int length)
+      throws IOException {
+    try {
+      return client.uploadPart(new UploadPartRequest()
+          .withBucketName(bucket)
+          .withKey(key)
+          .withUploadId(uploadId)
+          .withPartNumber(partNumber)
+          .withPartSize(length)
+          .withInputStream(new ByteArrayInputStream(data, 0, length)))
+          .getPartETag().getETag();
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void completeMultipart(String key, String uploadId, List<String> etags)
+      throws IOException {
+    List<PartETag> parts = new ArrayList<>();
+    for (int i = 0; i < etags.size(); i++) {
+      parts.add(new PartETag(i + 1, etags.get(i)));
+    }
+    try {
+      client.completeMultipartUpload(
+          new CompleteMultipartUploadRequest(bucket, key, uploadId, parts));
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void abortMultipart(String key, String uploadId) throws IOException {
+    try {
+      client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+}
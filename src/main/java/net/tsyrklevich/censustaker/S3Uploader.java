@@ -3,28 +3,45 @@ package net.tsyrklevich.censustaker;
 import android.os.Build;
 import android.util.Log;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Uploads files to a bucket under the SHA-256 of their contents, next to a small JSON
+ *  description of where they came from. Files whose hash is already in the bucket are skipped.
+ *
+ * Rather than one listing per file the bucket is listed once up front, split into one request
+ *  per leading hex digit so the listing runs in parallel, while the workers hash. A worker only
+ *  waits for the part of the listing its hash falls in.
+ */
 public class S3Uploader {
   private static int BLOCK_SIZE = 1024 * 1024;
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+  // Multipart uploads in progress, outside the hex prefixes so they're never listed as existing
+  private static final String TEMP_PREFIX = "incoming/";
 
   // Get around horrific commons-codec dependency hell for Hex.encodeHexString
   final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
@@ -38,38 +55,114 @@ public class S3Uploader {
     return new String(hexChars);
   }
 
-  static private String hash(String path) throws Exception {
+  static String hash(String path, UploadStats stats)
+      throws IOException, NoSuchAlgorithmException {
     MessageDigest digest = MessageDigest.getInstance("SHA-256");
-    FileInputStream inputStream = new FileInputStream(new File(path));
-    DigestInputStream digestInputStream = new DigestInputStream(inputStream, digest);
-
     byte[] buffer = new byte[BLOCK_SIZE];
-    while (digestInputStream.read(buffer) != -1);
+    long start = System.nanoTime();
+    long total = 0;
+    try (InputStream inputStream = new FileInputStream(new File(path))) {
+      int n;
+      while ((n = inputStream.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+        total += n;
+      }
+    }
+    stats.hashNanos.addAndGet(System.nanoTime() - start);
+    stats.bytesHashed.addAndGet(total);
 
     return encodeHex(digest.digest());
   }
 
-  static private void uploadFile(AmazonS3 s3client, String bucket_name, String path) {
+  /**
+   * The keys already in the bucket, listed one leading hex digit at a time.
+   */
+  private static class ExistingKeys {
+    private final List<Future<Set<String>>> shards = new ArrayList<>();
+    // Hashes uploaded during this run, so identical files in the list are only sent once
+    private final Set<String> claimed =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    String hash;
-    boolean found = false;
-    try {
-      hash = hash(path);
+    ExistingKeys(ExecutorService pool, final ObjectStore store, final UploadStats stats) {
+      for (final char prefix : hexArray) {
+        shards.add(pool.submit(new Callable<Set<String>>() {
+          @Override
+          public Set<String> call() throws IOException {
+            long start = System.nanoTime();
+            Set<String> keys = store.listKeys(String.valueOf(prefix));
+            stats.listNanos.addAndGet(System.nanoTime() - start);
+            stats.keysListed.addAndGet(keys.size());
+            return keys;
+          }
+        }));
+      }
+    }
 
-      ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-          .withBucketName(bucket_name)
-          .withPrefix(hash);
+    /**
+     * @return whether key was in the bucket when it was listed
+     * @throws IOException if the bucket couldn't be listed
+     */
+    boolean contains(String key) throws IOException, InterruptedException {
+      try {
+        return shards.get(Character.digit(key.charAt(0), 16)).get().contains(key);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to list bucket", e.getCause());
+      }
+    }
 
-      ObjectListing objectListing = s3client.listObjects(listObjectsRequest);
-      if (objectListing.getObjectSummaries().size() != 0) {
-        Log.e("s3", hash + " already exists");
-        found = true;
+    /**
+     * @return false if another worker is already uploading hash
+     */
+    boolean claim(String hash) {
+      return claimed.add(hash);
+    }
+  }
+
+  /**
+   * Buffers for parts in flight, at most count of them are ever allocated so they also bound how
+   *  far reading can run ahead of uploading.
+   */
+  private static class PartBuffers {
+    private final BlockingQueue<byte[]> free;
+    private final int count;
+    private final int size;
+    private int allocated;
+
+    PartBuffers(int count, int size) {
+      this.free = new ArrayBlockingQueue<>(count);
+      this.count = count;
+      this.size = size;
+    }
+
+    byte[] take() throws InterruptedException {
+      synchronized (this) {
+        if (free.isEmpty() && allocated < count) {
+          allocated++;
+          return new byte[size];
+        }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-      return;
+      return free.take();
+    }
+
+    void give(byte[] buffer) {
+      free.add(buffer);
     }
+  }
 
+  /**
+   * Everything the workers of one {@link #upload} call share.
+   */
+  private static class Pipeline {
+    ObjectStore store;
+    ExistingKeys existing;
+    UploadStats stats;
+    ExecutorService partPool;
+    PartBuffers partBuffers;
+    long multipartThreshold;
+    HashCache cache;
+  }
+
+  private static byte[] describe(String path) {
     Map<String, String> json = new HashMap<>();
     json.put("name", path);
     json.put("build_manufacturer", Build.MANUFACTURER);
@@ -77,47 +170,295 @@ public class S3Uploader {
     json.put("build_api", Integer.toString(Build.VERSION.SDK_INT));
     json.put("build_abi", Build.CPU_ABI);
     json.put("build_fingerprint", Build.FINGERPRINT);
-    String jsonDescription = new Gson().toJson(json);
+    return new Gson().toJson(json).getBytes(StandardCharsets.UTF_8);
+  }
 
-    // Don't reupload the same file
-    if (!found) {
-      Log.i("s3", "Uploading " + path);
-      File file = new File(path);
-      s3client.putObject(new PutObjectRequest(bucket_name, hash, file));
+  private static void remember(Pipeline pipeline, String path, HashCache.Key key, String hash,
+      boolean uploaded) {
+    if (pipeline.cache != null && key != null) {
+      pipeline.cache.put(path, key, hash, uploaded);
     }
+  }
 
-    // But do re-upload the JSON because I've added fields over time.
-    if (found) {
-      // TODO: Just compare the JSON lengths from the list object requests instead of always deleting?
-      // Going to ignore this logic until we do that.
+  /**
+   * @return true if hash doesn't need uploading, because it's in the bucket already or another
+   *  worker is uploading the same contents
+   */
+  static private boolean skip(Pipeline pipeline, String path, HashCache.Key key, String hash)
+      throws IOException, InterruptedException {
+    if (pipeline.existing.contains(hash)) {
+      Log.e("s3", hash + " already exists");
+      // e.g. a multipart upload that died between the copy and the description
+      if (!pipeline.existing.contains(hash + ".json")) {
+        pipeline.store.put(hash + ".json", describe(path));
+      }
+      remember(pipeline, path, key, hash, true);
+      pipeline.stats.filesSkipped.incrementAndGet();
+      return true;
+    }
+    if (!pipeline.existing.claim(hash)) {
+      remember(pipeline, path, key, hash, false);
+      pipeline.stats.filesSkipped.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param key the file's metadata when it was looked up in the cache, or null without one
+   * @param hash the file's hash from the cache, or null if it has to be computed
+   */
+  static private void uploadFile(Pipeline pipeline, String path, HashCache.Key key, String hash)
+      throws InterruptedException {
+    File file = new File(path);
+    // With the hash known up front a single PUT reads the file once as well
+    if (hash == null && file.length() >= pipeline.multipartThreshold) {
+      uploadLargeFile(pipeline, path, key);
       return;
-      //s3client.deleteObject(new DeleteObjectRequest(bucket_name, hash + ".json"));
     }
 
-    ObjectMetadata metadata = new ObjectMetadata();
-    metadata.setContentLength(jsonDescription.length());
-    InputStream stream = new ByteArrayInputStream(jsonDescription.getBytes());
-    s3client.putObject(new PutObjectRequest(bucket_name, hash + ".json", stream, metadata));
+    UploadStats stats = pipeline.stats;
+    try {
+      if (hash == null) {
+        hash = hash(path, stats);
+      }
+      if (skip(pipeline, path, key, hash)) {
+        return;
+      }
+    } catch (IOException | NoSuchAlgorithmException e) {
+      e.printStackTrace();
+      stats.filesFailed.incrementAndGet();
+      return;
+    }
+
+    Log.i("s3", "Uploading " + path);
+    byte[] jsonDescription = describe(path);
+    long start = System.nanoTime();
+    try {
+      pipeline.store.put(hash, file);
+      pipeline.store.put(hash + ".json", jsonDescription);
+    } catch (IOException e) {
+      e.printStackTrace();
+      remember(pipeline, path, key, hash, false);
+      stats.filesFailed.incrementAndGet();
+      return;
+    }
+    remember(pipeline, path, key, hash, true);
+    stats.uploadNanos.addAndGet(System.nanoTime() - start);
+    stats.bytesUploaded.addAndGet(file.length() + jsonDescription.length);
+    stats.filesUploaded.incrementAndGet();
   }
 
-  static public void upload(String access_key, String secret_key, final String bucket_name, List<String> paths) {
-    AWSCredentials awsCreds = new BasicAWSCredentials(access_key, secret_key);
-    final AmazonS3 s3client = new AmazonS3Client(awsCreds);
+  /**
+   * Read the file once, hashing each part as it's read and handing it to the part pool. The key
+   *  isn't known until the last part is hashed so the parts go to a temporary key that's copied
+   *  to the hash once complete. If the hash turns out to be in the bucket already the upload is
+   *  aborted, the parts sent so far are wasted.
+   */
+  static private void uploadLargeFile(final Pipeline pipeline, String path, HashCache.Key key)
+      throws InterruptedException {
+    final ObjectStore store = pipeline.store;
+    UploadStats stats = pipeline.stats;
+    final String tempKey = TEMP_PREFIX + UUID.randomUUID();
+    final String uploadId;
+    try {
+      uploadId = store.startMultipart(tempKey);
+    } catch (IOException e) {
+      e.printStackTrace();
+      stats.filesFailed.incrementAndGet();
+      return;
+    }
+
+    Log.i("s3", "Uploading " + path + " in parts");
+    long start = System.nanoTime();
+    long total = 0;
+    List<Future<String>> parts = new ArrayList<>();
+    boolean completed = false;
+    try (InputStream in = new FileInputStream(path)) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      while (true) {
+        final byte[] buffer = pipeline.partBuffers.take();
+        final int length = IOUtils.read(in, buffer);
+        if (length == 0 && !parts.isEmpty()) {
+          pipeline.partBuffers.give(buffer);
+          break;
+        }
+
+        long hashStart = System.nanoTime();
+        digest.update(buffer, 0, length);
+        stats.hashNanos.addAndGet(System.nanoTime() - hashStart);
+        total += length;
+
+        final int partNumber = parts.size() + 1;
+        parts.add(pipeline.partPool.submit(new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            try {
+              return store.putPart(tempKey, uploadId, partNumber, buffer, length);
+            } finally {
+              pipeline.partBuffers.give(buffer);
+            }
+          }
+        }));
+        if (length < buffer.length) {
+          break;
+        }
+      }
+      stats.bytesHashed.addAndGet(total);
+
+      String hash = encodeHex(digest.digest());
+      if (skip(pipeline, path, key, hash)) {
+        return;
+      }
+      // Remembered now so a failed upload isn't hashed again next time
+      remember(pipeline, path, key, hash, false);
+
+      List<String> etags = new ArrayList<>();
+      for (Future<String> part : parts) {
+        try {
+          etags.add(part.get());
+        } catch (ExecutionException e) {
+          throw new IOException("Failed to upload part of " + path, e.getCause());
+        }
+      }
+      store.completeMultipart(tempKey, uploadId, etags);
+      completed = true;
+      store.copy(tempKey, hash);
+      store.delete(tempKey);
+
+      byte[] jsonDescription = describe(path);
+      store.put(hash + ".json", jsonDescription);
+      remember(pipeline, path, key, hash, true);
+      stats.uploadNanos.addAndGet(System.nanoTime() - start);
+      stats.bytesUploaded.addAndGet(total + jsonDescription.length);
+      stats.filesUploaded.incrementAndGet();
+      stats.multipartUploads.incrementAndGet();
+    } catch (IOException | NoSuchAlgorithmException e) {
+      e.printStackTrace();
+      stats.filesFailed.incrementAndGet();
+    } finally {
+      if (!completed) {
+        // Parts still in flight hold buffers, let them finish before throwing the upload away
+        for (Future<String> part : parts) {
+          try {
+            part.get();
+          } catch (ExecutionException ignored) {
+          }
+        }
+        try {
+          store.abortMultipart(tempKey, uploadId);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
 
-    for (final String path : paths) {
-      Log.i("s3", "Trying to upload " + path);
+  /**
+   * Upload paths using at most concurrency simultaneous requests. Files of at least
+   *  multipartThreshold bytes are uploaded in parts of partSize bytes.
+   *
+   * @param cache hashes from earlier runs, files it has as uploaded aren't read and the bucket
+   *  isn't listed at all if that's every file. May be null.
+   */
+  static public UploadStats upload(ObjectStore store, List<String> paths, int concurrency,
+      long multipartThreshold, int partSize, HashCache cache) {
+    concurrency = Math.max(concurrency, 1);
+    final Pipeline pipeline = new Pipeline();
+    pipeline.store = store;
+    pipeline.stats = new UploadStats();
+    pipeline.multipartThreshold = multipartThreshold;
+    pipeline.partBuffers = new PartBuffers(concurrency, partSize);
+    pipeline.cache = cache;
 
-      Thread t = new Thread() {
-        public void run() {
-          uploadFile(s3client, bucket_name, path);
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    // Separate so a worker waiting on its parts can't starve them of threads
+    pipeline.partPool = Executors.newFixedThreadPool(concurrency);
+    try {
+      List<String> pending = new ArrayList<>();
+      List<HashCache.Key> keys = new ArrayList<>();
+      List<String> hashes = new ArrayList<>();
+      for (String path : paths) {
+        HashCache.Key key = null;
+        HashCache.Entry entry = null;
+        if (cache != null) {
+          try {
+            key = cache.stat(path);
+            entry = cache.get(path, key);
+          } catch (IOException ignored) {
+          }
+        }
+        if (entry != null && entry.uploaded) {
+          pipeline.stats.filesCached.incrementAndGet();
+          continue;
         }
-      };
+        pending.add(path);
+        keys.add(key);
+        hashes.add(entry != null ? entry.hash() : null);
+      }
 
+      List<Future<?>> uploads = new ArrayList<>();
+      if (!pending.isEmpty()) {
+        pipeline.existing = new ExistingKeys(pool, store, pipeline.stats);
+      }
+      for (int i = 0; i < pending.size(); i++) {
+        final String path = pending.get(i);
+        final HashCache.Key key = keys.get(i);
+        final String hash = hashes.get(i);
+        Log.i("s3", "Trying to upload " + path);
+        uploads.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            uploadFile(pipeline, path, key, hash);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<?> upload : uploads) {
+        try {
+          upload.get();
+        } catch (ExecutionException e) {
+          Log.e("s3", "Upload failed", e.getCause());
+          pipeline.stats.filesFailed.incrementAndGet();
+        }
+      }
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      pipeline.partPool.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.shutdown();
+      pipeline.partPool.shutdown();
+    }
+    if (cache != null) {
       try {
-        t.start();
-        t.join();
-      } catch (InterruptedException ignored) {
+        cache.save();
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
+    UploadStats stats = pipeline.stats;
+    stats.wallNanos = System.nanoTime() - start;
+    stats.log();
+    return stats;
+  }
+
+  static public UploadStats upload(ObjectStore store, List<String> paths, int concurrency) {
+    return upload(store, paths, concurrency, Long.MAX_VALUE, MIN_PART_SIZE, null);
+  }
+
+  /**
+   * @param cacheFile where hashes are kept between runs
+   */
+  static public UploadStats upload(String access_key, String secret_key, String bucket_name,
+      List<String> paths, CensusConfig config, File cacheFile) {
+    String endpoint = config.s3Endpoint();
+    ObjectStore store = new S3ObjectStore(access_key, secret_key, bucket_name, endpoint);
+    HashCache cache = HashCache.load(cacheFile,
+        endpoint == null ? bucket_name : endpoint + "/" + bucket_name, config.s3HashCacheEntries());
+    return upload(store, paths, config.s3Concurrency(), config.s3MultipartThreshold(),
+        config.s3PartSize(), cache);
   }
 }
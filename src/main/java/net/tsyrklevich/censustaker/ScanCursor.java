@@ -0,0 +1,149 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the filesystem walks that ran out of budget stopped: the directories each still had to
+ *  scan and how far into them it got. Kept between runs so the next scan of a root carries on
+ *  from there instead of starting over, which lets a tree too big for one run's budget be
+ *  covered over several.
+ *
+ * Positions are keyed by the path of the walk they belong to rather than its index, so a cursor
+ *  still lines up after the scan plan changes. Positions of walks that are no longer planned are
+ *  dropped.
+ */
+public class ScanCursor {
+  private static final int MAGIC = 0x53435231; // "SCR1"
+
+  // Why a walk stopped, keep in sync with enum scan_stop in scanner.h
+  public static final int COMPLETE = 0;
+  public static final int DEADLINE = 1;
+  public static final int MAX_ENTRIES = 2;
+  public static final int MAX_BYTES = 3;
+
+  public static class Position {
+    public final String root;
+    public final String dir;
+    public final int depth;
+    /** Opaque getdents64 offset into dir, 0 to scan all of it. */
+    public final long offset;
+
+    public Position(String root, String dir, int depth, long offset) {
+      this.root = root;
+      this.dir = dir;
+      this.depth = depth;
+      this.offset = offset;
+    }
+  }
+
+  private final List<Position> positions = new ArrayList<>();
+  /** Why each unfinished walk stopped, by root. */
+  private final Map<String, Integer> stopped = new TreeMap<>();
+
+  public static String reason(int stopped) {
+    switch (stopped) {
+      case COMPLETE:
+        return "complete";
+      case DEADLINE:
+        return "deadline";
+      case MAX_ENTRIES:
+        return "max_entries";
+      case MAX_BYTES:
+        return "max_bytes";
+      default:
+        return "unknown";
+    }
+  }
+
+  public void add(Position position, int reason) {
+    positions.add(position);
+    if (!stopped.containsKey(position.root)) {
+      stopped.put(position.root, reason);
+    }
+  }
+
+  public boolean isEmpty() {
+    return positions.isEmpty();
+  }
+
+  public List<Position> positions() {
+    return Collections.unmodifiableList(positions);
+  }
+
+  /**
+   * @return the roots that didn't finish and why, as one of the constants above
+   */
+  public Map<String, Integer> stopped() {
+    return Collections.unmodifiableMap(stopped);
+  }
+
+  /**
+   * @return the cursor stored in file, or null if there isn't a usable one
+   */
+  public static ScanCursor load(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+
+      ScanCursor cursor = new ScanCursor();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Position position = new Position(in.readUTF(), in.readUTF(), in.readInt(),
+            in.readLong());
+        cursor.add(position, in.readInt());
+      }
+      return cursor;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Replace file with this cursor, see AtomicWrites. An empty cursor deletes file instead,
+   *  there's nothing left to resume.
+   */
+  public void save(File file) throws IOException {
+    if (isEmpty()) {
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Failed to delete " + file);
+      }
+      return;
+    }
+
+    AtomicWrites.atomicWrite(file, new AtomicWrites.Contents() {
+      @Override
+      public void writeTo(OutputStream stream) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+          out.writeInt(MAGIC);
+          out.writeInt(positions.size());
+          for (Position position : positions) {
+            out.writeUTF(position.root);
+            out.writeUTF(position.dir);
+            out.writeInt(position.depth);
+            out.writeLong(position.offset);
+            out.writeInt(stopped.get(position.root));
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,74 @@
+package net.tsyrklevich.censustaker;
+
+import android.content.Context;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the filesystem collectors look at, loaded from scan_plan.json. A copy dropped in the
+ *  app's external files directory takes precedence over the one bundled in the APK, so lighter
+ *  or heavier profiles can be pushed to a device without a rebuild.
+ */
+public class ScanPlan {
+  private static final String FILE_NAME = "scan_plan.json";
+
+  public static class Root {
+    public String path;
+    public int depth;
+    /** Budget of the walk, timeout in seconds, 0 for the scan.* defaults in census.properties. */
+    public int timeout;
+    public long maxEntries;
+    public long maxBytes;
+  }
+
+  public static class Glob {
+    public String dir;
+    public List<String> patterns = new ArrayList<>();
+  }
+
+  /** Directories to walk and how many levels deep, overlaps are merged by ScanPlanner. */
+  public List<Root> roots = new ArrayList<>();
+  /** Paths that are neither reported nor descended into. */
+  public List<String> excludes = new ArrayList<>();
+  /** Files whose contents are uploaded. */
+  public List<String> files = new ArrayList<>();
+  /** More files to upload, matched using the wildcard library's glob syntax. */
+  public List<Glob> globs = new ArrayList<>();
+
+  public static ScanPlan load(Context context) {
+    File override = new File(context.getExternalFilesDir(null), FILE_NAME);
+    if (override.isFile()) {
+      try (InputStream in = new FileInputStream(override)) {
+        Log.i("censustaker", "Using scan plan " + override);
+        return parse(in);
+      } catch (IOException | JsonParseException e) {
+        Log.e("censustaker", "Ignoring bad scan plan " + override + ": " + e.toString());
+      }
+    }
+
+    try (InputStream in = context.getAssets().open(FILE_NAME)) {
+      return parse(in);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static ScanPlan parse(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    ScanPlan plan = new Gson().fromJson(reader, ScanPlan.class);
+    if (plan == null) {
+      throw new IOException("Empty scan plan");
+    }
+    return plan;
+  }
+}
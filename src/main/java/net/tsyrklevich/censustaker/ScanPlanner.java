@@ -0,0 +1,178 @@
+package net.tsyrklevich.censustaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Folds the roots of a scan plan into a prefix trie so overlapping roots turn into a single
+ *  walk and every entry is lstat()ed and reported once, with the deepest depth anyone asked for.
+ *
+ * A root that an enclosing walk already reaches becomes a depth override on that walk, a root
+ *  that nothing reaches becomes a walk of its own. Roots that are (or sit under) symlinks can't
+ *  be overrides because the walker doesn't follow links, so they're either dropped as aliases of
+ *  a directory that's already walked deeply enough or walked on their own.
+ */
+public class ScanPlanner {
+  private static class Node {
+    final String path;
+    final Map<String, Node> children = new TreeMap<>();
+    int depth;
+    boolean excluded;
+    boolean symlinked;
+
+    Node(String path) {
+      this.path = path;
+    }
+  }
+
+  public final List<String> dirs = new ArrayList<>();
+  public final List<Integer> depths = new ArrayList<>();
+  public final List<String> overrideDirs = new ArrayList<>();
+  public final List<Integer> overrideDepths = new ArrayList<>();
+  public final List<String> excludes = new ArrayList<>();
+  /** Roots that were dropped because they resolve to a directory walked elsewhere. */
+  public final Map<String, String> aliases = new TreeMap<>();
+
+  public ScanPlanner(List<ScanPlan.Root> roots, List<String> excludePaths) {
+    Node trie = build(roots, excludePaths, new HashSet<String>());
+
+    Set<String> aliased = new HashSet<>();
+    for (ScanPlan.Root root : roots) {
+      String path = normalize(root.path);
+      String canonical = resolve(path);
+      if (!canonical.equals(path) && walkedDepth(trie, canonical) >= root.depth) {
+        aliases.put(path, canonical);
+        aliased.add(path);
+      }
+    }
+    if (!aliased.isEmpty()) {
+      trie = build(roots, excludePaths, aliased);
+    }
+
+    walk(trie, 0);
+  }
+
+  /**
+   * @return path with symlinks resolved, or path itself if that fails
+   */
+  protected String resolve(String path) {
+    try {
+      return new File(path).getCanonicalPath();
+    } catch (IOException e) {
+      return path;
+    }
+  }
+
+  static String normalize(String path) {
+    StringBuilder normalized = new StringBuilder();
+    for (String component : components(path)) {
+      normalized.append('/').append(component);
+    }
+    return normalized.length() == 0 ? "/" : normalized.toString();
+  }
+
+  private static List<String> components(String path) {
+    List<String> components = new ArrayList<>();
+    for (String component : path.split("/")) {
+      if (!component.isEmpty() && !component.equals(".")) {
+        components.add(component);
+      }
+    }
+    return components;
+  }
+
+  private static Node insert(Node trie, String path) {
+    Node node = trie;
+    for (String component : components(path)) {
+      Node child = node.children.get(component);
+      if (child == null) {
+        child = new Node(node.path.equals("/") ? "/" + component : node.path + "/" + component);
+        node.children.put(component, child);
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  private Node build(List<ScanPlan.Root> roots, List<String> excludePaths, Set<String> aliased) {
+    Node trie = new Node("/");
+    for (ScanPlan.Root root : roots) {
+      String path = normalize(root.path);
+      if (aliased.contains(path)) {
+        continue;
+      }
+
+      Node node = insert(trie, path);
+      node.depth = Math.max(node.depth, root.depth);
+      node.symlinked = !resolve(path).equals(path);
+    }
+    for (String exclude : excludePaths) {
+      insert(trie, exclude).excluded = true;
+    }
+    return trie;
+  }
+
+  /**
+   * How many levels below the node an enclosing walk carries on, walks stop at excluded nodes
+   *  and don't follow symlinks.
+   */
+  private static int inherited(Node node, int parentRemaining) {
+    if (node.excluded || node.symlinked) {
+      return 0;
+    }
+    return Math.max(parentRemaining - 1, 0);
+  }
+
+  /**
+   * How many levels below the node are walked: whatever is inherited, unless the node asks for
+   *  more itself.
+   */
+  private static int remaining(Node node, int parentRemaining) {
+    return Math.max(inherited(node, parentRemaining), node.depth);
+  }
+
+  /**
+   * @return how many levels below path the plan in trie walks
+   */
+  private static int walkedDepth(Node trie, String path) {
+    Node node = trie;
+    int remaining = trie.depth;
+    for (String component : components(path)) {
+      node = node != null ? node.children.get(component) : null;
+      remaining = node != null ? remaining(node, remaining) : Math.max(remaining - 1, 0);
+    }
+    return remaining;
+  }
+
+  /**
+   * @param parentRemaining levels below the parent covered by an enclosing walk, so this node
+   *  is reported by that walk if it's at least 1
+   */
+  private void walk(Node node, int parentRemaining) {
+    boolean reached = parentRemaining >= 1;
+    if (node.excluded && reached) {
+      excludes.add(node.path);
+    }
+
+    if (node.depth > inherited(node, parentRemaining)) {
+      if (reached && !node.excluded && !node.symlinked) {
+        overrideDirs.add(node.path);
+        overrideDepths.add(node.depth);
+      } else {
+        dirs.add(node.path);
+        depths.add(node.depth);
+      }
+    }
+
+    int remaining = remaining(node, parentRemaining);
+    for (Node child : node.children.values()) {
+      walk(child, remaining);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package net.tsyrklevich.censustaker;
+
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for an S3 upload run. Stage times are summed across workers, so with several
+ *  workers they add up to more than the wall time.
+ */
+public class UploadStats {
+  public final AtomicLong listNanos = new AtomicLong();
+  public final AtomicLong hashNanos = new AtomicLong();
+  public final AtomicLong uploadNanos = new AtomicLong();
+  public final AtomicLong bytesHashed = new AtomicLong();
+  public final AtomicLong bytesUploaded = new AtomicLong();
+  public final AtomicInteger keysListed = new AtomicInteger();
+  public final AtomicInteger filesUploaded = new AtomicInteger();
+  public final AtomicInteger filesSkipped = new AtomicInteger();
+  /** Files the hash cache had as unchanged and uploaded, they weren't read or looked up. */
+  public final AtomicInteger filesCached = new AtomicInteger();
+  public final AtomicInteger filesFailed = new AtomicInteger();
+  public final AtomicInteger multipartUploads = new AtomicInteger();
+  public long wallNanos;
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static double megabytesPerSecond(long bytes, long nanos) {
+    return nanos > 0 ? bytes / 1048576.0 / seconds(nanos) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "%d uploaded (%d multipart), %d already there, %d cached, %d failed in %.2fs; "
+            + "listed %d keys in %.2fs; hashed %d bytes in %.2fs (%.1f MB/s); "
+            + "uploaded %d bytes in %.2fs (%.1f MB/s)",
+        filesUploaded.get(), multipartUploads.get(), filesSkipped.get(), filesCached.get(),
+        filesFailed.get(), seconds(wallNanos),
+        keysListed.get(), seconds(listNanos.get()),
+        bytesHashed.get(), seconds(hashNanos.get()),
+        megabytesPerSecond(bytesHashed.get(), hashNanos.get()),
+        bytesUploaded.get(), seconds(uploadNanos.get()),
+        megabytesPerSecond(bytesUploaded.get(), uploadNanos.get()));
+  }
+
+  public void log() {
+    Log.i("s3", toString());
+  }
+}
@@ -0,0 +1,78 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusCompression;
+import org.apache.commons.io.IOUtils;
+
+public class CensusCompressionTest extends TestCase {
+  private static final byte[] DICTIONARY = ("{\"path\":\"/system/lib64/\",\"uid\":0,\"gid\":0,"
+      + "\"size\":0,\"mode\":33188,\"selinuxContext\":\"u:object_r:system_lib_file:s0\"}")
+      .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] CENSUS = ("{\"file_permissions\":["
+      + "{\"path\":\"/system/lib64/libc.so\",\"uid\":0,\"gid\":0,\"size\":1031096,\"mode\":33188,"
+      + "\"selinuxContext\":\"u:object_r:system_lib_file:s0\"}]}").getBytes(StandardCharsets.UTF_8);
+
+  private static byte[] deflate(CensusCompression compression, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = compression.deflate(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] inflate(CensusCompression compression, byte[] data) throws IOException {
+    try (InputStream in = compression.inflate(new ByteArrayInputStream(data))) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  public void testDictionaryRoundTrips() throws IOException {
+    CensusCompression compression = new CensusCompression(9, Deflater.DEFAULT_STRATEGY, DICTIONARY);
+    CensusCompression plain = new CensusCompression(9, Deflater.DEFAULT_STRATEGY, null);
+
+    byte[] compressed = deflate(compression, CENSUS);
+
+    assertTrue(compressed.length < deflate(plain, CENSUS).length);
+    assertEquals(new String(CENSUS, StandardCharsets.UTF_8),
+        new String(inflate(compression, compressed), StandardCharsets.UTF_8));
+    assertEquals("v" + CensusCompression.DICTIONARY_VERSION, compression.dictionaryVersion());
+    assertNull(plain.dictionaryVersion());
+  }
+
+  public void testReadsPayloadsWithoutDictionary() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = new DeflaterOutputStream(compressed)) {
+      out.write(CENSUS);
+    }
+
+    CensusCompression compression = new CensusCompression(6, Deflater.FILTERED, DICTIONARY);
+    assertEquals(new String(CENSUS, StandardCharsets.UTF_8),
+        new String(inflate(compression, compressed.toByteArray()), StandardCharsets.UTF_8));
+  }
+
+  public void testRejectsDictionaryItDoesntHave() throws IOException {
+    byte[] compressed =
+        deflate(new CensusCompression(6, Deflater.DEFAULT_STRATEGY, DICTIONARY), CENSUS);
+
+    try {
+      inflate(new CensusCompression(6, Deflater.DEFAULT_STRATEGY, null), compressed);
+      fail();
+    } catch (ZipException expected) {
+    }
+
+    try {
+      inflate(new CensusCompression(6, Deflater.DEFAULT_STRATEGY, "other".getBytes()), compressed);
+      fail();
+    } catch (ZipException expected) {
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusReader;
+import net.tsyrklevich.censustaker.CensusWriter;
+
+public class CensusContainerTest extends TestCase {
+  private static final String BUILD = "{\"board\":\"sailfish\",\"sdk\":25,"
+      + "\"serial\":null,\"abis\":[\"arm64-v8a\",\"armeabi-v7a\"],\"secure\":true,"
+      + "\"fingerprint\":\"google/sailfish/sailfish:7.1.2/NJH47F/4146041:user/release-keys\"}";
+
+  private static byte[] bytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static ByteArrayOutputStream contents(byte[] bytes) {
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    contents.write(bytes, 0, bytes.length);
+    return contents;
+  }
+
+  /**
+   * @param big size of a blob large enough to span several chunks
+   */
+  private static byte[] census(CensusWriter.Format format, int big) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(format, out);
+    census.beginSection("build").jsonValue(BUILD);
+    census.endSection();
+
+    census.beginBlobSection("file_contents");
+    census.writeBlob("/proc/version", contents("Linux version 3.18.31\n".getBytes("UTF-8")));
+    census.writeBlob("/empty", new ByteArrayOutputStream());
+    census.writeBlob("/sepolicy", contents(bytes(big, 1)));
+    census.endSection();
+
+    JsonWriter features = census.beginSection("features");
+    features.beginArray().value("android.hardware.nfc").value("\u00fcber").endArray();
+    census.endSection();
+    census.close();
+    return out.toByteArray();
+  }
+
+  private static JsonElement toJson(byte[] census) throws IOException {
+    StringWriter out = new StringWriter();
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(census))) {
+      reader.toJson(new JsonWriter(out));
+    }
+    return JsonParser.parseString(out.toString());
+  }
+
+  public void testBinaryReadsBackLikeJson() throws IOException {
+    int big = 200 * 1024;
+    byte[] binary = census(CensusWriter.Format.BINARY, big);
+    byte[] json = census(CensusWriter.Format.JSON, big);
+
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(binary))) {
+      assertTrue(reader.isBinary());
+      assertEquals("build", reader.nextSection());
+      assertEquals(CensusReader.SECTION_JSON, reader.sectionType());
+      JsonReader build = reader.json();
+      assertEquals(JsonParser.parseString(BUILD), JsonParser.parseReader(build));
+
+      assertEquals("file_contents", reader.nextSection());
+      assertEquals(CensusReader.SECTION_BLOBS, reader.sectionType());
+      assertEquals("/proc/version", reader.nextBlob());
+      assertEquals("Linux version 3.18.31\n", new String(reader.blob(), "UTF-8"));
+      assertEquals("/empty", reader.nextBlob());
+      assertEquals(0, reader.blob().length);
+      assertEquals("/sepolicy", reader.nextBlob());
+      assertTrue(Arrays.equals(bytes(big, 1), reader.blob()));
+      assertNull(reader.nextBlob());
+
+      // Left unread, so skipped
+      assertEquals("features", reader.nextSection());
+      assertNull(reader.nextSection());
+    }
+
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(json))) {
+      assertFalse(reader.isBinary());
+    }
+    // Blobs come out as the same Base64 strings the JSON format carries
+    assertEquals(toJson(json), toJson(binary));
+  }
+
+  public void testRejectsTruncatedContainer() throws IOException {
+    byte[] census = census(CensusWriter.Format.BINARY, 1000);
+    // Anything short of the whole container, from right after the header to its end marker
+    for (int length = 5; length < census.length; length++) {
+      try {
+        toJson(Arrays.copyOf(census, length));
+        fail("Read a census container cut off after " + length + " of " + census.length
+            + " bytes");
+      } catch (IOException expected) {
+      }
+    }
+
+    byte[] bad = census.clone();
+    bad[4] = 2;
+    try {
+      toJson(bad);
+      fail("Read a census container of an unknown version");
+    } catch (IOException expected) {
+    }
+  }
+}
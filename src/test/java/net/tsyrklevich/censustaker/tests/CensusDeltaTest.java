@@ -0,0 +1,216 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusDelta;
+import net.tsyrklevich.censustaker.CensusFingerprint;
+import net.tsyrklevich.censustaker.CensusReader;
+import net.tsyrklevich.censustaker.CensusScheduler;
+import net.tsyrklevich.censustaker.CensusWriter;
+import net.tsyrklevich.censustaker.FileSystemCensus;
+import org.apache.commons.io.FileUtils;
+
+public class CensusDeltaTest extends TestCase {
+  private static String file(String path, int mode) {
+    return "{\"path\":\"" + path + "\",\"uid\":0,\"gid\":0,\"size\":1,\"mode\":" + mode + "}";
+  }
+
+  private static String files(String... records) {
+    return "[" + String.join(",", records) + "]";
+  }
+
+  /**
+   * @param sections JSON of each section, by name
+   */
+  private static byte[] census(Map<String, String> sections) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, out);
+    for (Map.Entry<String, String> section : sections.entrySet()) {
+      census.beginSection(section.getKey()).jsonValue(section.getValue());
+      census.endSection();
+    }
+    census.close();
+    return out.toByteArray();
+  }
+
+  private static CensusFingerprint fingerprint(byte[] census) throws IOException {
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(census))) {
+      return CensusDelta.fingerprint(reader);
+    }
+  }
+
+  private static JsonObject delta(byte[] census, CensusFingerprint base,
+      CensusFingerprint[] fingerprint) throws IOException {
+    StringWriter out = new StringWriter();
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(census));
+         JsonWriter delta = new JsonWriter(out)) {
+      fingerprint[0] = CensusDelta.diff(reader, base, delta);
+    }
+    return JsonParser.parseString(out.toString()).getAsJsonObject();
+  }
+
+  private static List<String> strings(JsonArray array) {
+    List<String> strings = new ArrayList<>();
+    for (int i = 0; i < array.size(); i++) {
+      strings.add(array.get(i).getAsString());
+    }
+    return strings;
+  }
+
+  private static Map<String, String> fullCensus() {
+    Map<String, String> sections = new LinkedHashMap<>();
+    sections.put("processes", "[{\"pid\":1,\"name\":\"init\"}]");
+    sections.put(FileSystemCensus.PERMISSIONS_SECTION, files(file("/system/bin/sh", 493),
+        file("/system/lib/libc.so", 420), file("/data/local/tmp", 511)));
+    return sections;
+  }
+
+  private static List<String> names(JsonObject object) {
+    return new ArrayList<>(object.keySet());
+  }
+
+  public void testUnchangedCensusSendsNothing() throws IOException {
+    byte[] census = census(fullCensus());
+    CensusFingerprint base = fingerprint(census);
+    CensusFingerprint[] fingerprint = new CensusFingerprint[1];
+    JsonObject delta = delta(census, base, fingerprint);
+
+    assertEquals(Arrays.asList("census_delta", "removed_sections", "census_snapshot"),
+        names(delta));
+    assertEquals(base.snapshotId,
+        delta.getAsJsonObject("census_delta").get("base").getAsString());
+    assertEquals(0, delta.getAsJsonArray("removed_sections").size());
+    assertEquals(base.snapshotId, delta.get("census_snapshot").getAsString());
+    assertEquals(base.snapshotId, fingerprint[0].snapshotId);
+  }
+
+  public void testSendsOnlyWhatChanged() throws IOException {
+    Map<String, String> sections = new LinkedHashMap<>();
+    sections.put("sysctl", "{\"a\":\"1\",\"b\":\"2\",\"c\":\"3\"}");
+    sections.put("features", "[\"x\"]");
+    sections.put("processes", "[{\"pid\":1,\"name\":\"init\"},{\"pid\":2,\"name\":\"adbd\"}]");
+    sections.put("gone", "[]");
+    CensusFingerprint base = fingerprint(census(sections));
+
+    sections.put("sysctl", "{\"a\":\"1\",\"b\":\"20\",\"d\":\"4\"}");
+    sections.put("features", "[\"x\",\"y\"]");
+    sections.put("processes", "[{\"pid\":2,\"name\":\"logd\"},{\"pid\":3,\"name\":\"vold\"}]");
+    sections.remove("gone");
+    byte[] census = census(sections);
+    CensusFingerprint[] fingerprint = new CensusFingerprint[1];
+    JsonObject delta = delta(census, base, fingerprint);
+
+    JsonObject sysctl = delta.getAsJsonObject("sysctl");
+    assertEquals("{\"d\":\"4\"}", sysctl.get("added").toString());
+    assertEquals("{\"b\":\"20\"}", sysctl.get("changed").toString());
+    assertEquals(Collections.singletonList("c"), strings(sysctl.getAsJsonArray("removed")));
+
+    // Not keyed, so sent whole
+    assertEquals("[\"x\",\"y\"]", delta.getAsJsonObject("features").get("value").toString());
+
+    JsonObject processes = delta.getAsJsonObject("processes");
+    assertEquals("[{\"pid\":3,\"name\":\"vold\"}]", processes.get("added").toString());
+    assertEquals("[{\"pid\":2,\"name\":\"logd\"}]", processes.get("changed").toString());
+    assertEquals(Collections.singletonList("1"), strings(processes.getAsJsonArray("removed")));
+
+    assertEquals(Collections.singletonList("gone"),
+        strings(delta.getAsJsonArray("removed_sections")));
+    // The same snapshot as fingerprinting the census on its own
+    assertEquals(fingerprint(census).snapshotId, fingerprint[0].snapshotId);
+    assertEquals(fingerprint[0].snapshotId, delta.get("census_snapshot").getAsString());
+  }
+
+  public void testFingerprintSurvivesSaveAndLoad() throws IOException {
+    CensusFingerprint fingerprint = fingerprint(census(fullCensus()));
+    File dir = File.createTempFile("fingerprint", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    try {
+      File file = new File(dir, "last");
+      fingerprint.save(file);
+      assertEquals(Collections.singletonList("last"), Arrays.asList(dir.list()));
+
+      CensusFingerprint loaded = CensusFingerprint.load(file);
+      assertEquals(fingerprint.snapshotId, loaded.snapshotId);
+      assertEquals(new ArrayList<>(fingerprint.sections.keySet()),
+          new ArrayList<>(loaded.sections.keySet()));
+      assertEquals(fingerprint.sections.get(FileSystemCensus.PERMISSIONS_SECTION).keys,
+          loaded.sections.get(FileSystemCensus.PERMISSIONS_SECTION).keys);
+
+      // Anything else is as good as no fingerprint, the next census goes out in full
+      FileUtils.writeStringToFile(file, "not a fingerprint", "UTF-8");
+      assertNull(CensusFingerprint.load(file));
+      assertNull(CensusFingerprint.load(new File(dir, "missing")));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  public void testUnscannedPathsAreNotRemoved() throws IOException {
+    CensusFingerprint base = fingerprint(census(fullCensus()));
+
+    // Carried on from where an earlier walk of /system stopped, and /data/local/tmp is gone
+    Map<String, String> sections = new LinkedHashMap<>();
+    sections.put("processes", "[{\"pid\":1,\"name\":\"init\"}]");
+    sections.put(FileSystemCensus.PERMISSIONS_SECTION, files(file("/system/lib/libc.so", 416)));
+    sections.put(FileSystemCensus.PARTIAL_SECTION,
+        "{\"unfinished\":{},\"pendingDirs\":0,\"resumed\":[\"/system\"]}");
+    CensusFingerprint[] fingerprint = new CensusFingerprint[1];
+    JsonObject delta = delta(census(sections), base, fingerprint);
+
+    JsonObject permissions = delta.getAsJsonObject(FileSystemCensus.PERMISSIONS_SECTION);
+    assertEquals(Collections.singletonList("/data/local/tmp"),
+        strings(permissions.getAsJsonArray("removed")));
+    assertEquals(1, permissions.getAsJsonArray("changed").size());
+    // /system/bin/sh is still there as far as the next census is concerned
+    assertTrue(fingerprint[0].sections.get(FileSystemCensus.PERMISSIONS_SECTION).keys
+        .containsKey("/system/bin/sh"));
+
+    // The walk of /system finishes and finds it unchanged
+    Map<String, String> finished = fullCensus();
+    finished.put(FileSystemCensus.PERMISSIONS_SECTION, files(file("/system/bin/sh", 493),
+        file("/system/lib/libc.so", 416)));
+    delta = delta(census(finished), fingerprint[0], fingerprint);
+    assertNull(delta.get(FileSystemCensus.PERMISSIONS_SECTION));
+    assertEquals(Collections.singletonList(FileSystemCensus.PARTIAL_SECTION),
+        strings(delta.getAsJsonArray("removed_sections")));
+  }
+
+  public void testFailedCollectorsSectionsAreNotRemoved() throws IOException {
+    byte[] full = census(fullCensus());
+    CensusFingerprint base = fingerprint(full);
+
+    Map<String, String> sections = new LinkedHashMap<>();
+    sections.put("processes", "[{\"pid\":1,\"name\":\"init\"}]");
+    sections.put(CensusScheduler.FAILED_SECTION, "[\"filesystem\"]");
+    CensusFingerprint[] fingerprint = new CensusFingerprint[1];
+    JsonObject delta = delta(census(sections), base, fingerprint);
+
+    assertNull(delta.get(FileSystemCensus.PERMISSIONS_SECTION));
+    assertEquals(0, delta.getAsJsonArray("removed_sections").size());
+    // With everything back the snapshot is the one the server already has
+    delta = delta(full, fingerprint[0], fingerprint);
+    assertEquals(Arrays.asList(CensusScheduler.FAILED_SECTION),
+        strings(delta.getAsJsonArray("removed_sections")));
+    assertEquals(base.snapshotId, fingerprint[0].snapshotId);
+
+    // Without a failed collector a missing section really is gone
+    sections.remove(CensusScheduler.FAILED_SECTION);
+    delta = delta(census(sections), base, fingerprint);
+    assertEquals(Collections.singletonList(FileSystemCensus.PERMISSIONS_SECTION),
+        strings(delta.getAsJsonArray("removed_sections")));
+  }
+}
@@ -0,0 +1,133 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusMetrics;
+import net.tsyrklevich.censustaker.CensusWriter;
+import org.apache.commons.io.FileUtils;
+
+public class CensusMetricsTest extends TestCase {
+  private static JsonObject span(JsonArray spans, String name) {
+    for (JsonElement span : spans) {
+      if (span.getAsJsonObject().get("name").getAsString().equals(name)) {
+        return span.getAsJsonObject();
+      }
+    }
+    fail("No span " + name + " in " + spans);
+    return null;
+  }
+
+  private static JsonObject census(CensusMetrics metrics) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, metrics, out);
+    try (CensusMetrics.Span span = metrics.begin("pollThings", "collector")) {
+      census.beginSection("things").value("some things");
+      census.endSection();
+      span.addEntries(1).addError();
+    }
+
+    census.beginBlobSection("small_files");
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    contents.write(new byte[1000]);
+    census.writeBlob("/a", contents);
+    census.writeBlob("/b", contents);
+    census.endSection();
+
+    census.writeMetrics();
+    census.close();
+    return JsonParser.parseString(out.toString("UTF-8")).getAsJsonObject();
+  }
+
+  public void testMetricsSection() throws IOException {
+    JsonObject metrics = census(new CensusMetrics()).getAsJsonObject(CensusMetrics.SECTION);
+    JsonArray spans = metrics.getAsJsonArray("spans");
+
+    JsonObject collector = span(spans, "pollThings");
+    assertEquals("collector", collector.get("category").getAsString());
+    assertEquals(1, collector.get("entries").getAsInt());
+    assertEquals(1, collector.get("errors").getAsInt());
+    // Its section was flushed before it ended
+    assertTrue(collector.get("bytes").getAsLong() >= "\"things\":\"some things\"".length());
+
+    JsonObject things = span(spans, "things");
+    assertEquals("section", things.get("category").getAsString());
+    assertTrue(things.get("startMicros").getAsLong() >= collector.get("startMicros").getAsLong());
+    assertTrue(things.get("wallMicros").getAsLong() <= collector.get("wallMicros").getAsLong());
+
+    JsonObject smallFiles = span(spans, "small_files");
+    assertEquals(2, smallFiles.get("entries").getAsInt());
+    // Base64 makes 1000 bytes 1336
+    assertTrue(smallFiles.get("bytes").getAsLong() > 2 * 1336);
+  }
+
+  public void testAllocationIsCountedPerThread() throws Exception {
+    CensusMetrics metrics = new CensusMetrics();
+    final List<byte[]> garbage = new ArrayList<>();
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 64; i++) {
+          garbage.add(new byte[1024 * 1024]);
+        }
+      }
+    };
+    try (CensusMetrics.Span span = metrics.begin("waiting", "collector")) {
+      other.start();
+      other.join();
+    }
+    assertEquals(64, garbage.size());
+
+    StringWriter json = new StringWriter();
+    metrics.write(new JsonWriter(json));
+    JsonObject waiting = span(JsonParser.parseString(json.toString()).getAsJsonObject()
+        .getAsJsonArray("spans"), "waiting");
+    // Not charged for what the other thread allocated
+    assertTrue(waiting.get("allocatedBytes").getAsLong() < 16 * 1024 * 1024);
+  }
+
+  public void testTrace() throws IOException {
+    CensusMetrics metrics = new CensusMetrics();
+    OutputStream timed = metrics.time("deflate", "compression", new ByteArrayOutputStream());
+    timed.write(new byte[4096]);
+    timed.close();
+    census(metrics);
+
+    File trace = File.createTempFile("census", ".trace.json");
+    try {
+      metrics.writeTrace(trace);
+      assertFalse(new File(trace.getPath() + ".tmp").exists());
+
+      JsonArray events = JsonParser.parseString(FileUtils.readFileToString(trace,
+          StandardCharsets.UTF_8)).getAsJsonObject().getAsJsonArray("traceEvents");
+      JsonObject deflate = span(events, "deflate");
+      assertEquals("X", deflate.get("ph").getAsString());
+      assertEquals("compression", deflate.get("cat").getAsString());
+      JsonObject collector = span(events, "pollThings");
+      assertEquals(1, collector.getAsJsonObject("args").get("entries").getAsInt());
+      // The timed stream gets its own track
+      assertFalse(deflate.get("tid").equals(collector.get("tid")));
+
+      int threadNames = 0;
+      for (JsonElement event : events) {
+        if (event.getAsJsonObject().get("ph").getAsString().equals("M")) {
+          threadNames++;
+        }
+      }
+      assertEquals(2, threadNames);
+    } finally {
+      trace.delete();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusConfig;
+import net.tsyrklevich.censustaker.CensusMetrics;
+import net.tsyrklevich.censustaker.CensusReader;
+import net.tsyrklevich.censustaker.CensusScheduler;
+import net.tsyrklevich.censustaker.CensusWriter;
+import net.tsyrklevich.censustaker.Collector;
+import org.apache.commons.io.FileUtils;
+
+public class CensusSchedulerTest extends TestCase {
+  private File tempDir;
+  private final List<String> progress = Collections.synchronizedList(new ArrayList<String>());
+
+  @Override
+  protected void setUp() throws IOException {
+    tempDir = File.createTempFile("scheduler", "");
+    tempDir.delete();
+    tempDir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  /**
+   * Writes a JSON section and a blob section, after waiting for start to count down.
+   */
+  private static Collector collector(final String name, final CountDownLatch start) {
+    return new Collector() {
+      @Override
+      public String name() {
+        return name;
+      }
+
+      @Override
+      public void collect(CensusWriter census) throws IOException {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+
+        census.beginSection(name).beginObject().name("value").value(42).endObject();
+        census.endSection();
+        census.beginBlobSection(name + "_files");
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        contents.write(name.getBytes(StandardCharsets.UTF_8));
+        census.writeBlob("/" + name, contents);
+        census.endSection();
+      }
+    };
+  }
+
+  private static Collector failing(final String name) {
+    return new Collector() {
+      @Override
+      public String name() {
+        return name;
+      }
+
+      @Override
+      public void collect(CensusWriter census) throws IOException {
+        census.beginSection(name).value("partial");
+        throw new IOException("collector broke");
+      }
+    };
+  }
+
+  /**
+   * Never finishes on its own, writing sections until it's cancelled.
+   */
+  private static Collector hanging(final String name) {
+    return new Collector() {
+      @Override
+      public String name() {
+        return name;
+      }
+
+      @Override
+      public void collect(CensusWriter census) throws IOException {
+        for (int i = 0; ; i++) {
+          census.beginSection(name + i).value(i);
+          census.endSection();
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+  }
+
+  private CensusScheduler scheduler(Properties properties) {
+    return new CensusScheduler(new CensusConfig(properties), new CensusMetrics(), tempDir,
+        new CensusScheduler.Listener() {
+          @Override
+          public void onCollectorStarted(String name) {
+          }
+
+          @Override
+          public void onCollectorFinished(String name, boolean succeeded, int finished,
+              int total) {
+            progress.add(name + (succeeded ? " ok " : " failed ") + finished + "/" + total);
+          }
+        });
+  }
+
+  private static List<String> sections(byte[] census) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(census))) {
+      String name;
+      while ((name = reader.nextSection()) != null) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  public void testMergesInOrder() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("collector.threads", "3");
+    // The last collector finishes first
+    CountDownLatch last = new CountDownLatch(0);
+    CountDownLatch first = new CountDownLatch(1);
+    List<Collector> collectors = Arrays.asList(collector("a", first), collector("b", first),
+        collector("c", last));
+
+    for (CensusWriter.Format format : CensusWriter.Format.values()) {
+      progress.clear();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CensusWriter census = new CensusWriter(format, out);
+      first.countDown();
+      scheduler(properties).run(collectors, census);
+      census.close();
+
+      assertEquals(Arrays.asList("a", "a_files", "b", "b_files", "c", "c_files"),
+          sections(out.toByteArray()));
+      assertEquals(3, progress.size());
+      assertTrue(progress.contains("c ok " + 1 + "/3") || progress.contains("c ok 2/3")
+          || progress.contains("c ok 3/3"));
+
+      if (format == CensusWriter.Format.JSON) {
+        JsonObject json = JsonParser.parseString(out.toString("UTF-8")).getAsJsonObject();
+        assertEquals(42, json.getAsJsonObject("b").get("value").getAsInt());
+        assertEquals("Yg==", json.getAsJsonObject("b_files").get("/b").getAsString());
+      }
+    }
+    assertEquals(0, tempDir.list().length);
+  }
+
+  public void testFailedCollectorIsLeftOut() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.BINARY, out);
+    scheduler(new Properties()).run(Arrays.asList(collector("a", new CountDownLatch(0)),
+        failing("broken"), collector("c", new CountDownLatch(0))), census);
+    census.close();
+
+    assertEquals(Arrays.asList("a", "a_files", "c", "c_files", CensusScheduler.FAILED_SECTION),
+        sections(out.toByteArray()));
+    assertTrue(progress.contains("broken failed 1/3") || progress.contains("broken failed 2/3")
+        || progress.contains("broken failed 3/3"));
+    assertEquals(0, tempDir.list().length);
+  }
+
+  public void testTimeout() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("collector.hang.timeout", "1");
+
+    long start = System.nanoTime();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, out);
+    scheduler(properties).run(Arrays.asList(hanging("hang"),
+        collector("after", new CountDownLatch(0))), census);
+    census.close();
+
+    assertTrue(System.nanoTime() - start < 10_000_000_000L);
+    assertEquals(Arrays.asList("after", "after_files", CensusScheduler.FAILED_SECTION),
+        sections(out.toByteArray()));
+    assertTrue(progress.contains("hang failed 1/2") || progress.contains("hang failed 2/2"));
+  }
+}
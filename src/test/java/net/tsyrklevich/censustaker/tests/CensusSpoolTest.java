@@ -0,0 +1,177 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusContainer;
+import net.tsyrklevich.censustaker.CensusSpool;
+import org.apache.commons.io.FileUtils;
+
+public class CensusSpoolTest extends TestCase {
+  private File dir;
+  private File payload;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("spool", "");
+    dir.delete();
+    payload = File.createTempFile("census", ".deflate");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+    payload.delete();
+  }
+
+  private CensusSpool.Entry add(CensusSpool spool, String contents) throws IOException {
+    FileUtils.writeStringToFile(payload, contents, "UTF-8");
+    return spool.add(payload, CensusContainer.CONTENT_TYPE, "v1");
+  }
+
+  private static List<String> contents(CensusSpool spool) throws IOException {
+    List<String> contents = new ArrayList<>();
+    for (CensusSpool.Entry entry : spool.entries()) {
+      contents.add(FileUtils.readFileToString(entry.file, "UTF-8"));
+    }
+    return contents;
+  }
+
+  public void testKeepsCensusesInOrder() throws IOException {
+    CensusSpool spool = new CensusSpool(dir, 1024, 8);
+    add(spool, "first");
+    payload.delete();
+    FileUtils.writeStringToFile(payload, "second", "UTF-8");
+    spool.add(payload, "application/octet-stream", null);
+
+    // A fresh spool on the same directory finds them, with what's needed to send them
+    List<CensusSpool.Entry> entries = new CensusSpool(dir, 1024, 8).entries();
+    assertEquals(2, entries.size());
+    assertEquals(CensusContainer.CONTENT_TYPE, entries.get(0).contentType);
+    assertEquals("v1", entries.get(0).dictionaryVersion);
+    assertEquals("application/octet-stream", entries.get(1).contentType);
+    assertNull(entries.get(1).dictionaryVersion);
+    assertEquals(Arrays.asList("first", "second"), contents(spool));
+    assertEquals(11, spool.size());
+  }
+
+  public void testDropsOldestWhenFull() throws IOException {
+    CensusSpool spool = new CensusSpool(dir, 10, 3);
+    add(spool, "aaaa");
+    add(spool, "bbbb");
+    // Over max_bytes
+    add(spool, "cccc");
+    assertEquals(Arrays.asList("bbbb", "cccc"), contents(spool));
+
+    add(spool, "d");
+    // Over max_entries
+    add(spool, "e");
+    assertEquals(Arrays.asList("cccc", "d", "e"), contents(spool));
+
+    // Bigger than the whole spool
+    assertNull(add(spool, "fffffffffff"));
+    assertEquals(3, spool.entries().size());
+  }
+
+  public void testIgnoresUnfinishedCopies() throws IOException {
+    CensusSpool spool = new CensusSpool(dir, 1024, 8);
+    CensusSpool.Entry entry = add(spool, "census");
+    File unfinished = new File(dir, entry.file.getName() + "1.tmp");
+    FileUtils.writeStringToFile(unfinished, "cens", "UTF-8");
+
+    assertEquals(1, spool.entries().size());
+    assertFalse(unfinished.exists());
+  }
+
+  private static class FakeServer implements CensusSpool.Sender {
+    final List<String> sent = new ArrayList<>();
+    final List<Integer> responses = new ArrayList<>();
+
+    @Override
+    public synchronized int send(CensusSpool.Entry entry) {
+      try {
+        sent.add(FileUtils.readFileToString(entry.file, "UTF-8"));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      notifyAll();
+      return responses.isEmpty() ? 200 : responses.remove(0);
+    }
+
+    synchronized void awaitSent(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (sent.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  public void testDrainStopsAtRetryableFailure() throws IOException {
+    CensusSpool spool = new CensusSpool(dir, 1024, 8);
+    add(spool, "a");
+    add(spool, "b");
+    add(spool, "c");
+    FakeServer server = new FakeServer();
+    // Refused for good, then the server goes away
+    server.responses.addAll(Arrays.asList(400, 503));
+
+    assertFalse(spool.drain(server));
+    assertEquals(Arrays.asList("a", "b"), server.sent);
+    assertEquals(Arrays.asList("b", "c"), contents(spool));
+
+    assertTrue(spool.drain(server));
+    assertEquals(Arrays.asList("a", "b", "b", "c"), server.sent);
+    assertTrue(spool.entries().isEmpty());
+  }
+
+  private static void awaitEmpty(CensusSpool spool) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!spool.entries().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  public void testFlusherBacksOff() throws Exception {
+    CensusSpool spool = new CensusSpool(dir, 1024, 8);
+    add(spool, "a");
+    add(spool, "b");
+    FakeServer server = new FakeServer();
+    server.responses.addAll(Arrays.asList(-1, 500, -1));
+    CensusSpool.Flusher flusher = new CensusSpool.Flusher(spool, server, 10, 40);
+    flusher.start();
+    try {
+      awaitEmpty(spool);
+      assertTrue(spool.entries().isEmpty());
+      assertEquals(Arrays.asList("a", "a", "a", "a", "b"), server.sent);
+    } finally {
+      flusher.interrupt();
+      flusher.join();
+    }
+  }
+
+  public void testWakeRetriesStraightAway() throws Exception {
+    CensusSpool spool = new CensusSpool(dir, 1024, 8);
+    add(spool, "a");
+    FakeServer server = new FakeServer();
+    server.responses.add(-1);
+    // Too long to wait out in a test
+    CensusSpool.Flusher flusher = new CensusSpool.Flusher(spool, server, 60000, 60000);
+    flusher.start();
+    try {
+      server.awaitSent(1);
+      Thread.sleep(100);
+      assertEquals(1, server.sent.size());
+
+      flusher.wake();
+      awaitEmpty(spool);
+      assertTrue(spool.entries().isEmpty());
+      assertEquals(2, server.sent.size());
+    } finally {
+      flusher.interrupt();
+      flusher.join();
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusUpload;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Runs uploads against a local stand-in for the census server that speaks the resume protocol
+ *  and can drop the connection partway through a body.
+ */
+public class CensusUploadTest extends TestCase {
+  private static class StandIn implements HttpHandler {
+    final Map<String, ByteArrayOutputStream> sessions = new ConcurrentHashMap<>();
+    final List<String> requests = new ArrayList<>();
+    /** Client port of each request, the same port means the same connection */
+    final List<Integer> ports = new ArrayList<>();
+    /** Drop the connection after this many bytes of the next body, -1 to never drop. */
+    int dropAfter = -1;
+    boolean resumable = true;
+    boolean chunkedAllowed = true;
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String session = exchange.getRequestHeaders().getFirst(CensusUpload.SESSION_HEADER);
+      String offsetHeader = exchange.getRequestHeaders().getFirst(CensusUpload.OFFSET_HEADER);
+      boolean chunked = "chunked".equalsIgnoreCase(
+          exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+      synchronized (requests) {
+        requests.add(exchange.getRequestMethod() + " " + offsetHeader
+            + (chunked ? " chunked" : ""));
+        ports.add(exchange.getRemoteAddress().getPort());
+      }
+
+      if (!resumable) {
+        sessions.remove(session);
+      }
+      ByteArrayOutputStream received = sessions.get(session);
+      if (received == null) {
+        received = new ByteArrayOutputStream();
+        sessions.put(session, received);
+      }
+
+      if (exchange.getRequestMethod().equals("HEAD")) {
+        if (resumable) {
+          exchange.getResponseHeaders().set(CensusUpload.OFFSET_HEADER,
+              Integer.toString(received.size()));
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        return;
+      }
+
+      if (chunked && !chunkedAllowed) {
+        exchange.sendResponseHeaders(411, -1);
+        exchange.close();
+        return;
+      }
+
+      long offset = offsetHeader == null ? 0 : Long.parseLong(offsetHeader);
+      if (resumable && offset != received.size()) {
+        exchange.getResponseHeaders().set(CensusUpload.OFFSET_HEADER,
+            Integer.toString(received.size()));
+        exchange.sendResponseHeaders(416, -1);
+        exchange.close();
+        return;
+      }
+
+      InputStream body = exchange.getRequestBody();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = body.read(buffer)) != -1) {
+        if (dropAfter >= 0) {
+          n = Math.min(n, dropAfter);
+          dropAfter -= n;
+        }
+        received.write(buffer, 0, n);
+        if (dropAfter == 0) {
+          dropAfter = -1;
+          // Escaping the handler makes the server close the connection without answering
+          throw new IOException("Dropping connection");
+        }
+      }
+      byte[] response = "{\"status\":\"ok\"}".getBytes("UTF-8");
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    }
+  }
+
+  private HttpServer server;
+  private StandIn standIn;
+  private URL url;
+  private File payload;
+  private byte[] contents;
+
+  @Override
+  protected void setUp() throws IOException {
+    standIn = new StandIn();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/results/new", standIn);
+    server.start();
+    url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/results/new");
+
+    contents = new byte[1024 * 1024];
+    new Random(1).nextBytes(contents);
+    payload = File.createTempFile("census", ".deflate");
+    FileUtils.writeByteArrayToFile(payload, contents);
+  }
+
+  @Override
+  protected void tearDown() {
+    server.stop(0);
+    payload.delete();
+  }
+
+  private byte[] received(CensusUpload upload) {
+    return standIn.sessions.get(upload.sessionId()).toByteArray();
+  }
+
+  public void testStreamsChunked() {
+    CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+
+    assertEquals(200, upload.attempt());
+    assertTrue(Arrays.equals(contents, received(upload)));
+    assertEquals(Arrays.asList("POST 0 chunked"), standIn.requests);
+  }
+
+  public void testResumesAfterDroppedConnection() {
+    CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+    standIn.dropAfter = 300000;
+
+    assertEquals(-1, upload.attempt());
+    long firstAttempt = upload.bytesSent();
+    assertEquals(200, upload.attempt());
+
+    assertTrue(Arrays.equals(contents, received(upload)));
+    assertEquals(Arrays.asList("POST 0 chunked", "HEAD null", "POST 300000 chunked"),
+        standIn.requests);
+    assertEquals(contents.length - 300000, upload.bytesSent() - firstAttempt);
+  }
+
+  public void testStartsOverWithServerThatCantResume() {
+    CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+    standIn.resumable = false;
+    standIn.dropAfter = 300000;
+
+    assertEquals(-1, upload.attempt());
+    assertEquals(200, upload.attempt());
+
+    assertTrue(Arrays.equals(contents, received(upload)));
+    assertEquals("POST 0 chunked", standIn.requests.get(2));
+  }
+
+  public void testFollowsServerOffset() {
+    CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+    ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    partial.write(contents, 0, 1000);
+    standIn.sessions.put(upload.sessionId(), partial);
+
+    assertEquals(200, upload.attempt());
+
+    assertTrue(Arrays.equals(contents, received(upload)));
+    assertEquals(Arrays.asList("POST 0 chunked", "POST 1000 chunked"), standIn.requests);
+  }
+
+  public void testFallsBackToFixedLength() {
+    CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+    standIn.chunkedAllowed = false;
+
+    assertEquals(200, upload.attempt());
+
+    assertTrue(Arrays.equals(contents, received(upload)));
+    assertEquals(Arrays.asList("POST 0 chunked", "POST 0"), standIn.requests);
+  }
+
+  public void testKeepAliveSharesConnection() {
+    for (int i = 0; i < 3; i++) {
+      CensusUpload upload = new CensusUpload(url, payload, "application/octet-stream");
+      upload.setKeepAlive(true);
+      assertEquals(200, upload.attempt());
+      assertTrue(Arrays.equals(contents, received(upload)));
+    }
+
+    assertEquals(3, standIn.ports.size());
+    assertEquals(standIn.ports.get(0), standIn.ports.get(1));
+    assertEquals(standIn.ports.get(0), standIn.ports.get(2));
+  }
+}
@@ -0,0 +1,190 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusDelta;
+import net.tsyrklevich.censustaker.CensusReader;
+import net.tsyrklevich.censustaker.CensusWriter;
+import net.tsyrklevich.censustaker.FileRecordColumns;
+
+public class FileRecordColumnsTest extends TestCase {
+  private static final String[] CONTEXTS = {"u:object_r:system_file:s0",
+      "u:object_r:system_lib_file:s0", "u:object_r:vendor_file:s0", null};
+
+  private interface Records {
+    void add(String path, String linkPath, int uid, int gid, int size, int mode,
+        String selinuxContext) throws IOException;
+  }
+
+  /**
+   * More than a chunk's worth of records the way the scanner reports them, sorted by path.
+   */
+  private static void generate(Records records) throws IOException {
+    Random random = new Random(42);
+    String[] dirs = {"/system/app", "/system/bin", "/system/lib64", "/system/lib64/hw",
+        "/system/\ud83d\udcf1", "/vendor/lib64"};
+    for (String dir : dirs) {
+      for (int i = 0; i < 3000; i++) {
+        String path = String.format("%s/lib%s_%05d.so", dir, dir.length() % 2 == 0 ? "a" : "b",
+            i);
+        String linkPath = random.nextInt(20) == 0 ? "/apex/com.android.runtime" + path : null;
+        records.add(path, linkPath, random.nextInt(3) == 0 ? 1000 : 0, random.nextInt(2000),
+            random.nextInt(1 << 22), 0100644, CONTEXTS[random.nextInt(CONTEXTS.length)]);
+      }
+    }
+  }
+
+  private static String records() throws IOException {
+    StringWriter out = new StringWriter();
+    final JsonWriter writer = new JsonWriter(out);
+    writer.beginArray();
+    generate(new Records() {
+      @Override
+      public void add(String path, String linkPath, int uid, int gid, int size, int mode,
+          String selinuxContext) throws IOException {
+        writer.beginObject();
+        writer.name("path").value(path);
+        if (linkPath != null) {
+          writer.name("linkPath").value(linkPath);
+        }
+        writer.name("uid").value(uid);
+        writer.name("gid").value(gid);
+        writer.name("size").value(size);
+        writer.name("mode").value(mode);
+        if (selinuxContext != null) {
+          writer.name("selinuxContext").value(selinuxContext);
+        }
+        writer.endObject();
+      }
+    });
+    writer.endArray();
+    writer.flush();
+    return out.toString();
+  }
+
+  private static String columns() throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter writer = new JsonWriter(out);
+    final FileRecordColumns columns = new FileRecordColumns(writer);
+    generate(new Records() {
+      @Override
+      public void add(String path, String linkPath, int uid, int gid, int size, int mode,
+          String selinuxContext) throws IOException {
+        columns.add(path, linkPath, uid, gid, size, mode, selinuxContext);
+      }
+    });
+    columns.finish();
+    writer.flush();
+    return out.toString();
+  }
+
+  private static String expand(String section) throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter writer = new JsonWriter(out);
+    FileRecordColumns.expand(new JsonReader(new StringReader(section)), writer);
+    writer.flush();
+    return out.toString();
+  }
+
+  public void testRoundTrip() throws IOException {
+    String records = records();
+    String columns = columns();
+    assertEquals(records, expand(columns));
+    // Records that aren't encoded come through as they are
+    assertEquals(records, expand(records));
+    assertTrue("columnar is " + columns.length() + " bytes, records " + records.length(),
+        columns.length() * 2 < records.length());
+  }
+
+  private static JsonObject smallChunk() throws IOException {
+    StringWriter out = new StringWriter();
+    JsonWriter writer = new JsonWriter(out);
+    FileRecordColumns columns = new FileRecordColumns(writer);
+    columns.add("/system/bin/sh", null, 0, 2000, 100, 0100755, CONTEXTS[0]);
+    columns.add("/system/bin/toybox", null, 0, 2000, 200, 0100755, CONTEXTS[0]);
+    columns.add("/system/bin/ls", "toybox", 0, 2000, 6, 0120777, CONTEXTS[1]);
+    columns.finish();
+    writer.flush();
+    return JsonParser.parseString(out.toString()).getAsJsonObject();
+  }
+
+  private static JsonObject chunk(JsonObject section) {
+    return section.getAsJsonArray("chunks").get(0).getAsJsonObject();
+  }
+
+  private static void assertMalformed(JsonObject section) {
+    try {
+      expand(section.toString());
+      fail("Decoded a malformed chunk " + section);
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testRejectsMalformedChunks() throws IOException {
+    JsonObject section = smallChunk();
+    assertEquals(3, JsonParser.parseString(expand(section.toString())).getAsJsonArray().size());
+
+    // A column cut short
+    section = smallChunk();
+    chunk(section).getAsJsonArray("uid").remove(2);
+    assertMalformed(section);
+
+    // More rows than the columns have
+    section = smallChunk();
+    chunk(section).addProperty("count", 4);
+    assertMalformed(section);
+
+    // Sharing more of the previous path than there is
+    section = smallChunk();
+    chunk(section).getAsJsonArray("prefix").set(1, new JsonPrimitive(100));
+    assertMalformed(section);
+    section = smallChunk();
+    chunk(section).getAsJsonArray("prefix").set(0, new JsonPrimitive(1));
+    assertMalformed(section);
+
+    // A context that isn't in the dictionary
+    section = smallChunk();
+    chunk(section).getAsJsonArray("context").set(2, new JsonPrimitive(2));
+    assertMalformed(section);
+
+    // A symlink row past the end, or a target for no row
+    section = smallChunk();
+    chunk(section).getAsJsonArray("linkRows").set(0, new JsonPrimitive(3));
+    assertMalformed(section);
+    section = smallChunk();
+    chunk(section).getAsJsonArray("linkPaths").add("toybox");
+    assertMalformed(section);
+
+    // A value of the wrong type
+    section = smallChunk();
+    chunk(section).getAsJsonArray("suffix").set(0, JsonNull.INSTANCE);
+    assertMalformed(section);
+  }
+
+  private static String snapshot(String section) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, out);
+    census.beginSection("file_permissions").jsonValue(section);
+    census.endSection();
+    census.close();
+
+    try (CensusReader reader = new CensusReader(new ByteArrayInputStream(out.toByteArray()))) {
+      return CensusDelta.fingerprint(reader).snapshotId;
+    }
+  }
+
+  public void testFingerprintDoesNotDependOnEncoding() throws IOException {
+    assertEquals(snapshot(records()), snapshot(columns()));
+  }
+}
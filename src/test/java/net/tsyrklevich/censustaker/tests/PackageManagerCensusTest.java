@@ -0,0 +1,231 @@
+package net.tsyrklevich.censustaker.tests;
+
+import android.content.pm.FeatureInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PathPermission;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import android.os.PatternMatcher;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusConfig;
+import net.tsyrklevich.censustaker.CensusWriter;
+import net.tsyrklevich.censustaker.PackageManagerCensus;
+import net.tsyrklevich.censustaker.PackageSource;
+
+public class PackageManagerCensusTest extends TestCase {
+  private static PermissionInfo permission(String packageName, String name, int protectionLevel) {
+    PermissionInfo permission = new PermissionInfo();
+    permission.packageName = packageName;
+    permission.name = name;
+    permission.protectionLevel = protectionLevel;
+    return permission;
+  }
+
+  private static PackageInfo pkg(String packageName, PermissionInfo... permissions) {
+    PackageInfo pkg = new PackageInfo();
+    pkg.packageName = packageName;
+    pkg.permissions = permissions.length > 0 ? permissions : null;
+    return pkg;
+  }
+
+  private static PermissionGroupInfo group(String packageName, String name) {
+    PermissionGroupInfo group = new PermissionGroupInfo();
+    group.packageName = packageName;
+    group.name = name;
+    return group;
+  }
+
+  /**
+   * Three packages, one of them declaring a group, a package only installed for another user and
+   *  a group declared by a package that isn't in the package list at all.
+   */
+  private static class FakePackages implements PackageSource {
+    final List<String> groupQueries = new ArrayList<>();
+    boolean transactionTooLarge;
+    int packageQueries;
+
+    final PermissionInfo camera = permission("android", "android.permission.CAMERA", 1);
+    final PermissionInfo internet = permission("android", "android.permission.INTERNET", 0);
+    final PermissionInfo c2dm = permission("com.google.android.gms", "com.google.c2dm", 2);
+    final PermissionInfo work = permission("com.example.work", "com.example.work.READ", 2);
+    final PermissionInfo gone = permission("com.example.gone", "com.example.gone.USE", 2);
+    final List<PackageInfo> packages = Arrays.asList(pkg("android", camera, internet),
+        pkg("com.google.android.gms", c2dm), pkg("com.example.app"));
+    final PackageInfo otherUser = pkg("com.example.work", work);
+
+    private List<PackageInfo> listed(int flags) {
+      List<PackageInfo> listed = new ArrayList<>(packages);
+      if ((flags & PackageManager.MATCH_UNINSTALLED_PACKAGES) != 0) {
+        listed.add(otherUser);
+      }
+      return listed;
+    }
+
+    @Override
+    public String[] getSystemSharedLibraryNames() {
+      return new String[] {"android.test.runner"};
+    }
+
+    @Override
+    public FeatureInfo[] getSystemAvailableFeatures() {
+      return new FeatureInfo[0];
+    }
+
+    @Override
+    public List<PackageInfo> getInstalledPackages(int flags) {
+      if ((flags & PackageManager.GET_PERMISSIONS) == 0) {
+        List<PackageInfo> bare = new ArrayList<>();
+        for (PackageInfo pkg : listed(flags)) {
+          bare.add(pkg(pkg.packageName));
+        }
+        return bare;
+      }
+      if (transactionTooLarge) {
+        throw new RuntimeException("Package manager has died");
+      }
+      return listed(flags);
+    }
+
+    @Override
+    public PackageInfo getPackageInfo(String packageName, int flags)
+        throws PackageManager.NameNotFoundException {
+      packageQueries++;
+      for (PackageInfo pkg : listed(flags)) {
+        if (pkg.packageName.equals(packageName)) {
+          return pkg;
+        }
+      }
+      throw new PackageManager.NameNotFoundException();
+    }
+
+    @Override
+    public List<PermissionGroupInfo> getAllPermissionGroups(int flags) {
+      return Arrays.asList(group("android", "android.permission-group.CAMERA"),
+          group("com.example.work", "com.example.work.GROUP"),
+          group("com.example.gone", "com.example.gone.GROUP"));
+    }
+
+    @Override
+    public List<PermissionInfo> queryPermissionsByGroup(String group, int flags) {
+      groupQueries.add(group);
+      if (group.equals("android.permission-group.CAMERA")) {
+        return Collections.singletonList(camera);
+      }
+      if (group.equals("com.example.work.GROUP")) {
+        return Collections.singletonList(work);
+      }
+      // Also declared by a package that was scanned
+      return Arrays.asList(gone, c2dm);
+    }
+
+    @Override
+    public List<ProviderInfo> queryContentProviders(String processName, int uid, int flags) {
+      ProviderInfo provider = new ProviderInfo();
+      provider.authority = "com.example.app.files";
+      provider.readPermission = "com.example.app.READ";
+      provider.grantUriPermissions = true;
+      provider.pathPermissions = new PathPermission[] {
+          new PathPermission("/shared", PatternMatcher.PATTERN_PREFIX, null, null)};
+      provider.uriPermissionPatterns = new PatternMatcher[] {
+          new PatternMatcher("/shared/", PatternMatcher.PATTERN_PREFIX),
+          new PatternMatcher("/cache/", PatternMatcher.PATTERN_PREFIX)};
+      return Collections.singletonList(provider);
+    }
+  }
+
+  private static JsonObject census(PackageSource packages, Properties properties)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CensusWriter census = new CensusWriter(CensusWriter.Format.JSON, out);
+    new PackageManagerCensus(new CensusConfig(properties), packages).collect(census);
+    census.close();
+    return JsonParser.parseString(out.toString("UTF-8")).getAsJsonObject();
+  }
+
+  private static JsonArray permissions(PackageSource packages) throws IOException {
+    return census(packages, new Properties()).getAsJsonArray("permissions");
+  }
+
+  private static void assertPermission(JsonObject permission, String packageName, String name,
+      String protectionLevel) {
+    assertEquals(packageName, permission.get("packageName").getAsString());
+    assertEquals(name, permission.get("name").getAsString());
+    assertEquals(protectionLevel, permission.get("protectionLevel").getAsString());
+    assertEquals("0", permission.get("flags").getAsString());
+  }
+
+  public void testPermissions() throws IOException {
+    FakePackages packages = new FakePackages();
+    JsonArray permissions = permissions(packages);
+
+    // Only the group whose package wasn't listed is queried, the other user's package was
+    assertEquals(Collections.singletonList("com.example.gone.GROUP"), packages.groupQueries);
+    // Deduplicated by (packageName, name) and sorted
+    assertEquals(5, permissions.size());
+    assertPermission(permissions.get(0).getAsJsonObject(), "android",
+        "android.permission.CAMERA", "1");
+    assertPermission(permissions.get(1).getAsJsonObject(), "android",
+        "android.permission.INTERNET", "0");
+    assertPermission(permissions.get(2).getAsJsonObject(), "com.example.gone",
+        "com.example.gone.USE", "2");
+    assertPermission(permissions.get(3).getAsJsonObject(), "com.example.work",
+        "com.example.work.READ", "2");
+    assertPermission(permissions.get(4).getAsJsonObject(), "com.google.android.gms",
+        "com.google.c2dm", "2");
+  }
+
+  public void testLeavesOutNullNames() throws IOException {
+    FakePackages packages = new FakePackages();
+    packages.c2dm.packageName = null;
+    JsonArray permissions = permissions(packages);
+
+    // Sorted first, and without a packageName rather than an empty one
+    assertEquals(5, permissions.size());
+    JsonObject c2dm = permissions.get(0).getAsJsonObject();
+    assertFalse(c2dm.has("packageName"));
+    assertEquals("com.google.c2dm", c2dm.get("name").getAsString());
+  }
+
+  public void testFallsBackToOnePackageAtATime() throws IOException {
+    FakePackages packages = new FakePackages();
+    packages.transactionTooLarge = true;
+    JsonArray permissions = permissions(packages);
+
+    assertEquals(4, packages.packageQueries);
+    assertEquals(5, permissions.size());
+    assertEquals(Collections.singletonList("com.example.gone.GROUP"), packages.groupQueries);
+  }
+
+  public void testProviders() throws IOException {
+    JsonObject provider = census(new FakePackages(), new Properties())
+        .getAsJsonArray("providers").get(0).getAsJsonObject();
+    // In the order they've always been written in
+    assertEquals(Arrays.asList("pathPermissions", "grantUriPermissions", "authority",
+        "readPermission", "flags", "multiprocess", "uriPermissionPatterns", "initOrder"),
+        new ArrayList<>(provider.keySet()));
+    assertEquals("com.example.app.files", provider.get("authority").getAsString());
+    assertTrue(provider.get("grantUriPermissions").getAsBoolean());
+    // The patterns are the text of an array unless asked otherwise
+    String patterns = provider.get("uriPermissionPatterns").getAsString();
+    assertEquals(2, JsonParser.parseString(patterns).getAsJsonArray().size());
+
+    Properties properties = new Properties();
+    properties.setProperty("census.provider_patterns", "array");
+    JsonObject fixed = census(new FakePackages(), properties)
+        .getAsJsonArray("providers").get(0).getAsJsonObject();
+    assertEquals(2, fixed.getAsJsonArray("uriPermissionPatterns").size());
+    assertEquals(1, fixed.getAsJsonArray("pathPermissions").size());
+  }
+}
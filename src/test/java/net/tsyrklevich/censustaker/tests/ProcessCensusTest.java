@@ -0,0 +1,42 @@
+package net.tsyrklevich.censustaker.tests;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.ProcessCensus;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * src/test/resources/proc/status is surfaceflinger's /proc/&lt;pid&gt;/status on a 4.14 kernel,
+ *  with the Seccomp_filters line newer kernels add.
+ */
+public class ProcessCensusTest extends TestCase {
+  private static String status(String status) throws IOException {
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.beginObject();
+      ProcessCensus.writeStatus(writer, status);
+      writer.endObject();
+    }
+    return json.toString();
+  }
+
+  public void testParsesStatus() throws IOException {
+    String status;
+    try (InputStream in = ProcessCensusTest.class.getResourceAsStream("/proc/status")) {
+      status = IOUtils.toString(in, "UTF-8");
+    }
+
+    assertEquals("{\"name\":\"surfaceflinger\",\"state\":\"S\",\"ppid\":1,"
+        + "\"uid\":[1000,1000,1000,1000],\"gid\":[1003,1003,1003,1003],\"groups\":[1026,3009],"
+        + "\"capInh\":0,\"capPrm\":8388608,\"capEff\":8388608,\"capBnd\":8388608,\"capAmb\":0,"
+        + "\"noNewPrivs\":0,\"seccomp\":2,\"seccompFilters\":1}", status(status));
+  }
+
+  public void testLeavesOutFieldsThatDoNotParse() throws IOException {
+    assertEquals("{\"name\":\"init\",\"groups\":[],\"seccomp\":0}", status(
+        "Name:\tinit\nPPid:\tunknown\nUid:\t0\t0\tx\t0\nGroups:\t\nCapEff:\t\nSeccomp:\t0"));
+  }
+}
@@ -0,0 +1,128 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.PropertyArea;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The fixtures in src/test/resources/property_areas are laid out the way bionic's
+ *  prop_area::add() lays them out, including a long property and an empty one.
+ */
+public class PropertyAreaTest extends TestCase {
+  private static final String[] AREAS =
+      {"build_prop", "default_prop", "properties_serial", "property_info"};
+
+  private static byte[] fixture(String name) throws IOException {
+    try (InputStream in = PropertyAreaTest.class.getResourceAsStream("/property_areas/" + name)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  private static Map<String, String> read(byte[] area) throws IOException {
+    Map<String, String> properties = new TreeMap<>();
+    PropertyArea.read(ByteBuffer.wrap(area), properties);
+    return properties;
+  }
+
+  public void testReadsEveryProperty() throws IOException {
+    Map<String, String> properties = read(fixture("build_prop"));
+
+    assertEquals(10, properties.size());
+    assertEquals("29", properties.get("ro.build.version.sdk"));
+    assertEquals("Pixel 4 XL", properties.get("ro.product.model"));
+    assertEquals("first", properties.get("ro.a"));
+    assertEquals("last", properties.get("ro.zz.top"));
+    assertEquals("google/coral/coral:10/QQ3A.200805.001/6578210:user/release-keys",
+        properties.get("ro.build.fingerprint"));
+  }
+
+  public void testReadsLongProperties() throws IOException {
+    Map<String, String> properties = read(fixture("build_prop"));
+
+    assertEquals("coral-user 10 QQ3A.200805.001 6578210 release-keys with a description long "
+        + "enough to need the long form", properties.get("ro.build.description"));
+  }
+
+  public void testSkipsEmptyProperties() throws IOException {
+    assertFalse(read(fixture("build_prop")).containsKey("ro.build.id"));
+  }
+
+  public void testSkipsPropertiesBeingWritten() throws IOException {
+    byte[] area = fixture("build_prop");
+    int name = new String(area, StandardCharsets.ISO_8859_1).indexOf("ro.product.model\0");
+    // The serial is 96 bytes before the name, set its dirty bit
+    ByteBuffer buffer = ByteBuffer.wrap(area).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(name - 96, buffer.getInt(name - 96) | 1);
+
+    Map<String, String> properties = read(area);
+    assertFalse(properties.containsKey("ro.product.model"));
+    assertEquals(9, properties.size());
+  }
+
+  public void testRejectsUnknownVersions() throws IOException {
+    byte[] area = fixture("build_prop");
+    area[12] ^= 1;
+
+    assertFalse(PropertyArea.isPropertyArea(ByteBuffer.wrap(area)));
+    try {
+      read(area);
+      fail("Read a property area with an unknown version");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testRejectsTruncatedAreas() throws IOException {
+    byte[] area = fixture("build_prop");
+    ByteBuffer truncated = ByteBuffer.wrap(area, 0, 512).slice();
+
+    try {
+      PropertyArea.read(truncated, new TreeMap<String, String>());
+      fail("Read a truncated property area");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testRejectsCycles() throws IOException {
+    ByteBuffer area = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    area.putInt(8, PropertyArea.MAGIC).putInt(12, PropertyArea.VERSION);
+    // The root's only child is node "a" at offset 24, whose left link points back at itself
+    area.putInt(128 + 16, 24);
+    area.putInt(128 + 24, 1);
+    area.putInt(128 + 24 + 8, 24);
+    area.put(128 + 24 + 20, (byte) 'a');
+
+    try {
+      PropertyArea.read(area, new TreeMap<String, String>());
+      fail("Walked a property area with a cycle");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testReadsEveryAreaInDirectory() throws IOException {
+    File dir = File.createTempFile("properties", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    try {
+      for (String area : AREAS) {
+        FileUtils.writeByteArrayToFile(new File(dir, area), fixture(area));
+      }
+
+      Map<String, String> properties = new TreeMap<>();
+      // property_info isn't a property area and is skipped
+      assertEquals(3, PropertyArea.readAll(dir, properties));
+      assertEquals(14, properties.size());
+      assertEquals("America/Los_Angeles", properties.get("persist.sys.timezone"));
+      assertEquals("29", properties.get("ro.build.version.sdk"));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+}
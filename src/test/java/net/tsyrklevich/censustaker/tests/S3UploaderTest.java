@@ -0,0 +1,288 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.HashCache;
+import net.tsyrklevich.censustaker.ObjectStore;
+import net.tsyrklevich.censustaker.S3Uploader;
+import net.tsyrklevich.censustaker.UploadStats;
+import org.apache.commons.io.FileUtils;
+
+public class S3UploaderTest extends TestCase {
+  private static class MemoryStore implements ObjectStore {
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    final AtomicInteger listings = new AtomicInteger();
+    boolean failListing;
+
+    @Override
+    public Set<String> listKeys(String prefix) throws IOException {
+      listings.incrementAndGet();
+      if (failListing) {
+        throw new IOException("listing failed");
+      }
+      Set<String> keys = new HashSet<>();
+      for (String key : objects.keySet()) {
+        if (key.startsWith(prefix)) {
+          keys.add(key);
+        }
+      }
+      return keys;
+    }
+
+    @Override
+    public void put(String key, File file) throws IOException {
+      objects.put(key, FileUtils.readFileToByteArray(file));
+    }
+
+    @Override
+    public void put(String key, byte[] data) {
+      objects.put(key, data);
+    }
+
+    final Map<String, Map<Integer, byte[]>> multiparts = new ConcurrentHashMap<>();
+    final AtomicInteger aborted = new AtomicInteger();
+
+    @Override
+    public void copy(String fromKey, String toKey) {
+      objects.put(toKey, objects.get(fromKey));
+    }
+
+    @Override
+    public void delete(String key) {
+      objects.remove(key);
+    }
+
+    @Override
+    public String startMultipart(String key) {
+      String uploadId = key + "#upload";
+      multiparts.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+      return uploadId;
+    }
+
+    @Override
+    public String putPart(String key, String uploadId, int partNumber, byte[] data, int length) {
+      multiparts.get(uploadId).put(partNumber, Arrays.copyOf(data, length));
+      return "etag" + partNumber;
+    }
+
+    @Override
+    public void completeMultipart(String key, String uploadId, List<String> etags)
+        throws IOException {
+      Map<Integer, byte[]> parts = multiparts.remove(uploadId);
+      ByteArrayOutputStream object = new ByteArrayOutputStream();
+      for (int i = 0; i < etags.size(); i++) {
+        assertEquals("etag" + (i + 1), etags.get(i));
+        object.write(parts.get(i + 1));
+      }
+      assertEquals(etags.size(), parts.size());
+      objects.put(key, object.toByteArray());
+    }
+
+    @Override
+    public void abortMultipart(String key, String uploadId) {
+      multiparts.remove(uploadId);
+      aborted.incrementAndGet();
+    }
+  }
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("s3uploader", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private String file(String name, String contents) throws IOException {
+    File file = new File(dir, name);
+    FileUtils.writeStringToFile(file, contents, StandardCharsets.UTF_8);
+    return file.getPath();
+  }
+
+  // SHA-256 of "a" and "b"
+  private static final String HASH_A =
+      "CA978112CA1BBDCAFAC231B39A23DC4DA786EFF8147C4E72B9807785AFEE48BB";
+  private static final String HASH_B =
+      "3E23E8160039594A33894F6564E1B1348BBD7A0088D42C4ACB73EEAED59C009D";
+
+  public void testUploadsOnlyMissingFiles() throws IOException {
+    MemoryStore store = new MemoryStore();
+    store.put(HASH_A, new byte[] {'a'});
+
+    UploadStats stats = S3Uploader.upload(store,
+        Arrays.asList(file("a", "a"), file("b", "b"), file("missing", "b") + ".gone"), 3);
+
+    assertEquals(1, stats.filesUploaded.get());
+    assertEquals(1, stats.filesSkipped.get());
+    assertEquals(1, stats.filesFailed.get());
+    // The description missing next to the existing file is filled in
+    assertEquals(4, store.objects.size());
+    assertEquals("b", new String(store.objects.get(HASH_B), StandardCharsets.UTF_8));
+    assertTrue(new String(store.objects.get(HASH_B + ".json"), StandardCharsets.UTF_8)
+        .contains("\"name\""));
+    assertNotNull(store.objects.get(HASH_A + ".json"));
+    assertEquals(2, stats.bytesHashed.get());
+    assertEquals(1, stats.keysListed.get());
+  }
+
+  public void testListsBucketOncePerPrefix() throws IOException {
+    MemoryStore store = new MemoryStore();
+    String[] paths = new String[40];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = file("f" + i, Integer.toString(i));
+    }
+
+    UploadStats stats = S3Uploader.upload(store, Arrays.asList(paths), 4);
+
+    assertEquals(16, store.listings.get());
+    assertEquals(paths.length, stats.filesUploaded.get());
+    assertEquals(paths.length * 2, store.objects.size());
+  }
+
+  public void testIdenticalFilesUploadedOnce() throws IOException {
+    MemoryStore store = new MemoryStore();
+
+    UploadStats stats = S3Uploader.upload(store,
+        Arrays.asList(file("one", "b"), file("two", "b")), 2);
+
+    assertEquals(1, stats.filesUploaded.get());
+    assertEquals(1, stats.filesSkipped.get());
+    assertEquals(2, store.objects.size());
+  }
+
+  public void testNothingUploadedWhenListingFails() throws IOException {
+    MemoryStore store = new MemoryStore();
+    store.failListing = true;
+
+    UploadStats stats = S3Uploader.upload(store, Arrays.asList(file("b", "b")), 2);
+
+    assertEquals(0, stats.filesUploaded.get());
+    assertEquals(1, stats.filesFailed.get());
+    assertTrue(store.objects.isEmpty());
+  }
+
+  public void testUploadsLargeFilesInParts() throws IOException, NoSuchAlgorithmException {
+    MemoryStore store = new MemoryStore();
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      contents.append(i).append('\n');
+    }
+    byte[] bytes = contents.toString().getBytes(StandardCharsets.UTF_8);
+    String hash = S3Uploader.encodeHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+
+    UploadStats stats = S3Uploader.upload(store,
+        Arrays.asList(file("large", contents.toString()), file("small", "b")), 2, 1024, 100, null);
+
+    assertEquals(2, stats.filesUploaded.get());
+    assertEquals(1, stats.multipartUploads.get());
+    assertTrue(Arrays.equals(bytes, store.objects.get(hash)));
+    assertNotNull(store.objects.get(hash + ".json"));
+    assertNotNull(store.objects.get(HASH_B));
+    // Only the two files and their descriptions, the temporary key is gone
+    assertEquals(4, store.objects.size());
+    assertTrue(store.multiparts.isEmpty());
+    assertEquals(bytes.length + 1, stats.bytesHashed.get());
+  }
+
+  public void testAbortsPartsOfExistingLargeFile() throws IOException {
+    MemoryStore store = new MemoryStore();
+    store.put(HASH_A, new byte[] {'a'});
+
+    UploadStats stats = S3Uploader.upload(store, Arrays.asList(file("a", "a")), 2, 1, 100, null);
+
+    assertEquals(1, stats.filesSkipped.get());
+    assertEquals(0, stats.filesUploaded.get());
+    assertEquals(1, store.aborted.get());
+    assertTrue(store.multiparts.isEmpty());
+    assertEquals(2, store.objects.size());
+  }
+
+  /** Keyed on what java.io.File can see, Os.stat() isn't available off the device. */
+  private HashCache cache(String bucket, int maxEntries) {
+    return new HashCache(new File(dir, "hashes"), bucket, maxEntries) {
+      @Override
+      protected Key stat(String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+          throw new IOException("No such file " + path);
+        }
+        return new Key(0, path.hashCode(), file.length(), file.lastModified(), 0);
+      }
+    };
+  }
+
+  public void testUnchangedFilesAreNotReadAgain() throws IOException {
+    MemoryStore store = new MemoryStore();
+    List<String> paths = Arrays.asList(file("a", "a"), file("b", "b"));
+    HashCache cache = cache("bucket", 100);
+    S3Uploader.upload(store, paths, 2, Long.MAX_VALUE, S3Uploader.MIN_PART_SIZE, cache);
+    assertEquals(2, cache.size());
+    assertEquals(16, store.listings.get());
+
+    UploadStats stats = S3Uploader.upload(store, paths, 2, Long.MAX_VALUE,
+        S3Uploader.MIN_PART_SIZE, cache("bucket", 100));
+
+    assertEquals(2, stats.filesCached.get());
+    assertEquals(0, stats.bytesHashed.get());
+    // Nothing to check, so the bucket wasn't listed again
+    assertEquals(16, store.listings.get());
+  }
+
+  public void testChangedFilesAreUploadedAgain() throws IOException {
+    MemoryStore store = new MemoryStore();
+    List<String> paths = Arrays.asList(file("a", "a"));
+    S3Uploader.upload(store, paths, 2, Long.MAX_VALUE, S3Uploader.MIN_PART_SIZE,
+        cache("bucket", 100));
+
+    file("a", "ab");
+    UploadStats stats = S3Uploader.upload(store, paths, 2, Long.MAX_VALUE,
+        S3Uploader.MIN_PART_SIZE, cache("bucket", 100));
+
+    assertEquals(0, stats.filesCached.get());
+    assertEquals(1, stats.filesUploaded.get());
+    assertEquals(4, store.objects.size());
+  }
+
+  public void testCacheIsPerBucket() throws IOException {
+    S3Uploader.upload(new MemoryStore(), Arrays.asList(file("a", "a")), 2, Long.MAX_VALUE,
+        S3Uploader.MIN_PART_SIZE, cache("bucket", 100));
+
+    assertEquals(1, cache("bucket", 100).size());
+    assertEquals(0, cache("other", 100).size());
+  }
+
+  public void testCacheDropsLeastRecentlyUsed() throws IOException {
+    HashCache cache = cache("bucket", 2);
+    HashCache.Key key = new HashCache.Key(1, 2, 3, 4, 5);
+    cache.put("/one", key, HASH_A, true);
+    cache.put("/two", key, HASH_B, true);
+    assertNotNull(cache.get("/one", key));
+    cache.put("/three", key, HASH_B, false);
+    cache.save();
+
+    HashCache loaded = cache("bucket", 2);
+    assertEquals(2, loaded.size());
+    assertEquals(HASH_A, loaded.get("/one", key).hash());
+    assertNull(loaded.get("/two", key));
+    assertFalse(loaded.get("/three", key).uploaded);
+    assertNull(loaded.get("/one", new HashCache.Key(1, 2, 3, 4, 6)));
+  }
+}
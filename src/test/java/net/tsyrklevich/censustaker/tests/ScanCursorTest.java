@@ -0,0 +1,61 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.ScanCursor;
+import org.apache.commons.io.FileUtils;
+
+public class ScanCursorTest extends TestCase {
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("scan", ".cursor");
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  public void testRoundTrip() throws IOException {
+    ScanCursor cursor = new ScanCursor();
+    cursor.add(new ScanCursor.Position("/system", "/system/lib64", 998, 0x7fffffff12345678L),
+        ScanCursor.DEADLINE);
+    cursor.add(new ScanCursor.Position("/system", "/system/app/Gm\u00e4il", 997, 0),
+        ScanCursor.MAX_ENTRIES);
+    cursor.add(new ScanCursor.Position("/sys/fs/selinux", "/sys/fs/selinux/class", 999, 42),
+        ScanCursor.MAX_BYTES);
+    cursor.save(file);
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    ScanCursor loaded = ScanCursor.load(file);
+    assertEquals(3, loaded.positions().size());
+    ScanCursor.Position position = loaded.positions().get(1);
+    assertEquals("/system", position.root);
+    assertEquals("/system/app/Gm\u00e4il", position.dir);
+    assertEquals(997, position.depth);
+    assertEquals(0x7fffffff12345678L, loaded.positions().get(0).offset);
+    // The first reason a root stopped for is the one kept
+    assertEquals(ScanCursor.DEADLINE, (int) loaded.stopped().get("/system"));
+    assertEquals("max_bytes", ScanCursor.reason(loaded.stopped().get("/sys/fs/selinux")));
+  }
+
+  public void testFinishedScanDeletesCursor() throws IOException {
+    ScanCursor cursor = new ScanCursor();
+    cursor.add(new ScanCursor.Position("/vendor", "/vendor/lib", 999, 0), ScanCursor.DEADLINE);
+    cursor.save(file);
+    assertNotNull(ScanCursor.load(file));
+
+    new ScanCursor().save(file);
+    assertFalse(file.exists());
+    assertNull(ScanCursor.load(file));
+  }
+
+  public void testUnusableCursor() throws IOException {
+    FileUtils.writeStringToFile(file, "not a cursor", StandardCharsets.UTF_8);
+    assertNull(ScanCursor.load(file));
+  }
+}
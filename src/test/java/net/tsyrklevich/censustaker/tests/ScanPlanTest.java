@@ -0,0 +1,136 @@
+package net.tsyrklevich.censustaker.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import junit.framework.TestCase;
+import net.tsyrklevich.censustaker.CensusConfig;
+import net.tsyrklevich.censustaker.FileSystemCensus;
+import net.tsyrklevich.censustaker.ScanPlan;
+import net.tsyrklevich.censustaker.ScanPlanner;
+
+public class ScanPlanTest extends TestCase {
+  private static ScanPlan parse(String json) throws IOException {
+    return ScanPlan.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static ScanPlan.Root root(String path, int depth) {
+    ScanPlan.Root root = new ScanPlan.Root();
+    root.path = path;
+    root.depth = depth;
+    return root;
+  }
+
+  /**
+   * Plans against a filesystem where /etc is a symlink to /system/etc and nothing else is.
+   */
+  private static ScanPlanner plan(List<ScanPlan.Root> roots, String... excludes) {
+    return new ScanPlanner(roots, Arrays.asList(excludes)) {
+      @Override
+      protected String resolve(String path) {
+        return path.equals("/etc") || path.startsWith("/etc/") ? "/system" + path : path;
+      }
+    };
+  }
+
+  public void testParsesPlan() throws IOException {
+    ScanPlan plan = parse("{\"roots\":[{\"path\":\"/system\",\"depth\":1000,\"timeout\":30,"
+        + "\"maxEntries\":5000}],\"excludes\":[\"/system/app\"],"
+        + "\"files\":[\"/proc/version\"],"
+        + "\"globs\":[{\"dir\":\"/\",\"patterns\":[\"init*.rc\",\"!init.usb.rc\"]}]}");
+
+    assertEquals(1, plan.roots.size());
+    ScanPlan.Root root = plan.roots.get(0);
+    assertEquals("/system", root.path);
+    assertEquals(1000, root.depth);
+    assertEquals(30, root.timeout);
+    assertEquals(5000, root.maxEntries);
+    // Left out, so the default applies
+    assertEquals(0, root.maxBytes);
+    assertEquals(Collections.singletonList("/system/app"), plan.excludes);
+    assertEquals(Collections.singletonList("/proc/version"), plan.files);
+    assertEquals("/", plan.globs.get(0).dir);
+    assertEquals(Arrays.asList("init*.rc", "!init.usb.rc"), plan.globs.get(0).patterns);
+
+    // Anything left out is empty rather than null
+    plan = parse("{\"roots\":[{\"path\":\"/\",\"depth\":1}]}");
+    assertTrue(plan.excludes.isEmpty());
+    assertTrue(plan.files.isEmpty());
+    assertTrue(plan.globs.isEmpty());
+  }
+
+  public void testRejectsEmptyPlan() {
+    try {
+      parse("");
+      fail("Parsed an empty plan");
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testMergesOverlappingRoots() {
+    ScanPlanner planner = plan(Arrays.asList(root("/", 1), root("/system", 1000),
+        // Already walked by /system
+        root("/system/lib/", 2), root("/proc", 1), root("/proc/self", 4),
+        root("/data/./system", 1), root("/data/system", 3)));
+
+    // Nothing walks /data, so /data/system is a walk of its own with the deeper of its depths
+    assertEquals(Arrays.asList("/", "/data/system"), planner.dirs);
+    assertEquals(Arrays.asList(1, 3), planner.depths);
+    assertEquals(Arrays.asList("/proc", "/proc/self", "/system"), planner.overrideDirs);
+    assertEquals(Arrays.asList(1, 4, 1000), planner.overrideDepths);
+    assertTrue(planner.excludes.isEmpty());
+    assertTrue(planner.aliases.isEmpty());
+  }
+
+  public void testExcludesOnlyWhatIsWalked() {
+    ScanPlanner planner = plan(Arrays.asList(root("/system", 1000), root("/system/app", 2)),
+        "/system/app", "/system/priv-app", "/data/app");
+
+    // An excluded root is still walked on its own, /data/app is never reached anyway
+    assertEquals(Arrays.asList("/system", "/system/app"), planner.dirs);
+    assertEquals(Arrays.asList(1000, 2), planner.depths);
+    assertTrue(planner.overrideDirs.isEmpty());
+    assertEquals(Arrays.asList("/system/app", "/system/priv-app"), planner.excludes);
+  }
+
+  public void testDropsAliasesOfWalkedDirectories() {
+    ScanPlanner planner = plan(Arrays.asList(root("/system", 1000), root("/etc", 10)));
+    assertEquals(Collections.singletonList("/system"), planner.dirs);
+    assertEquals(Collections.singletonMap("/etc", "/system/etc"), planner.aliases);
+
+    // Deeper than /system goes, so it has to be walked on its own
+    planner = plan(Arrays.asList(root("/system", 1), root("/etc", 3)));
+    assertEquals(Arrays.asList("/etc", "/system"), planner.dirs);
+    assertEquals(Arrays.asList(3, 1), planner.depths);
+    assertTrue(planner.aliases.isEmpty());
+  }
+
+  public void testBudgets() {
+    Properties properties = new Properties();
+    properties.setProperty("scan.timeout", "60");
+    properties.setProperty("scan.max_entries", "lots");
+    CensusConfig config = new CensusConfig(properties);
+
+    ScanPlan plan = new ScanPlan();
+    plan.roots.add(root("/", 1));
+    ScanPlan.Root system = root("/system/", 1000);
+    system.timeout = 5;
+    system.maxBytes = 1024;
+    plan.roots.add(system);
+    ScanPlan.Root proc = root("/proc", 1);
+    proc.maxEntries = 100;
+    plan.roots.add(proc);
+
+    long[] budgets = FileSystemCensus.budgets(Arrays.asList("/", "/system", "/proc"), plan,
+        config);
+    long defaultBytes = config.scanMaxBytes();
+    assertEquals(Arrays.toString(new long[] {
+        60000, 0, defaultBytes,
+        5000, 0, 1024,
+        60000, 100, defaultBytes}), Arrays.toString(budgets));
+  }
+}
@@ -0,0 +1,155 @@
+#!/usr/bin/env python3
+"""
+Build the preset deflate dictionary census payloads are compressed with, and report how each
+compression setting does on the samples.
+
+Samples are census files as written to external storage (device_data*.json or *.census), or the
+deflated census.deflate payloads. The dictionary is made of the substrings that turn up in the
+most samples, most valuable last since deflate reaches the end of the dictionary with the
+shortest distances. seed.txt, census-shaped records written by hand, is always included so the
+dictionary knows the keys of every section even if the samples don't cover them.
+
+  tools/dictionary/build_dictionary.py --version 2 samples/*
+
+writes src/main/assets/census_dictionary_v2, CensusCompression.DICTIONARY_VERSION has to be
+bumped to match and the server given the new dictionary before clients send it.
+"""
+
+import argparse
+import heapq
+import os
+import sys
+import time
+import zlib
+from collections import Counter
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+ASSETS = os.path.join(HERE, "..", "..", "src", "main", "assets")
+
+# Deflate can't see further back than its 32 KB window
+MAX_DICTIONARY = 32 * 1024
+KMER = 8
+SEGMENT = 64
+
+STRATEGIES = {
+    "default": zlib.Z_DEFAULT_STRATEGY,
+    "filtered": zlib.Z_FILTERED,
+    "huffman": zlib.Z_HUFFMAN_ONLY,
+}
+LEVELS = [1, 6, 9]
+
+
+def load_sample(path, limit):
+    with open(path, "rb") as f:
+        data = f.read()
+    # census.deflate payloads, anything compressed with a dictionary can't be read back here
+    if len(data) >= 2 and data[0] == 0x78 and (data[0] << 8 | data[1]) % 31 == 0:
+        try:
+            data = zlib.decompress(data)
+        except zlib.error:
+            pass
+    return data[:limit]
+
+
+def build(samples, size):
+    # Count each k-mer once per sample so one huge sample can't drown out the rest
+    kmers = Counter()
+    for sample in samples:
+        kmers.update({sample[i:i + KMER] for i in range(len(sample) - KMER + 1)})
+
+    def score(segment, used):
+        return sum(kmers[segment[i:i + KMER]]
+                   for i in range(0, len(segment) - KMER + 1)
+                   if segment[i:i + KMER] not in used)
+
+    candidates = set()
+    for sample in samples:
+        for i in range(0, max(len(sample) - SEGMENT, 0) + 1, SEGMENT // 4):
+            candidates.add(sample[i:i + SEGMENT])
+
+    # Lazy greedy: a segment's score only drops as others are picked, so a rescored segment
+    # that's still on top of the heap is the best one left
+    used = set()
+    heap = [(-score(c, used), c) for c in candidates]
+    heapq.heapify(heap)
+    chosen = []
+    total = 0
+    while heap and total < size:
+        _, segment = heapq.heappop(heap)
+        current = score(segment, used)
+        if current <= 0:
+            continue
+        if heap and current < -heap[0][0]:
+            heapq.heappush(heap, (-current, segment))
+            continue
+        chosen.append((current, segment))
+        used.update(segment[i:i + KMER] for i in range(len(segment) - KMER + 1))
+        total += len(segment)
+
+    chosen.sort()
+    dictionary = b"".join(segment for _, segment in chosen)
+    return dictionary[-size:]
+
+
+def compress(data, level, strategy, dictionary):
+    if dictionary:
+        c = zlib.compressobj(level, zlib.DEFLATED, zlib.MAX_WBITS, 9, strategy, dictionary)
+    else:
+        c = zlib.compressobj(level, zlib.DEFLATED, zlib.MAX_WBITS, 9, strategy)
+    return c.compress(data) + c.flush()
+
+
+def report(samples, dictionaries):
+    raw = sum(len(s) for s in samples)
+    print("%-12s %-9s %5s %10s %7s %9s" % ("dictionary", "strategy", "level", "bytes", "ratio", "cpu ms"))
+    for name, dictionary in dictionaries:
+        for strategy_name, strategy in STRATEGIES.items():
+            for level in LEVELS:
+                start = time.process_time()
+                compressed = sum(len(compress(s, level, strategy, dictionary)) for s in samples)
+                cpu = (time.process_time() - start) * 1000
+                print("%-12s %-9s %5d %10d %7.2f %9.1f"
+                      % (name, strategy_name, level, compressed, raw / max(compressed, 1), cpu))
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__,
+                                     formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("samples", nargs="*", help="census files to build the dictionary from")
+    parser.add_argument("--version", type=int, required=True,
+                        help="version of the dictionary, written to census_dictionary_v<version>")
+    parser.add_argument("--size", type=int, default=MAX_DICTIONARY)
+    parser.add_argument("--eval", nargs="*", default=[],
+                        help="census files to report on instead of the samples, e.g. held out ones")
+    parser.add_argument("--max-sample-bytes", type=int, default=4 * 1024 * 1024)
+    parser.add_argument("--out", help="where to write the dictionary (default: the app's assets)")
+    args = parser.parse_args()
+
+    with open(os.path.join(HERE, "seed.txt"), "rb") as f:
+        seed = f.read()
+    samples = [load_sample(path, args.max_sample_bytes) for path in args.samples]
+
+    start = time.process_time()
+    dictionary = build(samples + [seed], min(args.size, MAX_DICTIONARY))
+    print("Built a %d byte dictionary in %.1fs" % (len(dictionary), time.process_time() - start))
+
+    out = args.out or os.path.join(ASSETS, "census_dictionary_v%d" % args.version)
+    with open(out, "wb") as f:
+        f.write(dictionary)
+    print("Wrote %s, Adler-32 %08x" % (out, zlib.adler32(dictionary)))
+
+    evaluation = [load_sample(path, args.max_sample_bytes) for path in args.eval] or samples
+    if not evaluation:
+        print("No samples to report on", file=sys.stderr)
+        return
+
+    dictionaries = [("none", None), ("v%d" % args.version, dictionary)]
+    previous = os.path.join(ASSETS, "census_dictionary_v%d" % (args.version - 1))
+    if os.path.isfile(previous):
+        with open(previous, "rb") as f:
+            dictionaries.append(("v%d" % (args.version - 1), f.read()))
+    report(evaluation, dictionaries)
+
+
+if __name__ == "__main__":
+    main()